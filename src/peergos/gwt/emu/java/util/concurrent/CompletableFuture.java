@@ -271,6 +271,17 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         throw new IllegalStateException("Not implemented!");
     }
 
+    /** There is only one thread in the browser, so run the task immediately
+     */
+    public static CompletableFuture<Void> runAsync(Runnable task) {
+        try {
+            task.run();
+            return completedFuture(null);
+        } catch (Throwable t) {
+            return new CompletableFuture<Void>(t);
+        }
+    }
+
     @Override
     public T get(long t, TimeUnit unit) {
         throw new IllegalStateException("Not possible to call synchronous get() in JS!");
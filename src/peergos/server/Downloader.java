@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.crypto.*;
 import peergos.shared.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.user.*;
@@ -15,7 +16,7 @@ import java.util.function.*;
 public class Downloader {
 
     public static void main(String[] args) throws Exception {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
         String username = args[0];
         String fromPath = args[1];
@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.crypto.*;
 import peergos.shared.*;
 import peergos.server.corenode.*;
 import peergos.server.fuse.*;
@@ -34,7 +35,7 @@ public class Main {
             Paths.get(System.getProperty("user.home"), ".peergos");
 
     static {
-        PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+        PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new FastEd25519());
     }
 
     public static Command ENSURE_IPFS_INSTALLED = new Command("install-ipfs",
@@ -73,10 +74,24 @@ public class Main {
                     new Command.Arg("pki-node-id", "Ipfs node id of the pki node", true),
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or a local disk store", false, "true"),
+                    new Command.Arg("blockstore-type", "The local disk store to use if not using IPFS, either 'file' or 'packed'", false, "file"),
                     new Command.Arg("mutable-pointers-file", "The filename for the mutable pointers datastore", true, "mutable.sql"),
+                    new Command.Arg("mutable-pointers-store", "The type of store for mutable pointers, sql or log", false, "sql"),
+                    new Command.Arg("mutable-pointers-dir", "The directory for the log based mutable pointer store", false, "pointers"),
+                    new Command.Arg("mutable-pointers-max-log-bytes", "The size of the mutable pointer log at which to write a snapshot", false, Long.toString(64 * 1024 * 1024)),
                     new Command.Arg("social-sql-file", "The filename for the follow requests datastore", true, "social.sql"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
-                    new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024))
+                    new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
+                    new Command.Arg("block-cache-size", "maximum size in bytes of the in memory block cache", false, Long.toString(50L * 1024 * 1024)),
+                    new Command.Arg("dht-handler-threads", "maximum number of concurrent block api requests", false, "50"),
+                    new Command.Arg("public-handler-threads", "maximum number of concurrent public file requests", false, "20"),
+                    new Command.Arg("max-queued-requests", "maximum number of requests to queue for each endpoint", false, "1000"),
+                    new Command.Arg("signature-verifier-threads", "maximum number of threads verifying uploaded block signatures, defaults to the number of cores", false),
+                    new Command.Arg("space-usage-file", "The filename for the snapshots of each writer's space usage", false, "space-usage.cbor"),
+                    new Command.Arg("space-usage-cache-blocks", "The number of block sizes to cache in memory when calculating space usage", false, "1000000"),
+                    new Command.Arg("block-index-file", "The filename for the index of block sizes and links (or :memory: for ram based)", false, "block-index.sql"),
+                    new Command.Arg("gc-period-millis", "How often to garbage collect the local file blockstore, or 0 to disable", false, "0"),
+                    new Command.Arg("gc-threads", "The number of threads to garbage collect with", false, "4")
             ).collect(Collectors.toList())
     );
 
@@ -85,7 +100,7 @@ public class Main {
                     "This means creating a pki keypair and publishing the public key",
             args -> {
                 try {
-                    Crypto crypto = Crypto.initJava();
+                    Crypto crypto = JavaCrypto.init();
                     // setup peergos user and pki keys
                     String testpassword = args.getArg("peergos.password");
                     String pkiUsername = "peergos";
@@ -96,7 +111,7 @@ public class Main {
                     String ipfsApiAddress = args.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001");
                     ContentAddressedStorage dht = useIPFS ?
                             new IpfsDHT(new MultiAddress(ipfsApiAddress)) :
-                            new FileContentAddressedStorage(blockstorePath(args));
+                            buildLocalStorage(args);
 
                     SigningKeyPair peergosIdentityKeys = peergos.getUser();
                     PublicKeyHash peergosPublicHash = ContentAddressedStorage.hashKey(peergosIdentityKeys.publicSigningKey);
@@ -141,7 +156,7 @@ public class Main {
                     "This means signing up the peergos user, and adding the pki public key to the peergos user",
             args -> {
                 try {
-                    Crypto crypto = Crypto.initJava();
+                    Crypto crypto = JavaCrypto.init();
                     // recreate peergos user and pki keys
                     String password = args.getArg("peergos.password");
                     String pkiUsername = "peergos";
@@ -200,7 +215,7 @@ public class Main {
 
                     Multihash pkiIpfsNodeId = useIPFS ?
                             new IpfsDHT(getLocalMultiAddress(ipfsApiPort)).id().get() :
-                            new FileContentAddressedStorage(blockstorePath(args)).id().get();
+                            buildLocalStorage(args).id().get();
 
                     if (ipfs != null)
                         ipfs.stop();
@@ -217,6 +232,7 @@ public class Main {
                     new Command.Arg("useIPFS", "Whether to use IPFS or a local datastore", true, "false"),
                     new Command.Arg("mutable-pointers-file", "The filename for the mutable pointers (or :memory: or ram based)", true, ":memory:"),
                     new Command.Arg("social-sql-file", "The filename for the follow requests (or :memory: or ram based)", true, ":memory:"),
+                    new Command.Arg("block-index-file", "The filename for the index of block sizes (or :memory: or ram based)", true, ":memory:"),
                     new Command.Arg("ipfs-config-api-port", "ipfs api port", true, "5001"),
                     new Command.Arg("ipfs-config-gateway-port", "ipfs gateway port", true, "8080"),
                     new Command.Arg("pki.secret.key.path", "The path to the pki secret key file", true, "test.pki.secret.key"),
@@ -235,13 +251,21 @@ public class Main {
                     new Command.Arg("username", "Peergos username", true),
                     new Command.Arg("password", "Peergos password", true),
                     new Command.Arg("webport", "Peergos service address port", false, "8000"),
-                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos")
+                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos"),
+                    new Command.Arg("max-metadata-requests", "maximum number of concurrent file metadata requests", false,
+                            Integer.toString(NetworkAccess.DEFAULT_MAX_METADATA_REQUESTS)),
+                    new Command.Arg("read-ahead-chunks", "number of file chunks to fetch ahead of sequential reads", false,
+                            Integer.toString(NetworkAccess.DEFAULT_READ_AHEAD_CHUNKS)),
+                    new Command.Arg("max-upload-chunks", "maximum number of chunks of a file upload in flight at once", false,
+                            Integer.toString(NetworkAccess.DEFAULT_MAX_UPLOAD_CHUNKS_IN_FLIGHT)),
+                    new Command.Arg("max-upload-bytes", "memory budget in bytes for the chunks of a file upload in flight", false,
+                            Long.toString(NetworkAccess.DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT))
             ).collect(Collectors.toList())
     );
 
     public static void startPeergos(Args a) {
         try {
-            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+            PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new FastEd25519());
             int webPort = a.getInt("port");
             a.setIfAbsent("proxy-target", getLocalMultiAddress(webPort).toString());
 
@@ -257,14 +281,22 @@ public class Main {
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            int dhtCacheEntries = 1000;
+            long dhtCacheBytes = a.getLong("block-cache-size", 50 * 1024 * 1024);
             int maxValueSizeToCache = 50 * 1024;
             JavaPoster ipfsApi = new JavaPoster(ipfsApiAddress);
             JavaPoster ipfsGateway = new JavaPoster(ipfsGatewayAddress);
 
-            ContentAddressedStorage localDht = useIPFS ?
-                    new CachingStorage(new ContentAddressedStorage.HTTP(ipfsApi, false), dhtCacheEntries, maxValueSizeToCache) :
-                    new FileContentAddressedStorage(blockstorePath(a));
+            ContentAddressedStorage blockStore = useIPFS ?
+                    new ContentAddressedStorage.HTTP(ipfsApi, false) :
+                    buildLocalStorage(a);
+            CachingStorage localStorage = new CachingStorage(blockStore, dhtCacheBytes, maxValueSizeToCache);
+            String blockIndexFile = a.getArg("block-index-file");
+            // index writes are batched off the block write path
+            BlockSizeIndex blockIndex = new BlockSizeIndex.Buffered(BlockSizeIndex.Sqlite.build(blockIndexFile.equals(":memory:") ?
+                    blockIndexFile :
+                    a.fromPeergosDir("block-index-file").toString()), 1_000, 10_000);
+            SizeCachingStorage localDht = new SizeCachingStorage(localStorage, blockIndex,
+                    a.getInt("space-usage-cache-blocks", 1_000_000));
 
             String hostname = a.getArg("domain");
             int maxUserCount = a.getInt("max-user-count", CoreNode.MAX_USERNAME_COUNT);
@@ -274,25 +306,43 @@ public class Main {
             String path = mutablePointersSqlFile.equals(":memory:") ?
                     mutablePointersSqlFile :
                     a.fromPeergosDir("mutable-pointers-file").toString();
-            MutablePointers sqlMutable = UserRepository.buildSqlLite(path, localDht, maxUserCount);
+            PointerStore localPointers = a.getArg("mutable-pointers-store").equals("log") ?
+                    new LogMutablePointers(a.fromPeergosDir("mutable-pointers-dir", "pointers"), localDht,
+                            a.getLong("mutable-pointers-max-log-bytes")) :
+                    UserRepository.buildSqlLite(path, localDht, maxUserCount);
+            long gcPeriod = a.getLong("gc-period-millis", 0);
+            if (gcPeriod > 0) {
+                if (! (blockStore instanceof FileContentAddressedStorage))
+                    throw new IllegalStateException("gc-period-millis is only supported with useIPFS=false and blockstore-type=file");
+                GarbageCollector gc = new GarbageCollector((FileContentAddressedStorage) blockStore, localDht,
+                        localPointers::getAllPointers, h -> {
+                            localDht.removeFromIndex(h);
+                            localStorage.getCache().remove(h);
+                        }, a.getInt("gc-threads", 4));
+                gc.start(gcPeriod);
+            }
             MutablePointersProxy proxingMutable = new HttpMutablePointers(ipfsGateway, pkiServerNodeId);
 
             PublicKeyHash peergosId = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
             // build a mirroring proxying corenode, unless we are the pki node
             boolean isPkiNode = nodeId.equals(pkiServerNodeId);
             CoreNode core = isPkiNode ?
-                    buildPkiCorenode(sqlMutable, localDht, a) :
+                    buildPkiCorenode(localPointers, localDht, a) :
                     new MirrorCoreNode(new HTTPCoreNode(ipfsGateway, pkiServerNodeId), localDht, proxingMutable, peergosId);
 
             long defaultQuota = a.getLong("default-quota");
             Logging.LOG().info("Using default user space quota of " + defaultQuota);
             Path quotaFilePath = a.fromPeergosDir("quotas_file","quotas.txt");
             UserQuotas userQuotas = new UserQuotas(quotaFilePath, defaultQuota);
-            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, sqlMutable, localDht, userQuotas::quota);
+            SpaceUsageSnapshots usageSnapshots = SpaceUsageSnapshots.load(a.fromPeergosDir("space-usage-file", "space-usage.cbor"), 60_000);
+            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localDht,
+                    userQuotas::quota, usageSnapshots, 4);
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(core);
             corePropagator.addListener(spaceChecker::accept);
-            MutableEventPropagator localMutable = new MutableEventPropagator(sqlMutable);
+            MutableEventPropagator localMutable = new MutableEventPropagator(localPointers);
             localMutable.addListener(spaceChecker::accept);
+            PointerChangeWatcher pointerWatcher = new PointerChangeWatcher(30_000, 10_000);
+            localMutable.addListener(pointerWatcher);
 
             ContentAddressedStorage filteringDht = new WriteFilter(localDht, spaceChecker::allowWrite);
             ContentAddressedStorageProxy proxingDht = new ContentAddressedStorageProxy.HTTP(ipfsGateway);
@@ -316,7 +366,7 @@ public class Main {
 
             new UserFilePinner(userPath, core, p2mMutable, p2pDht, delayMs).start();
 
-            UserService peergos = new UserService(p2pDht, corePropagator, p2pSocial, p2mMutable);
+            UserService peergos = new UserService(p2pDht, corePropagator, p2pSocial, p2mMutable, Optional.of(pointerWatcher));
             InetSocketAddress localAddress = new InetSocketAddress("localhost", userAPIAddress.getPort());
             Optional<Path> webroot = a.hasArg("webroot") ?
                     Optional.of(Paths.get(a.getArg("webroot"))) :
@@ -325,7 +375,17 @@ public class Main {
             Optional<String> tlsHostname = hostname.equals("localhost") ? Optional.empty() : Optional.of(hostname);
             Optional<UserService.TlsProperties> tlsProps =
                     tlsHostname.map(host -> new UserService.TlsProperties(host, a.getArg("tls.keyfile.password")));
-            peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache);
+            UserService.HandlerLimits defaultLimits = UserService.HandlerLimits.DEFAULT;
+            UserService.HandlerLimits limits = new UserService.HandlerLimits(
+                    a.getInt("dht-handler-threads", defaultLimits.dhtThreads),
+                    defaultLimits.coreThreads,
+                    defaultLimits.socialThreads,
+                    defaultLimits.mutableThreads,
+                    a.getInt("public-handler-threads", defaultLimits.publicThreads),
+                    defaultLimits.uiThreads,
+                    a.getInt("max-queued-requests", defaultLimits.maxQueued),
+                    a.getInt("signature-verifier-threads", defaultLimits.verifierThreads));
+            peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache, limits);
             if (! isPkiNode)
                 ((MirrorCoreNode) core).start();
             spaceChecker.loadAllOwnerAndUsage();
@@ -352,8 +412,11 @@ public class Main {
 
         System.out.println("\n\nPeergos mounted at " + path + "\n\n");
         try {
-            NetworkAccess network = NetworkAccess.buildJava(webPort).get();
-            Crypto crypto = Crypto.initJava();
+            NetworkAccess network = NetworkAccess.buildJava(webPort).get()
+                    .withMaxMetadataRequests(a.getInt("max-metadata-requests"))
+                    .withReadAheadChunks(a.getInt("read-ahead-chunks"))
+                    .withUploadParallelism(a.getInt("max-upload-chunks"), a.getLong("max-upload-bytes"));
+            Crypto crypto = JavaCrypto.init();
             UserContext userContext = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
             PeergosFS peergosFS = new PeergosFS(userContext);
             FuseProcess fuseProcess = new FuseProcess(peergosFS, path);
@@ -398,13 +461,12 @@ public class Main {
         System.out.println("Using mutable-pointers path " + path);
         boolean useIPFS = a.getBoolean("useIPFS");
 
-        int dhtCacheEntries = 1000;
+        long dhtCacheBytes = a.getLong("block-cache-size", 100 * 1024 * 1024);
         int maxValueSizeToCache = 2 * 1024 * 1024;
-        ContentAddressedStorage dht = useIPFS ?
-                new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) :
-                new FileContentAddressedStorage(blockstorePath(a));
+        ContentAddressedStorage dht = new CachingStorage(useIPFS ? new IpfsDHT() : buildLocalStorage(a),
+                dhtCacheBytes, maxValueSizeToCache);
         try {
-            Crypto crypto = Crypto.initJava();
+            Crypto crypto = JavaCrypto.init();
             MutablePointers mutable = UserRepository.buildSqlLite(path
                     , dht, maxUserCount);
             PublicKeyHash peergosIdentity = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
@@ -436,7 +498,7 @@ public class Main {
 
     private static CoreNode buildPkiCorenode(MutablePointers mutable, ContentAddressedStorage dht, Args a) {
         try {
-            Crypto crypto = Crypto.initJava();
+            Crypto crypto = JavaCrypto.init();
             PublicKeyHash peergosIdentity = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
 
             String pkiSecretKeyfilePassword = a.getArg("pki.keyfile.password");
@@ -463,6 +525,22 @@ public class Main {
         }
     }
 
+    public static final Command MIGRATE_BLOCKSTORE = new Command("migrate-blockstore",
+            "Copy all blocks from a file per block local store into a packed segment store",
+            args -> {
+                Path source = blockstorePath(args);
+                Path target = args.fromPeergosDir("packed_blockstore_dir", "packed-blockstore");
+                PackedContentAddressedStorage packed = new PackedContentAddressedStorage(target);
+                long copied = packed.migrateFrom(new FileContentAddressedStorage(source));
+                packed.close();
+                System.out.println("Copied " + copied + " blocks from " + source + " to " + target);
+            },
+            Arrays.asList(
+                    new Command.Arg("blockstore_dir", "The directory of the existing file per block store", false, "blockstore"),
+                    new Command.Arg("packed_blockstore_dir", "The directory for the packed store", false, "packed-blockstore")
+            )
+    );
+
     public static final Command MAIN = new Command("Main",
             "Run a Peergos command",
             args -> {
@@ -481,7 +559,8 @@ public class Main {
             Arrays.asList(
                     PKI,
                     PEERGOS,
-                    FUSE
+                    FUSE,
+                    MIGRATE_BLOCKSTORE
             )
     );
 
@@ -495,6 +574,37 @@ public class Main {
         return args.fromPeergosDir("blockstore_dir", "blockstore");
     }
 
+    private static final Map<Path, PackedContentAddressedStorage> packedStores = new HashMap<>();
+
+    /** Segments are appended to by a single store, so every command in this process shares one per directory, which is
+     *  closed on shutdown.
+     */
+    private static synchronized PackedContentAddressedStorage getPackedStorage(Path dir) {
+        return packedStores.computeIfAbsent(dir.toAbsolutePath().normalize(), d -> {
+            PackedContentAddressedStorage store = new PackedContentAddressedStorage(d);
+            Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+            return store;
+        });
+    }
+
+    /**
+     * Build the local, non IPFS, block store selected by the blockstore-type arg.
+     *
+     * @param args
+     * @return
+     */
+    private static ContentAddressedStorage buildLocalStorage(Args args) {
+        String type = args.getArg("blockstore-type", "file");
+        switch (type) {
+            case "file":
+                return new FileContentAddressedStorage(blockstorePath(args));
+            case "packed":
+                return getPackedStorage(args.fromPeergosDir("packed_blockstore_dir", "packed-blockstore"));
+            default:
+                throw new IllegalStateException("Unknown blockstore-type: " + type);
+        }
+    }
+
     public static MultiAddress getLocalMultiAddress(int port) {
         return new MultiAddress("/ip4/127.0.0.1/tcp/" + port);
     }
@@ -504,6 +614,9 @@ public class Main {
     }
 
     public static void main(String[] args) {
+        // The JVM only keeps this many idle connections per destination, which defaults to 5
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", Integer.toString(JavaPoster.DEFAULT_MAX_CONCURRENT_REQUESTS));
         MAIN.main(Args.parse(args));
     }
 }
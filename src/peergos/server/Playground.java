@@ -1,4 +1,5 @@
 package peergos.server;
+import peergos.server.crypto.*;
 import java.util.logging.*;
 import peergos.server.util.Logging;
 
@@ -25,7 +26,7 @@ public class Playground {
     private static final Logger LOG = Logging.LOG();
 
     public static void main(String[] args) throws Exception {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         NetworkAccess source = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
 
         ContentAddressedStorage nonWriteThroughIpfs = new NonWriteThroughStorage(source.dhtClient);
@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.crypto.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
@@ -13,7 +14,7 @@ import java.net.*;
 public class Publisher {
 
     public static void main(String[] args) throws Exception {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
         String username = args[0];
         String pathToMakePublic = args[1];
@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.crypto.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
 
@@ -10,7 +11,7 @@ import java.time.*;
 public class Renew {
 
     public static void main(String[] args) throws Exception {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
         String username = args[0];
         LocalDate expiry = LocalDate.parse(args[1]);
@@ -9,6 +9,7 @@ import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
@@ -17,10 +18,14 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 
 /** This class checks whether a given user is using more storage space than their quota
  *
+ * Pointer and corenode events are processed asynchronously, in order for each writer, so the writes which trigger
+ * them (and allowWrite) never wait on walking a tree. The usage of each writer is snapshotted to disk, so a restart
+ * only needs to diff from the last root we processed.
  */
 public class SpaceCheckingKeyFilter {
     private static final Logger LOG = Logging.LOG();
@@ -28,10 +33,15 @@ public class SpaceCheckingKeyFilter {
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private Function<String, Long> quotaSupplier;
+    private final SpaceUsageSnapshots snapshots;
 
     private final Map<PublicKeyHash, Stat> currentView = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<>();
 
+    private final ExecutorService eventProcessor;
+    private final Map<PublicKeyHash, CompletableFuture<Void>> writerQueues = new ConcurrentHashMap<>();
+    private final AtomicLong pendingEvents = new AtomicLong(0);
+
     private static class Stat {
         public final String owner;
         private MaybeMultihash target;
@@ -100,15 +110,75 @@ public class SpaceCheckingKeyFilter {
      * @param mutable
      * @param dht
      * @param quotaSupplier The quota supplier
+     * @param snapshots The usage of each writer as of the last root processed
+     * @param eventThreads The number of threads to process events on
      */
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
                                   ContentAddressedStorage dht,
-                                  Function<String, Long> quotaSupplier) {
+                                  Function<String, Long> quotaSupplier,
+                                  SpaceUsageSnapshots snapshots,
+                                  int eventThreads) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.quotaSupplier = quotaSupplier;
+        this.snapshots = snapshots;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.eventProcessor = Executors.newFixedThreadPool(eventThreads, r -> {
+            Thread t = new Thread(r, "Space usage-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public SpaceCheckingKeyFilter(CoreNode core,
+                                  MutablePointers mutable,
+                                  ContentAddressedStorage dht,
+                                  Function<String, Long> quotaSupplier) {
+        this(core, mutable, dht, quotaSupplier, SpaceUsageSnapshots.ephemeral(), 4);
+    }
+
+    /**
+     *
+     * @return The number of events which are waiting to be processed
+     */
+    public long pendingEvents() {
+        return pendingEvents.get();
+    }
+
+    /** Run a task after all the previously queued tasks for the same writer have completed
+     */
+    private void enqueue(PublicKeyHash writer, Runnable task) {
+        pendingEvents.incrementAndGet();
+        writerQueues.compute(writer, (w, previous) -> {
+            CompletableFuture<Void> prior = previous == null ? CompletableFuture.completedFuture(null) : previous;
+            CompletableFuture<Void> next = prior.thenRunAsync(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                } finally {
+                    pendingEvents.decrementAndGet();
+                }
+            }, eventProcessor);
+            next.thenRun(() -> writerQueues.remove(w, next));
+            return next;
+        });
+    }
+
+    /** Get our view of a writer, starting from its last snapshot if we have one
+     */
+    private Stat getOrLoadStat(String owner, PublicKeyHash writer, Set<PublicKeyHash> ownedKeys) {
+        return currentView.computeIfAbsent(writer, w -> {
+            Optional<SpaceUsageSnapshots.Snapshot> snapshot = snapshots.get(w)
+                    .filter(s -> s.owner.equals(owner));
+            if (! snapshot.isPresent())
+                return new Stat(owner, MaybeMultihash.empty(), 0, ownedKeys);
+            SpaceUsageSnapshots.Snapshot s = snapshot.get();
+            usage.computeIfAbsent(owner, u -> new Usage(0)).confirmUsage(w, s.directRetainedStorage);
+            return new Stat(owner, s.root, s.directRetainedStorage, s.ownedKeys);
+        });
     }
 
     public void loadAllOwnerAndUsage() {
@@ -151,9 +221,9 @@ public class SpaceCheckingKeyFilter {
     }
 
     public void accept(CorenodeEvent event) {
-        currentView.computeIfAbsent(event.keyHash, k -> new Stat(event.username, MaybeMultihash.empty(), 0, Collections.emptySet()));
         usage.putIfAbsent(event.username, new Usage(0));
-        ForkJoinPool.commonPool().submit(() -> processCorenodeEvent(event.username, event.keyHash));
+        getOrLoadStat(event.username, event.keyHash, Collections.emptySet());
+        enqueue(event.keyHash, () -> processCorenodeEvent(event.username, event.keyHash));
     }
 
     /** Update our view of the world because a user has changed their public key (or registered)
@@ -165,8 +235,7 @@ public class SpaceCheckingKeyFilter {
         try {
             usage.putIfAbsent(username, new Usage(0));
             Set<PublicKeyHash> childrenKeys = WriterData.getDirectOwnedKeys(owner, owner, mutable, dht);
-            currentView.computeIfAbsent(owner, k -> new Stat(username, MaybeMultihash.empty(), 0, childrenKeys));
-            Stat current = currentView.get(owner);
+            Stat current = getOrLoadStat(username, owner, childrenKeys);
             MaybeMultihash updatedRoot = mutable.getPointerTarget(owner, owner, dht).get();
             processMutablePointerEvent(owner, owner, current.target, updatedRoot);
             for (PublicKeyHash childKey : childrenKeys) {
@@ -179,14 +248,16 @@ public class SpaceCheckingKeyFilter {
     }
 
     public void accept(MutableEvent event) {
-        try {
-            HashCasPair hashCasPair = dht.getSigningKey(event.writer)
-                    .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
-                            .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            processMutablePointerEvent(event.owner, event.writer, hashCasPair.original, hashCasPair.updated);
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
-        }
+        enqueue(event.writer, () -> {
+            try {
+                HashCasPair hashCasPair = dht.getSigningKey(event.writer)
+                        .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
+                                .unsignMessage(event.writerSignedBtreeRootHash)))).get();
+                processMutablePointerEvent(event.owner, event.writer, hashCasPair.original, hashCasPair.updated);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        });
     }
 
     public void processMutablePointerEvent(PublicKeyHash owner, PublicKeyHash writer, MaybeMultihash existingRoot, MaybeMultihash newRoot) {
@@ -196,7 +267,10 @@ public class SpaceCheckingKeyFilter {
         if (current == null)
             throw new IllegalStateException("Unknown writer key hash: " + writer);
         if (! newRoot.isPresent()) {
+            long retained = current.getDirectRetainedStorage();
             current.update(MaybeMultihash.empty(), Collections.emptySet(), 0);
+            usage.get(current.owner).confirmUsage(writer, -retained);
+            snapshots.remove(writer);
             if (existingRoot.isPresent()) {
                 try {
                     // subtract data size from orphaned child keys (this assumes the keys form a tree without dups)
@@ -211,10 +285,10 @@ public class SpaceCheckingKeyFilter {
 
         try {
             synchronized (current) {
-                long changeInStorage = dht.getChangeInContainedSize(current.target, newRoot.get()).get();
+                long changeInStorage = getChangeInStorage(current, newRoot.get());
                 Set<PublicKeyHash> updatedOwned = WriterData.getWriterData(writer, newRoot, dht).get().props.ownedKeys;
                 for (PublicKeyHash owned : updatedOwned) {
-                    currentView.computeIfAbsent(owned, k -> new Stat(current.owner, MaybeMultihash.empty(), 0, Collections.emptySet()));
+                    getOrLoadStat(current.owner, owned, Collections.emptySet());
                 }
                 Usage currentUsage = usage.get(current.owner);
                 currentUsage.confirmUsage(writer, changeInStorage);
@@ -223,12 +297,24 @@ public class SpaceCheckingKeyFilter {
                 removedChildren.removeAll(updatedOwned);
                 processRemovedOwnedKeys(owner, removedChildren);
                 current.update(newRoot, updatedOwned, current.directRetainedStorage + changeInStorage);
+                snapshots.put(writer, new SpaceUsageSnapshots.Snapshot(current.owner, newRoot,
+                        current.directRetainedStorage, current.getOwnedKeys()));
             }
         } catch (Exception e) {
             Exceptions.getRootCause(e).printStackTrace();
         }
     }
 
+    private long getChangeInStorage(Stat current, Multihash newRoot) throws Exception {
+        if (current.target.isPresent() && ! dht.getSize(current.target.get()).get().isPresent()) {
+            // The blocks of a snapshotted root may have been garbage collected, in which case a diff would count them
+            // as empty, so count the new tree from scratch
+            LOG.info("Previous root " + current.target + " is missing, recalculating usage from " + newRoot);
+            return dht.getRecursiveBlockSize(newRoot).get() - current.directRetainedStorage;
+        }
+        return dht.getChangeInContainedSize(current.target, newRoot).get();
+    }
+
     private void processRemovedOwnedKeys(PublicKeyHash owner, Set<PublicKeyHash> removed) {
         for (PublicKeyHash ownedKey : removed) {
             try {
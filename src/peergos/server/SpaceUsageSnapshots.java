@@ -0,0 +1,139 @@
+package peergos.server;
+
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A persistent record of the storage retained by each writer at a given root hash. On startup this lets us diff
+ * from the last root we saw, rather than walking every user's whole tree again.
+ *
+ */
+public class SpaceUsageSnapshots {
+    private static final Logger LOG = Logging.LOG();
+
+    public static class Snapshot implements Cborable {
+        public final String owner;
+        public final MaybeMultihash root;
+        public final long directRetainedStorage;
+        public final Set<PublicKeyHash> ownedKeys;
+
+        public Snapshot(String owner, MaybeMultihash root, long directRetainedStorage, Set<PublicKeyHash> ownedKeys) {
+            this.owner = owner;
+            this.root = root;
+            this.directRetainedStorage = directRetainedStorage;
+            this.ownedKeys = ownedKeys;
+        }
+
+        @Override
+        public CborObject toCbor() {
+            Map<String, Cborable> state = new TreeMap<>();
+            state.put("o", new CborObject.CborString(owner));
+            state.put("r", root);
+            state.put("s", new CborObject.CborLong(directRetainedStorage));
+            state.put("k", new CborObject.CborList(new ArrayList<>(ownedKeys)));
+            return CborObject.CborMap.build(state);
+        }
+
+        public static Snapshot fromCbor(Cborable cbor) {
+            if (! (cbor instanceof CborObject.CborMap))
+                throw new IllegalStateException("Invalid cbor for usage snapshot: " + cbor);
+            CborObject.CborMap map = (CborObject.CborMap) cbor;
+            return new Snapshot(map.getString("o"),
+                    MaybeMultihash.fromCbor(map.get("r")),
+                    map.getLong("s"),
+                    new HashSet<>(map.getList("k", PublicKeyHash::fromCbor)));
+        }
+    }
+
+    private final Path file;
+    private final Map<PublicKeyHash, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    private SpaceUsageSnapshots(Path file) {
+        this.file = file;
+    }
+
+    public Optional<Snapshot> get(PublicKeyHash writer) {
+        return Optional.ofNullable(snapshots.get(writer));
+    }
+
+    public void put(PublicKeyHash writer, Snapshot snapshot) {
+        snapshots.put(writer, snapshot);
+        dirty = true;
+    }
+
+    public void remove(PublicKeyHash writer) {
+        if (snapshots.remove(writer) != null)
+            dirty = true;
+    }
+
+    /** Write the snapshots to disk if they have changed since the last flush
+     */
+    public synchronized void flush() {
+        if (! dirty)
+            return;
+        dirty = false;
+        List<Cborable> entries = snapshots.entrySet().stream()
+                .map(e -> new CborObject.CborList(Arrays.asList(e.getKey(), e.getValue())))
+                .collect(Collectors.toList());
+        byte[] raw = new CborObject.CborList(entries).serialize();
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, raw);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            LOG.log(Level.WARNING, "Couldn't write space usage snapshots to " + file, e);
+        }
+    }
+
+    /**
+     *
+     * @param file
+     * @param flushPeriodMillis How often to write any changes to disk
+     * @return The snapshots, which are empty if the file doesn't exist or can't be read
+     */
+    public static SpaceUsageSnapshots load(Path file, long flushPeriodMillis) {
+        SpaceUsageSnapshots res = new SpaceUsageSnapshots(file);
+        if (Files.exists(file)) {
+            try {
+                CborObject cbor = CborObject.fromByteArray(Files.readAllBytes(file));
+                for (Cborable entry : ((CborObject.CborList) cbor).value) {
+                    List<? extends Cborable> pair = ((CborObject.CborList) entry).value;
+                    res.snapshots.put(PublicKeyHash.fromCbor(pair.get(0)), Snapshot.fromCbor(pair.get(1)));
+                }
+                LOG.info("Loaded " + res.snapshots.size() + " space usage snapshots from " + file);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Ignoring unreadable space usage snapshots in " + file, e);
+                res.snapshots.clear();
+            }
+        }
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Space usage snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(res::flush, flushPeriodMillis, flushPeriodMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(res::flush));
+        return res;
+    }
+
+    /**
+     *
+     * @return Snapshots which are only held in memory
+     */
+    public static SpaceUsageSnapshots ephemeral() {
+        return new SpaceUsageSnapshots(null) {
+            @Override
+            public synchronized void flush() {}
+        };
+    }
+}
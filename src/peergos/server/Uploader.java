@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.crypto.*;
 import peergos.server.storage.*;
 import peergos.shared.*;
 import peergos.shared.crypto.random.*;
@@ -17,7 +18,7 @@ import java.util.stream.*;
 public class Uploader {
 
     public static void main(String[] args) throws Exception {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
         String username = args[0];
         String fromPath = args[1];
@@ -110,8 +111,7 @@ public class Uploader {
                 ResetableFileInputStream fileData = new ResetableFileInputStream(file);
                 FileWrapper parent = context.getByPath(targetParent.toString()).join().get();
                 parent.uploadOrOverwriteFile(file.getName(), fileData, file.length(),
-                        context.network, context.crypto.random, c -> {}, context.fragmenter,
-                        parent.generateChildLocationsFromSize(file.length(), context.crypto.random)).get();
+                        context.network, context.crypto.random, c -> {}, context.fragmenter).get();
             } catch (Exception e) {
                 System.err.println("Error uploading " + source);
                 e.printStackTrace();
@@ -71,15 +71,55 @@ public class UserService {
     private final CoreNode coreNode;
     private final SocialNetwork social;
     private final MutablePointers mutable;
+    private final Optional<PointerUpdates> pointerUpdates;
 
     public UserService(ContentAddressedStorage storage,
                        CoreNode coreNode,
                        SocialNetwork social,
-                       MutablePointers mutable) {
+                       MutablePointers mutable,
+                       Optional<PointerUpdates> pointerUpdates) {
         this.storage = storage;
         this.coreNode = coreNode;
         this.social = social;
         this.mutable = mutable;
+        this.pointerUpdates = pointerUpdates;
+    }
+
+    public UserService(ContentAddressedStorage storage,
+                       CoreNode coreNode,
+                       SocialNetwork social,
+                       MutablePointers mutable) {
+        this(storage, coreNode, social, mutable, Optional.empty());
+    }
+
+    /** The maximum number of concurrent requests, and of queued requests, for each endpoint
+     *
+     */
+    public static class HandlerLimits {
+        public static final HandlerLimits DEFAULT = new HandlerLimits(50, 20, 10, 20, 20, 20, 1000,
+                Runtime.getRuntime().availableProcessors());
+
+        public final int dhtThreads, coreThreads, socialThreads, mutableThreads, publicThreads, uiThreads, maxQueued;
+        // shared by all block api requests to verify signatures
+        public final int verifierThreads;
+
+        public HandlerLimits(int dhtThreads,
+                             int coreThreads,
+                             int socialThreads,
+                             int mutableThreads,
+                             int publicThreads,
+                             int uiThreads,
+                             int maxQueued,
+                             int verifierThreads) {
+            this.dhtThreads = dhtThreads;
+            this.coreThreads = coreThreads;
+            this.socialThreads = socialThreads;
+            this.mutableThreads = mutableThreads;
+            this.publicThreads = publicThreads;
+            this.uiThreads = uiThreads;
+            this.maxQueued = maxQueued;
+            this.verifierThreads = verifierThreads;
+        }
     }
 
     public static class TlsProperties {
@@ -95,6 +135,14 @@ public class UserService {
                                 Optional<TlsProperties> tlsProps,
                                 Optional<Path> webroot,
                                 boolean useWebCache) throws IOException {
+        return initAndStart(local, tlsProps, webroot, useWebCache, HandlerLimits.DEFAULT);
+    }
+
+    public boolean initAndStart(InetSocketAddress local,
+                                Optional<TlsProperties> tlsProps,
+                                Optional<Path> webroot,
+                                boolean useWebCache,
+                                HandlerLimits limits) throws IOException {
         InetAddress allInterfaces = InetAddress.getByName("::");
         if (tlsProps.isPresent())
             try {
@@ -188,15 +236,19 @@ public class UserService {
                 tlsServer.createContext(path, new HSTSHandler(handlerFunc));
         };
 
-        addHandler.accept(DHT_URL, new DHTHandler(storage, (h, i) -> true));
-        addHandler.accept("/" + HttpCoreNodeServer.CORE_URL,
-                new HttpCoreNodeServer.CoreNodeHandler(this.coreNode));
-        addHandler.accept("/" + SOCIAL_URL,
-                new SocialHandler(this.social));
-        addHandler.accept("/" + MUTABLE_POINTERS_URL,
-                new MutationHandler(this.mutable));
-        addHandler.accept("/" + PUBLIC_FILES_URL, new PublicFileHandler(coreNode, mutable, storage));
-        addHandler.accept(UI_URL, handler);
+        // Each endpoint gets its own threads, so slow storage calls can't block unrelated requests
+        List<BoundedHandler> endpoints = Arrays.asList(
+                new BoundedHandler("dht", new DHTHandler(storage, (h, i) -> true, limits.verifierThreads), limits.dhtThreads, limits.maxQueued),
+                new BoundedHandler("core", new HttpCoreNodeServer.CoreNodeHandler(this.coreNode), limits.coreThreads, limits.maxQueued),
+                new BoundedHandler("social", new SocialHandler(this.social), limits.socialThreads, limits.maxQueued),
+                new BoundedHandler("mutable", new MutationHandler(this.mutable, pointerUpdates), limits.mutableThreads, limits.maxQueued),
+                new BoundedHandler("public", new PublicFileHandler(coreNode, mutable, storage), limits.publicThreads, limits.maxQueued),
+                new BoundedHandler("ui", handler, limits.uiThreads, limits.maxQueued));
+        List<String> paths = Arrays.asList(DHT_URL, "/" + HttpCoreNodeServer.CORE_URL, "/" + SOCIAL_URL,
+                "/" + MUTABLE_POINTERS_URL, "/" + PUBLIC_FILES_URL, UI_URL);
+        for (int i=0; i < endpoints.size(); i++)
+            addHandler.accept(paths.get(i), endpoints.get(i));
+        startMetricsLogging(endpoints);
 
         localhostServer.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
         localhostServer.start();
@@ -209,6 +261,23 @@ public class UserService {
         return true;
     }
 
+    private static void startMetricsLogging(List<BoundedHandler> endpoints) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Endpoint metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            for (BoundedHandler endpoint : endpoints) {
+                int maxQueueDepth = endpoint.takeMaxQueueDepth();
+                long rejected = endpoint.takeRecentlyRejected();
+                if (maxQueueDepth > 0 || rejected > 0)
+                    LOG.info("Endpoint " + endpoint + " in last minute: max queue depth " + maxQueueDepth +
+                            ", rejected " + rejected);
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
     public static KeyStore getKeyStore(String filename, char[] password)
             throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, InvalidKeyException,
             NoSuchProviderException, SignatureException
@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.crypto.*;
 import peergos.shared.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
@@ -13,7 +14,7 @@ import java.util.stream.*;
 public class UserStats {
 
     public static void main(String[] args) throws Exception {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
         List<String> usernames = network.coreNode.getUsernames("").get();
         List<Summary> summaries = usernames.stream().parallel().flatMap(username -> {
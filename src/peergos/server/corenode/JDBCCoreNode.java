@@ -7,30 +7,37 @@ import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.social.*;
-import peergos.shared.util.*;
 
-import java.io.*;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
 
+/** The usernames, key chains, follow requests and mutable pointers of a server, stored in sqlite.
+ *
+ * Reads are served from a pool of connections and writes are group committed by a single writer connection. Keys and
+ * values are stored as binary blobs. Databases from before this used base64 text, and these are migrated to blobs in
+ * the background, during which lookups match either form.
+ */
 public class JDBCCoreNode {
 	private static final Logger LOG = Logging.LOG();
     public static final boolean LOGGING = false;
 
     public static final long MIN_USERNAME_SET_REFRESH_PERIOD = 60*1000000000L;
 
+    private static final int SCHEMA_VERSION = 1;
+    private static final int MIGRATION_BATCH = 1000;
+
     private static final String TABLE_NAMES_SELECT_STMT = "SELECT * FROM sqlite_master WHERE type='table';";
     private static final String CREATE_USERNAMES_TABLE =
             "create table usernames (id integer primary key autoincrement, name text not null unique);";
     private static final String CREATE_LINKS_TABLE =
-            "create table links (id integer primary key autoincrement, publickey text not null unique, link text not null);";
+            "create table links (id integer primary key autoincrement, publickey blob not null unique, link blob not null);";
     private static final String CREATE_CHAINS_TABLE =
             "create table chains (userID int references usernames(id), linkID int references links(id), lindex int, primary key (userID, lindex)); create unique index uniq1 on chains(userID, linkID)";
-    private static final String CREATE_FOLLOW_REQUESTS_TABLE = "create table followrequests (id integer primary key autoincrement, name text not null, followrequest text not null);";
-    private static final String CREATE_METADATA_BLOBS_TABLE = "create table metadatablobs (writingkey text primary key not null, hash text not null); " +
+    private static final String CREATE_FOLLOW_REQUESTS_TABLE = "create table followrequests (id integer primary key autoincrement, name text not null, followrequest blob not null);";
+    private static final String CREATE_METADATA_BLOBS_TABLE = "create table metadatablobs (writingkey blob primary key not null, hash blob not null); " +
             "CREATE UNIQUE INDEX index_name on metadatablobs (writingkey);";
 
     private static final Map<String,String> TABLES = new HashMap<>();
@@ -43,7 +50,7 @@ public class JDBCCoreNode {
         TABLES.put("metadatablobs", CREATE_METADATA_BLOBS_TABLE);
     }
 
-    private Connection conn;
+    private final SqliteConnectionPool pool;
     private final UserSetCache userSet = new UserSetCache();
 
     private static class UserSetCache {
@@ -62,333 +69,190 @@ public class JDBCCoreNode {
         }
     }
 
-    private abstract class RowData
-    {
-        public final String name;
-        public final byte[] data;
-        public final String b64string;
-        RowData(String name, byte[] data)
-        {
-            this(name,data,(data == null ? null: new String(Base64.getEncoder().encode(data))));
-        }
-
-        RowData(String name, String d)
-        {
-            this(name, Base64.getDecoder().decode(d), d);
-        }
-
-        RowData(String name, byte[] data, String b64string)
-        {
-            this.name = name;
-            this.data = data;
-            this.b64string = b64string;
-        }
-
+    private volatile boolean isClosed;
+    private volatile boolean migrated;
+    private final int maxUsernameCount;
 
-        abstract String b64DataName();
-        abstract String insertStatement();
-        abstract String selectStatement();
-        abstract String deleteStatement();
+    public JDBCCoreNode(SqliteConnectionPool pool) throws SQLException
+    {
+        this(pool, CoreNode.MAX_USERNAME_COUNT);
+    }
 
-        public boolean insert()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement(insertStatement());
-                stmt.setString(1,this.name);
-                stmt.setString(2,this.b64string);
-                stmt.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
-        }
+    public JDBCCoreNode(SqliteConnectionPool pool, int maxUsernameCount) throws SQLException
+    {
+        this.pool = pool;
+        this.maxUsernameCount = maxUsernameCount;
+        init();
+    }
 
-        public RowData[] select()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement(selectStatement());
-                ResultSet rs = stmt.executeQuery();
-                List<RowData> list = new ArrayList<>();
+    private void init() throws SQLException
+    {
+        boolean fresh = pool.writeAndWait(c -> {
+            //do tables exists?
+            Set<String> missingTables = new HashSet<>(TABLES.keySet());
+            try (Statement stmt = c.conn.createStatement()) {
+                ResultSet rs = stmt.executeQuery(TABLE_NAMES_SELECT_STMT);
                 while (rs.next())
-                {
-                    String username = rs.getString("name");
-                    String b64string = rs.getString(b64DataName());
-                    list.add(new UserData(username, b64string));
-                }
-                return list.toArray(new RowData[0]);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return null;
-            }finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
+                    missingTables.remove(rs.getString("name"));
+                rs.close();
             }
-        }
-
 
-        public boolean delete()
-        {
-            Statement stmt = null;
-            try
+            for (String missingTable: missingTables)
             {
-                stmt = conn.createStatement();
-                stmt.executeUpdate(deleteStatement());
-                return true;
-            } catch (SQLException sqe) {
-                LOG.severe(deleteStatement());
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
+                try (Statement createStmt = c.conn.createStatement()) {
+                    createStmt.executeUpdate(TABLES.get(missingTable));
+                }
             }
+            if (missingTables.size() == TABLES.size())
+                setSchemaVersion(c, SCHEMA_VERSION);
+            return missingTables.size() == TABLES.size();
+        });
+        if (fresh || getSchemaVersion() >= SCHEMA_VERSION) {
+            migrated = true;
+            return;
         }
-
+        Thread migration = new Thread(this::migrateToBlobs, "Corenode blob migration");
+        migration.setDaemon(true);
+        migration.start();
     }
 
-    private class UserData extends RowData
-    {
-        UserData(String name, byte[] publicKey)
-        {
-            super(name, publicKey);
-        }
-        UserData(String name, String d)
-        {
-            super(name, d);
-        }
-
-        public String b64DataName(){return DATA_NAME;}
-        public String insertStatement(){return "insert into users (name, publickey) VALUES(?, ?);";}
-        public String selectStatement(){return "select name, "+b64DataName()+" from users where name = '"+name+"';";}
-        public String deleteStatement(){return "delete from users where name = \""+ name +"\" and "+ b64DataName()+ " = \""+ b64string + "\";";}
-        static final String DATA_NAME = "publickey";
+    private int getSchemaVersion() throws SQLException {
+        return pool.read(c -> {
+            try (Statement stmt = c.conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("PRAGMA user_version;")) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
     }
 
-    private class FollowRequestData extends RowData
-    {
-        FollowRequestData(PublicKeyHash owner, byte[] publicKey)
-        {
-            super(owner.toString(), publicKey);
+    private static Void setSchemaVersion(SqliteConnectionPool.PooledConnection c, int version) throws SQLException {
+        try (Statement stmt = c.conn.createStatement()) {
+            stmt.executeUpdate("PRAGMA user_version=" + version + ";");
         }
-        FollowRequestData(String name, String d)
-        {
-            super(name, d);
-        }
-
-        public String b64DataName(){return DATA_NAME;}
-        public String insertStatement(){return "insert into followrequests (name, followrequest) VALUES(?, ?);";}
-        public String selectStatement(){return "select name, "+b64DataName()+" from followrequests where name = \""+name+"\";";}
-        public String deleteStatement(){return "delete from followrequests where name = \""+ name +"\" and "+ b64DataName()+ " = \""+ b64string + "\";";}
-        static final String DATA_NAME = "followrequest";
+        return null;
     }
 
-    private class MetadataBlob
-    {
-        final byte[] writingKey, hash;
-        final String b64WritingKey, b64hash;
-
-        MetadataBlob(byte[] writingKey, byte[] hash)
-        {
-            this(writingKey, new String(Base64.getEncoder().encode(writingKey)), hash, hash == null ? null : new String(Base64.getEncoder().encode(hash)));
-
-        }
-
-        MetadataBlob(String b64WritingKey, String b64hash)
-        {
-            this(Base64.getDecoder().decode(b64WritingKey), b64WritingKey, Base64.getDecoder().decode(b64hash), b64hash);
-        }
-
-        MetadataBlob(byte[] writingKey, String b64WritingKey, byte[] hash, String b64hash)
-        {
-            this.writingKey = writingKey;
-            this.b64WritingKey = b64WritingKey;
-            this.hash = hash;
-            this.b64hash = b64hash;
-        }
-
-        public String selectStatement(){return "select writingkey, hash from metadatablobs where writingkey = "+ b64WritingKey +";";}
-        public String deleteStatement(){return "delete from metadatablobs where writingkey = "+ b64WritingKey +";";}
-
-        public boolean insert()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement("INSERT OR REPLACE INTO metadatablobs (writingkey, hash) VALUES(?, ?)");
-
-                stmt.setString(1,this.b64WritingKey);
-                stmt.setString(2,this.b64hash);
-                stmt.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
+    /** Convert the base64 text keys and values of an old database to blobs, a batch at a time so other writes can
+     *  proceed in between.
+     */
+    private void migrateToBlobs() {
+        try {
+            long start = System.currentTimeMillis();
+            long converted = 0;
+            for (String[] table : Arrays.asList(
+                    new String[] {"links", "publickey", "link"},
+                    new String[] {"followrequests", "followrequest"},
+                    new String[] {"metadatablobs", "writingkey", "hash"})) {
+                while (! isClosed) {
+                    int done = pool.writeAndWait(c -> migrateBatch(c, table[0], Arrays.copyOfRange(table, 1, table.length)));
+                    converted += done;
+                    if (done == 0)
+                        break;
+                }
             }
+            if (isClosed)
+                return;
+            pool.writeAndWait(c -> setSchemaVersion(c, SCHEMA_VERSION));
+            migrated = true;
+            LOG.info("Migrated " + converted + " corenode rows to binary in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Couldn't migrate corenode to binary: " + e.getMessage(), e);
         }
+    }
 
-        public boolean delete()
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement("DELETE from metadatablobs where writingkey=? AND hash=?");
-
-                stmt.setString(1,this.b64WritingKey);
-                stmt.setString(2,this.b64hash);
-                stmt.executeUpdate();
-                return true;
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return false;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
+    private static int migrateBatch(SqliteConnectionPool.PooledConnection c, String table, String[] columns) throws SQLException {
+        String textColumns = Arrays.stream(columns)
+                .map(col -> "typeof(" + col + ")='text'")
+                .collect(Collectors.joining(" or "));
+        PreparedStatement select = c.prepare("select rowid, " + String.join(", ", columns) + " from " + table +
+                " where " + textColumns + " limit " + MIGRATION_BATCH + ";");
+        List<Object[]> rows = new ArrayList<>();
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                Object[] row = new Object[columns.length + 1];
+                row[0] = rs.getLong(1);
+                for (int i=0; i < columns.length; i++)
+                    row[i + 1] = toBytes(rs.getObject(i + 2));
+                rows.add(row);
             }
         }
-
-        public MetadataBlob selectOne()
-        {
-            MetadataBlob[] fd = select("where writingKey = '"+ b64WritingKey +"'");
-            if (fd == null || fd.length != 1)
-                return null;
-            return fd[0];
-        }
-
-        public MetadataBlob[] selectAllByName(String username)
-        {
-            return select("where name = "+ username);
-        }
-
-        public MetadataBlob[] select(String selectString)
-        {
-            PreparedStatement stmt = null;
-            try
-            {
-                stmt = conn.prepareStatement("select writingKey, hash from metadatablobs "+ selectString + ";");
-                ResultSet rs = stmt.executeQuery();
-                List<MetadataBlob> list = new ArrayList<MetadataBlob>();
-                while (rs.next())
-                {
-                    MetadataBlob f = new MetadataBlob(rs.getString("writingkey"), rs.getString("hash"));
-                    list.add(f);
-                }
-
-                return list.toArray(new MetadataBlob[0]);
-            } catch (SQLException sqe) {
-                LOG.severe("Error selecting: "+selectString);
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return null;
-            } finally {
-                if (stmt != null)
-                    try
-                    {
-                        stmt.close();
-                    } catch (SQLException sqe2) {
-                        sqe2.printStackTrace();
-                    }
-            }
+        PreparedStatement update = c.prepare("update " + table + " set " + Arrays.stream(columns)
+                .map(col -> col + "=?")
+                .collect(Collectors.joining(", ")) + " where rowid=?;");
+        for (Object[] row : rows) {
+            for (int i=0; i < columns.length; i++)
+                update.setBytes(i + 1, (byte[]) row[i + 1]);
+            update.setLong(columns.length + 1, (Long) row[0]);
+            update.addBatch();
         }
+        if (! rows.isEmpty())
+            update.executeBatch();
+        return rows.size();
     }
 
-    private volatile boolean isClosed;
-    private final int maxUsernameCount;
-
-    public JDBCCoreNode(Connection conn) throws SQLException
-    {
-        this(conn, CoreNode.MAX_USERNAME_COUNT);
+    /**
+     *
+     * @param value A blob, or a base64 string from before the binary migration
+     * @return The raw bytes
+     */
+    private static byte[] toBytes(Object value) {
+        if (value instanceof byte[])
+            return (byte[]) value;
+        return Base64.getDecoder().decode((String) value);
     }
 
-    public JDBCCoreNode(Connection conn, int maxUsernameCount) throws SQLException
-    {
-        this.conn = conn;
-        this.maxUsernameCount = maxUsernameCount;
-        init();
+    /**
+     *
+     * @param column
+     * @param legacy Whether the migration was incomplete when the statement was made
+     * @return A condition matching a key column, which until the migration is complete also matches the base64 form
+     */
+    private static String matchKey(String column, boolean legacy) {
+        return legacy ? "(" + column + "=? or " + column + "=?)" : column + "=?";
     }
 
-    private synchronized void init() throws SQLException
-    {
-        if (isClosed)
-            return;
-
-        //do tables exists?
-        Statement stmt = conn.createStatement();
-        ResultSet rs = stmt.executeQuery(TABLE_NAMES_SELECT_STMT);
-
-        ArrayList<String> missingTables = new ArrayList(TABLES.keySet());
-        while (rs.next())
-        {
-            String tableName = rs.getString("name");
-            missingTables.remove(tableName);
-        }
-
-        for (String missingTable: missingTables)
-        {
-            try
-            {
-                Statement createStmt = conn.createStatement();
-                //LOG.info("Adding table "+ missingTable);
-                createStmt.executeUpdate(TABLES.get(missingTable));
-                createStmt.close();
+    /**
+     *
+     * @return The index of the next parameter
+     */
+    private static int setKey(PreparedStatement stmt, int index, byte[] key, boolean legacy) throws SQLException {
+        stmt.setBytes(index++, key);
+        if (legacy)
+            stmt.setString(index++, Base64.getEncoder().encodeToString(key));
+        return index;
+    }
 
-            } catch ( Exception e ) {
-                LOG.severe( e.getClass().getName() + ": " + e.getMessage() );
-            }
+    private static <T> T unwrap(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
         }
     }
 
     public CompletableFuture<String> getUsername(PublicKeyHash encodedKey)
     {
-        String b64key = Base64.getEncoder().encodeToString(encodedKey.serialize());
         try {
-            try (PreparedStatement preparedStatement = conn.prepareStatement("select name from usernames u inner join chains ch on u.id=ch.userid inner join links ln on ch.linkid=ln.id and ln.publickey = ? limit 1")) {
-                preparedStatement.setString(1, b64key);
-                ResultSet resultSet = preparedStatement.executeQuery();
-                boolean next = resultSet.next();
-                if (! next)
-                    return CompletableFuture.completedFuture("");
-                String username = resultSet.getString(1);
-                return getChain(username).thenApply(chain -> {
-                    if (!chain.get(chain.size() - 1).owner.equals(encodedKey))
-                        return "";
-                    return username;
-                });
-            }
+            boolean legacy = ! migrated;
+            Optional<String> name = pool.read(c -> {
+                PreparedStatement stmt = c.prepare("select name from usernames u inner join chains ch on u.id=ch.userid " +
+                        "inner join links ln on ch.linkid=ln.id and " + matchKey("ln.publickey", legacy) + " limit 1");
+                setKey(stmt, 1, encodedKey.serialize(), legacy);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    return resultSet.next() ? Optional.of(resultSet.getString(1)) : Optional.<String>empty();
+                }
+            });
+            if (! name.isPresent())
+                return CompletableFuture.completedFuture("");
+            String username = name.get();
+            return getChain(username).thenApply(chain -> {
+                if (!chain.get(chain.size() - 1).owner.equals(encodedKey))
+                    return "";
+                return username;
+            });
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
@@ -396,23 +260,24 @@ public class JDBCCoreNode {
 
     public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
         try {
-            try (PreparedStatement preparedStatement = conn.prepareStatement("select chains.lindex, links.publickey, links.link from links inner join chains on links.id=chains.linkid \n" +
-                    "inner join usernames on chains.userid=usernames.id where usernames.name=? order by chains.lindex;")) {
-                preparedStatement.setString(1, username);
-                ResultSet resultSet = preparedStatement.executeQuery();
-                Map<Integer, UserPublicKeyLink> serializedChain = new HashMap<>();
-                while (resultSet.next()) {
-                    serializedChain.put(resultSet.getInt(1), UserPublicKeyLink.fromCbor(CborObject.fromByteArray(
-                            Base64.getDecoder().decode(resultSet.getString(3)))));
-                }
-                ArrayList<UserPublicKeyLink> result = new ArrayList<>();
-                for (int i=0; i < serializedChain.size(); i++) {
-                    if (!serializedChain.containsKey(i))
-                        throw new IllegalStateException("Missing UserPublicKeyLink at index: "+i);
-                    result.add(serializedChain.get(i));
+            Map<Integer, byte[]> serializedChain = pool.read(c -> {
+                PreparedStatement stmt = c.prepare("select chains.lindex, links.link from links inner join chains on links.id=chains.linkid \n" +
+                        "inner join usernames on chains.userid=usernames.id where usernames.name=? order by chains.lindex;");
+                stmt.setString(1, username);
+                Map<Integer, byte[]> res = new HashMap<>();
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next())
+                        res.put(resultSet.getInt(1), toBytes(resultSet.getObject(2)));
                 }
-                return CompletableFuture.completedFuture(result);
+                return res;
+            });
+            ArrayList<UserPublicKeyLink> result = new ArrayList<>();
+            for (int i=0; i < serializedChain.size(); i++) {
+                if (!serializedChain.containsKey(i))
+                    throw new IllegalStateException("Missing UserPublicKeyLink at index: "+i);
+                result.add(UserPublicKeyLink.fromCbor(CborObject.fromByteArray(serializedChain.get(i))));
             }
+            return CompletableFuture.completedFuture(result);
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
@@ -433,137 +298,99 @@ public class JDBCCoreNode {
         if (! UsernameValidator.isValidUsername(username))
             throw new IllegalStateException("Invalid username '" +username+"'");
 
-
-        List<String> toWrite = merged.stream().map(x -> new String(Base64.getEncoder().encode(x.serialize()))).collect(Collectors.toList());
-        Optional<PublicKeyHash> oldKey = existing.size() == 0 ? Optional.empty() : Optional.of(existing.get(existing.size() - 1).owner);
-        PublicKeyHash newKey = tail.get(tail.size() - 1).owner;
+        List<byte[]> toWrite = merged.stream().map(UserPublicKeyLink::serialize).collect(Collectors.toList());
+        Optional<byte[]> existingKey = existing.size() == 0 ?
+                Optional.empty() :
+                Optional.of(existing.get(existing.size() - 1).owner.serialize());
+        byte[] newKey = tail.get(tail.size() - 1).owner.serialize();
 
         // Conceptually this should be a CAS of the new chain in for the old one under the username
         // The last one or two elements will have changed
-        // Ensure usernamesandkeys table is uptodate as well
-        Optional<String> existingKeyb64 = oldKey.map(x -> new String(Base64.getEncoder().encode(x.serialize())));
-        String newKeyb64 = new String(Base64.getEncoder().encode(newKey.serialize()));
-        List<String> existingStrings = existing.stream().map(x -> new String(Base64.getEncoder().encode(x.serialize()))).collect(Collectors.toList());
-        if (existingStrings.size() == 0 && toWrite.size() == 1) {
+        // Each case is a single write, so its statements are committed atomically
+        if (existing.size() == 0 && toWrite.size() == 1) {
             // single link to claim a new username
-            try {
-                PreparedStatement user = null, link = null, chain = null;
-                try {
-                    conn.setAutoCommit(false);
-
-                    long userCount = conn.createStatement().executeQuery("select count(name) from usernames;").getLong(1);
-                    if (userCount >= this.maxUsernameCount)
+            unwrap(pool.write(c -> {
+                try (Statement count = c.conn.createStatement();
+                     ResultSet rs = count.executeQuery("select count(name) from usernames;")) {
+                    if (rs.getLong(1) >= this.maxUsernameCount)
                         throw new IllegalStateException("Not currently accepting new users.");
-
-                    user = conn.prepareStatement("insert into usernames (name) VALUES(?);");
-                    user.setString(1, username);
-                    user.execute();
-                    link = conn.prepareStatement("insert into links (publickey, link) VALUES(?, ?);");
-                    link.setString(1, newKeyb64);
-                    link.setString(2, toWrite.get(0));
-                    link.execute();
-                    chain = conn.prepareStatement("insert into chains (userid, linkid, lindex) select usernames.id, links.id, 0 "
-                            + "from usernames join links where links.publickey=? and usernames.name=?;");
-                    chain.setString(1, newKeyb64);
-                    chain.setString(2, username);
-                    chain.execute();
-                    conn.commit();
-                    // updated cached list of usernames
-                    List<String> updatedUsernames = Stream.concat(
-                            Stream.of(username),
-                            userSet.getMostRecent().orElse(Collections.emptyList()).stream()
-                    ).sorted().collect(Collectors.toList());
-                    userSet.setUserSet(updatedUsernames);
-                    return true;
-                } catch (SQLException sqe) {
-                    throw new IllegalStateException(sqe);
-                } finally {
-                    if (user != null) {
-                        user.close();
-                    }
-                    if (link != null) {
-                        link.close();
-                    }
-                    if (chain != null) {
-                        chain.close();
-                    }
-                    conn.setAutoCommit(true);
                 }
-            } catch (SQLException e) {
-                throw new IllegalStateException(e);
-            }
-        } else if (toWrite.size() == existingStrings.size() + 1) {
+
+                PreparedStatement user = c.prepare("insert into usernames (name) VALUES(?);");
+                user.setString(1, username);
+                user.executeUpdate();
+                insertLink(c, newKey, toWrite.get(0));
+                PreparedStatement chain = c.prepare("insert into chains (userid, linkid, lindex) select usernames.id, links.id, 0 "
+                        + "from usernames join links where links.publickey=? and usernames.name=?;");
+                chain.setBytes(1, newKey);
+                chain.setString(2, username);
+                chain.executeUpdate();
+                return true;
+            }));
+            // updated cached list of usernames
+            List<String> updatedUsernames = Stream.concat(
+                    Stream.of(username),
+                    userSet.getMostRecent().orElse(Collections.emptyList()).stream()
+            ).sorted().collect(Collectors.toList());
+            userSet.setUserSet(updatedUsernames);
+            return true;
+        } else if (toWrite.size() == existing.size() + 1) {
             // two link update ( a key change to an existing username)
-            try {
-                PreparedStatement update = null, link = null, chain = null;
-                try {
-                    conn.setAutoCommit(false);
-                    update = conn.prepareStatement("update links set link=? where links.publickey=?;");
-                    update.setString(1, toWrite.get(toWrite.size() - 2));
-                    update.setString(2, existingKeyb64.get());
-                    update.execute();
-                    link = conn.prepareStatement("insert into links (publickey, link) VALUES(?, ?);");
-                    link.setString(1, newKeyb64);
-                    link.setString(2, toWrite.get(toWrite.size() - 1));
-                    link.execute();
-                    chain = conn.prepareStatement("insert into chains (userid, linkid, lindex) " +
-                            "select usernames.id, links.id, " +
-                            "((select max(lindex) from chains inner join usernames where " +
-                            "chains.userid=usernames.id and usernames.name=?)+1) " +
-                            "from usernames join links where links.publickey=? and usernames.name=?;");
-                    chain.setString(1, username);
-                    chain.setString(2, newKeyb64);
-                    chain.setString(3, username);
-                    chain.execute();
-                    conn.commit();
-                    return true;
-                } catch (SQLException sqe) {
-                    throw new IllegalStateException(sqe);
-                } finally {
-                    if (update != null) {
-                        update.close();
-                    }
-                    if (link != null) {
-                        link.close();
-                    }
-                    if (chain != null) {
-                        chain.close();
-                    }
-                    conn.setAutoCommit(true);
-                }
-            } catch (SQLException e) {
-                throw new IllegalStateException(e);
-            }
-        } else if (toWrite.size() == existingStrings.size()) {
+            return unwrap(pool.write(c -> {
+                updateLink(c, existingKey.get(), toWrite.get(toWrite.size() - 2));
+                insertLink(c, newKey, toWrite.get(toWrite.size() - 1));
+                PreparedStatement chain = c.prepare("insert into chains (userid, linkid, lindex) " +
+                        "select usernames.id, links.id, " +
+                        "((select max(lindex) from chains inner join usernames where " +
+                        "chains.userid=usernames.id and usernames.name=?)+1) " +
+                        "from usernames join links where links.publickey=? and usernames.name=?;");
+                chain.setString(1, username);
+                chain.setBytes(2, newKey);
+                chain.setString(3, username);
+                chain.executeUpdate();
+                return true;
+            }));
+        } else if (toWrite.size() == existing.size()) {
             // single link update to existing username and key (changing expiry date)
-            try (PreparedStatement stmt = conn.prepareStatement("update links set link=? where links.publickey=?;")) {
-                stmt.setString(1, toWrite.get(toWrite.size() - 1));
-                stmt.setString(2, existingKeyb64.get());
-                stmt.execute();
-
+            return unwrap(pool.write(c -> {
+                updateLink(c, existingKey.get(), toWrite.get(toWrite.size() - 1));
                 return true;
-            } catch (SQLException sqe) {
-                throw new IllegalStateException(sqe);
-            }
+            }));
         } else
             throw new IllegalStateException("Tried to shorten key chain for username: " + username + "!");
     }
 
+    private static void insertLink(SqliteConnectionPool.PooledConnection c, byte[] key, byte[] link) throws SQLException {
+        PreparedStatement stmt = c.prepare("insert into links (publickey, link) VALUES(?, ?);");
+        stmt.setBytes(1, key);
+        stmt.setBytes(2, link);
+        stmt.executeUpdate();
+    }
+
+    private void updateLink(SqliteConnectionPool.PooledConnection c, byte[] key, byte[] link) throws SQLException {
+        boolean legacy = ! migrated;
+        PreparedStatement stmt = c.prepare("update links set publickey=?, link=? where " + matchKey("links.publickey", legacy) + ";");
+        stmt.setBytes(1, key);
+        stmt.setBytes(2, link);
+        setKey(stmt, 3, key, legacy);
+        stmt.executeUpdate();
+    }
+
     public CompletableFuture<List<String>> getUsernames(String prefix) {
         Optional<List<String>> cached = userSet.getMostRecent();
         if (cached.isPresent())
             return CompletableFuture.completedFuture(cached.get());
-        try (PreparedStatement stmt = conn.prepareStatement("select name from usernames where name like ?"))
-        {
-            stmt.setString(1, prefix + "%");
-            ResultSet rs = stmt.executeQuery();
-            List<String> list = new ArrayList<>();
-            while (rs.next())
-            {
-                String username = rs.getString("name");
-                list.add(username);
-            }
-
+        try {
+            List<String> list = pool.read(c -> {
+                PreparedStatement stmt = c.prepare("select name from usernames where name like ?");
+                stmt.setString(1, prefix + "%");
+                List<String> res = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next())
+                        res.add(rs.getString("name"));
+                }
+                return res;
+            });
             userSet.setUserSet(list);
             return CompletableFuture.completedFuture(list);
         } catch (SQLException e) {
@@ -571,86 +398,148 @@ public class JDBCCoreNode {
         }
     }
 
+    private static int countFollowRequests(SqliteConnectionPool.PooledConnection c, PublicKeyHash owner) throws SQLException {
+        PreparedStatement stmt = c.prepare("select count(*) from followrequests where name = ?;");
+        stmt.setString(1, owner.toString());
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
     public CompletableFuture<Boolean> addFollowRequest(PublicKeyHash owner, byte[] encryptedPermission)
     {
-        byte[] dummy = null;
-        FollowRequestData selector = new FollowRequestData(owner, dummy);
-        RowData[] requests = selector.select();
-        if (requests != null && requests.length > SocialNetwork.MAX_PENDING_FOLLOWERS)
-            return CompletableFuture.completedFuture(false);
         // ToDo add a crypto currency transaction to prevent spam
-
-        FollowRequestData request = new FollowRequestData(owner, encryptedPermission);
-        return CompletableFuture.completedFuture(request.insert());
+        return pool.write(c -> {
+            // check under the writer, so concurrent requests can't exceed the limit
+            if (countFollowRequests(c, owner) > SocialNetwork.MAX_PENDING_FOLLOWERS)
+                return false;
+            PreparedStatement stmt = c.prepare("insert into followrequests (name, followrequest) VALUES(?, ?);");
+            stmt.setString(1, owner.toString());
+            stmt.setBytes(2, encryptedPermission);
+            stmt.executeUpdate();
+            return true;
+        }).exceptionally(t -> {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            return false;
+        });
     }
 
     public CompletableFuture<Boolean> removeFollowRequest(PublicKeyHash owner, byte[] unsigned)
     {
-        FollowRequestData request = new FollowRequestData(owner, unsigned);
-        return CompletableFuture.completedFuture(request.delete());
+        return pool.write(c -> {
+            boolean legacy = ! migrated;
+            PreparedStatement stmt = c.prepare("delete from followrequests where name = ? and " + matchKey("followrequest", legacy) + ";");
+            stmt.setString(1, owner.toString());
+            setKey(stmt, 2, unsigned, legacy);
+            stmt.executeUpdate();
+            return true;
+        }).exceptionally(t -> {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            return false;
+        });
     }
 
     public CompletableFuture<byte[]> getFollowRequests(PublicKeyHash owner) {
-        byte[] dummy = null;
-        FollowRequestData request = new FollowRequestData(owner, dummy);
-        RowData[] requests = request.select();
-        if (requests == null)
+        try {
+            List<byte[]> requests = pool.read(c -> {
+                PreparedStatement stmt = c.prepare("select followrequest from followrequests where name = ?;");
+                stmt.setString(1, owner.toString());
+                List<byte[]> res = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next())
+                        res.add(toBytes(rs.getObject(1)));
+                }
+                return res;
+            });
+            CborObject.CborList resp = new CborObject.CborList(requests.stream()
+                    .map(CborObject::fromByteArray)
+                    .collect(Collectors.toList()));
+            return CompletableFuture.completedFuture(resp.serialize());
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             return CompletableFuture.completedFuture(new byte[4]);
+        }
+    }
 
-        CborObject.CborList resp = new CborObject.CborList(Arrays.asList(requests).stream()
-                .map(req -> CborObject.fromByteArray(req.data))
-                .collect(Collectors.toList()));
-        return CompletableFuture.completedFuture(resp.serialize());
+    private Optional<byte[]> getPointer(SqliteConnectionPool.PooledConnection c, byte[] writer) throws SQLException {
+        boolean legacy = ! migrated;
+        PreparedStatement stmt = c.prepare("select hash from metadatablobs where " + matchKey("writingkey", legacy) + ";");
+        setKey(stmt, 1, writer, legacy);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? Optional.of(toBytes(rs.getObject(1))) : Optional.empty();
+        }
     }
 
-    public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writerHash, byte[] writingKeySignedHash) {
-        MetadataBlob blob = new MetadataBlob(writerHash.serialize(), writingKeySignedHash);
-        return CompletableFuture.completedFuture(blob.insert());
+    /** Set a pointer if its current value is still the expected one
+     *
+     * @param owner
+     * @param writerHash
+     * @param expected The value the new pointer was validated against
+     * @param writingKeySignedHash
+     * @return Whether the pointer was updated, once the update is committed
+     */
+    public CompletableFuture<Boolean> setPointer(PublicKeyHash owner,
+                                                 PublicKeyHash writerHash,
+                                                 Optional<byte[]> expected,
+                                                 byte[] writingKeySignedHash) {
+        byte[] writer = writerHash.serialize();
+        return pool.write(c -> {
+            Optional<byte[]> current = getPointer(c, writer);
+            if (current.isPresent() != expected.isPresent() ||
+                    (current.isPresent() && ! Arrays.equals(current.get(), expected.get())))
+                return false;
+            if (! migrated) {
+                PreparedStatement delete = c.prepare("delete from metadatablobs where writingkey=?;");
+                delete.setString(1, Base64.getEncoder().encodeToString(writer));
+                delete.executeUpdate();
+            }
+            PreparedStatement stmt = c.prepare("INSERT OR REPLACE INTO metadatablobs (writingkey, hash) VALUES(?, ?)");
+            stmt.setBytes(1, writer);
+            stmt.setBytes(2, writingKeySignedHash);
+            stmt.executeUpdate();
+            return true;
+        }).exceptionally(t -> {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+            return false;
+        });
     }
 
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
-        byte[] dummy = null;
-        MetadataBlob blob = new MetadataBlob(writingKey.serialize(), dummy);
-        MetadataBlob users = blob.selectOne();
-        if (users == null)
+        try {
+            return CompletableFuture.completedFuture(pool.read(c -> getPointer(c, writingKey.serialize())));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             return CompletableFuture.completedFuture(Optional.empty());
-        return CompletableFuture.completedFuture(Optional.of(users.hash));
+        }
     }
 
-    public synchronized void close()
-    {
-        if (isClosed)
-            return;
-        try
-        {
-            if (conn != null)
-                conn.close();
-            isClosed = true;
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
+    /**
+     *
+     * @return Every writer with a pointer, and its current signed pointer
+     */
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getAllPointers() {
+        try {
+            return CompletableFuture.completedFuture(pool.read(c -> {
+                Map<PublicKeyHash, byte[]> res = new HashMap<>();
+                try (Statement stmt = c.conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("select writingkey, hash from metadatablobs;")) {
+                    while (rs.next())
+                        res.put(PublicKeyHash.fromCbor(CborObject.fromByteArray(toBytes(rs.getObject(1)))),
+                                toBytes(rs.getObject(2)));
+                }
+                return res;
+            }));
+        } catch (SQLException sqe) {
+            throw new IllegalStateException("Couldn't retrieve mutable pointers", sqe);
         }
     }
 
-    public boolean delete(String table, String deleteString)
+    public synchronized void close()
     {
-        Statement stmt = null;
-        try
-        {
-            stmt = conn.createStatement();
-            stmt.executeUpdate("delete from "+table+" where "+ deleteString +";");
-            return true;
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            return false;
-        } finally {
-            if (stmt != null)
-                try
-                {
-                    stmt.close();
-                } catch (SQLException sqe2) {
-                    sqe2.printStackTrace();
-                }
-        }
+        if (isClosed)
+            return;
+        isClosed = true;
+        pool.close();
     }
 
     public static Connection buildSqlLite(String dbPath) throws SQLException
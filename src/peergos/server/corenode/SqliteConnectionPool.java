@@ -0,0 +1,237 @@
+package peergos.server.corenode;
+
+import peergos.server.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** Connections to a sqlite database: a pool of connections for reads, and a single connection for writes.
+ *
+ * File databases are put in WAL mode, so reads proceed concurrently with a write. Writes are queued to a single
+ * thread, which commits everything queued since its last commit in one transaction, with each write in its own
+ * savepoint so a failing write doesn't affect the others.
+ *
+ * Each connection caches its prepared statements, so callers must not close statements they get from prepare, only
+ * their result sets. An in memory database can only have one connection, which is then shared by reads and writes.
+ */
+public class SqliteConnectionPool {
+    private static final Logger LOG = Logging.LOG();
+    private static final int MAX_WRITE_BATCH = 1000;
+
+    public interface SqlFunction<T> {
+        T apply(PooledConnection conn) throws SQLException;
+    }
+
+    public static class PooledConnection {
+        public final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         *
+         * @param sql
+         * @return A cached statement for this sql, with its parameters cleared
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = conn.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else
+                stmt.clearParameters();
+            return stmt;
+        }
+
+        void close() {
+            try {
+                for (PreparedStatement stmt : statements.values())
+                    stmt.close();
+                conn.close();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class PendingWrite<T> {
+        final SqlFunction<T> op;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        T value;
+        Throwable error;
+
+        PendingWrite(SqlFunction<T> op) {
+            this.op = op;
+        }
+
+        void apply(PooledConnection conn) {
+            try {
+                value = op.apply(conn);
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        void complete() {
+            if (error != null)
+                result.completeExceptionally(error);
+            else
+                result.complete(value);
+        }
+    }
+
+    private final PooledConnection writer;
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> allReaders;
+    private final BlockingQueue<PendingWrite<?>> writes = new LinkedBlockingQueue<>();
+    private final Thread writeThread;
+    private volatile boolean closed = false;
+
+    private SqliteConnectionPool(PooledConnection writer, List<PooledConnection> readers, String name) {
+        this.writer = writer;
+        this.allReaders = readers;
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readers.size()), false, readers);
+        this.writeThread = new Thread(this::processWrites, "Sqlite writer " + name);
+        writeThread.setDaemon(true);
+        writeThread.start();
+    }
+
+    /**
+     *
+     * @param dbPath The database file, or :memory:
+     * @param readConnections The number of connections to use for reads
+     * @return
+     * @throws SQLException
+     */
+    public static SqliteConnectionPool build(String dbPath, int readConnections) throws SQLException {
+        Connection writeConn = JDBCCoreNode.buildSqlLite(dbPath);
+        PooledConnection writer = new PooledConnection(writeConn);
+        if (dbPath.equals(":memory:"))
+            return new SqliteConnectionPool(writer, Collections.singletonList(writer), dbPath);
+
+        try (Statement stmt = writeConn.createStatement()) {
+            stmt.executeQuery("PRAGMA journal_mode=WAL;").close();
+            // NORMAL can lose the last commits in WAL mode on power loss, and this holds mutable pointers, which
+            // must never go backwards. Writes are already grouped into one commit, so each fsync is shared.
+            stmt.executeUpdate("PRAGMA synchronous=FULL;");
+            stmt.executeUpdate("PRAGMA busy_timeout=10000;");
+        }
+        List<PooledConnection> readers = new ArrayList<>();
+        for (int i=0; i < readConnections; i++) {
+            Connection reader = JDBCCoreNode.buildSqlLite(dbPath);
+            try (Statement stmt = reader.createStatement()) {
+                stmt.executeUpdate("PRAGMA busy_timeout=10000;");
+            }
+            readers.add(new PooledConnection(reader));
+        }
+        return new SqliteConnectionPool(writer, readers, dbPath);
+    }
+
+    /** Run a read only operation on a pooled connection
+     */
+    public <T> T read(SqlFunction<T> op) throws SQLException {
+        PooledConnection conn;
+        try {
+            conn = readers.take();
+        } catch (InterruptedException e) {
+            throw new SQLException(e);
+        }
+        try {
+            // an in memory database shares its only connection with the writer
+            synchronized (conn) {
+                return op.apply(conn);
+            }
+        } finally {
+            readers.add(conn);
+        }
+    }
+
+    /** Queue a write, which will be committed with any other queued writes
+     *
+     * @param op
+     * @param <T>
+     * @return The result of the write, which completes once it is committed
+     */
+    public <T> CompletableFuture<T> write(SqlFunction<T> op) {
+        PendingWrite<T> write = new PendingWrite<>(op);
+        if (closed)
+            write.result.completeExceptionally(new IllegalStateException("Database is closed"));
+        else
+            writes.add(write);
+        return write.result;
+    }
+
+    /** Write and wait for the write to be committed
+     */
+    public <T> T writeAndWait(SqlFunction<T> op) throws SQLException {
+        try {
+            return write(op).get();
+        } catch (InterruptedException e) {
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    private void processWrites() {
+        List<PendingWrite<?>> batch = new ArrayList<>();
+        while (! closed) {
+            try {
+                batch.add(writes.take());
+                writes.drainTo(batch, MAX_WRITE_BATCH);
+                synchronized (writer) {
+                    Connection conn = writer.conn;
+                    conn.setAutoCommit(false);
+                    // the driver doesn't support jdbc savepoints, so use sql ones
+                    try (Statement savepoints = conn.createStatement()) {
+                        for (PendingWrite<?> write : batch) {
+                            savepoints.executeUpdate("SAVEPOINT write;");
+                            write.apply(writer);
+                            if (write.error != null)
+                                savepoints.executeUpdate("ROLLBACK TO write;");
+                            savepoints.executeUpdate("RELEASE write;");
+                        }
+                        conn.commit();
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        for (PendingWrite<?> write : batch)
+                            write.error = e;
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, t.getMessage(), t);
+                for (PendingWrite<?> write : batch)
+                    if (write.error == null)
+                        write.error = t;
+            }
+            for (PendingWrite<?> write : batch)
+                write.complete();
+            batch.clear();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        writeThread.interrupt();
+        synchronized (writer) {
+            writer.close();
+        }
+        for (PooledConnection reader : allReaders)
+            if (reader != writer)
+                reader.close();
+    }
+}
@@ -1,5 +1,6 @@
 package peergos.server.corenode;
 
+import peergos.server.mutable.*;
 import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
@@ -15,7 +16,8 @@ import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
 
-public class UserRepository implements CoreNode, SocialNetwork, MutablePointers {
+public class UserRepository implements CoreNode, SocialNetwork, PointerStore {
+    private static final int READ_CONNECTIONS = 8;
 
     private final ContentAddressedStorage ipfs;
     private final JDBCCoreNode store;
@@ -107,6 +109,11 @@ public class UserRepository implements CoreNode, SocialNetwork, MutablePointers
         return store.getPointer(writer);
     }
 
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getAllPointers() {
+        return store.getAllPointers();
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         return getPointer(owner, writer)
@@ -119,7 +126,8 @@ public class UserRepository implements CoreNode, SocialNetwork, MutablePointers
                                 if (! MutablePointers.isValidUpdate(writerKey, current, writerSignedBtreeRootHash))
                                     return CompletableFuture.completedFuture(false);
 
-                                return store.setPointer(owner, writer, writerSignedBtreeRootHash);
+                                // the store only applies the update if the pointer is still the one we validated against
+                                return store.setPointer(owner, writer, current, writerSignedBtreeRootHash);
                             } catch (TweetNaCl.InvalidSignatureException e) {
                                 System.err.println("Invalid signature during setMetadataBlob for sharer: " + writer);
                                 return CompletableFuture.completedFuture(false);
@@ -136,7 +144,7 @@ public class UserRepository implements CoreNode, SocialNetwork, MutablePointers
     public static UserRepository buildSqlLite(String dbPath, ContentAddressedStorage ipfs, int maxUserCount) throws SQLException
     {
         JDBCCoreNode coreNode = new JDBCCoreNode(
-            JDBCCoreNode.buildSqlLite(dbPath), maxUserCount);
+            SqliteConnectionPool.build(dbPath, READ_CONNECTIONS), maxUserCount);
 
         return new UserRepository(ipfs, coreNode);
     }
@@ -0,0 +1,458 @@
+package peergos.server.crypto;
+
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+
+import java.math.*;
+import java.security.*;
+import java.util.*;
+
+/** An Ed25519 provider with a fast signature verification, which is compatible with TweetNaCl.
+ *
+ * Verification hashes with the JVM's SHA-512, uses field elements with 10 limbs of 25.5 bits and points in extended
+ * coordinates, and computes [s]B - [h]A with a sliding window double scalar multiplication using a precomputed table of
+ * multiples of the base point. Signing and key generation delegate to TweetNaCl, as they need to be constant time.
+ */
+public class FastEd25519 implements Ed25519 {
+    private static final int SIGNATURE_BYTES = TweetNaCl.SIGNATURE_SIZE_BYTES;
+    // the base point table holds 32 odd multiples, and the table for the public key 8
+    private static final int BASE_WINDOW = 6, POINT_WINDOW = 4;
+    private static final int[] LIMB_BITS = {26, 25, 26, 25, 26, 25, 26, 25, 26, 25};
+
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(new BigInteger("27742317777372353535851937790883648493"));
+    private static final long[] D = fromBigInteger(BigInteger.valueOf(-121665)
+            .multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P));
+    private static final long[] D2 = add(D, D);
+    private static final long[] SQRT_M1 = fromBigInteger(BigInteger.valueOf(2)
+            .modPow(P.subtract(BigInteger.ONE).shiftRight(2), P));
+    private static final Cached[] BASE_MULTIPLES;
+
+    static {
+        byte[] encodedBase = toLittleEndian(BigInteger.valueOf(4).multiply(BigInteger.valueOf(5).modInverse(P)).mod(P));
+        Point base = decode(encodedBase, false);
+        if (base == null)
+            throw new IllegalStateException("Couldn't decode Ed25519 base point!");
+        BASE_MULTIPLES = oddMultiples(base, BASE_WINDOW);
+    }
+
+    @Override
+    public byte[] crypto_sign_open(byte[] signed, byte[] publicSigningKey) {
+        if (signed.length < SIGNATURE_BYTES ||
+                ! verify(signed, 0, signed, SIGNATURE_BYTES, signed.length - SIGNATURE_BYTES, publicSigningKey))
+            throw new TweetNaCl.InvalidSignatureException();
+        return Arrays.copyOfRange(signed, SIGNATURE_BYTES, signed.length);
+    }
+
+    @Override
+    public boolean crypto_sign_verify(byte[] signature, byte[] message, int offset, int length, byte[] publicSigningKey) {
+        return signature.length == SIGNATURE_BYTES && verify(signature, 0, message, offset, length, publicSigningKey);
+    }
+
+    @Override
+    public byte[] crypto_sign(byte[] message, byte[] secretSigningKey) {
+        return TweetNaCl.crypto_sign(message, secretSigningKey);
+    }
+
+    @Override
+    public void crypto_sign_keypair(byte[] pk, byte[] sk) {
+        TweetNaCl.crypto_sign_keypair(pk, sk, true);
+    }
+
+    private static boolean verify(byte[] signature, int sigOff, byte[] message, int offset, int length, byte[] publicKey) {
+        if (publicKey.length != 32)
+            return false;
+        Point negA = decode(publicKey, true);
+        if (negA == null)
+            return false;
+
+        MessageDigest sha512 = sha512();
+        sha512.update(signature, sigOff, 32);
+        sha512.update(publicKey);
+        sha512.update(message, offset, length);
+        byte[] h = reduce(sha512.digest());
+        byte[] s = Arrays.copyOfRange(signature, sigOff + 32, sigOff + 64);
+
+        byte[] r = encode(doubleScalarMultiply(h, negA, s));
+        int diff = 0;
+        for (int i=0; i < 32; i++)
+            diff |= r[i] ^ signature[sigOff + i];
+        return diff == 0;
+    }
+
+    private static MessageDigest sha512() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @return the little endian 64 byte input reduced modulo the group order, as 32 little endian bytes
+     */
+    private static byte[] reduce(byte[] littleEndian) {
+        byte[] bigEndian = new byte[littleEndian.length];
+        for (int i=0; i < littleEndian.length; i++)
+            bigEndian[i] = littleEndian[littleEndian.length - 1 - i];
+        return toLittleEndian(new BigInteger(1, bigEndian).mod(L));
+    }
+
+    private static byte[] toLittleEndian(BigInteger val) {
+        byte[] bigEndian = val.toByteArray();
+        byte[] res = new byte[32];
+        for (int i=0; i < Math.min(32, bigEndian.length); i++)
+            res[i] = bigEndian[bigEndian.length - 1 - i];
+        return res;
+    }
+
+    /* Points */
+
+    /** A point in extended coordinates: x = X/Z, y = Y/Z, x * y = T/Z
+     *
+     */
+    private static final class Point {
+        final long[] X, Y, Z, T;
+
+        Point(long[] x, long[] y, long[] z, long[] t) {
+            X = x;
+            Y = y;
+            Z = z;
+            T = t;
+        }
+
+        static Point identity() {
+            return new Point(new long[10], one(), one(), new long[10]);
+        }
+    }
+
+    /** A point prepared for addition: (Y + X, Y - X, 2Z, 2dT)
+     *
+     */
+    private static final class Cached {
+        final long[] YplusX, YminusX, Z2, T2d;
+
+        Cached(Point p) {
+            YplusX = add(p.Y, p.X);
+            YminusX = sub(p.Y, p.X);
+            Z2 = add(p.Z, p.Z);
+            T2d = mul(p.T, D2);
+        }
+    }
+
+    private static Point dbl(Point p) {
+        long[] a = square(p.X);
+        long[] b = square(p.Y);
+        long[] zz = square(p.Z);
+        long[] c = add(zz, zz);
+        long[] h = add(a, b);
+        long[] e = sub(h, square(add(p.X, p.Y)));
+        long[] g = sub(a, b);
+        long[] f = add(c, g);
+        return new Point(mul(e, f), mul(g, h), mul(f, g), mul(e, h));
+    }
+
+    /**
+     *
+     * @param negate whether to subtract q rather than add it
+     */
+    private static Point add(Point p, Cached q, boolean negate) {
+        long[] a = mul(sub(p.Y, p.X), negate ? q.YplusX : q.YminusX);
+        long[] b = mul(add(p.Y, p.X), negate ? q.YminusX : q.YplusX);
+        long[] c = mul(p.T, q.T2d);
+        long[] d = mul(p.Z, q.Z2);
+        long[] e = sub(b, a);
+        long[] f = negate ? add(d, c) : sub(d, c);
+        long[] g = negate ? sub(d, c) : add(d, c);
+        long[] h = add(b, a);
+        return new Point(mul(e, f), mul(g, h), mul(f, g), mul(e, h));
+    }
+
+    /**
+     *
+     * @return [1]p, [3]p, ... [2^window - 1]p
+     */
+    private static Cached[] oddMultiples(Point p, int window) {
+        Cached[] res = new Cached[1 << (window - 1)];
+        Cached twice = new Cached(dbl(p));
+        Point current = p;
+        res[0] = new Cached(current);
+        for (int i=1; i < res.length; i++) {
+            current = add(current, twice, false);
+            res[i] = new Cached(current);
+        }
+        return res;
+    }
+
+    /** Compute [a]A + [b]B, where B is the base point. This is not constant time, so only use it with public inputs.
+     *
+     */
+    private static Point doubleScalarMultiply(byte[] a, Point A, byte[] b) {
+        int[] aSlide = slide(a, POINT_WINDOW);
+        int[] bSlide = slide(b, BASE_WINDOW);
+        Cached[] aMultiples = oddMultiples(A, POINT_WINDOW);
+
+        int i = aSlide.length - 1;
+        while (i >= 0 && aSlide[i] == 0 && bSlide[i] == 0)
+            i--;
+        Point r = Point.identity();
+        for (; i >= 0; i--) {
+            r = dbl(r);
+            if (aSlide[i] > 0)
+                r = add(r, aMultiples[aSlide[i] / 2], false);
+            else if (aSlide[i] < 0)
+                r = add(r, aMultiples[-aSlide[i] / 2], true);
+            if (bSlide[i] > 0)
+                r = add(r, BASE_MULTIPLES[bSlide[i] / 2], false);
+            else if (bSlide[i] < 0)
+                r = add(r, BASE_MULTIPLES[-bSlide[i] / 2], true);
+        }
+        return r;
+    }
+
+    /** Convert a 256 bit little endian scalar into signed odd digits, each less than 2^window in magnitude, with
+     *  at least window zeros between non zero digits.
+     */
+    private static int[] slide(byte[] scalar, int window) {
+        int max = (1 << window) - 1;
+        // one extra digit to absorb a carry out of the top bit
+        int[] r = new int[257];
+        for (int i=0; i < 256; i++)
+            r[i] = 1 & (scalar[i >> 3] >> (i & 7));
+        for (int i=0; i < r.length; i++) {
+            if (r[i] == 0)
+                continue;
+            for (int b = 1; b <= window + 2 && i + b < r.length; b++) {
+                if (r[i + b] == 0)
+                    continue;
+                if (r[i] + (r[i + b] << b) <= max) {
+                    r[i] += r[i + b] << b;
+                    r[i + b] = 0;
+                } else if (r[i] - (r[i + b] << b) >= -max) {
+                    r[i] -= r[i + b] << b;
+                    for (int k = i + b; k < r.length; k++) {
+                        if (r[k] == 0) {
+                            r[k] = 1;
+                            break;
+                        }
+                        r[k] = 0;
+                    }
+                } else
+                    break;
+            }
+        }
+        return r;
+    }
+
+    /**
+     *
+     * @param negate whether to return the negation of the encoded point
+     * @return the decoded point, or null if the encoding is not a point on the curve
+     */
+    private static Point decode(byte[] s, boolean negate) {
+        long[] y = fromBytes(s);
+        long[] yy = square(y);
+        long[] u = sub(yy, one());
+        long[] v = add(mul(yy, D), one());
+
+        long[] v3 = mul(square(v), v);
+        long[] x = mul(mul(u, v3), pow22523(mul(u, mul(square(v3), v))));
+
+        long[] vxx = mul(v, square(x));
+        if (! isZero(sub(vxx, u))) {
+            if (! isZero(add(vxx, u)))
+                return null;
+            x = mul(x, SQRT_M1);
+        }
+        boolean signBit = ((s[31] >> 7) & 1) != 0;
+        if (isNegative(x) != (signBit ^ negate))
+            x = sub(new long[10], x);
+        return new Point(x, y, one(), mul(x, y));
+    }
+
+    private static byte[] encode(Point p) {
+        long[] zInv = invert(p.Z);
+        long[] x = mul(p.X, zInv);
+        long[] y = mul(p.Y, zInv);
+        byte[] s = toBytes(y);
+        if (isNegative(x))
+            s[31] |= (byte) 0x80;
+        return s;
+    }
+
+    /* Field elements mod 2^255 - 19, as 10 signed limbs alternating between 26 and 25 bits */
+
+    private static long[] one() {
+        long[] res = new long[10];
+        res[0] = 1;
+        return res;
+    }
+
+    private static long[] add(long[] f, long[] g) {
+        long[] h = new long[10];
+        for (int i=0; i < 10; i++)
+            h[i] = f[i] + g[i];
+        return h;
+    }
+
+    private static long[] sub(long[] f, long[] g) {
+        long[] h = new long[10];
+        for (int i=0; i < 10; i++)
+            h[i] = f[i] - g[i];
+        return h;
+    }
+
+    private static long[] square(long[] f) {
+        return mul(f, f);
+    }
+
+    private static long[] mul(long[] f, long[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4], g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5,
+                g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        // the product of two odd limbs has an extra factor of 2 because the limbs are 25.5 bits on average
+        long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+
+        long h0 = f0*g0 + f1_2*g9_19 + f2*g8_19 + f3_2*g7_19 + f4*g6_19 + f5_2*g5_19 + f6*g4_19 + f7_2*g3_19 + f8*g2_19 + f9_2*g1_19;
+        long h1 = f0*g1 + f1*g0 + f2*g9_19 + f3*g8_19 + f4*g7_19 + f5*g6_19 + f6*g5_19 + f7*g4_19 + f8*g3_19 + f9*g2_19;
+        long h2 = f0*g2 + f1_2*g1 + f2*g0 + f3_2*g9_19 + f4*g8_19 + f5_2*g7_19 + f6*g6_19 + f7_2*g5_19 + f8*g4_19 + f9_2*g3_19;
+        long h3 = f0*g3 + f1*g2 + f2*g1 + f3*g0 + f4*g9_19 + f5*g8_19 + f6*g7_19 + f7*g6_19 + f8*g5_19 + f9*g4_19;
+        long h4 = f0*g4 + f1_2*g3 + f2*g2 + f3_2*g1 + f4*g0 + f5_2*g9_19 + f6*g8_19 + f7_2*g7_19 + f8*g6_19 + f9_2*g5_19;
+        long h5 = f0*g5 + f1*g4 + f2*g3 + f3*g2 + f4*g1 + f5*g0 + f6*g9_19 + f7*g8_19 + f8*g7_19 + f9*g6_19;
+        long h6 = f0*g6 + f1_2*g5 + f2*g4 + f3_2*g3 + f4*g2 + f5_2*g1 + f6*g0 + f7_2*g9_19 + f8*g8_19 + f9_2*g7_19;
+        long h7 = f0*g7 + f1*g6 + f2*g5 + f3*g4 + f4*g3 + f5*g2 + f6*g1 + f7*g0 + f8*g9_19 + f9*g8_19;
+        long h8 = f0*g8 + f1_2*g7 + f2*g6 + f3_2*g5 + f4*g4 + f5_2*g3 + f6*g2 + f7_2*g1 + f8*g0 + f9_2*g9_19;
+        long h9 = f0*g9 + f1*g8 + f2*g7 + f3*g6 + f4*g5 + f5*g4 + f6*g3 + f7*g2 + f8*g1 + f9*g0;
+
+        long c;
+        c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+        c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+        c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+        c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+        c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+        c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+        c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+        c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+        c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+        c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+        c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+        c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+        return new long[]{h0, h1, h2, h3, h4, h5, h6, h7, h8, h9};
+    }
+
+    private static long[] squareTimes(long[] f, int n) {
+        long[] res = f;
+        for (int i=0; i < n; i++)
+            res = square(res);
+        return res;
+    }
+
+    /**
+     *
+     * @return z^(2^250 - 1) and z^11
+     */
+    private static long[][] pow2250(long[] z) {
+        long[] z2 = square(z);
+        long[] z9 = mul(squareTimes(z2, 2), z);
+        long[] z11 = mul(z9, z2);
+        long[] z2_5_0 = mul(square(z11), z9);
+        long[] z2_10_0 = mul(squareTimes(z2_5_0, 5), z2_5_0);
+        long[] z2_20_0 = mul(squareTimes(z2_10_0, 10), z2_10_0);
+        long[] z2_40_0 = mul(squareTimes(z2_20_0, 20), z2_20_0);
+        long[] z2_50_0 = mul(squareTimes(z2_40_0, 10), z2_10_0);
+        long[] z2_100_0 = mul(squareTimes(z2_50_0, 50), z2_50_0);
+        long[] z2_200_0 = mul(squareTimes(z2_100_0, 100), z2_100_0);
+        long[] z2_250_0 = mul(squareTimes(z2_200_0, 50), z2_50_0);
+        return new long[][]{z2_250_0, z11};
+    }
+
+    /** z^(p - 2) = z^(2^255 - 21) */
+    private static long[] invert(long[] z) {
+        long[][] pow = pow2250(z);
+        return mul(squareTimes(pow[0], 5), pow[1]);
+    }
+
+    /** z^((p - 5) / 8) = z^(2^252 - 3) */
+    private static long[] pow22523(long[] z) {
+        return mul(squareTimes(pow2250(z)[0], 2), z);
+    }
+
+    private static long[] fromBytes(byte[] s) {
+        long[] h = new long[10];
+        long acc = 0;
+        int accBits = 0, index = 0;
+        for (int i=0; i < 10; i++) {
+            while (accBits < LIMB_BITS[i]) {
+                acc |= (long) (s[index++] & 0xff) << accBits;
+                accBits += 8;
+            }
+            h[i] = acc & ((1L << LIMB_BITS[i]) - 1);
+            acc >>>= LIMB_BITS[i];
+            accBits -= LIMB_BITS[i];
+        }
+        return h;
+    }
+
+    private static long[] fromBigInteger(BigInteger val) {
+        return fromBytes(toLittleEndian(val));
+    }
+
+    /**
+     *
+     * @return the canonical little endian encoding of f, fully reduced mod p
+     */
+    private static byte[] toBytes(long[] f) {
+        long[] h = f.clone();
+        // make every limb non negative and within its width
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i=0; i < 10; i++) {
+                long c = h[i] >> LIMB_BITS[i];
+                h[i] -= c << LIMB_BITS[i];
+                if (i < 9)
+                    h[i + 1] += c;
+                else
+                    h[0] += 19 * c;
+            }
+        }
+        // now 0 <= h < 2^255, subtract p if h >= p, i.e. if h + 19 >= 2^255
+        long q = (h[0] + 19) >> 26;
+        for (int i=1; i < 10; i++)
+            q = (h[i] + q) >> LIMB_BITS[i];
+        h[0] += 19 * q;
+        for (int i=0; i < 10; i++) {
+            long c = h[i] >> LIMB_BITS[i];
+            h[i] -= c << LIMB_BITS[i];
+            if (i < 9)
+                h[i + 1] += c;
+        }
+
+        byte[] s = new byte[32];
+        long acc = 0;
+        int accBits = 0, index = 0;
+        for (int i=0; i < 10; i++) {
+            acc |= h[i] << accBits;
+            accBits += LIMB_BITS[i];
+            while (accBits >= 8) {
+                s[index++] = (byte) acc;
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        s[index] = (byte) acc;
+        return s;
+    }
+
+    private static boolean isZero(long[] f) {
+        byte[] s = toBytes(f);
+        int acc = 0;
+        for (byte b : s)
+            acc |= b;
+        return acc == 0;
+    }
+
+    private static boolean isNegative(long[] f) {
+        return (toBytes(f)[0] & 1) != 0;
+    }
+}
@@ -0,0 +1,298 @@
+package peergos.server.crypto;
+
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.concurrent.*;
+
+/** An XSalsa20-Poly1305 secretbox which is compatible with TweetNaCl, but works on 32 bit words rather than single
+ *  bytes, and only allocates the output array.
+ *
+ *  The output format is the same as TweetNaCl.secretbox: a 16 byte authenticator followed by the cipher text.
+ */
+public class FastSalsa20Poly1305 implements Salsa20Poly1305 {
+    private static final int TAG_BYTES = TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+    private static final int KEY_BYTES = TweetNaCl.SECRETBOX_KEY_BYTES;
+    private static final int NONCE_BYTES = TweetNaCl.SECRETBOX_NONCE_BYTES;
+
+    // "expand 32-byte k"
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+
+    @Override
+    public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+        checkLengths(nonce, key);
+        int[] subKey = hsalsa20(key, nonce);
+        int[] block = new int[16];
+        salsa20Block(subKey, nonce, 0, block);
+
+        byte[] res = new byte[TAG_BYTES + data.length];
+        xorStream(subKey, nonce, block, data, 0, res, TAG_BYTES, data.length);
+        poly1305(res, TAG_BYTES, data.length, block, res, 0);
+        return res;
+    }
+
+    @Override
+    public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+        checkLengths(nonce, key);
+        if (cipher.length < TAG_BYTES)
+            throw new TweetNaCl.InvalidCipherTextException("Invalid encryption! [" + cipher.length + "]");
+        int[] subKey = hsalsa20(key, nonce);
+        int[] block = new int[16];
+        salsa20Block(subKey, nonce, 0, block);
+
+        int length = cipher.length - TAG_BYTES;
+        byte[] tag = new byte[TAG_BYTES];
+        poly1305(cipher, TAG_BYTES, length, block, tag, 0);
+        int diff = 0;
+        for (int i=0; i < TAG_BYTES; i++)
+            diff |= tag[i] ^ cipher[i];
+        if (diff != 0)
+            throw new TweetNaCl.InvalidCipherTextException("Invalid encryption! [" + cipher.length + "]");
+
+        byte[] res = new byte[length];
+        xorStream(subKey, nonce, block, cipher, TAG_BYTES, res, 0, length);
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> secretboxAsync(byte[] data, byte[] nonce, byte[] key) {
+        return CompletableFuture.completedFuture(secretbox(data, nonce, key));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> secretbox_openAsync(byte[] cipher, byte[] nonce, byte[] key) {
+        return CompletableFuture.completedFuture(secretbox_open(cipher, nonce, key));
+    }
+
+    private static void checkLengths(byte[] nonce, byte[] key) {
+        if (nonce.length != NONCE_BYTES)
+            throw new IllegalArgumentException("Invalid nonce length: " + nonce.length);
+        if (key.length != KEY_BYTES)
+            throw new IllegalArgumentException("Invalid key length: " + key.length);
+    }
+
+    private static int load32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static void store32(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    /**
+     *
+     * @return the XSalsa20 sub key derived from the key and the first 16 bytes of the nonce
+     */
+    private static int[] hsalsa20(byte[] key, byte[] nonce) {
+        int[] x = {
+                SIGMA0, load32(key, 0), load32(key, 4), load32(key, 8),
+                load32(key, 12), SIGMA1, load32(nonce, 0), load32(nonce, 4),
+                load32(nonce, 8), load32(nonce, 12), SIGMA2, load32(key, 16),
+                load32(key, 20), load32(key, 24), load32(key, 28), SIGMA3
+        };
+        rounds(x, false);
+        return new int[] {x[0], x[5], x[10], x[15], x[6], x[7], x[8], x[9]};
+    }
+
+    /** Compute the Salsa20 key stream block with the given counter, using the last 8 bytes of the nonce
+     *
+     */
+    private static void salsa20Block(int[] subKey, byte[] nonce, long counter, int[] out) {
+        out[0] = SIGMA0;
+        out[1] = subKey[0];
+        out[2] = subKey[1];
+        out[3] = subKey[2];
+        out[4] = subKey[3];
+        out[5] = SIGMA1;
+        out[6] = load32(nonce, 16);
+        out[7] = load32(nonce, 20);
+        out[8] = (int) counter;
+        out[9] = (int) (counter >>> 32);
+        out[10] = SIGMA2;
+        out[11] = subKey[4];
+        out[12] = subKey[5];
+        out[13] = subKey[6];
+        out[14] = subKey[7];
+        out[15] = SIGMA3;
+        rounds(out, true);
+    }
+
+    /** Apply the 20 Salsa20 rounds to the state
+     *
+     * @param feedForward whether to add the input state to the result
+     */
+    private static void rounds(int[] s, boolean feedForward) {
+        int x0 = s[0], x1 = s[1], x2 = s[2], x3 = s[3], x4 = s[4], x5 = s[5], x6 = s[6], x7 = s[7],
+                x8 = s[8], x9 = s[9], x10 = s[10], x11 = s[11], x12 = s[12], x13 = s[13], x14 = s[14], x15 = s[15];
+        for (int i = 0; i < 20; i += 2) {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        if (feedForward) {
+            x0 += s[0]; x1 += s[1]; x2 += s[2]; x3 += s[3]; x4 += s[4]; x5 += s[5]; x6 += s[6]; x7 += s[7];
+            x8 += s[8]; x9 += s[9]; x10 += s[10]; x11 += s[11]; x12 += s[12]; x13 += s[13]; x14 += s[14]; x15 += s[15];
+        }
+        s[0] = x0; s[1] = x1; s[2] = x2; s[3] = x3; s[4] = x4; s[5] = x5; s[6] = x6; s[7] = x7;
+        s[8] = x8; s[9] = x9; s[10] = x10; s[11] = x11; s[12] = x12; s[13] = x13; s[14] = x14; s[15] = x15;
+    }
+
+    /** XOR the key stream into the input, skipping the first 32 bytes of the stream which are the Poly1305 key
+     *
+     * @param firstBlock the key stream block with counter 0
+     */
+    private static void xorStream(int[] subKey, byte[] nonce, int[] firstBlock,
+                                  byte[] in, int inOff, byte[] out, int outOff, int length) {
+        int done = 0;
+        // the rest of the first block
+        for (int w = 8; w < 16 && done < length; w++)
+            done += xorWord(firstBlock[w], in, inOff + done, out, outOff + done, length - done);
+
+        int[] block = new int[16];
+        for (long counter = 1; done < length; counter++) {
+            salsa20Block(subKey, nonce, counter, block);
+            if (length - done >= 64) {
+                for (int w = 0; w < 16; w++) {
+                    int i = inOff + done, o = outOff + done;
+                    store32(out, o, load32(in, i) ^ block[w]);
+                    done += 4;
+                }
+            } else {
+                for (int w = 0; w < 16 && done < length; w++)
+                    done += xorWord(block[w], in, inOff + done, out, outOff + done, length - done);
+            }
+        }
+    }
+
+    private static int xorWord(int word, byte[] in, int inOff, byte[] out, int outOff, int remaining) {
+        if (remaining >= 4) {
+            store32(out, outOff, load32(in, inOff) ^ word);
+            return 4;
+        }
+        for (int i=0; i < remaining; i++)
+            out[outOff + i] = (byte) (in[inOff + i] ^ (word >>> (8 * i)));
+        return remaining;
+    }
+
+    /** Poly1305 with 26 bit limbs
+     *
+     * @param key the first 8 words of the first key stream block
+     */
+    private static void poly1305(byte[] m, int mOff, int length, int[] key, byte[] out, int outOff) {
+        final long mask = 0x3ffffff;
+        long r0 = key[0] & 0x3ffffff;
+        long r1 = ((key[0] >>> 26) | (key[1] << 6)) & 0x3ffff03;
+        long r2 = ((key[1] >>> 20) | (key[2] << 12)) & 0x3ffc0ff;
+        long r3 = ((key[2] >>> 14) | (key[3] << 18)) & 0x3f03fff;
+        long r4 = (key[3] >>> 8) & 0x00fffff;
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+        byte[] last = new byte[16];
+        for (int pos = 0; pos < length; pos += 16) {
+            byte[] src = m;
+            int off = mOff + pos;
+            long hibit = 1 << 24;
+            if (length - pos < 16) {
+                int remaining = length - pos;
+                System.arraycopy(m, off, last, 0, remaining);
+                last[remaining] = 1;
+                src = last;
+                off = 0;
+                hibit = 0;
+            }
+            long t0 = load32(src, off) & 0xffffffffL;
+            long t1 = load32(src, off + 4) & 0xffffffffL;
+            long t2 = load32(src, off + 8) & 0xffffffffL;
+            long t3 = load32(src, off + 12) & 0xffffffffL;
+            h0 += t0 & mask;
+            h1 += ((t0 >>> 26) | (t1 << 6)) & mask;
+            h2 += ((t1 >>> 20) | (t2 << 12)) & mask;
+            h3 += ((t2 >>> 14) | (t3 << 18)) & mask;
+            h4 += (t3 >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26; h0 = d0 & mask;
+            d1 += c; c = d1 >>> 26; h1 = d1 & mask;
+            d2 += c; c = d2 >>> 26; h2 = d2 & mask;
+            d3 += c; c = d3 >>> 26; h3 = d3 & mask;
+            d4 += c; c = d4 >>> 26; h4 = d4 & mask;
+            h0 += c * 5; c = h0 >>> 26; h0 &= mask;
+            h1 += c;
+        }
+
+        // fully carry h
+        long c = h1 >>> 26; h1 &= mask;
+        h2 += c; c = h2 >>> 26; h2 &= mask;
+        h3 += c; c = h3 >>> 26; h3 &= mask;
+        h4 += c; c = h4 >>> 26; h4 &= mask;
+        h0 += c * 5; c = h0 >>> 26; h0 &= mask;
+        h1 += c;
+
+        // compute h - p, and select it if it is not negative
+        long g0 = h0 + 5; c = g0 >>> 26; g0 &= mask;
+        long g1 = h1 + c; c = g1 >>> 26; g1 &= mask;
+        long g2 = h2 + c; c = g2 >>> 26; g2 &= mask;
+        long g3 = h3 + c; c = g3 >>> 26; g3 &= mask;
+        long g4 = h4 + c - (1L << 26);
+        long useH = g4 >> 63;
+        h0 = (h0 & useH) | (g0 & ~useH);
+        h1 = (h1 & useH) | (g1 & ~useH);
+        h2 = (h2 & useH) | (g2 & ~useH);
+        h3 = (h3 & useH) | (g3 & ~useH);
+        h4 = (h4 & useH) | (g4 & ~useH);
+
+        // h + s mod 2^128
+        long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+        long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+        f0 += key[4] & 0xffffffffL;
+        f1 += (key[5] & 0xffffffffL) + (f0 >>> 32);
+        f2 += (key[6] & 0xffffffffL) + (f1 >>> 32);
+        f3 += (key[7] & 0xffffffffL) + (f2 >>> 32);
+        store32(out, outOff, (int) f0);
+        store32(out, outOff + 4, (int) f1);
+        store32(out, outOff + 8, (int) f2);
+        store32(out, outOff + 12, (int) f3);
+    }
+}
@@ -0,0 +1,13 @@
+package peergos.server.crypto;
+
+import peergos.shared.*;
+
+/** Crypto for a JVM, using the fast secretbox and signature verification providers rather than plain TweetNaCl
+ *
+ */
+public class JavaCrypto {
+
+    public static Crypto init() {
+        return Crypto.initJava(new FastSalsa20Poly1305(), new FastEd25519());
+    }
+}
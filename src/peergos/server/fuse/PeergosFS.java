@@ -5,6 +5,7 @@ import peergos.server.util.Logging;
 
 import jnr.ffi.Pointer;
 import jnr.ffi.types.*;
+import peergos.shared.crypto.symmetric.*;
 import peergos.shared.user.UserContext;
 import peergos.shared.user.fs.*;
 import peergos.shared.util.Serialize;
@@ -577,8 +578,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
             byte[] truncated = Arrays.copyOfRange(original, 0, (int)size);
             FileWrapper newParent = file.treeNode.remove(parent.treeNode, context.network).get();
             FileWrapper b = newParent.uploadOrOverwriteFile(file.properties.name, new AsyncReader.ArrayBacked(truncated),
-                    truncated.length, context.network, context.crypto.random, l -> {}, context.fragmenter(),
-                    newParent.generateChildLocationsFromSize(truncated.length, context.crypto.random)).get();
+                    truncated.length, context.network, context.crypto.random, l -> {}, context.fragmenter()).get();
             return (int) size;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
@@ -594,9 +594,10 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
                 throw new IllegalStateException("Cannot write more than " + Integer.MAX_VALUE + " bytes");
             }
 
+            SymmetricKey fileKey = SymmetricKey.random();
             FileWrapper b = parent.treeNode.uploadFileSection(name, new AsyncReader.ArrayBacked(toWrite), false, offset,
-                    offset + size, Optional.empty(), true, context.network, context.crypto.random, l -> {},
-                    context.fragmenter(), parent.treeNode.generateChildLocationsFromSize(size, context.crypto.random)).get();
+                    offset + size, Optional.of(fileKey), true, context.network, context.crypto.random, l -> {},
+                    context.fragmenter(), parent.treeNode.generateChildLocationsFromSize(size, fileKey, context.crypto.random)).get();
             return (int) size;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
@@ -0,0 +1,329 @@
+package peergos.server.mutable;
+
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A store of mutable pointers held in memory, and persisted to a write ahead log and periodic snapshots.
+ *
+ * Updates to a writer are serialised by a striped lock, under which the claimed original target of the new pointer is
+ * compared with the current target, so the compare and swap is atomic. Successful updates are appended to the log by
+ * a single thread, which writes and syncs everything queued since its last sync at once, and an update only completes
+ * once it is on disk. Until then an update is only visible to later compare and swaps, not to readers or snapshots.
+ * When the log gets large the whole map is written to a snapshot and the log is truncated.
+ */
+public class LogMutablePointers implements PointerStore {
+    private static final Logger LOG = Logging.LOG();
+    private static final int LOCK_STRIPES = 1024;
+    private static final int MAX_BATCH = 10_000;
+    private static final int MAX_CACHED_KEYS = 10_000;
+
+    private static final class Entry implements Cborable {
+        final byte[] signed;
+        final MaybeMultihash target;
+
+        Entry(byte[] signed, MaybeMultihash target) {
+            this.signed = signed;
+            this.target = target;
+        }
+
+        @Override
+        public CborObject toCbor() {
+            return new CborObject.CborList(Arrays.asList(new CborObject.CborByteArray(signed), target));
+        }
+
+        static Entry fromCbor(Cborable cbor) {
+            List<? extends Cborable> parts = ((CborObject.CborList) cbor).value;
+            return new Entry(((CborObject.CborByteArray) parts.get(0)).value, MaybeMultihash.fromCbor(parts.get(1)));
+        }
+    }
+
+    private static final class PendingWrite {
+        final PublicKeyHash writer;
+        final Entry previous, updated;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        PendingWrite(PublicKeyHash writer, Entry previous, Entry updated) {
+            this.writer = writer;
+            this.previous = previous;
+            this.updated = updated;
+        }
+    }
+
+    private final ContentAddressedStorage dht;
+    private final Path snapshotFile, logFile;
+    private final long maxLogBytes;
+    // Only updates which are on disk
+    private final Map<PublicKeyHash, Entry> pointers = new ConcurrentHashMap<>();
+    // The latest queued update of each writer with updates which aren't on disk yet, guarded by the writer's lock
+    private final Map<PublicKeyHash, Entry> unlogged = new ConcurrentHashMap<>();
+    private final Object[] writerLocks = new Object[LOCK_STRIPES];
+    private final Map<PublicKeyHash, PublicSigningKey> signingKeys = Collections.synchronizedMap(new LRUCache<>(MAX_CACHED_KEYS));
+    private final BlockingQueue<PendingWrite> toLog = new LinkedBlockingQueue<>();
+    private final FileChannel log;
+    private long logBytes;
+
+    /**
+     *
+     * @param dir The directory to store the log and snapshots in
+     * @param dht Where to retrieve writer keys from
+     * @param maxLogBytes The size of the log at which to write a snapshot and start a new log
+     * @throws IOException
+     */
+    public LogMutablePointers(Path dir, ContentAddressedStorage dht, long maxLogBytes) throws IOException {
+        this.dht = dht;
+        this.maxLogBytes = maxLogBytes;
+        for (int i=0; i < LOCK_STRIPES; i++)
+            writerLocks[i] = new Object();
+        Files.createDirectories(dir);
+        this.snapshotFile = dir.resolve("pointers.snapshot");
+        this.logFile = dir.resolve("pointers.log");
+        loadSnapshot();
+        this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.logBytes = replayLog();
+        log.position(logBytes);
+        LOG.info("Loaded " + pointers.size() + " mutable pointers from " + dir);
+        Thread logWriter = new Thread(this::writeLog, "Mutable pointer log");
+        logWriter.setDaemon(true);
+        logWriter.start();
+    }
+
+    private Object lockFor(PublicKeyHash writer) {
+        return writerLocks[(writer.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+        Entry current = pointers.get(writer);
+        return CompletableFuture.completedFuture(current == null ? Optional.empty() : Optional.of(current.signed));
+    }
+
+    @Override
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getAllPointers() {
+        Map<PublicKeyHash, byte[]> res = new HashMap<>();
+        for (Map.Entry<PublicKeyHash, Entry> e : pointers.entrySet())
+            res.put(e.getKey(), e.getValue().signed);
+        return CompletableFuture.completedFuture(res);
+    }
+
+    private CompletableFuture<PublicSigningKey> getSigningKey(PublicKeyHash writer) {
+        PublicSigningKey cached = signingKeys.get(writer);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        return dht.getSigningKey(writer).thenApply(keyOpt -> {
+            PublicSigningKey key = keyOpt.orElseThrow(() ->
+                    new IllegalStateException("Couldn't retrieve writer key from ipfs with hash " + writer));
+            signingKeys.put(writer, key);
+            return key;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
+        return getSigningKey(writer).thenCompose(writerKey -> {
+            HashCasPair cas;
+            try {
+                cas = HashCasPair.fromCbor(CborObject.fromByteArray(writerKey.unsignMessage(writerSignedBtreeRootHash)));
+            } catch (TweetNaCl.InvalidSignatureException e) {
+                System.err.println("Invalid signature during setPointer for writer: " + writer);
+                return CompletableFuture.completedFuture(false);
+            }
+            if (! cas.updated.isPresent())
+                return CompletableFuture.completedFuture(false);
+
+            Entry updated = new Entry(writerSignedBtreeRootHash, cas.updated);
+            PendingWrite write;
+            synchronized (lockFor(writer)) {
+                Entry current = unlogged.get(writer);
+                if (current == null)
+                    current = pointers.get(writer);
+                MaybeMultihash existing = current == null ? MaybeMultihash.empty() : current.target;
+                if (! existing.equals(cas.original))
+                    return CompletableFuture.completedFuture(false);
+                unlogged.put(writer, updated);
+                write = new PendingWrite(writer, current, updated);
+                // queue under the lock so the log has each writer's updates in order
+                toLog.add(write);
+            }
+            return write.done;
+        });
+    }
+
+    private static byte[] serializeRecord(PublicKeyHash writer, Entry entry) {
+        byte[] record = new CborObject.CborList(Arrays.asList(writer, entry)).serialize();
+        byte[] res = new byte[4 + record.length];
+        ByteBuffer.wrap(res).putInt(record.length).put(record);
+        return res;
+    }
+
+    /** Append to the log and sync it to disk
+     */
+    protected void appendToLog(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            log.write(buf);
+        log.force(false);
+    }
+
+    private void writeLog() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            if (batch.isEmpty()) {
+                try {
+                    batch.add(toLog.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            toLog.drainTo(batch, MAX_BATCH - batch.size());
+            try {
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                for (PendingWrite write : batch)
+                    bout.write(serializeRecord(write.writer, write.updated));
+                appendToLog(ByteBuffer.wrap(bout.toByteArray()));
+                logBytes += bout.size();
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "Couldn't write mutable pointers to log: " + t.getMessage(), t);
+                try {
+                    // drop any partial batch so later records aren't written after it
+                    log.truncate(logBytes);
+                    log.position(logBytes);
+                } catch (IOException e) {
+                    LOG.log(Level.SEVERE, "Couldn't truncate mutable pointer log: " + e.getMessage(), e);
+                }
+                batch = failBatch(batch, t);
+                continue;
+            }
+            for (PendingWrite write : batch) {
+                synchronized (lockFor(write.writer)) {
+                    pointers.put(write.writer, write.updated);
+                    unlogged.remove(write.writer, write.updated);
+                }
+                write.done.complete(true);
+            }
+            batch.clear();
+            if (logBytes > maxLogBytes) {
+                try {
+                    snapshot();
+                } catch (Throwable t) {
+                    // the log still has every update, so we only need to try again later
+                    LOG.log(Level.WARNING, "Couldn't snapshot mutable pointers: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    /** Fail a batch which couldn't be logged, and every queued update which was based on one of its updates.
+     *
+     * @return The queued updates which don't depend on the failed batch, to log next
+     */
+    private List<PendingWrite> failBatch(List<PendingWrite> batch, Throwable cause) {
+        Set<Entry> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PendingWrite write : batch)
+            failed.add(write.updated);
+        // Any queued update to one of these writers came after the failed one, so it was based on it. Updates are queued
+        // under the writer's lock, so once we've reverted a writer to its logged value, everything which depends on a
+        // failed update is already in the queue.
+        for (PendingWrite write : batch) {
+            synchronized (lockFor(write.writer)) {
+                unlogged.remove(write.writer);
+            }
+        }
+        List<PendingWrite> queued = new ArrayList<>();
+        toLog.drainTo(queued);
+        List<PendingWrite> remaining = new ArrayList<>();
+        List<PendingWrite> dependent = new ArrayList<>();
+        for (PendingWrite write : queued) {
+            if (write.previous != null && failed.contains(write.previous)) {
+                failed.add(write.updated);
+                dependent.add(write);
+            } else
+                remaining.add(write);
+        }
+        for (PendingWrite write : batch)
+            write.done.completeExceptionally(cause);
+        for (PendingWrite write : dependent)
+            write.done.completeExceptionally(new IllegalStateException("Based on an update which couldn't be logged", cause));
+        return remaining;
+    }
+
+    /** Write every pointer to a new snapshot, then empty the log. This is only called from the log writing thread.
+     */
+    private void snapshot() throws IOException {
+        List<Cborable> all = new ArrayList<>();
+        for (Map.Entry<PublicKeyHash, Entry> e : pointers.entrySet())
+            all.add(new CborObject.CborList(Arrays.asList(e.getKey(), e.getValue())));
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(new CborObject.CborList(all).serialize());
+            while (buf.hasRemaining())
+                out.write(buf);
+            out.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Replaying the old log over the new snapshot is harmless, so a crash here loses nothing
+        long replaced = logBytes;
+        log.truncate(0);
+        log.position(0);
+        logBytes = 0;
+        log.force(true);
+        LOG.info("Snapshotted " + all.size() + " mutable pointers, replacing " + replaced + " bytes of log");
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (! Files.exists(snapshotFile))
+            return;
+        CborObject.CborList all = (CborObject.CborList) CborObject.fromByteArray(Files.readAllBytes(snapshotFile));
+        for (Cborable pair : all.value) {
+            List<? extends Cborable> parts = ((CborObject.CborList) pair).value;
+            pointers.put(PublicKeyHash.fromCbor(parts.get(0)), Entry.fromCbor(parts.get(1)));
+        }
+    }
+
+    /** Apply every complete record in the log, and drop any partially written record at its end
+     *
+     * @return The length of the valid log
+     */
+    private long replayLog() throws IOException {
+        byte[] raw = Files.readAllBytes(logFile);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        long valid = 0;
+        int records = 0;
+        while (buf.remaining() >= 4) {
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining())
+                break;
+            byte[] record = new byte[length];
+            buf.get(record);
+            try {
+                List<? extends Cborable> parts = ((CborObject.CborList) CborObject.fromByteArray(record)).value;
+                pointers.put(PublicKeyHash.fromCbor(parts.get(0)), Entry.fromCbor(parts.get(1)));
+            } catch (RuntimeException e) {
+                break;
+            }
+            valid += 4 + length;
+            records++;
+        }
+        if (valid < raw.length) {
+            LOG.warning("Truncating " + (raw.length - valid) + " bytes of incomplete mutable pointer log");
+            log.truncate(valid);
+        }
+        if (records > 0)
+            LOG.info("Replayed " + records + " mutable pointer updates from log");
+        return valid;
+    }
+}
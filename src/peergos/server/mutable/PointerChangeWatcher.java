@@ -0,0 +1,144 @@
+package peergos.server.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** This lets clients wait for changes to mutable pointers on this server, rather than polling for them.
+ *
+ * It should be registered as a listener on the MutableEventPropagator for the local pointers. Every change is given a
+ * version, and the latest change to each of the most recently changed writers is remembered, so a client waiting with
+ * the cursor of its last result can be told what it missed without reading any pointers. If a client's cursor is
+ * older than what we remember, it is told to reset.
+ */
+public class PointerChangeWatcher implements Consumer<MutableEvent>, PointerUpdates {
+
+    private final long timeoutMillis;
+    private final int maxWaiters;
+    private final int maxRemembered;
+    private final Map<PublicKeyHash, Set<Waiter>> waiting = new HashMap<>();
+    // in order of last change
+    private final LinkedHashMap<PublicKeyHash, Change> latest = new LinkedHashMap<>();
+    private int waiterCount = 0;
+    private long version;
+    // the newest version which has been forgotten
+    private long forgotten;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Pointer change watcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     *
+     * @param timeoutMillis The maximum time a client waits before receiving an empty response
+     * @param maxWaiters The maximum number of concurrent waiting clients
+     * @param maxRemembered The number of writers whose latest change is remembered
+     */
+    public PointerChangeWatcher(long timeoutMillis, int maxWaiters, int maxRemembered) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxWaiters = maxWaiters;
+        this.maxRemembered = maxRemembered;
+        // Start after any cursor handed out by a previous run of this server, so its clients reset
+        this.version = System.currentTimeMillis() * 1000;
+        this.forgotten = version;
+    }
+
+    public PointerChangeWatcher(long timeoutMillis, int maxWaiters) {
+        this(timeoutMillis, maxWaiters, 100_000);
+    }
+
+    @Override
+    public void accept(MutableEvent event) {
+        Set<Waiter> toWake;
+        long changeVersion;
+        synchronized (this) {
+            changeVersion = ++version;
+            latest.remove(event.writer);
+            latest.put(event.writer, new Change(changeVersion, event.writerSignedBtreeRootHash));
+            if (latest.size() > maxRemembered) {
+                Iterator<Map.Entry<PublicKeyHash, Change>> oldest = latest.entrySet().iterator();
+                forgotten = oldest.next().getValue().version;
+                oldest.remove();
+            }
+            Set<Waiter> waiters = waiting.get(event.writer);
+            if (waiters == null)
+                return;
+            toWake = new HashSet<>(waiters);
+        }
+        // complete outside the lock, as completion sends the response
+        Map<PublicKeyHash, byte[]> changed = Collections.singletonMap(event.writer, event.writerSignedBtreeRootHash);
+        for (Waiter waiter : toWake)
+            waiter.result.complete(new PointerChanges(changeVersion, false, changed));
+    }
+
+    @Override
+    public CompletableFuture<PointerChanges> awaitChanges(long cursor, List<PublicKeyHash> writers) {
+        if (writers.size() > MAX_WATCHED_WRITERS)
+            return Futures.errored(new IllegalStateException("Too many writers to watch: " + writers.size()));
+        Waiter waiter = new Waiter(writers);
+        synchronized (this) {
+            if (cursor < forgotten || cursor > version)
+                return CompletableFuture.completedFuture(new PointerChanges(version, true, Collections.emptyMap()));
+            Map<PublicKeyHash, byte[]> missed = new HashMap<>();
+            for (PublicKeyHash writer : writers) {
+                Change change = latest.get(writer);
+                if (change != null && change.version > cursor)
+                    missed.put(writer, change.signedPointer);
+            }
+            if (! missed.isEmpty())
+                return CompletableFuture.completedFuture(new PointerChanges(version, false, missed));
+            if (waiterCount >= maxWaiters)
+                return Futures.errored(new IllegalStateException("Too many clients waiting for pointer changes"));
+            waiterCount++;
+            for (PublicKeyHash writer : writers)
+                waiting.computeIfAbsent(writer, w -> new HashSet<>()).add(waiter);
+            long timeoutVersion = version;
+            waiter.timeout = timer.schedule(() -> waiter.result.complete(
+                    new PointerChanges(timeoutVersion, false, Collections.emptyMap())), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        waiter.result.thenAccept(res -> remove(waiter));
+        return waiter.result;
+    }
+
+    private synchronized void remove(Waiter waiter) {
+        waiter.timeout.cancel(false);
+        for (PublicKeyHash writer : waiter.writers) {
+            Set<Waiter> waiters = waiting.get(writer);
+            if (waiters == null)
+                continue;
+            waiters.remove(waiter);
+            if (waiters.isEmpty())
+                waiting.remove(writer);
+        }
+        waiterCount--;
+    }
+
+    public synchronized int waiterCount() {
+        return waiterCount;
+    }
+
+    private static final class Change {
+        final long version;
+        final byte[] signedPointer;
+
+        Change(long version, byte[] signedPointer) {
+            this.version = version;
+            this.signedPointer = signedPointer;
+        }
+    }
+
+    private static final class Waiter {
+        final List<PublicKeyHash> writers;
+        final CompletableFuture<PointerChanges> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+
+        Waiter(List<PublicKeyHash> writers) {
+            this.writers = writers;
+        }
+    }
+}
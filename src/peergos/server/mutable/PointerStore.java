@@ -0,0 +1,19 @@
+package peergos.server.mutable;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** The local store of the mutable pointers which this server is responsible for
+ *
+ */
+public interface PointerStore extends MutablePointers {
+
+    /**
+     *
+     * @return Every writer with a pointer stored here, and its current signed pointer
+     */
+    CompletableFuture<Map<PublicKeyHash, byte[]>> getAllPointers();
+}
@@ -0,0 +1,121 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.util.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/** This runs a handler on its own bounded pool of threads, so a slow endpoint can't starve the server's other
+ * endpoints of threads.
+ *
+ * The server's own executor only dispatches requests. Requests which arrive when all of this endpoint's threads are
+ * busy wait in a bounded queue, and requests which arrive when the queue is full are rejected with a 503.
+ */
+public class BoundedHandler implements HttpHandler {
+    private static final Logger LOG = Logging.LOG();
+
+    private final String name;
+    private final HttpHandler target;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong handled = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong recentlyRejected = new AtomicLong(0);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+    /**
+     *
+     * @param name The name of this endpoint, used for its threads and metrics
+     * @param target
+     * @param maxConcurrency The maximum number of requests to handle concurrently
+     * @param maxQueued The maximum number of requests to queue when all threads are busy
+     */
+    public BoundedHandler(String name, HttpHandler target, int maxConcurrency, int maxQueued) {
+        this.name = name;
+        this.target = target;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(maxQueued), r -> {
+            Thread t = new Thread(r, name + "-handler-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            pool.execute(() -> {
+                try {
+                    target.handle(exchange);
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                    exchange.close();
+                } finally {
+                    handled.incrementAndGet();
+                }
+            });
+            int depth = pool.getQueue().size();
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            recentlyRejected.incrementAndGet();
+            LOG.warning("Rejecting request to overloaded endpoint: " + this);
+            try {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int activeCount() {
+        return pool.getActiveCount();
+    }
+
+    public int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     *
+     * @return The largest queue depth seen since the last call to this method
+     */
+    public int takeMaxQueueDepth() {
+        return maxQueueDepth.getAndSet(0);
+    }
+
+    /**
+     *
+     * @return The number of requests rejected since the last call to this method
+     */
+    public long takeRecentlyRejected() {
+        return recentlyRejected.getAndSet(0);
+    }
+
+    public long handledCount() {
+        return handled.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{active=" + activeCount() + ", queued=" + queueDepth() + ", handled=" + handledCount() +
+                ", rejected=" + rejectedCount() + "}";
+    }
+}
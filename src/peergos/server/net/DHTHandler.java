@@ -17,6 +17,7 @@ import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -27,11 +28,32 @@ public class DHTHandler implements HttpHandler {
     private final ContentAddressedStorage dht;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
+    // verifies the signatures of multi block puts, so they don't compete for the common pool
+    private final ForkJoinPool verifier;
 
-    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, String apiPrefix) {
+    /**
+     *
+     * @param dht
+     * @param keyFilter
+     * @param apiPrefix
+     * @param verifierThreads The maximum number of threads verifying block signatures, across all requests
+     */
+    public DHTHandler(ContentAddressedStorage dht,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      String apiPrefix,
+                      int verifierThreads) {
         this.dht = dht;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
+        this.verifier = new ForkJoinPool(verifierThreads);
+    }
+
+    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, String apiPrefix) {
+        this(dht, keyFilter, apiPrefix, Runtime.getRuntime().availableProcessors());
+    }
+
+    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, int verifierThreads) {
+        this(dht, keyFilter, "/api/v0/", verifierThreads);
     }
 
     public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter) {
@@ -80,11 +102,12 @@ public class DHTHandler implements HttpHandler {
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
+                    int sizeHint = parseSizeHint(httpExchange.getRequestHeaders().getFirst("Content-Length"));
+                    List<MultipartReceiver.Part> parts = MultipartReceiver.extractParts(httpExchange.getRequestBody(), boundary, sizeHint);
                     boolean isRaw = last.apply("format").equals("raw");
 
                     // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
+                    if (! keyFilter.apply(writerHash, parts.stream().mapToInt(x -> x.length).sum()))
                         throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
 
                     // Get the actual key, unless this is the initial write of the signing key during sign up
@@ -99,27 +122,38 @@ public class DHTHandler implements HttpHandler {
                     };
                     Supplier<PublicSigningKey> inBandOrDht = () -> {
                         try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
+                            MultipartReceiver.Part first = parts.get(0);
+                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(first.toByteArray());
                             PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(ArrayOps.concat(signatures.get(0), data.get(0)));
+                            if (calculatedHash.equals(writerHash) &&
+                                    candidateKey.isValidSignature(signatures.get(0), first.buffer, first.offset, first.length))
                                 return candidateKey;
-                            }
                         } catch (Throwable e) {
                             // If signature is not valid then the signing key has already been written, retrieve it
                             // This happens for the boxing key during sign up for example
                         }
                         return fromDht.get();
                     };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
+                    PublicSigningKey writer = parts.size() > 1 ? fromDht.get() : inBandOrDht.get();
 
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] unsigned = writer.unsignMessage(ArrayOps.concat(signature, data.get(i)));
-                        if (!Arrays.equals(unsigned, data.get(i)))
-                            throw new IllegalStateException("Invalid signature for block!");
-                    }
+                    // verify signatures in place before copying out each block, in parallel on the verifier if
+                    // there is more than one
+                    if (signatures.size() != parts.size())
+                        throw new IllegalStateException("Incorrect number of signatures for blocks!");
+                    IntPredicate isValid = i -> {
+                        MultipartReceiver.Part part = parts.get(i);
+                        return writer.isValidSignature(signatures.get(i), part.buffer, part.offset, part.length);
+                    };
+                    boolean allValid = parts.size() == 1 ?
+                            isValid.test(0) :
+                            verifier.submit(() -> IntStream.range(0, parts.size())
+                                    .parallel()
+                                    .allMatch(isValid)).get();
+                    if (! allValid)
+                        throw new IllegalStateException("Invalid signature for block!");
+                    List<byte[]> data = parts.stream()
+                            .map(MultipartReceiver.Part::toByteArray)
+                            .collect(Collectors.toList());
 
                     List<Multihash> hashes = (isRaw ?
                             dht.putRaw(ownerHash, writerHash, signatures, data, tid) :
@@ -144,6 +178,17 @@ public class DHTHandler implements HttpHandler {
                             .exceptionally(Futures::logError).get();
                     break;
                 }
+                case BLOCK_GET_MANY:{
+                    if (args.size() > MAX_BLOCKS_PER_GET)
+                        throw new IllegalStateException("Too many blocks requested: " + args.size());
+                    List<Multihash> hashes = args.stream()
+                            .map(Cid::decode)
+                            .collect(Collectors.toList());
+                    dht.getAllRaw(hashes)
+                            .thenAccept(blocks -> replyFramedBlocks(httpExchange, blocks))
+                            .exceptionally(Futures::logError).get();
+                    break;
+                }
                 case PIN_ADD: {
                     PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
                     Multihash hash = Cid.decode(args.get(0));
@@ -259,6 +304,37 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    /**
+     *
+     * @param contentLength the value of the Content-Length header, which may be absent or invalid
+     * @return the content length, or 0 if it isn't a valid int
+     */
+    private static int parseSizeHint(String contentLength) {
+        if (contentLength == null)
+            return 0;
+        try {
+            return Math.max(0, Integer.parseInt(contentLength.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Stream each block prefixed by its length, or a length of -1 if it is absent
+     *
+     */
+    private static void replyFramedBlocks(HttpExchange exchange, List<Optional<byte[]>> blocks) {
+        try {
+            exchange.sendResponseHeaders(200, 0);
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+            writeFramedBlocks(blocks, dout);
+            dout.flush();
+            dout.close();
+        } catch (IOException e)
+        {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
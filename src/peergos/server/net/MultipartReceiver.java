@@ -2,83 +2,134 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.*;
 
+/** Parses multipart/form-data request bodies.
+ *
+ * The body is read into a single buffer with large reads, and the boundaries are located with a Boyer-Moore-Horspool
+ * search, so each part can be handed out as a slice of that buffer without copying it.
+ */
 public class MultipartReceiver {
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int MAX_FIRST_LINE_SIZE = 1024;
+    // the size hint comes from the client, so don't trust it for more than this
+    private static final int MAX_INITIAL_BUFFER_SIZE = 1024 * 1024;
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
-        try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+    /** A part of a multipart body, as a view into the buffer holding the whole body
+     *
+     */
+    public static final class Part {
+        public final byte[] buffer;
+        public final int offset, length;
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+        public Part(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
 
-            while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        public byte[] toByteArray() {
+            return Arrays.copyOfRange(buffer, offset, offset + length);
         }
     }
 
+    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+        return extractParts(rawIn, boundary, READ_SIZE).stream()
+                .map(Part::toByteArray)
+                .collect(Collectors.toList());
+    }
+
     /**
      *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
+     * @param in the request body
+     * @param boundary
+     * @param sizeHint the expected size of the body, e.g. from the Content-Length header, only used as the initial
+     *                 capacity of the buffer
+     * @return the contents of each part in order, as slices of the body
      */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
+    public static List<Part> extractParts(InputStream in, String boundary, int sizeHint) {
+        try {
+            byte[] body = new byte[Math.min(Math.max(sizeHint, 1), MAX_INITIAL_BUFFER_SIZE)];
+            int size = 0, r;
+            while ((r = in.read(body, size, body.length - size)) >= 0) {
+                size += r;
+                if (size == body.length)
+                    body = Arrays.copyOf(body, body.length + Math.max(body.length, READ_SIZE));
             }
+            return parse(body, size, boundary);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Part> parse(byte[] body, int size, String boundary) {
+        Searcher lineEnd = new Searcher(NEW_LINE);
+        Searcher headersEnd = new Searcher(DOUBLE_NEW_LINE);
+        Searcher delimiter = new Searcher(("\r\n--" + boundary).getBytes());
+
+        int firstLineEnd = lineEnd.indexOf(body, 0, Math.min(size, MAX_FIRST_LINE_SIZE));
+        if (firstLineEnd < 2)
+            throw new IllegalStateException("Missing initial boundary!");
+        String first = new String(body, 0, firstLineEnd);
+        if (!first.substring(2).equals(boundary))
+            throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
+
+        List<Part> parts = new ArrayList<>();
+        int headerEnd = headersEnd.indexOf(body, firstLineEnd + NEW_LINE.length, size);
+        if (headerEnd < 0)
+            return parts;
+        int start = headerEnd + DOUBLE_NEW_LINE.length;
+        while (true) {
+            int end = delimiter.indexOf(body, start, size);
+            if (end < 0) {
+                parts.add(new Part(body, start, size - start));
+                return parts;
+            }
+            parts.add(new Part(body, start, end - start));
+            int afterDelimiter = end + delimiter.pattern.length;
+            // the final delimiter is followed by "--"
+            if (afterDelimiter + 2 <= size && body[afterDelimiter] == '-' && body[afterDelimiter + 1] == '-')
+                return parts;
+            headerEnd = headersEnd.indexOf(body, afterDelimiter, size);
+            if (headerEnd < 0)
+                return parts;
+            start = headerEnd + DOUBLE_NEW_LINE.length;
         }
-        return prior.toByteArray();
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
+    /** A Boyer-Moore-Horspool search for a fixed pattern
+     *
+     */
+    private static final class Searcher {
+        private final byte[] pattern;
+        private final int[] shifts = new int[256];
+
+        Searcher(byte[] pattern) {
+            this.pattern = pattern;
+            Arrays.fill(shifts, pattern.length);
+            for (int i=0; i < pattern.length - 1; i++)
+                shifts[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
 
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+        /**
+         *
+         * @return the index of the first occurrence of the pattern in data[from, to), or -1 if there is none
+         */
+        int indexOf(byte[] data, int from, int to) {
+            int last = pattern.length - 1;
+            int i = from;
+            while (i + last < to) {
+                int j = last;
+                while (data[i + j] == pattern[j]) {
+                    if (j == 0)
+                        return i;
+                    j--;
+                }
+                i += shifts[data[i + last] & 0xff];
+            }
+            return -1;
         }
-        return new String(bout.toByteArray());
     }
 }
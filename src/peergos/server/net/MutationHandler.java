@@ -17,11 +17,19 @@ import java.util.logging.*;
  */
 public class MutationHandler implements HttpHandler {
     private static final Logger LOG = Logging.LOG();
+    // a cursor and the maximum number of writer hashes, with room to spare
+    private static final int MAX_AWAIT_REQUEST_SIZE = 64 + PointerUpdates.MAX_WATCHED_WRITERS * 64;
 
     private final MutablePointers mutable;
+    private final Optional<PointerUpdates> updates;
 
-    public MutationHandler(MutablePointers mutable) {
+    public MutationHandler(MutablePointers mutable, Optional<PointerUpdates> updates) {
         this.mutable = mutable;
+        this.updates = updates;
+    }
+
+    public MutationHandler(MutablePointers mutable) {
+        this(mutable, Optional.empty());
     }
 
     public void handle(HttpExchange exchange) throws IOException
@@ -39,6 +47,11 @@ public class MutationHandler implements HttpHandler {
         String method = subComponents[0];
 //            LOG.info("core method "+ method +" from path "+ path);
 
+        if (method.equals("awaitChanges")) {
+            awaitChanges(exchange, din, t1);
+            return;
+        }
+
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
         PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
@@ -71,4 +84,48 @@ public class MutationHandler implements HttpHandler {
             LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
         }
     }
+
+    /** A long poll for changes to any of the given pointers. The response is sent asynchronously so a waiting client
+     * doesn't hold a handler thread.
+     */
+    private void awaitChanges(HttpExchange exchange, DataInputStream din, long t1) throws IOException {
+        try {
+            if (! updates.isPresent())
+                throw new IllegalStateException("Pointer updates are not supported by this server");
+            byte[] request = Serialize.readFully(din, MAX_AWAIT_REQUEST_SIZE);
+            updates.get().awaitChanges(PointerUpdates.parseCursor(request), PointerUpdates.parseWriters(request))
+                    .thenAccept(changes -> {
+                        try {
+                            byte[] b = changes.serialize();
+                            exchange.sendResponseHeaders(200, b.length);
+                            exchange.getResponseBody().write(b);
+                        } catch (IOException e) {
+                            LOG.log(Level.WARNING, e.getMessage(), e);
+                        } finally {
+                            exchange.close();
+                        }
+                    }).exceptionally(t -> {
+                        replyError(exchange, t);
+                        return null;
+                    });
+        } catch (Exception e) {
+            replyError(exchange, e);
+        } finally {
+            long t2 = System.currentTimeMillis();
+            LOG.info("Mutable pointers server started awaitChanges request in: " + (t2 - t1) + " mS");
+        }
+    }
+
+    private static void replyError(HttpExchange exchange, Throwable t) {
+        LOG.log(Level.WARNING, t.getMessage(), t);
+        try {
+            exchange.sendResponseHeaders(400, 0);
+            OutputStream body = exchange.getResponseBody();
+            body.write(String.valueOf(t.getMessage()).getBytes());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            exchange.close();
+        }
+    }
 }
@@ -16,6 +16,7 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
 
@@ -29,6 +30,9 @@ public class PublicFileHandler implements HttpHandler {
     private final ContentAddressedStorage dht;
     private final NetworkAccess network;
     private static final String PATH_PREFIX = "/public/";
+    private static final long CAPABILITY_CACHE_TTL = 10_000;
+    private static final int MAX_CACHED_CAPABILITIES = 10_000;
+    private final Map<String, PublishedCapability> capabilityCache = new ConcurrentHashMap<>();
 
     public PublicFileHandler(CoreNode core, MutablePointers mutable, ContentAddressedStorage dht) {
         this.core = core;
@@ -49,39 +53,14 @@ public class PublicFileHandler implements HttpHandler {
 
             String ownerName = path.substring(0, path.indexOf("/"));
 
-            Optional<PublicKeyHash> ownerOpt = core.getPublicKeyHash(ownerName).get();
-            if (! ownerOpt.isPresent())
-                throw new IllegalStateException("Owner doesn't exist for path " + path);
-            PublicKeyHash owner = ownerOpt.get();
-            CommittedWriterData userData = WriterData.getWriterData(owner, owner, mutable, dht).get();
-            Optional<Multihash> publicData = userData.props.publicData;
-            if (! publicData.isPresent())
-                throw new IllegalStateException("User " + ownerName + " has not made any files public.");
-
-            Function<ByteArrayWrapper, byte[]> hasher = x -> Hash.sha256(x.data);
-            ChampWrapper champ = ChampWrapper.create(publicData.get(), hasher, dht).get();
-
-            MaybeMultihash capHash = champ.get(("/" + path).getBytes()).get();
-            // The user might have published an ancestor directory of the requested path, so drop path elements until we
-            // either find a capability, or have none left
-            String subPath = "";
-            while (! capHash.isPresent() && path.length() > 0) {
-                String lastElement = path.substring(path.lastIndexOf("/"));
-                subPath = lastElement + subPath;
-                path = path.substring(0, path.length() - lastElement.length());
-                capHash = champ.get(("/" + path).getBytes()).get();
-            }
-            if (! capHash.isPresent())
-                throw new IllegalStateException("User " + ownerName + " has not published a file at " + originalPath);
-
-            Optional<CborObject> capCbor = dht.get(capHash.get()).get();
-            AbsoluteCapability cap = AbsoluteCapability.fromCbor(capCbor.get());
-
-            TrieNodeImpl trieRoot = TrieNodeImpl.empty().put(path, new EntryPoint(cap, ownerName));
+            PublishedCapability published = getPublishedCapability(ownerName, originalPath);
+            TrieNodeImpl trieRoot = TrieNodeImpl.empty().put(published.path, new EntryPoint(published.cap, ownerName));
             Optional<FileWrapper> fileOpt = trieRoot.getByPath(originalPath, network).get();
 
-            if (! fileOpt.isPresent())
-                throw new IllegalStateException("Couldn't retrieve file: " + path);
+            if (! fileOpt.isPresent()) {
+                capabilityCache.remove(originalPath);
+                throw new IllegalStateException("Couldn't retrieve file: " + originalPath);
+            }
 
             FileWrapper file = fileOpt.get();
 
@@ -102,16 +81,7 @@ public class PublicFileHandler implements HttpHandler {
                 out.write(body);
                 out.close();
             } else {
-                httpExchange.sendResponseHeaders(200, file.getSize());
-                AsyncReader reader = file.getInputStream(network, null, x -> {}).get();
-                byte[] buf = new byte[(int) Math.min(file.getSize(), 5 * 1024 * 1024)];
-                long read = 0;
-                OutputStream out = httpExchange.getResponseBody();
-                while (read < file.getSize()) {
-                    int r = reader.readIntoArray(buf, 0, buf.length).get();
-                    out.write(buf, 0, r);
-                }
-                out.close();
+                serveFile(httpExchange, file);
             }
         } catch (Exception e) {
             LOG.severe("Error handling " +httpExchange.getRequestURI());
@@ -125,6 +95,130 @@ public class PublicFileHandler implements HttpHandler {
         }
     }
 
+    /** Find the published capability for a path, or for its closest published ancestor, using a cached result if
+     * it is recent enough
+     */
+    private PublishedCapability getPublishedCapability(String ownerName, String originalPath) throws Exception {
+        PublishedCapability cached = capabilityCache.get(originalPath);
+        if (cached != null && System.currentTimeMillis() - cached.time < CAPABILITY_CACHE_TTL)
+            return cached;
+
+        Optional<PublicKeyHash> ownerOpt = core.getPublicKeyHash(ownerName).get();
+        if (! ownerOpt.isPresent())
+            throw new IllegalStateException("Owner doesn't exist for path " + originalPath);
+        PublicKeyHash owner = ownerOpt.get();
+        CommittedWriterData userData = WriterData.getWriterData(owner, owner, mutable, dht).get();
+        Optional<Multihash> publicData = userData.props.publicData;
+        if (! publicData.isPresent())
+            throw new IllegalStateException("User " + ownerName + " has not made any files public.");
+
+        Function<ByteArrayWrapper, byte[]> hasher = x -> Hash.sha256(x.data);
+        ChampWrapper champ = ChampWrapper.create(publicData.get(), hasher, dht).get();
+
+        String path = originalPath;
+        MaybeMultihash capHash = champ.get(("/" + path).getBytes()).get();
+        // The user might have published an ancestor directory of the requested path, so drop path elements until we
+        // either find a capability, or have none left
+        while (! capHash.isPresent() && path.length() > 0) {
+            String lastElement = path.substring(path.lastIndexOf("/"));
+            path = path.substring(0, path.length() - lastElement.length());
+            capHash = champ.get(("/" + path).getBytes()).get();
+        }
+        if (! capHash.isPresent())
+            throw new IllegalStateException("User " + ownerName + " has not published a file at " + originalPath);
+
+        Optional<CborObject> capCbor = dht.get(capHash.get()).get();
+        AbsoluteCapability cap = AbsoluteCapability.fromCbor(capCbor.get());
+        PublishedCapability result = new PublishedCapability(path, cap, System.currentTimeMillis());
+        if (capabilityCache.size() >= MAX_CACHED_CAPABILITIES)
+            capabilityCache.clear();
+        capabilityCache.put(originalPath, result);
+        return result;
+    }
+
+    private void serveFile(HttpExchange httpExchange, FileWrapper file) throws Exception {
+        long size = file.getSize();
+        Headers requestHeaders = httpExchange.getRequestHeaders();
+        Headers responseHeaders = httpExchange.getResponseHeaders();
+        MaybeMultihash version = file.getPointer().fileAccess.committedHash();
+        Optional<String> etag = version.isPresent() ?
+                Optional.of("\"" + version.get().toString() + "\"") :
+                Optional.empty();
+        responseHeaders.set("Accept-Ranges", "bytes");
+        etag.ifPresent(tag -> responseHeaders.set("ETag", tag));
+        String mimeType = file.getFileProperties().mimeType;
+        if (mimeType.length() > 0)
+            responseHeaders.set("Content-Type", mimeType);
+        boolean isHead = httpExchange.getRequestMethod().equals("HEAD");
+
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (etag.isPresent() && ifNoneMatch != null && matchesEtag(ifNoneMatch, etag.get())) {
+            httpExchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        Optional<ByteRange> range = ByteRange.parse(requestHeaders.getFirst("Range"), size);
+        // A range is only valid against the version of the file the client already has
+        String ifRange = requestHeaders.getFirst("If-Range");
+        if (ifRange != null && ! (etag.isPresent() && ifRange.trim().equals(etag.get())))
+            range = Optional.empty();
+
+        if (range.isPresent() && ! range.get().isSatisfiable()) {
+            responseHeaders.set("Content-Range", "bytes */" + size);
+            httpExchange.sendResponseHeaders(416, -1);
+            return;
+        }
+
+        long start = range.map(r -> r.start).orElse(0L);
+        long length = range.map(ByteRange::length).orElse(size);
+        int status = range.isPresent() ? 206 : 200;
+        range.ifPresent(r -> responseHeaders.set("Content-Range", "bytes " + r.start + "-" + r.end + "/" + size));
+        if (isHead) {
+            responseHeaders.set("Content-Length", Long.toString(length));
+            httpExchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        httpExchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        if (length == 0)
+            return;
+
+        AsyncReader reader = file.getInputStream(network, null, x -> {}).get();
+        if (start > 0)
+            reader = reader.seek((int) (start >>> 32), (int) start).get();
+        OutputStream out = httpExchange.getResponseBody();
+        writeStream(reader, length, out);
+        out.close();
+    }
+
+    /** Write length bytes from the reader to out, retrieving the next buffer while the current one is written
+     */
+    private static void writeStream(AsyncReader reader, long length, OutputStream out) throws Exception {
+        int bufferSize = (int) Math.min(length, Chunk.MAX_SIZE);
+        byte[] current = new byte[bufferSize];
+        byte[] next = new byte[bufferSize];
+        long remaining = length;
+        CompletableFuture<Integer> pending = reader.readIntoArray(current, 0, (int) Math.min(remaining, bufferSize));
+        while (remaining > 0) {
+            int read = pending.get();
+            remaining -= read;
+            if (remaining > 0)
+                pending = reader.readIntoArray(next, 0, (int) Math.min(remaining, bufferSize));
+            out.write(current, 0, read);
+            byte[] tmp = current;
+            current = next;
+            next = tmp;
+        }
+    }
+
+    private static boolean matchesEtag(String header, String etag) {
+        for (String tag : header.split(",")) {
+            String trimmed = tag.trim();
+            if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+
     private static void replyError(HttpExchange exchange, Throwable t) {
         try {
             exchange.getResponseHeaders().set("Trailer", t.getMessage());
@@ -134,4 +228,75 @@ public class PublicFileHandler implements HttpHandler {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
+
+    private static class PublishedCapability {
+        public final String path;
+        public final AbsoluteCapability cap;
+        public final long time;
+
+        public PublishedCapability(String path, AbsoluteCapability cap, long time) {
+            this.path = path;
+            this.cap = cap;
+            this.time = time;
+        }
+    }
+
+    /** A single byte range from a Range header, with an inclusive end
+     *
+     */
+    public static class ByteRange {
+        public final long start, end;
+
+        public ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean isSatisfiable() {
+            return start <= end;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        /**
+         *
+         * @param header
+         * @param size
+         * @return The requested range, or empty if there is no range or it is malformed or has multiple ranges, in
+         * which case the whole file should be returned
+         */
+        public static Optional<ByteRange> parse(String header, long size) {
+            if (header == null || ! header.startsWith("bytes="))
+                return Optional.empty();
+            String spec = header.substring("bytes=".length()).trim();
+            if (spec.contains(","))
+                return Optional.empty();
+            int dash = spec.indexOf("-");
+            if (dash < 0)
+                return Optional.empty();
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    if (last.isEmpty())
+                        return Optional.empty();
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength == 0)
+                        return Optional.of(new ByteRange(size, size - 1));
+                    return Optional.of(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (last.length() > 0 && Long.parseLong(last) < start)
+                    return Optional.empty();
+                if (start >= size)
+                    return Optional.of(new ByteRange(size, size - 1));
+                return Optional.of(new ByteRange(start, end));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+    }
 }
@@ -0,0 +1,241 @@
+package peergos.server.storage;
+
+import peergos.server.corenode.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** An index of the size and links of blocks, and the total size of the merkle tree under each block.
+ *
+ * Blocks are immutable, so entries never need to be invalidated, only removed when their block is deleted.
+ */
+public interface BlockSizeIndex {
+
+    class IndexedBlock {
+        public static final long UNKNOWN = -1;
+
+        public final int size;
+        public final List<Multihash> links;
+        /** The size of this block and every block under it, or UNKNOWN if not calculated yet */
+        public final long totalSize;
+
+        public IndexedBlock(int size, List<Multihash> links, long totalSize) {
+            this.size = size;
+            this.links = links;
+            this.totalSize = totalSize;
+        }
+
+        public boolean hasTotalSize() {
+            return totalSize != UNKNOWN;
+        }
+
+        public IndexedBlock withTotalSize(long totalSize) {
+            return new IndexedBlock(size, links, totalSize);
+        }
+    }
+
+    Optional<IndexedBlock> get(Multihash block);
+
+    /** Store all the given entries, or none of them if this throws
+     *
+     * @param blocks
+     */
+    void put(Map<Multihash, IndexedBlock> blocks);
+
+    void remove(Multihash block);
+
+    class RAM implements BlockSizeIndex {
+        private final Map<Multihash, IndexedBlock> index = new ConcurrentHashMap<>();
+
+        @Override
+        public Optional<IndexedBlock> get(Multihash block) {
+            return Optional.ofNullable(index.get(block));
+        }
+
+        @Override
+        public void put(Map<Multihash, IndexedBlock> blocks) {
+            index.putAll(blocks);
+        }
+
+        @Override
+        public void remove(Multihash block) {
+            index.remove(block);
+        }
+    }
+
+    /** This queues writes to another index and applies them in batches on a background thread, so indexing a block
+     * never waits on a database commit. Queued entries are visible to reads straight away.
+     */
+    class Buffered implements BlockSizeIndex {
+        private static final Logger LOG = Logging.LOG();
+
+        private final BlockSizeIndex target;
+        private final int maxPending;
+        private final Map<Multihash, IndexedBlock> pending = new ConcurrentHashMap<>();
+        // stops a remove from being undone by a concurrent flush of an earlier put
+        private final Object flushLock = new Object();
+        private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+        private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Block size index");
+            t.setDaemon(true);
+            return t;
+        });
+
+        /**
+         *
+         * @param target
+         * @param flushPeriodMillis How often to write queued entries to the target
+         * @param maxPending The number of queued entries which triggers an early write
+         */
+        public Buffered(BlockSizeIndex target, long flushPeriodMillis, int maxPending) {
+            this.target = target;
+            this.maxPending = maxPending;
+            flusher.scheduleWithFixedDelay(this::flush, flushPeriodMillis, flushPeriodMillis, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+        }
+
+        @Override
+        public Optional<IndexedBlock> get(Multihash block) {
+            IndexedBlock queued = pending.get(block);
+            if (queued != null)
+                return Optional.of(queued);
+            return target.get(block);
+        }
+
+        @Override
+        public void put(Map<Multihash, IndexedBlock> blocks) {
+            pending.putAll(blocks);
+            if (pending.size() >= maxPending && flushQueued.compareAndSet(false, true))
+                flusher.execute(() -> {
+                    flushQueued.set(false);
+                    flush();
+                });
+        }
+
+        @Override
+        public void remove(Multihash block) {
+            synchronized (flushLock) {
+                pending.remove(block);
+                target.remove(block);
+            }
+        }
+
+        public int pendingCount() {
+            return pending.size();
+        }
+
+        public void flush() {
+            synchronized (flushLock) {
+                if (pending.isEmpty())
+                    return;
+                Map<Multihash, IndexedBlock> batch = new HashMap<>(pending);
+                try {
+                    target.put(batch);
+                } catch (RuntimeException e) {
+                    // leave the batch queued to be retried by the next flush
+                    LOG.log(Level.WARNING, "Couldn't write " + batch.size() + " block size index entries: " + e.getMessage(), e);
+                    return;
+                }
+                // only after the target has them, so reads always find an entry, and keep any newer values queued
+                for (Map.Entry<Multihash, IndexedBlock> e : batch.entrySet())
+                    pending.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    class Sqlite implements BlockSizeIndex {
+        private static final Logger LOG = Logging.LOG();
+
+        private static final String CREATE_TABLE =
+                "CREATE TABLE IF NOT EXISTS blocksizes (hash blob primary key not null, size integer not null, " +
+                        "links blob not null, total integer not null);";
+        private static final String SELECT = "SELECT size, links, total FROM blocksizes WHERE hash = ?;";
+        private static final String UPSERT = "INSERT OR REPLACE INTO blocksizes (hash, size, links, total) VALUES(?, ?, ?, ?);";
+        private static final String DELETE = "DELETE FROM blocksizes WHERE hash = ?;";
+
+        private final Connection conn;
+
+        public Sqlite(Connection conn) throws SQLException {
+            this.conn = conn;
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate(CREATE_TABLE);
+            }
+        }
+
+        @Override
+        public synchronized Optional<IndexedBlock> get(Multihash block) {
+            try (PreparedStatement stmt = conn.prepareStatement(SELECT)) {
+                stmt.setBytes(1, block.toBytes());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (! rs.next())
+                        return Optional.empty();
+                    return Optional.of(new IndexedBlock(rs.getInt("size"), parseLinks(rs.getBytes("links")), rs.getLong("total")));
+                }
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+                return Optional.empty();
+            }
+        }
+
+        @Override
+        public synchronized void put(Map<Multihash, IndexedBlock> blocks) {
+            if (blocks.isEmpty())
+                return;
+            try {
+                conn.setAutoCommit(false);
+                try (PreparedStatement stmt = conn.prepareStatement(UPSERT)) {
+                    for (Map.Entry<Multihash, IndexedBlock> e : blocks.entrySet()) {
+                        stmt.setBytes(1, e.getKey().toBytes());
+                        stmt.setInt(2, e.getValue().size);
+                        stmt.setBytes(3, serializeLinks(e.getValue().links));
+                        stmt.setLong(4, e.getValue().totalSize);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Couldn't write block size index: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public synchronized void remove(Multihash block) {
+            try (PreparedStatement stmt = conn.prepareStatement(DELETE)) {
+                stmt.setBytes(1, block.toBytes());
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+
+        private static byte[] serializeLinks(List<Multihash> links) {
+            return new CborObject.CborList(links.stream()
+                    .map(CborObject.CborMerkleLink::new)
+                    .collect(Collectors.toList()))
+                    .serialize();
+        }
+
+        private static List<Multihash> parseLinks(byte[] raw) {
+            return ((CborObject.CborList) CborObject.fromByteArray(raw)).value.stream()
+                    .map(link -> ((CborObject.CborMerkleLink) link).target)
+                    .collect(Collectors.toList());
+        }
+
+        public static Sqlite build(String dbPath) throws SQLException {
+            return new Sqlite(JDBCCoreNode.buildSqlLite(dbPath));
+        }
+    }
+}
@@ -26,8 +26,15 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
+    private static final int LOCK_STRIPES = 256;
     private final Path root;
     private final Random r = new Random(1);
+    // puts and garbage collection deletes of the same block are serialised on these
+    private final Object[] blockLocks = new Object[LOCK_STRIPES];
+    // blocks written in each open transaction, which must not be garbage collected
+    private final Map<String, Set<Multihash>> openTransactions = new ConcurrentHashMap<>();
+    // blocks from transactions which closed during the current garbage collection, if there is one
+    private volatile Set<Multihash> closedDuringGc = null;
 
     public FileContentAddressedStorage(Path root) {
         this.root = root;
@@ -39,6 +46,12 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
         if (!rootDir.isDirectory())
             throw new IllegalStateException("File store path must be a directory! " + root);
+        for (int i=0; i < LOCK_STRIPES; i++)
+            blockLocks[i] = new Object();
+    }
+
+    private Object lockFor(Multihash h) {
+        return blockLocks[(h.hashCode() & 0x7fffffff) % LOCK_STRIPES];
     }
 
     @Override
@@ -48,11 +61,17 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
-        return CompletableFuture.completedFuture(new TransactionId(ArrayOps.bytesToHex(ArrayOps.random(8))));
+        TransactionId tid = new TransactionId(ArrayOps.bytesToHex(ArrayOps.random(8)));
+        openTransactions.put(tid.id, ConcurrentHashMap.newKeySet());
+        return CompletableFuture.completedFuture(tid);
     }
 
     @Override
     public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        Set<Multihash> written = openTransactions.remove(tid.id);
+        Set<Multihash> gcProtected = closedDuringGc;
+        if (written != null && gcProtected != null)
+            gcProtected.addAll(written);
         return CompletableFuture.completedFuture(true);
     }
 
@@ -62,7 +81,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                                                   List<byte[]> signatures,
                                                   List<byte[]> blocks,
                                                   TransactionId tid) {
-        return put(writer, signatures, blocks, false);
+        return put(signatures, blocks, false, tid);
     }
 
     @Override
@@ -71,13 +90,17 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                                                      List<byte[]> signatures,
                                                      List<byte[]> blocks,
                                                      TransactionId tid) {
-        return put(writer, signatures, blocks, true);
+        return put(signatures, blocks, true, tid);
     }
 
-    private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks, boolean isRaw) {
-        return CompletableFuture.completedFuture(blocks.stream()
+    private CompletableFuture<List<Multihash>> put(List<byte[]> signatures, List<byte[]> blocks, boolean isRaw, TransactionId tid) {
+        List<Multihash> hashes = blocks.stream()
                 .map(b -> put(b, isRaw))
-                .collect(Collectors.toList()));
+                .collect(Collectors.toList());
+        Set<Multihash> transaction = openTransactions.get(tid.id);
+        if (transaction != null)
+            transaction.addAll(hashes);
+        return CompletableFuture.completedFuture(hashes);
     }
 
     @Override
@@ -99,8 +122,8 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root).thenApply(opt -> opt
-                .map(cbor -> cbor.links())
+        return getRaw(root).thenApply(opt -> opt
+                .map(CborReader::links)
                 .orElse(Collections.emptyList())
         );
     }
@@ -133,14 +156,25 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        return CompletableFuture.completedFuture(readBlock(hash));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return CompletableFuture.completedFuture(hashes.stream()
+                .map(this::readBlock)
+                .collect(Collectors.toList()));
+    }
+
+    private Optional<byte[]> readBlock(Multihash hash) {
         try {
             Path path = getFilePath(hash);
             File file = root.resolve(path).toFile();
             if (! file.exists()){
-                return CompletableFuture.completedFuture(Optional.empty());
+                return Optional.empty();
             }
             try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                return CompletableFuture.completedFuture(Optional.of(Serialize.readFully(din)));
+                return Optional.of(Serialize.readFully(din));
             }
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -166,31 +200,8 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                         throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
                 }
             }
-            File targetFile = target.toFile();
-            Path tmp = Files.createTempFile(root, "tmp", "");
-            File tmpFile = tmp.toFile();
-            Path lockPath = parent.resolve("lock." + filePath.toFile().getName());
-            try (RandomAccessFile rw = new RandomAccessFile(lockPath.toFile(), "rw");
-                 FileLock lock = rw.getChannel().lock();
-                 DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
-
-                dout.write(data, 0, data.length);
-                boolean setWritableSuccess = tmpFile.setWritable(false, false);
-                boolean setReadableSuccess = tmpFile.setReadable(true, false);
-                boolean renameSuccess = tmpFile.renameTo(targetFile);
-                boolean deleteSuccess = lockPath.toFile().delete();
-                boolean lockExists = lockPath.toFile().exists();
-                if (!setWritableSuccess)
-                    throw new IllegalStateException("Error setting " + tmpFile.getName() + " to writable");
-                if (!setReadableSuccess)
-                    throw new IllegalStateException("Error setting " + tmpFile.getName() + " to readable");
-                if (!renameSuccess)
-                    throw new IllegalStateException("Error renaming " + tmpFile.getName() + " to " + targetFile.getName());
-                if (!deleteSuccess && lockExists)
-                    throw new IllegalStateException("Error deleting " + lockPath.toFile().getName());
-            } finally {
-                if (tmpFile.exists())
-                    tmpFile.delete();
+            synchronized (lockFor(cid)) {
+                writeBlock(data, filePath, target, parent);
             }
             return cid;
         } catch (IOException e) {
@@ -198,6 +209,35 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
     }
 
+    private void writeBlock(byte[] data, Path filePath, Path target, Path parent) throws IOException {
+        File targetFile = target.toFile();
+        Path tmp = Files.createTempFile(root, "tmp", "");
+        File tmpFile = tmp.toFile();
+        Path lockPath = parent.resolve("lock." + filePath.toFile().getName());
+        try (RandomAccessFile rw = new RandomAccessFile(lockPath.toFile(), "rw");
+             FileLock lock = rw.getChannel().lock();
+             DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+
+            dout.write(data, 0, data.length);
+            boolean setWritableSuccess = tmpFile.setWritable(false, false);
+            boolean setReadableSuccess = tmpFile.setReadable(true, false);
+            boolean renameSuccess = tmpFile.renameTo(targetFile);
+            boolean deleteSuccess = lockPath.toFile().delete();
+            boolean lockExists = lockPath.toFile().exists();
+            if (!setWritableSuccess)
+                throw new IllegalStateException("Error setting " + tmpFile.getName() + " to writable");
+            if (!setReadableSuccess)
+                throw new IllegalStateException("Error setting " + tmpFile.getName() + " to readable");
+            if (!renameSuccess)
+                throw new IllegalStateException("Error renaming " + tmpFile.getName() + " to " + targetFile.getName());
+            if (!deleteSuccess && lockExists)
+                throw new IllegalStateException("Error deleting " + lockPath.toFile().getName());
+        } finally {
+            if (tmpFile.exists())
+                tmpFile.delete();
+        }
+    }
+
     protected List<Multihash> getFiles() {
         List<Multihash> existing = new ArrayList<>();
         getFilesRecursive(root, existing::add);
@@ -237,6 +277,25 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         getFilesRecursive(root, processor);
     }
 
+    /** Apply a function to every block, walking the top level directories in parallel
+     *
+     * @param processor
+     * @param pool
+     */
+    public void applyToAll(Consumer<Multihash> processor, ForkJoinPool pool) {
+        File[] children = root.toFile().listFiles();
+        if (children == null)
+            throw new IllegalStateException("Couldn't retrieve children of directory: " + root);
+        try {
+            pool.submit(() -> Arrays.stream(children)
+                    .parallel()
+                    .forEach(child -> processChild(child.toPath(), processor)))
+                    .get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     private void getFilesRecursive(Path path, Consumer<Multihash> accumulator) {
         File pathFile = path.toFile();
         if (pathFile.isFile()) {
@@ -250,24 +309,70 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         if (filenames == null)
             throw new IllegalStateException("Couldn't retrieve children of directory: " + path);
         for (String filename : filenames) {
-            Path child = path.resolve(filename);
-            if (child.toFile().isDirectory()) {
-                getFilesRecursive(child, accumulator);
-            } else if (filename.startsWith("Q") || filename.startsWith("z")) { // tolerate non content addressed files in the same space
-                try {
-                    accumulator.accept(Cid.decode(child.toFile().getName()));
-                } catch (IllegalStateException e) {
-                    // ignore files who's name isn't a valid multihash
-                    LOG.info("Ignoring file "+ child +" since name is not a valid multihash");
-                }
+            processChild(path.resolve(filename), accumulator);
+        }
+    }
+
+    private void processChild(Path child, Consumer<Multihash> accumulator) {
+        String filename = child.getFileName().toString();
+        if (child.toFile().isDirectory()) {
+            getFilesRecursive(child, accumulator);
+        } else if (filename.startsWith("Q") || filename.startsWith("z")) { // tolerate non content addressed files in the same space
+            try {
+                accumulator.accept(Cid.decode(child.toFile().getName()));
+            } catch (IllegalStateException e) {
+                // ignore files who's name isn't a valid multihash
+                LOG.info("Ignoring file "+ child +" since name is not a valid multihash");
             }
         }
     }
 
+    /** Start tracking the blocks of transactions which close, until endGc is called, so blocks which were in a
+     * transaction at any point during a garbage collection are kept.
+     */
+    public void startGc() {
+        closedDuringGc = ConcurrentHashMap.newKeySet();
+    }
+
+    public void endGc() {
+        closedDuringGc = null;
+    }
+
+    private boolean isInTransaction(Multihash h) {
+        Set<Multihash> gcProtected = closedDuringGc;
+        if (gcProtected != null && gcProtected.contains(h))
+            return true;
+        for (Set<Multihash> transaction : openTransactions.values())
+            if (transaction.contains(h))
+                return true;
+        return false;
+    }
+
+    /** Delete a block unless it has been written since a given time, or is part of a transaction
+     *
+     * @param h
+     * @param writtenSinceMillis Blocks written at or after this time are kept
+     * @return The number of bytes freed, or -1 if the block was kept
+     */
+    public long deleteUnlessProtected(Multihash h, long writtenSinceMillis) {
+        synchronized (lockFor(h)) {
+            File file = root.resolve(getFilePath(h)).toFile();
+            if (! file.exists())
+                return -1;
+            if (file.lastModified() >= writtenSinceMillis || isInTransaction(h))
+                return -1;
+            long size = file.length();
+            if (! file.delete()) {
+                LOG.warning("Could not delete " + file);
+                return -1;
+            }
+            return size;
+        }
+    }
+
     public Set<Multihash> retainOnly(Set<Multihash> pins) {
-        List<Multihash> existing = getFiles();
         Set<Multihash> removed = new HashSet<>();
-        for (Multihash h : existing) {
+        applyToAll(h -> {
             if (! pins.contains(h)) {
                 removed.add(h);
                 File file = root.resolve(getFilePath(h)).toFile();
@@ -277,7 +382,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 if (legacy.exists() && ! legacy.delete())
                     LOG.warning("Could not delete " + legacy);
             }
-        }
+        });
         return removed;
     }
 
@@ -0,0 +1,264 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A mark and sweep garbage collector for a local block store, which can run concurrently with writes.
+ *
+ * Every block reachable from a mutable pointer stored on this server is marked in a bloom filter, walking the roots
+ * in parallel. Then every block in the store which isn't marked is deleted, unless it was written after the
+ * collection started, or was in a transaction at any point during it. False positives in the filter only mean that
+ * a few unreachable blocks survive until a later collection.
+ */
+public class GarbageCollector {
+    private static final Logger LOG = Logging.LOG();
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    // allow for file systems which only record modification times to the second
+    private static final long CLOCK_MARGIN_MILLIS = 2_000;
+
+    public static class Result {
+        public final long roots, markedBlocks, deletedBlocks, reclaimedBytes, durationMillis;
+
+        public Result(long roots, long markedBlocks, long deletedBlocks, long reclaimedBytes, long durationMillis) {
+            this.roots = roots;
+            this.markedBlocks = markedBlocks;
+            this.deletedBlocks = deletedBlocks;
+            this.reclaimedBytes = reclaimedBytes;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "GC marked " + markedBlocks + " blocks from " + roots + " roots, deleted " + deletedBlocks +
+                    " blocks, reclaiming " + reclaimedBytes + " bytes in " + durationMillis + " mS";
+        }
+    }
+
+    private final FileContentAddressedStorage store;
+    private final ContentAddressedStorage linkSource;
+    private final Supplier<CompletableFuture<Map<PublicKeyHash, byte[]>>> pointers;
+    private final Consumer<Multihash> onDelete;
+    private final ForkJoinPool pool;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     *
+     * @param store The store to collect garbage in
+     * @param linkSource Where to look up the links of blocks in the store, e.g. an index in front of it
+     * @param pointers Supplies every mutable pointer on this server
+     * @param onDelete Called with every deleted block
+     * @param parallelism The number of threads to mark and sweep with
+     */
+    public GarbageCollector(FileContentAddressedStorage store,
+                            ContentAddressedStorage linkSource,
+                            Supplier<CompletableFuture<Map<PublicKeyHash, byte[]>>> pointers,
+                            Consumer<Multihash> onDelete,
+                            int parallelism) {
+        this.store = store;
+        this.linkSource = linkSource;
+        this.pointers = pointers;
+        this.onDelete = onDelete;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /** Run a collection every period, starting after one period
+     *
+     * @param periodMillis
+     */
+    public void start(long periodMillis) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Garbage collector");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                collect().ifPresent(res -> LOG.info(res.toString()));
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Garbage collection failed: " + t.getMessage(), t);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @return The result, or empty if a collection was already in progress
+     */
+    public Optional<Result> collect() {
+        if (! running.compareAndSet(false, true))
+            return Optional.empty();
+        try {
+            return Optional.of(collectGarbage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Result collectGarbage() {
+        long t0 = System.currentTimeMillis();
+        store.startGc();
+        try {
+            // Anything written from here on is kept, so the roots must be read after this
+            long protectedSince = t0 - CLOCK_MARGIN_MILLIS;
+            AtomicLong blockCount = new AtomicLong(0);
+            store.applyToAll(h -> blockCount.incrementAndGet(), pool);
+
+            List<Multihash> roots = getRoots();
+            BloomFilter marked = new BloomFilter(Math.max(blockCount.get(), 1_000), FALSE_POSITIVE_RATE);
+            Set<Multihash> expanded = ConcurrentHashMap.newKeySet();
+            AtomicLong markedCount = new AtomicLong(0);
+            submit(() -> roots.parallelStream().forEach(root -> mark(root, marked, expanded, markedCount)));
+            long t1 = System.currentTimeMillis();
+            LOG.info("GC marked " + markedCount.get() + " blocks in " + (t1 - t0) + " mS");
+
+            AtomicLong deleted = new AtomicLong(0);
+            AtomicLong reclaimed = new AtomicLong(0);
+            store.applyToAll(h -> {
+                if (marked.mightContain(h))
+                    return;
+                long freed = store.deleteUnlessProtected(h, protectedSince);
+                if (freed < 0)
+                    return;
+                deleted.incrementAndGet();
+                reclaimed.addAndGet(freed);
+                onDelete.accept(h);
+            }, pool);
+            return new Result(roots.size(), markedCount.get(), deleted.get(), reclaimed.get(),
+                    System.currentTimeMillis() - t0);
+        } finally {
+            store.endGc();
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            pool.submit(task).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @return The writer keys and current roots of every mutable pointer
+     */
+    private List<Multihash> getRoots() {
+        try {
+            Map<PublicKeyHash, byte[]> all = pointers.get().get();
+            List<Multihash> roots = new ArrayList<>();
+            for (Map.Entry<PublicKeyHash, byte[]> e : all.entrySet()) {
+                PublicKeyHash writer = e.getKey();
+                roots.add(writer.multihash);
+                Optional<PublicSigningKey> signer = linkSource.getSigningKey(writer).get();
+                if (! signer.isPresent())
+                    throw new IllegalStateException("Missing signing key for writer " + writer);
+                HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(signer.get().unsignMessage(e.getValue())));
+                if (cas.updated.isPresent())
+                    roots.add(cas.updated.get());
+            }
+            return roots;
+        } catch (Exception e) {
+            // Without every root we can't safely delete anything
+            throw new RuntimeException("Couldn't retrieve GC roots: " + e.getMessage(), e);
+        }
+    }
+
+    private void mark(Multihash root, BloomFilter marked, Set<Multihash> expanded, AtomicLong markedCount) {
+        List<Multihash> level = Collections.singletonList(root);
+        while (! level.isEmpty()) {
+            for (Multihash h : level) {
+                marked.add(h);
+                markedCount.incrementAndGet();
+            }
+            // Raw blocks have no links, and a node which has already been expanded has had its subtree marked
+            List<Multihash> toExpand = level.stream()
+                    .filter(h -> ! (h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw))
+                    .filter(expanded::add)
+                    .collect(Collectors.toList());
+            if (toExpand.isEmpty())
+                return;
+            try {
+                level = linkSource.getAllLinksAndSize(toExpand).get().stream()
+                        .flatMap(p -> p.right.stream())
+                        .collect(Collectors.toList());
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /** A bloom filter of multihashes which can be added to concurrently
+     */
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long nBits;
+        private final int nHashes;
+
+        BloomFilter(long expectedEntries, double falsePositiveRate) {
+            long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.nBits = Math.max(64, m);
+            this.nHashes = Math.max(1, (int) Math.round((double) nBits / expectedEntries * Math.log(2)));
+            if (nBits / 64 >= Integer.MAX_VALUE)
+                throw new IllegalStateException("Bloom filter too large: " + nBits + " bits");
+            this.bits = new AtomicLongArray((int) ((nBits + 63) / 64));
+        }
+
+        private static long hash(byte[] in, long seed) {
+            long h = seed;
+            for (byte b : in) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        private long[] indices(Multihash h) {
+            byte[] digest = h.getHash();
+            long h1 = hash(digest, 0xcbf29ce484222325L);
+            long h2 = hash(digest, 0x84222325cbf29ce4L) | 1;
+            long[] res = new long[nHashes];
+            for (int i=0; i < nHashes; i++)
+                res[i] = Math.floorMod(h1 + i * h2, nBits);
+            return res;
+        }
+
+        void add(Multihash h) {
+            for (long index : indices(h)) {
+                int word = (int) (index >>> 6);
+                long mask = 1L << (index & 63);
+                long current;
+                do {
+                    current = bits.get(word);
+                    if ((current & mask) != 0)
+                        break;
+                } while (! bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        boolean mightContain(Multihash h) {
+            for (long index : indices(h)) {
+                if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
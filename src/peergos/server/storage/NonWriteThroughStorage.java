@@ -63,6 +63,26 @@ public class NonWriteThroughStorage implements ContentAddressedStorage {
         }
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        try {
+            List<Optional<byte[]>> modified = modifications.getAllRaw(hashes).get();
+            List<Multihash> unmodified = new ArrayList<>();
+            for (int i=0; i < hashes.size(); i++)
+                if (! modified.get(i).isPresent())
+                    unmodified.add(hashes.get(i));
+            if (unmodified.isEmpty())
+                return CompletableFuture.completedFuture(modified);
+            Iterator<Optional<byte[]>> fromSource = source.getAllRaw(unmodified).get().iterator();
+            List<Optional<byte[]>> res = new ArrayList<>(hashes.size());
+            for (Optional<byte[]> block : modified)
+                res.add(block.isPresent() ? block : fromSource.next());
+            return CompletableFuture.completedFuture(res);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
         try {
@@ -93,9 +113,9 @@ public class NonWriteThroughStorage implements ContentAddressedStorage {
     @Override
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         try {
-            Optional<CborObject> modified = modifications.get(root).get();
+            Optional<byte[]> modified = modifications.getRaw(root).get();
             if (modified.isPresent())
-                return CompletableFuture.completedFuture(modified.get().links());
+                return CompletableFuture.completedFuture(CborReader.links(modified.get()));
             return source.getLinks(root);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
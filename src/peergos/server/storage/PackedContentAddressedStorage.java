@@ -0,0 +1,502 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A local ContentAddressedStorage which appends blocks to large segment files, rather than using a file per block.
+ *
+ * Each record in a segment is: cid length (int), cid, data length (int), data, crc32 of data (int). The index from cid
+ * to record location is held in memory and is rebuilt by scanning the segments on startup, truncating any partially
+ * written record. Full segments are sealed and memory mapped for reads. Concurrent writers share fsyncs.
+ */
+public class PackedContentAddressedStorage implements ContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int RECORD_OVERHEAD = 3 * 4;
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    private final Path root;
+    private final long maxSegmentSize;
+    private final Map<Cid, BlockLocation> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // Reads and writes hold the read lock, compaction holds the write lock
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private Segment current; // guarded by this
+
+    public PackedContentAddressedStorage(Path root, long maxSegmentSize) {
+        if (maxSegmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Segments must be smaller than 2 GiB to be memory mapped");
+        this.root = root;
+        this.maxSegmentSize = maxSegmentSize;
+        File rootDir = root.toFile();
+        if (!rootDir.exists() && !rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (!rootDir.isDirectory())
+            throw new IllegalStateException("Block store path must be a directory! " + root);
+        try {
+            loadSegments();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public PackedContentAddressedStorage(Path root) {
+        this(root, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    private static final class BlockLocation {
+        public final int segment;
+        public final long offset;
+        public final int length;
+
+        public BlockLocation(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        public final int id;
+        public final Path path;
+        private final FileChannel channel;
+        private volatile MappedByteBuffer mapped;
+        private volatile long size, synced;
+
+        public Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+            this.synced = size;
+        }
+
+        public void append(ByteBuffer record) throws IOException {
+            long position = size;
+            while (record.hasRemaining())
+                position += channel.write(record, position);
+            size = position;
+        }
+
+        /** Flush everything written so far to disk, unless a concurrent caller already has.
+         *
+         * @param upTo the size that must be durable on return
+         */
+        public void sync(long upTo) throws IOException {
+            if (synced >= upTo)
+                return;
+            synchronized (this) {
+                if (synced >= upTo)
+                    return;
+                long target = size;
+                channel.force(false);
+                synced = target;
+            }
+        }
+
+        public void seal() throws IOException {
+            sync(size);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        public byte[] read(long offset, int length) throws IOException {
+            byte[] res = new byte[length];
+            MappedByteBuffer map = mapped;
+            if (map != null) {
+                ByteBuffer view = map.duplicate();
+                view.position((int) offset);
+                view.get(res);
+                return res;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(res);
+            long position = offset;
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, position);
+                if (read < 0)
+                    throw new EOFException("Unexpected end of segment " + path);
+                position += read;
+            }
+            return res;
+        }
+
+        public void close() throws IOException {
+            mapped = null;
+            channel.close();
+        }
+    }
+
+    private static String segmentName(int id) {
+        return SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX;
+    }
+
+    private Segment openSegment(int id, long size) throws IOException {
+        Path path = root.resolve(segmentName(id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel, size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private synchronized void loadSegments() throws IOException {
+        String[] names = root.toFile().list();
+        List<Integer> ids = Stream.of(names == null ? new String[0] : names)
+                .filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+                .map(n -> Integer.parseInt(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+        for (int i=0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            long validSize = scanSegment(id);
+            Segment segment = openSegment(id, validSize);
+            if (segment.channel.size() > validSize) {
+                LOG.warning("Truncating partially written record at " + validSize + " in " + segment.path);
+                segment.channel.truncate(validSize);
+            }
+            if (i < ids.size() - 1)
+                segment.seal();
+            else
+                current = segment;
+        }
+        if (current == null)
+            current = openSegment(0, 0);
+    }
+
+    /**
+     *
+     * @return the size of the valid prefix of the segment
+     */
+    private long scanSegment(int id) throws IOException {
+        Path path = root.resolve(segmentName(id));
+        long offset = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1024 * 1024))) {
+            while (true) {
+                try {
+                    int cidLength = din.readInt();
+                    if (cidLength <= 0 || cidLength > 128)
+                        return offset;
+                    byte[] rawCid = new byte[cidLength];
+                    din.readFully(rawCid);
+                    int dataLength = din.readInt();
+                    if (dataLength < 0)
+                        return offset;
+                    byte[] data = new byte[dataLength];
+                    din.readFully(data);
+                    int crc = din.readInt();
+                    if (crc != crc32(data))
+                        return offset;
+                    Cid cid = Cid.cast(rawCid);
+                    long dataOffset = offset + 4 + cidLength + 4;
+                    index.put(cid, new BlockLocation(id, dataOffset, dataLength));
+                    offset += RECORD_OVERHEAD + cidLength + dataLength;
+                } catch (EOFException | Cid.CidEncodingException e) {
+                    return offset;
+                }
+            }
+        }
+    }
+
+    private static int crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static Cid toCid(Multihash h) {
+        return h instanceof Cid ? (Cid) h : Cid.buildCidV0(h);
+    }
+
+    /** Append a block to the current segment, rolling to a new segment if it is full.
+     *
+     * @return the segment written to, which must be synced before the write is durable
+     */
+    private synchronized Segment append(Cid cid, byte[] data) throws IOException {
+        if (index.containsKey(cid))
+            return current;
+        byte[] rawCid = cid.toBytes();
+        int recordSize = RECORD_OVERHEAD + rawCid.length + data.length;
+        if (current.size > 0 && current.size + recordSize > maxSegmentSize)
+            roll();
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(rawCid.length);
+        record.put(rawCid);
+        record.putInt(data.length);
+        record.put(data);
+        record.putInt(crc32(data));
+        record.flip();
+        long dataOffset = current.size + 4 + rawCid.length + 4;
+        current.append(record);
+        index.put(cid, new BlockLocation(current.id, dataOffset, data.length));
+        return current;
+    }
+
+    private synchronized void roll() throws IOException {
+        current.seal();
+        current = openSegment(current.id + 1, 0);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        // Use the same id as FileContentAddressedStorage so a node can switch between the two after migration
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(new TransactionId(ArrayOps.bytesToHex(ArrayOps.random(8))));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signatures,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return CompletableFuture.completedFuture(put(blocks, false));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid) {
+        return CompletableFuture.completedFuture(put(blocks, true));
+    }
+
+    /** Write a batch of blocks with a single fsync
+     *
+     */
+    public List<Multihash> put(List<byte[]> blocks, boolean isRaw) {
+        compactionLock.readLock().lock();
+        try {
+            List<Multihash> res = new ArrayList<>();
+            Segment last = null;
+            for (byte[] block : blocks) {
+                Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                        new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(block)));
+                Segment written = append(cid, block);
+                if (last != null && last != written)
+                    last.sync(last.size);
+                last = written;
+                res.add(cid);
+            }
+            if (last != null)
+                last.sync(last.size);
+            return res;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        compactionLock.readLock().lock();
+        try {
+            BlockLocation location = index.get(toCid(hash));
+            if (location == null)
+                return CompletableFuture.completedFuture(Optional.empty());
+            return CompletableFuture.completedFuture(Optional.of(segments.get(location.segment).read(location.offset, location.length)));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        compactionLock.readLock().lock();
+        try {
+            List<Optional<byte[]>> res = new ArrayList<>(hashes.size());
+            for (Multihash hash : hashes) {
+                BlockLocation location = index.get(toCid(hash));
+                res.add(location == null ?
+                        Optional.empty() :
+                        Optional.of(segments.get(location.segment).read(location.offset, location.length)));
+            }
+            return CompletableFuture.completedFuture(res);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getRaw(root).thenApply(opt -> opt
+                .map(CborReader::links)
+                .orElse(Collections.emptyList())
+        );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        BlockLocation location = index.get(toCid(h));
+        return CompletableFuture.completedFuture(location == null ? Optional.empty() : Optional.of(location.length));
+    }
+
+    public boolean contains(Multihash h) {
+        return index.containsKey(toCid(h));
+    }
+
+    public void applyToAll(Consumer<Multihash> processor) {
+        index.keySet().forEach(processor);
+    }
+
+    /** Remove every block not in pins, and rewrite the segments that contained them.
+     *
+     * @param pins the blocks to keep
+     * @return the blocks that were removed
+     */
+    public Set<Multihash> retainOnly(Set<Multihash> pins) {
+        compactionLock.writeLock().lock();
+        try {
+            Set<Cid> toKeep = pins.stream().map(PackedContentAddressedStorage::toCid).collect(Collectors.toSet());
+            Set<Multihash> removed = new HashSet<>();
+            Set<Integer> dirtySegments = new HashSet<>();
+            for (Map.Entry<Cid, BlockLocation> e : index.entrySet()) {
+                if (! toKeep.contains(e.getKey())) {
+                    removed.add(e.getKey());
+                    dirtySegments.add(e.getValue().segment);
+                }
+            }
+            if (removed.isEmpty())
+                return removed;
+            removed.forEach(index::remove);
+
+            synchronized (this) {
+                if (dirtySegments.contains(current.id) && current.size > 0)
+                    roll();
+            }
+            long reclaimed = 0;
+            for (int segmentId : dirtySegments) {
+                Segment dirty = segments.get(segmentId);
+                List<Map.Entry<Cid, BlockLocation>> live = index.entrySet().stream()
+                        .filter(e -> e.getValue().segment == segmentId)
+                        .collect(Collectors.toList());
+                for (Map.Entry<Cid, BlockLocation> e : live) {
+                    byte[] data = dirty.read(e.getValue().offset, e.getValue().length);
+                    index.remove(e.getKey());
+                    append(e.getKey(), data);
+                }
+                synchronized (this) {
+                    current.sync(current.size);
+                }
+                reclaimed += dirty.size;
+                segments.remove(segmentId);
+                dirty.close();
+                Files.delete(dirty.path);
+            }
+            LOG.info("Compacted " + dirtySegments.size() + " segments, removing " + removed.size() + " blocks from " + reclaimed + " bytes");
+            return removed;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    /** Copy every block from a directory based store into this store.
+     *
+     * @return the number of blocks copied
+     */
+    public long migrateFrom(FileContentAddressedStorage source) {
+        long[] count = new long[1];
+        source.applyToAll(h -> {
+            try {
+                Cid cid = toCid(h);
+                Optional<byte[]> data = source.getRaw(cid).get();
+                if (! data.isPresent())
+                    return;
+                if (! Arrays.equals(RAMStorage.hash(data.get()), cid.getHash())) {
+                    LOG.warning("Skipping block with incorrect hash " + cid);
+                    return;
+                }
+                compactionLock.readLock().lock();
+                try {
+                    append(cid, data.get());
+                } finally {
+                    compactionLock.readLock().unlock();
+                }
+                count[0]++;
+            } catch (InterruptedException | ExecutionException | IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        });
+        try {
+            synchronized (this) {
+                current.sync(current.size);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return count[0];
+    }
+
+    public synchronized void close() {
+        try {
+            current.sync(current.size);
+            for (Segment segment : segments.values())
+                segment.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackedContentAddressedStorage " + root;
+    }
+}
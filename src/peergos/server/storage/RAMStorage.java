@@ -73,6 +73,13 @@ public class RAMStorage implements ContentAddressedStorage {
                 Optional.empty());
     }
 
+    @Override
+    public synchronized CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return CompletableFuture.completedFuture(hashes.stream()
+                .map(h -> Optional.ofNullable(storage.get(h)))
+                .collect(Collectors.toList()));
+    }
+
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
         if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
@@ -113,8 +120,8 @@ public class RAMStorage implements ContentAddressedStorage {
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root).thenApply(opt -> opt
-                .map(cbor -> cbor.links())
+        return getRaw(root).thenApply(opt -> opt
+                .map(CborReader::links)
                 .orElse(Collections.emptyList())
         );
     }
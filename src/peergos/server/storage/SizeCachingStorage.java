@@ -0,0 +1,247 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** A ContentAddressedStorage which indexes the size and links of blocks, and the total size of the tree under each
+ * block, so usage calculations don't need to retrieve or parse blocks.
+ *
+ * Blocks written through this are indexed as they are written, and other blocks are indexed the first time they are
+ * read. Blocks never change, so the most recently used entries are also kept in memory in front of the index.
+ */
+public class SizeCachingStorage implements ContentAddressedStorage {
+    private final ContentAddressedStorage target;
+    private final BlockSizeIndex index;
+    private final Map<Multihash, BlockSizeIndex.IndexedBlock> recent;
+
+    /**
+     *
+     * @param target
+     * @param index The persistent index of block sizes
+     * @param maxCachedBlocks The maximum number of index entries to keep in memory
+     */
+    public SizeCachingStorage(ContentAddressedStorage target, BlockSizeIndex index, int maxCachedBlocks) {
+        this.target = target;
+        this.index = index;
+        this.recent = Collections.synchronizedMap(new LRUCache<>(maxCachedBlocks));
+    }
+
+    public SizeCachingStorage(ContentAddressedStorage target, int maxCachedBlocks) {
+        this(target, new BlockSizeIndex.RAM(), maxCachedBlocks);
+    }
+
+    private Optional<BlockSizeIndex.IndexedBlock> lookup(Multihash block) {
+        BlockSizeIndex.IndexedBlock cached = recent.get(block);
+        if (cached != null)
+            return Optional.of(cached);
+        Optional<BlockSizeIndex.IndexedBlock> indexed = index.get(block);
+        indexed.ifPresent(b -> recent.put(block, b));
+        return indexed;
+    }
+
+    private void store(Map<Multihash, BlockSizeIndex.IndexedBlock> blocks) {
+        index.put(blocks);
+        for (Map.Entry<Multihash, BlockSizeIndex.IndexedBlock> e : blocks.entrySet())
+            recent.put(e.getKey(), e.getValue());
+    }
+
+    private static boolean isRaw(Multihash block) {
+        return block instanceof Cid && ((Cid) block).codec == Cid.Codec.Raw;
+    }
+
+    /** Index blocks which have just been written. Children are written before their parents, so we can usually
+     * calculate the total size of a new block from its children's entries.
+     */
+    private List<Multihash> indexWritten(List<Multihash> hashes, List<byte[]> blocks, boolean isRaw) {
+        Map<Multihash, BlockSizeIndex.IndexedBlock> written = new LinkedHashMap<>();
+        for (int i=0; i < hashes.size(); i++) {
+            Multihash hash = hashes.get(i);
+            byte[] block = blocks.get(i);
+            List<Multihash> links = isRaw ? Collections.emptyList() : CborReader.links(block);
+            long total = block.length;
+            for (Multihash link : links) {
+                BlockSizeIndex.IndexedBlock child = written.containsKey(link) ?
+                        written.get(link) :
+                        lookup(link).orElse(null);
+                if (child == null || ! child.hasTotalSize()) {
+                    total = BlockSizeIndex.IndexedBlock.UNKNOWN;
+                    break;
+                }
+                total += child.totalSize;
+            }
+            written.put(hash, new BlockSizeIndex.IndexedBlock(block.length, links, total));
+        }
+        store(written);
+        return hashes;
+    }
+
+    private CompletableFuture<List<BlockSizeIndex.IndexedBlock>> getIndexed(List<Multihash> blocks) {
+        List<BlockSizeIndex.IndexedBlock> res = new ArrayList<>(blocks.size());
+        List<Multihash> missing = new ArrayList<>();
+        for (Multihash block : blocks) {
+            BlockSizeIndex.IndexedBlock indexed = lookup(block).orElse(null);
+            res.add(indexed);
+            if (indexed == null)
+                missing.add(block);
+        }
+        if (missing.isEmpty())
+            return CompletableFuture.completedFuture(res);
+        return target.getAllLinksAndSize(missing).thenApply(retrieved -> {
+            Map<Multihash, BlockSizeIndex.IndexedBlock> toIndex = new HashMap<>();
+            Iterator<Pair<Integer, List<Multihash>>> fromTarget = retrieved.iterator();
+            for (int i=0; i < res.size(); i++) {
+                if (res.get(i) != null)
+                    continue;
+                Pair<Integer, List<Multihash>> value = fromTarget.next();
+                BlockSizeIndex.IndexedBlock block = new BlockSizeIndex.IndexedBlock(value.left, value.right,
+                        value.right.isEmpty() ? value.left : BlockSizeIndex.IndexedBlock.UNKNOWN);
+                // a zero size means the block is absent, which might change
+                if (value.left > 0)
+                    toIndex.put(blocks.get(i), block);
+                res.set(i, block);
+            }
+            store(toIndex);
+            return res;
+        });
+    }
+
+    /**
+     *
+     * @param block
+     * @return The size of the block and all the blocks under it, which is recorded for each block as it is calculated
+     */
+    private CompletableFuture<Long> getTotalSize(Multihash block) {
+        return getIndexed(Collections.singletonList(block)).thenCompose(res -> {
+            BlockSizeIndex.IndexedBlock indexed = res.get(0);
+            if (indexed.hasTotalSize())
+                return CompletableFuture.completedFuture(indexed.totalSize);
+            return Futures.combineAllInOrder(indexed.links.stream()
+                    .map(this::getTotalSize)
+                    .collect(Collectors.toList()))
+                    .thenApply(childSizes -> {
+                        long total = indexed.size + childSizes.stream().mapToLong(x -> x).sum();
+                        if (indexed.size > 0)
+                            store(Collections.singletonMap(block, indexed.withTotalSize(total)));
+                        return total;
+                    });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> getRecursiveBlockSize(List<Multihash> roots) {
+        return Futures.combineAllInOrder(roots.stream()
+                .map(this::getTotalSize)
+                .collect(Collectors.toList()))
+                .thenApply(sizes -> sizes.stream().mapToLong(x -> x).sum());
+    }
+
+    @Override
+    public CompletableFuture<Pair<Integer, List<Multihash>>> getLinksAndSize(Multihash block) {
+        return getAllLinksAndSize(Collections.singletonList(block)).thenApply(res -> res.get(0));
+    }
+
+    @Override
+    public CompletableFuture<List<Pair<Integer, List<Multihash>>>> getAllLinksAndSize(List<Multihash> blocks) {
+        return getIndexed(blocks).thenApply(indexed -> indexed.stream()
+                .map(b -> new Pair<>(b.size, b.links))
+                .collect(Collectors.toList()));
+    }
+
+    /** Remove a block which has been deleted from the target from the index
+     *
+     * @param block
+     */
+    public void removeFromIndex(Multihash block) {
+        recent.remove(block);
+        index.remove(block);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return target.startTransaction(owner);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return target.closeTransaction(owner, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signatures,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return target.put(owner, writer, signatures, blocks, tid)
+                .thenApply(hashes -> indexWritten(hashes, blocks, false));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid) {
+        return target.putRaw(owner, writer, signatures, blocks, tid)
+                .thenApply(hashes -> indexWritten(hashes, blocks, true));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        return target.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        return target.getRaw(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return target.getAllRaw(hashes);
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
+        return target.recursivePin(owner, hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash hash) {
+        return target.recursiveUnpin(owner, hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (isRaw(root))
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getLinksAndSize(root).thenApply(p -> p.right);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        Optional<BlockSizeIndex.IndexedBlock> indexed = lookup(block);
+        if (indexed.isPresent())
+            return CompletableFuture.completedFuture(Optional.of(indexed.get().size));
+        return target.getSize(block);
+    }
+}
@@ -0,0 +1,59 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class AsyncLimiterTests {
+
+    @Test
+    public void boundsTasksInFlight() throws Exception {
+        AsyncLimiter limiter = new AsyncLimiter(3);
+        List<CompletableFuture<Integer>> started = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i=0; i < 10; i++)
+            results.add(limiter.submit(() -> {
+                CompletableFuture<Integer> task = new CompletableFuture<>();
+                started.add(task);
+                return task;
+            }));
+        Assert.assertEquals(3, started.size());
+
+        for (int i=0; i < 10; i++) {
+            started.get(i).complete(i);
+            Assert.assertEquals(Math.min(10, i + 4), started.size());
+            Assert.assertEquals(i, (int) results.get(i).get());
+        }
+    }
+
+    @Test
+    public void failuresReleaseTheirSlot() throws Exception {
+        AsyncLimiter limiter = new AsyncLimiter(1);
+        CompletableFuture<Integer> failed = limiter.submit(() -> {
+            throw new IllegalStateException("Failed to start");
+        });
+        Assert.assertTrue(failed.isCompletedExceptionally());
+        CompletableFuture<Integer> errored = limiter.submit(() -> Futures.errored(new IllegalStateException("Failed")));
+        Assert.assertTrue(errored.isCompletedExceptionally());
+        Assert.assertEquals(1, (int) limiter.submit(() -> CompletableFuture.completedFuture(1)).get());
+    }
+
+    @Test
+    public void manySynchronousTasks() throws Exception {
+        AsyncLimiter limiter = new AsyncLimiter(2);
+        AtomicInteger inFlight = new AtomicInteger(0);
+        AtomicInteger maxInFlight = new AtomicInteger(0);
+        List<Integer> inputs = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+        List<Integer> results = limiter.submitAll(inputs, i -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            inFlight.decrementAndGet();
+            return CompletableFuture.completedFuture(i);
+        }).get();
+        Assert.assertEquals(inputs, results);
+        Assert.assertTrue(maxInFlight.get() <= 2);
+    }
+}
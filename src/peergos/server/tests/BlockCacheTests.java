@@ -0,0 +1,87 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+
+public class BlockCacheTests {
+
+    private static Multihash hash(int i) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) i;
+        bytes[1] = (byte) (i >> 8);
+        bytes[2] = (byte) (i >> 16);
+        return new Multihash(Multihash.Type.sha2_256, bytes);
+    }
+
+    @Test
+    public void boundedByBytes() {
+        BlockCache cache = new BlockCache(10_000, 1);
+        for (int i=0; i < 100; i++)
+            cache.put(hash(i), new byte[1000]);
+        Assert.assertTrue(cache.sizeInBytes() <= 10_000);
+        Assert.assertEquals(10, cache.size());
+        Assert.assertEquals(90, cache.evictionCount());
+
+        cache.put(hash(1000), new byte[20_000]);
+        Assert.assertFalse("Values bigger than the cache are not cached", cache.containsKey(hash(1000)));
+    }
+
+    @Test
+    public void referencedEntriesSurviveEviction() {
+        BlockCache cache = new BlockCache(4_000, 1);
+        for (int i=0; i < 4; i++)
+            cache.put(hash(i), new byte[1000]);
+        Assert.assertTrue(cache.get(hash(0)).isPresent());
+        cache.put(hash(4), new byte[1000]);
+
+        Assert.assertTrue(cache.containsKey(hash(0)));
+        Assert.assertFalse(cache.containsKey(hash(1)));
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertFalse(cache.get(hash(1)).isPresent());
+        Assert.assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void removeAndReinsert() {
+        BlockCache cache = new BlockCache(3_000, 1);
+        for (int i=0; i < 3; i++)
+            cache.put(hash(i), new byte[1000]);
+        cache.remove(hash(0));
+        Assert.assertFalse(cache.containsKey(hash(0)));
+        Assert.assertEquals(2_000, cache.sizeInBytes());
+
+        cache.put(hash(0), new byte[1000]);
+        cache.put(hash(3), new byte[1000]);
+        // the stale clock entry for the first insertion of 0 must not evict the second
+        Assert.assertTrue(cache.containsKey(hash(0)));
+        Assert.assertFalse(cache.containsKey(hash(1)));
+        Assert.assertEquals(3_000, cache.sizeInBytes());
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void manyRemovals() {
+        BlockCache cache = new BlockCache(1024 * 1024, 4);
+        for (int round=0; round < 100; round++) {
+            for (int i=0; i < 1000; i++)
+                cache.put(hash(i), new byte[10]);
+            for (int i=0; i < 1000; i++)
+                cache.remove(hash(i));
+        }
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.sizeInBytes());
+        Assert.assertEquals(0, cache.evictionCount());
+
+        Random r = new Random(1);
+        for (int i=0; i < 10_000; i++) {
+            byte[] value = new byte[r.nextInt(500)];
+            cache.put(hash(i), value);
+            if (r.nextBoolean())
+                cache.remove(hash(r.nextInt(i + 1)));
+        }
+        Assert.assertTrue(cache.sizeInBytes() <= 1024 * 1024);
+    }
+}
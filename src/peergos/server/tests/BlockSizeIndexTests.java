@@ -0,0 +1,101 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class BlockSizeIndexTests {
+
+    private static Multihash hash(int i) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) i;
+        bytes[1] = (byte) (i >> 8);
+        return new Multihash(Multihash.Type.sha2_256, bytes);
+    }
+
+    private static BlockSizeIndex.IndexedBlock block(int size) {
+        return new BlockSizeIndex.IndexedBlock(size, Collections.emptyList(), size);
+    }
+
+    @Test
+    public void bufferedWritesAreBatched() throws Exception {
+        BlockSizeIndex.Sqlite sqlite = BlockSizeIndex.Sqlite.build(":memory:");
+        BlockSizeIndex.Buffered index = new BlockSizeIndex.Buffered(sqlite, 60_000, 1_000);
+
+        for (int i=0; i < 10; i++)
+            index.put(Collections.singletonMap(hash(i), block(i + 1)));
+        Assert.assertEquals(10, index.pendingCount());
+        Assert.assertFalse("Not written yet", sqlite.get(hash(0)).isPresent());
+        Assert.assertEquals(1, index.get(hash(0)).get().size);
+
+        index.remove(hash(1));
+        index.flush();
+        Assert.assertEquals(0, index.pendingCount());
+        Assert.assertEquals(1, sqlite.get(hash(0)).get().size);
+        Assert.assertEquals(10, index.get(hash(9)).get().size);
+        Assert.assertFalse("Removed before the flush", index.get(hash(1)).isPresent());
+
+        index.remove(hash(2));
+        Assert.assertFalse("Removed after the flush", sqlite.get(hash(2)).isPresent());
+    }
+
+    @Test
+    public void failedWriteStaysQueued() throws Exception {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        BlockSizeIndex.RAM ram = new BlockSizeIndex.RAM() {
+            @Override
+            public void put(Map<Multihash, BlockSizeIndex.IndexedBlock> blocks) {
+                if (fail.get())
+                    throw new IllegalStateException("Disk full");
+                super.put(blocks);
+            }
+        };
+        BlockSizeIndex.Buffered index = new BlockSizeIndex.Buffered(ram, 60_000, 1_000);
+        for (int i=0; i < 10; i++)
+            index.put(Collections.singletonMap(hash(i), block(i + 1)));
+
+        index.flush();
+        Assert.assertEquals("Entries are kept after a failed write", 10, index.pendingCount());
+        Assert.assertEquals(5, index.get(hash(4)).get().size);
+        Assert.assertFalse(ram.get(hash(4)).isPresent());
+
+        fail.set(false);
+        index.flush();
+        Assert.assertEquals(0, index.pendingCount());
+        for (int i=0; i < 10; i++)
+            Assert.assertEquals(i + 1, ram.get(hash(i)).get().size);
+    }
+
+    @Test
+    public void sqliteWriteFailureThrows() throws Exception {
+        Connection conn = JDBCCoreNode.buildSqlLite(":memory:");
+        BlockSizeIndex.Sqlite sqlite = new BlockSizeIndex.Sqlite(conn);
+        conn.close();
+        try {
+            sqlite.put(Collections.singletonMap(hash(1), block(1)));
+            Assert.fail("Write to a closed database should fail");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void fullBufferIsWrittenEarly() throws Exception {
+        BlockSizeIndex.Sqlite sqlite = BlockSizeIndex.Sqlite.build(":memory:");
+        BlockSizeIndex.Buffered index = new BlockSizeIndex.Buffered(sqlite, 60_000, 100);
+        Map<Multihash, BlockSizeIndex.IndexedBlock> blocks = new HashMap<>();
+        for (int i=0; i < 100; i++)
+            blocks.put(hash(i), block(i + 1));
+        index.put(blocks);
+
+        long end = System.currentTimeMillis() + 5_000;
+        while (index.pendingCount() > 0 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Assert.assertEquals(0, index.pendingCount());
+        for (int i=0; i < 100; i++)
+            Assert.assertEquals(i + 1, sqlite.get(hash(i)).get().size);
+    }
+}
@@ -0,0 +1,93 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BoundedHandlerTests {
+
+    private static HttpHandler reply(CountDownLatch release) {
+        return exchange -> {
+            try {
+                release.await();
+                exchange.sendResponseHeaders(200, -1);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static int get(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        long end = System.currentTimeMillis() + 5_000;
+        while (! condition.call()) {
+            if (System.currentTimeMillis() > end)
+                Assert.fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void slowEndpointDoesntBlockOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BoundedHandler slow = new BoundedHandler("slow", reply(release), 1, 1);
+        BoundedHandler fast = new BoundedHandler("fast", reply(new CountDownLatch(0)), 1, 1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        server.createContext("/slow", slow);
+        server.createContext("/fast", fast);
+        ExecutorService dispatch = Executors.newFixedThreadPool(4);
+        server.setExecutor(dispatch);
+        server.start();
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            int port = server.getAddress().getPort();
+            URL slowUrl = new URL("http://localhost:" + port + "/slow");
+            URL fastUrl = new URL("http://localhost:" + port + "/fast");
+
+            // one running and one queued
+            List<Future<Integer>> waiting = new ArrayList<>();
+            waiting.add(clients.submit(() -> get(slowUrl)));
+            waitFor(() -> slow.activeCount() == 1);
+            waiting.add(clients.submit(() -> get(slowUrl)));
+            waitFor(() -> slow.queueDepth() == 1);
+
+            Assert.assertEquals("Full endpoint rejects", 503, get(slowUrl));
+            Assert.assertEquals(503, get(slowUrl));
+            Assert.assertEquals("Other endpoints are unaffected", 200, get(fastUrl));
+
+            release.countDown();
+            for (Future<Integer> res : waiting)
+                Assert.assertEquals(200, (int) res.get(5, TimeUnit.SECONDS));
+            waitFor(() -> slow.handledCount() == 2);
+            Assert.assertEquals(1, fast.handledCount());
+            Assert.assertEquals(0, fast.rejectedCount());
+            Assert.assertEquals(1, slow.takeMaxQueueDepth());
+            Assert.assertEquals(0, slow.takeMaxQueueDepth());
+
+            Assert.assertEquals(2, slow.takeRecentlyRejected());
+            Assert.assertEquals("Rejections are counted since the last report", 0, slow.takeRecentlyRejected());
+            Assert.assertEquals(2, slow.rejectedCount());
+        } finally {
+            server.stop(0);
+            dispatch.shutdown();
+            clients.shutdown();
+            slow.shutdown();
+            fast.shutdown();
+        }
+    }
+}
@@ -2,9 +2,11 @@ package peergos.server.tests;
 
 import org.junit.*;
 import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 
 public class CborObjects {
@@ -95,6 +97,40 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborMap);
     }
 
+    @Test
+    public void lazyMap() {
+        Cid cid = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, random(32));
+        SortedMap<CborObject, CborObject> map = new TreeMap<>();
+        map.put(new CborObject.CborString("name"), new CborObject.CborString("A value"));
+        map.put(new CborObject.CborString("size"), new CborObject.CborLong(-12345));
+        map.put(new CborObject.CborString("link"), new CborObject.CborMerkleLink(cid));
+        map.put(new CborObject.CborString("links"), new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(cid), new CborObject.CborNull())));
+        CborObject.CborMap cborMap = new CborObject.CborMap(map);
+        compatibleAndIdempotentSerialization(cborMap);
+
+        CborReader.LazyMap lazy = CborReader.lazyMap(cborMap.toByteArray());
+        Assert.assertEquals(4, lazy.size());
+        Assert.assertEquals("A value", lazy.getString("name"));
+        Assert.assertEquals(-12345, lazy.getLong("size"));
+        Assert.assertEquals(Collections.singletonList(cid), lazy.links("link"));
+        Assert.assertEquals(Optional.of(new CborObject.CborMerkleLink(cid)), lazy.get("link"));
+        Assert.assertEquals(Collections.singletonList(cid), lazy.links("links"));
+        Assert.assertFalse(lazy.containsKey("missing"));
+        Assert.assertEquals(Arrays.asList(cid, cid), CborReader.links(cborMap.toByteArray()));
+    }
+
+    @Test
+    public void truncatedCborObject() {
+        byte[] raw = new CborObject.CborString("G'day mate!").toByteArray();
+        for (int len = 0; len < raw.length; len++) {
+            try {
+                CborReader.links(Arrays.copyOfRange(raw, 0, len));
+                Assert.fail("Should have failed!");
+            } catch (RuntimeException e) {}
+        }
+    }
+
     @Test
     public void cborList() {
         List<CborObject> list = new ArrayList<>();
@@ -115,5 +151,9 @@ public class CborObjects {
         byte[] raw2 = deserialized.toByteArray();
         boolean sameRaw = Arrays.equals(raw, raw2);
         Assert.assertTrue("Idempotent serialization", sameRaw);
+
+        CborObject streamed = CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(raw)), raw.length);
+        Assert.assertEquals("Compatible with stream decoder", streamed, deserialized);
+        Assert.assertEquals("Link scan", value.links(), CborReader.links(raw));
     }
 }
@@ -1,7 +1,9 @@
 package peergos.server.tests;
 
+import peergos.server.crypto.*;
 import org.junit.*;
 import peergos.server.storage.*;
+import peergos.server.util.Logging;
 import peergos.shared.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
@@ -11,11 +13,15 @@ import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
 
 public class ChampTests {
+    private static final Logger LOG = Logging.LOG();
 
-    private static final Crypto crypto = Crypto.initJava();
+    private static final Crypto crypto = JavaCrypto.init();
 
     @Test
     public void insertAndRetrieve() throws Exception {
@@ -133,6 +139,180 @@ public class ChampTests {
             }
     }
 
+    @Test
+    public void bulkPutAndRemove() throws Exception {
+        int[] blocksWritten = new int[1];
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          List<byte[]> signatures,
+                                                          List<byte[]> blocks,
+                                                          TransactionId tid) {
+                blocksWritten[0] += blocks.size();
+                return super.put(owner, writer, signatures, blocks, tid);
+            }
+        };
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        int bitWidth = 5;
+        int maxCollisions = 3;
+        Function<ByteArrayWrapper, byte[]> hasher = x -> x.data;
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Champ empty = Champ.empty();
+        Multihash emptyHash = storage.put(user.publicKeyHash, user, empty.serialize(), tid).get();
+
+        int nKeys = 1000;
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> changes = new ArrayList<>();
+        for (int i = 0; i < nKeys; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            changes.add(new Triple<>(new ByteArrayWrapper(key), MaybeMultihash.empty(),
+                    MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, value))));
+        }
+
+        blocksWritten[0] = 0;
+        long t0 = System.nanoTime();
+        Pair<Champ, Multihash> sequential = new Pair<>(empty, emptyHash);
+        for (Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash> c : changes)
+            sequential = sequential.left.put(user.publicKeyHash, user, c.left, hasher.apply(c.left), 0, c.middle,
+                    c.right, bitWidth, maxCollisions, hasher, tid, storage, sequential.right).get();
+        long t1 = System.nanoTime();
+        int sequentialBlocks = blocksWritten[0];
+
+        blocksWritten[0] = 0;
+        long t2 = System.nanoTime();
+        Pair<Champ, Multihash> bulk = empty.putAll(user.publicKeyHash, user, changes, bitWidth, maxCollisions, hasher,
+                tid, storage, emptyHash).get();
+        long t3 = System.nanoTime();
+        int bulkBlocks = blocksWritten[0];
+
+        LOG.info(String.format("Inserting %d keys: sequential puts wrote %d blocks in %d mS, putAll wrote %d blocks in %d mS",
+                nKeys, sequentialBlocks, (t1 - t0) / 1_000_000, bulkBlocks, (t3 - t2) / 1_000_000));
+        Assert.assertEquals("Same tree", sequential.right, bulk.right);
+        Assert.assertTrue("Fewer blocks written", bulkBlocks < sequentialBlocks);
+        Assert.assertEquals(nKeys, (long) bulk.left.size(0, storage).get());
+
+        List<Pair<ByteArrayWrapper, MaybeMultihash>> toRemove = changes.stream()
+                .limit(nKeys / 2)
+                .map(c -> new Pair<>(c.left, c.right))
+                .collect(Collectors.toList());
+        Pair<Champ, Multihash> sequentialRemoved = sequential;
+        for (Pair<ByteArrayWrapper, MaybeMultihash> k : toRemove)
+            sequentialRemoved = sequentialRemoved.left.remove(user.publicKeyHash, user, k.left, hasher.apply(k.left), 0,
+                    k.right, bitWidth, maxCollisions, tid, storage, sequentialRemoved.right).get();
+        Pair<Champ, Multihash> bulkRemoved = bulk.left.removeAll(user.publicKeyHash, user, toRemove, bitWidth,
+                maxCollisions, hasher, tid, storage, bulk.right).get();
+        Assert.assertEquals("Same tree after removes", sequentialRemoved.right, bulkRemoved.right);
+        Assert.assertEquals(nKeys - toRemove.size(), (long) bulkRemoved.left.size(0, storage).get());
+
+        // a failed cas leaves the tree unchanged
+        ChampWrapper wrapper = ChampWrapper.create(user.publicKeyHash, user, hasher, tid, storage).get();
+        wrapper.putAll(user.publicKeyHash, user, changes.stream()
+                .map(c -> new Triple<>(c.left.data, c.middle, c.right.get()))
+                .collect(Collectors.toList()), tid).get();
+        Multihash rootBefore = wrapper.getRoot();
+        Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash> first = changes.get(0);
+        try {
+            wrapper.putAll(user.publicKeyHash, user, Arrays.asList(new Triple<>(first.left.data, MaybeMultihash.empty(),
+                    first.right.get())), tid).get();
+            Assert.fail("Put with incorrect expected value succeeded");
+        } catch (ExecutionException e) {}
+        Assert.assertEquals("Root unchanged", rootBefore, wrapper.getRoot());
+        Assert.assertEquals(first.right, wrapper.get(first.left.data).get());
+
+        try {
+            wrapper.removeAll(user.publicKeyHash, user, Arrays.asList(new Pair<>(first.left.data, MaybeMultihash.empty())),
+                    tid).get();
+            Assert.fail("Remove with incorrect expected value succeeded");
+        } catch (ExecutionException e) {}
+        Assert.assertEquals("Root unchanged", rootBefore, wrapper.getRoot());
+        Assert.assertEquals(first.right, wrapper.get(first.left.data).get());
+    }
+
+    @Test
+    public void cachedReads() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        int bitWidth = 5;
+        int maxCollisions = 3;
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Champ empty = Champ.empty();
+        Multihash emptyHash = storage.put(user.publicKeyHash, user, empty.serialize(), tid).get();
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> mappings = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] value = new byte[32];
+            r.nextBytes(value);
+            mappings.add(new Triple<>(new ByteArrayWrapper(randomKey(new byte[0], 32, r)), MaybeMultihash.empty(),
+                    MaybeMultihash.of(new Multihash(Multihash.Type.sha2_256, value))));
+        }
+        Champ root = empty.putAll(user.publicKeyHash, user, mappings, bitWidth, maxCollisions, x -> x.data, tid,
+                storage, emptyHash).get().left;
+
+        DecodedCache<Champ> cache = new DecodedCache<>(50, Champ::fromCbor);
+        for (int i = 0; i < 2; i++) {
+            for (Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash> mapping : mappings) {
+                ByteArrayWrapper key = mapping.left;
+                MaybeMultihash cached = root.get(key, key.data, 0, bitWidth, storage, Optional.of(cache)).get();
+                Assert.assertEquals(mapping.right, cached);
+            }
+            ByteArrayWrapper absent = new ByteArrayWrapper(randomKey(new byte[0], 32, r));
+            Assert.assertEquals(MaybeMultihash.empty(),
+                    root.get(absent, absent.data, 0, bitWidth, storage, Optional.of(cache)).get());
+        }
+        Assert.assertTrue("Cache is bounded", cache.size() <= 50);
+        Assert.assertTrue("Cache was used", cache.hitCount() > 0);
+    }
+
+    @Test
+    public void indexedSizes() throws Exception {
+        int[] blockReads = new int[1];
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+                blockReads[0] += hashes.size();
+                return super.getAllRaw(hashes);
+            }
+
+            @Override
+            public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+                blockReads[0]++;
+                return super.getSize(block);
+            }
+        };
+        SizeCachingStorage indexed = new SizeCachingStorage(storage, 10);
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        int bitWidth = 5;
+        int maxCollisions = 3;
+        TransactionId tid = indexed.startTransaction(user.publicKeyHash).get();
+        Champ empty = Champ.empty();
+        Multihash emptyHash = indexed.put(user.publicKeyHash, user, empty.serialize(), tid).get();
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> mappings = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] value = new byte[r.nextInt(1000) + 1];
+            r.nextBytes(value);
+            Multihash valueHash = indexed.putRaw(user.publicKeyHash, user.publicKeyHash,
+                    user.secret.signatureOnly(value), value, tid).get();
+            mappings.add(new Triple<>(new ByteArrayWrapper(randomKey(new byte[0], 32, r)), MaybeMultihash.empty(),
+                    MaybeMultihash.of(valueHash)));
+        }
+        Pair<Champ, Multihash> half = empty.putAll(user.publicKeyHash, user, mappings.subList(0, 100), bitWidth,
+                maxCollisions, x -> x.data, tid, indexed, emptyHash).get();
+        Pair<Champ, Multihash> full = half.left.putAll(user.publicKeyHash, user, mappings.subList(100, 200), bitWidth,
+                maxCollisions, x -> x.data, tid, indexed, half.right).get();
+
+        blockReads[0] = 0;
+        long size = indexed.getRecursiveBlockSize(full.right).get();
+        long change = indexed.getChangeInContainedSize(half.right, full.right).get();
+        Assert.assertEquals("Sizes answered from index", 0, blockReads[0]);
+        Assert.assertEquals(storage.getRecursiveBlockSize(full.right).get(), (Long) size);
+        Assert.assertEquals(storage.getChangeInContainedSize(half.right, full.right).get(), (Long) change);
+    }
+
     private static byte[] randomKey(byte[] startingWith, int extraBytes, Random r) {
         byte[] suffix = new byte[extraBytes];
         r.nextBytes(suffix);
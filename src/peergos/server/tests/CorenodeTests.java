@@ -1,4 +1,5 @@
 package peergos.server.tests;
+import peergos.server.crypto.*;
 import java.util.logging.*;
 
 import peergos.server.util.Args;
@@ -50,7 +51,7 @@ public class CorenodeTests {
 
     @Test
     public void writeThroughput() {
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         ForkJoinPool pool = new ForkJoinPool(10);
 
         List<Future<Long>> worstLatencies = new ArrayList<>();
@@ -0,0 +1,86 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+
+public class CryptoProviderTests {
+    private static final Salsa20Poly1305 tweetSymmetric = new Salsa20Poly1305.Java();
+    private static final Salsa20Poly1305 fastSymmetric = new FastSalsa20Poly1305();
+    private static final Ed25519 tweetSigner = new Ed25519.Java();
+    private static final Ed25519 fastSigner = new FastEd25519();
+
+    private final Random r = new Random(1);
+
+    private byte[] randomArray(int len) {
+        byte[] res = new byte[len];
+        r.nextBytes(res);
+        return res;
+    }
+
+    @Test
+    public void secretboxCompatibleWithTweetNaCl() {
+        int[] sizes = {0, 1, 15, 16, 17, 31, 32, 33, 63, 64, 65, 127, 128, 1000, 4096, 100_003};
+        for (int size : sizes) {
+            byte[] data = randomArray(size);
+            byte[] nonce = randomArray(TweetNaCl.SECRETBOX_NONCE_BYTES);
+            byte[] key = randomArray(TweetNaCl.SECRETBOX_KEY_BYTES);
+            byte[] expected = tweetSymmetric.secretbox(data, nonce, key);
+            byte[] cipher = fastSymmetric.secretbox(data, nonce, key);
+            Assert.assertArrayEquals("secretbox of " + size + " bytes", expected, cipher);
+            Assert.assertArrayEquals("open of " + size + " bytes", data, fastSymmetric.secretbox_open(expected, nonce, key));
+        }
+    }
+
+    @Test
+    public void secretboxRejectsModifiedCipherText() {
+        byte[] nonce = randomArray(TweetNaCl.SECRETBOX_NONCE_BYTES);
+        byte[] key = randomArray(TweetNaCl.SECRETBOX_KEY_BYTES);
+        byte[] cipher = fastSymmetric.secretbox(randomArray(1000), nonce, key);
+        for (int index : new int[]{0, 15, 16, 500, cipher.length - 1}) {
+            byte[] modified = cipher.clone();
+            modified[index] ^= 1;
+            try {
+                fastSymmetric.secretbox_open(modified, nonce, key);
+                Assert.fail("Accepted modified cipher text at " + index);
+            } catch (TweetNaCl.InvalidCipherTextException e) {}
+        }
+    }
+
+    @Test
+    public void signaturesCompatibleWithTweetNaCl() {
+        for (int i = 0; i < 50; i++) {
+            byte[] pk = new byte[32], sk = new byte[64];
+            System.arraycopy(randomArray(32), 0, sk, 0, 32);
+            tweetSigner.crypto_sign_keypair(pk, sk);
+            byte[] message = randomArray(r.nextInt(2000));
+            byte[] signed = tweetSigner.crypto_sign(message, sk);
+            Assert.assertArrayEquals(message, fastSigner.crypto_sign_open(signed, pk));
+
+            byte[] signature = Arrays.copyOfRange(signed, 0, TweetNaCl.SIGNATURE_SIZE_BYTES);
+            byte[] padded = new byte[message.length + 10];
+            System.arraycopy(message, 0, padded, 7, message.length);
+            Assert.assertTrue(fastSigner.crypto_sign_verify(signature, padded, 7, message.length, pk));
+            Assert.assertTrue(tweetSigner.crypto_sign_verify(signature, padded, 7, message.length, pk));
+
+            byte[] modified = signed.clone();
+            modified[r.nextInt(modified.length)] ^= (byte) (1 << r.nextInt(8));
+            boolean tweetAccepts = acceptsSignature(tweetSigner, modified, pk);
+            Assert.assertFalse(tweetAccepts);
+            Assert.assertEquals(tweetAccepts, acceptsSignature(fastSigner, modified, pk));
+        }
+    }
+
+    private static boolean acceptsSignature(Ed25519 signer, byte[] signed, byte[] pk) {
+        try {
+            signer.crypto_sign_open(signed, pk);
+            return true;
+        } catch (TweetNaCl.InvalidSignatureException e) {
+            return false;
+        }
+    }
+}
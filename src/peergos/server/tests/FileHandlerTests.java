@@ -2,12 +2,14 @@ package peergos.server.tests;
 import org.junit.Assert;
 import org.junit.Test;
 import  peergos.server.net.FileHandler;
+import peergos.server.net.PublicFileHandler;
 import peergos.server.net.StaticHandler;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Optional;
 
 public class FileHandlerTests {
     static final Path TEST_ROOT = Paths.get("test", "resources", "static_handler");
@@ -22,4 +24,28 @@ public class FileHandlerTests {
         StaticHandler.Asset hello = fileHandler.getAsset("test/hello.txt");
         Assert.assertEquals(new String(hello.data), "Hello, Peergos!");
     }
+
+    @Test
+    public void parseRanges() {
+        long size = 1000;
+        PublicFileHandler.ByteRange start = PublicFileHandler.ByteRange.parse("bytes=0-99", size).get();
+        Assert.assertEquals(0, start.start);
+        Assert.assertEquals(100, start.length());
+
+        PublicFileHandler.ByteRange open = PublicFileHandler.ByteRange.parse("bytes=900-", size).get();
+        Assert.assertEquals(999, open.end);
+
+        PublicFileHandler.ByteRange suffix = PublicFileHandler.ByteRange.parse("bytes=-100", size).get();
+        Assert.assertEquals(900, suffix.start);
+        Assert.assertEquals(999, suffix.end);
+
+        PublicFileHandler.ByteRange clipped = PublicFileHandler.ByteRange.parse("bytes=500-5000", size).get();
+        Assert.assertEquals(999, clipped.end);
+
+        Assert.assertFalse(PublicFileHandler.ByteRange.parse("bytes=1000-", size).get().isSatisfiable());
+        Assert.assertEquals(Optional.empty(), PublicFileHandler.ByteRange.parse("bytes=0-1,5-6", size));
+        Assert.assertEquals(Optional.empty(), PublicFileHandler.ByteRange.parse("bytes=5-1", size));
+        Assert.assertEquals(Optional.empty(), PublicFileHandler.ByteRange.parse("items=0-1", size));
+        Assert.assertEquals(Optional.empty(), PublicFileHandler.ByteRange.parse(null, size));
+    }
 }
@@ -5,6 +5,7 @@ import org.junit.runner.*;
 import org.junit.runners.*;
 import peergos.shared.cbor.*;
 import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
 import peergos.shared.util.*;
 
 import java.io.*;
@@ -67,6 +68,47 @@ public class FragmenterTest {
     }
 
 
+    @Test
+    public void compatibleWithPolynomialEncoding() {
+        Assume.assumeTrue(fragmenter instanceof ErasureFragmenter);
+        int original = ErasureFragmenter.ERASURE_ORIGINAL, failures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        byte[] input = new byte[random.nextInt(1024 * 1024)];
+        random.nextBytes(input);
+
+        byte[][] split = Erasure.split(input, original, failures);
+        byte[][] polynomialSplit = Erasure.split(input, new GaloisField256(), original, failures);
+        assertTrue("Same fragments as polynomial encoding", Arrays.deepEquals(split, polynomialSplit));
+        assertTrue("recombine(split(input)) = input", Arrays.equals(input, fragmenter.recombine(polynomialSplit, input.length)));
+    }
+
+    @Test
+    public void recoverMissingFragments() {
+        Assume.assumeTrue(fragmenter instanceof ErasureFragmenter);
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        random.nextBytes(input);
+        byte[][] split = fragmenter.split(input);
+
+        // lose up to twice the allowed failures, from both the data and the parity fragments
+        int maxLost = 2 * ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        for (int lost = 1; lost <= maxLost; lost++) {
+            byte[][] damaged = split.clone();
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < damaged.length; i++)
+                indices.add(i);
+            Collections.shuffle(indices, random);
+            for (int i = 0; i < lost; i++)
+                damaged[indices.get(i)] = i % 2 == 0 ? null : new byte[0];
+            assertTrue("Recovered with " + lost + " missing fragments", Arrays.equals(input, fragmenter.recombine(damaged, input.length)));
+        }
+    }
+
+    @Test
+    public void emptyInput() {
+        byte[][] split = fragmenter.split(new byte[0]);
+        assertEquals(0, fragmenter.recombine(split, 0).length);
+        assertEquals(0, Erasure.recombine(Erasure.split(new byte[0], 40, 10), 0, 40, 10).length);
+    }
+
     @Test
     public void serializationTest() throws IOException {
         byte[] raw = fragmenter.serialize();
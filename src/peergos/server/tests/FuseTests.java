@@ -1,4 +1,5 @@
 package peergos.server.tests;
+import peergos.server.crypto.*;
 import java.util.logging.*;
 
 import peergos.server.Main;
@@ -44,7 +45,7 @@ public class FuseTests {
 
         Main.PKI.main(args);
         NetworkAccess network = NetworkAccess.buildJava(WEB_PORT).get();
-        UserContext userContext = UserContext.ensureSignedUp(username, password, network, Crypto.initJava()).get();
+        UserContext userContext = UserContext.ensureSignedUp(username, password, network, JavaCrypto.init()).get();
 
         String mountPath = args.getArg("mountPoint", "/tmp/peergos/tmp");
 
@@ -0,0 +1,184 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class GarbageCollectorTests {
+    private static final PublicKeyHash OWNER = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+    @Test
+    public void deletesOnlyUnprotectedBlocks() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc");
+        FileContentAddressedStorage store = new FileContentAddressedStorage(dir);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+        Random r = new Random(42);
+
+        TransactionId closed = store.startTransaction(owner).get();
+        List<byte[]> garbage = new ArrayList<>();
+        for (int i=0; i < 20; i++)
+            garbage.add(randomBlock(r));
+        List<Multihash> garbageHashes = store.putRaw(owner, owner, signatures(garbage), garbage, closed).get();
+        store.closeTransaction(owner, closed).get();
+
+        TransactionId open = store.startTransaction(owner).get();
+        List<byte[]> inTransaction = Arrays.asList(randomBlock(r));
+        List<Multihash> inTransactionHashes = store.putRaw(owner, owner, signatures(inTransaction), inTransaction, open).get();
+
+        long old = System.currentTimeMillis() - 60_000;
+        for (Multihash h : garbageHashes)
+            setModified(dir, h, old);
+        for (Multihash h : inTransactionHashes)
+            setModified(dir, h, old);
+
+        List<Multihash> deleted = new ArrayList<>();
+        GarbageCollector gc = new GarbageCollector(store, store,
+                () -> CompletableFuture.completedFuture(Collections.emptyMap()), deleted::add, 4);
+        GarbageCollector.Result res = gc.collect().get();
+
+        Assert.assertEquals(garbageHashes.size(), res.deletedBlocks);
+        Assert.assertEquals(new HashSet<>(garbageHashes), new HashSet<>(deleted));
+        long garbageSize = garbage.stream().mapToLong(b -> b.length).sum();
+        Assert.assertEquals(garbageSize, res.reclaimedBytes);
+        for (Multihash h : garbageHashes)
+            Assert.assertFalse(store.contains(h));
+        for (Multihash h : inTransactionHashes)
+            Assert.assertTrue("Blocks in open transactions are kept", store.contains(h));
+    }
+
+    @Test
+    public void keepsBlocksPutDuringSweep() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc");
+        FileContentAddressedStorage store = new FileContentAddressedStorage(dir);
+        Random r = new Random(43);
+        List<byte[]> garbage = new ArrayList<>();
+        for (int i=0; i < 50; i++)
+            garbage.add(randomBlock(r));
+        List<Multihash> garbageHashes = putOld(store, dir, garbage);
+
+        // re-put every garbage block after the first deletion, whether or not it has been swept yet
+        List<byte[]> added = Arrays.asList(randomBlock(r));
+        Set<Multihash> rewritten = ConcurrentHashMap.newKeySet();
+        AtomicBoolean putDone = new AtomicBoolean(false);
+        GarbageCollector gc = new GarbageCollector(store, store,
+                () -> CompletableFuture.completedFuture(Collections.emptyMap()), h -> {
+            synchronized (putDone) {
+                if (putDone.get())
+                    return;
+                List<byte[]> blocks = new ArrayList<>(garbage);
+                blocks.addAll(added);
+                rewritten.addAll(putRaw(store, blocks));
+                putDone.set(true);
+            }
+        }, 4);
+        GarbageCollector.Result res = gc.collect().get();
+
+        Assert.assertTrue(putDone.get());
+        Assert.assertTrue(res.deletedBlocks >= 1);
+        Assert.assertEquals(garbageHashes.size() + added.size(), rewritten.size());
+        for (Multihash h : rewritten)
+            Assert.assertTrue("Blocks put during the sweep are kept", store.contains(h));
+    }
+
+    @Test
+    public void keepsBlocksOfTransactionClosedDuringGc() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc");
+        FileContentAddressedStorage store = new FileContentAddressedStorage(dir);
+        Random r = new Random(44);
+        List<Multihash> garbageHashes = putOld(store, dir, Arrays.asList(randomBlock(r), randomBlock(r)));
+
+        TransactionId tid = store.startTransaction(OWNER).get();
+        List<byte[]> inTransaction = Arrays.asList(randomBlock(r), randomBlock(r));
+        List<Multihash> inTransactionHashes = store.putRaw(OWNER, OWNER, signatures(inTransaction), inTransaction, tid).get();
+        long old = System.currentTimeMillis() - 60_000;
+        for (Multihash h : inTransactionHashes)
+            setModified(dir, h, old);
+
+        // the roots are read after the collection starts, before the sweep
+        GarbageCollector gc = new GarbageCollector(store, store, () -> {
+            store.closeTransaction(OWNER, tid).join();
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }, h -> {}, 4);
+        GarbageCollector.Result res = gc.collect().get();
+
+        Assert.assertEquals(garbageHashes.size(), res.deletedBlocks);
+        for (Multihash h : inTransactionHashes)
+            Assert.assertTrue("Blocks of a transaction which closed during GC are kept", store.contains(h));
+
+        GarbageCollector.Result next = gc.collect().get();
+        Assert.assertEquals("Collected by the next GC", inTransactionHashes.size(), next.deletedBlocks);
+    }
+
+    @Test
+    public void keepsBlocksWrittenAfterStart() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-gc");
+        FileContentAddressedStorage store = new FileContentAddressedStorage(dir);
+        Random r = new Random(45);
+        List<Multihash> garbageHashes = putOld(store, dir, Arrays.asList(randomBlock(r), randomBlock(r)));
+
+        // unreachable, but written outside any transaction after the collection started
+        List<Multihash> added = new ArrayList<>();
+        GarbageCollector gc = new GarbageCollector(store, store, () -> {
+            added.addAll(putRaw(store, Arrays.asList(randomBlock(r), randomBlock(r))));
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }, h -> {}, 4);
+        GarbageCollector.Result res = gc.collect().get();
+
+        Assert.assertEquals(garbageHashes.size(), res.deletedBlocks);
+        for (Multihash h : garbageHashes)
+            Assert.assertFalse(store.contains(h));
+        Assert.assertEquals(2, added.size());
+        for (Multihash h : added)
+            Assert.assertTrue("Blocks written after the start are kept", store.contains(h));
+    }
+
+    private static List<Multihash> putRaw(FileContentAddressedStorage store, List<byte[]> blocks) {
+        try {
+            TransactionId tid = store.startTransaction(OWNER).get();
+            List<Multihash> hashes = store.putRaw(OWNER, OWNER, signatures(blocks), blocks, tid).get();
+            store.closeTransaction(OWNER, tid).get();
+            return hashes;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Multihash> putOld(FileContentAddressedStorage store, Path dir, List<byte[]> blocks) {
+        List<Multihash> hashes = putRaw(store, blocks);
+        long old = System.currentTimeMillis() - 60_000;
+        for (Multihash h : hashes)
+            setModified(dir, h, old);
+        return hashes;
+    }
+
+    private static byte[] randomBlock(Random r) {
+        byte[] block = new byte[r.nextInt(1000) + 1];
+        r.nextBytes(block);
+        return block;
+    }
+
+    private static List<byte[]> signatures(List<byte[]> blocks) {
+        List<byte[]> res = new ArrayList<>();
+        for (int i=0; i < blocks.size(); i++)
+            res.add(new byte[0]);
+        return res;
+    }
+
+    private static void setModified(Path dir, Multihash h, long time) {
+        try {
+            Files.walk(dir)
+                    .filter(p -> p.getFileName().toString().equals(h.toString()))
+                    .forEach(p -> p.toFile().setLastModified(time));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class GetManyTests {
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+
+    /** Serves block/get-many from a local store, leaving the replies to be completed by the test
+     *
+     */
+    private static class QueuedPoster implements HttpPoster {
+        private final ContentAddressedStorage target;
+        final List<List<Multihash>> requests = new ArrayList<>();
+        final Deque<Runnable> replies = new ArrayDeque<>();
+        int inFlight, maxInFlight;
+
+        QueuedPoster(ContentAddressedStorage target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized CompletableFuture<byte[]> get(String url) {
+            List<Multihash> hashes = Stream.of(url.substring(url.indexOf('?') + 1).split("&"))
+                    .filter(p -> p.startsWith("arg="))
+                    .map(p -> Cid.decode(p.substring(4)))
+                    .collect(Collectors.toList());
+            requests.add(hashes);
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+            CompletableFuture<byte[]> res = new CompletableFuture<>();
+            replies.add(() -> {
+                try {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    ContentAddressedStorage.HTTP.writeFramedBlocks(target.getAllRaw(hashes).get(), new DataOutputStream(bout));
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    res.complete(bout.toByteArray());
+                } catch (Exception e) {
+                    res.completeExceptionally(e);
+                }
+            });
+            return res;
+        }
+
+        synchronized Runnable nextReply() {
+            return replies.pollFirst();
+        }
+
+        @Override
+        public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+            throw new IllegalStateException("Unimplemented");
+        }
+
+        @Override
+        public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+            throw new IllegalStateException("Unimplemented");
+        }
+
+        @Override
+        public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+            throw new IllegalStateException("Unimplemented");
+        }
+    }
+
+    private static List<byte[]> randomBlocks(Random r, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] block = new byte[r.nextInt(100)];
+                    r.nextBytes(block);
+                    return block;
+                }).collect(Collectors.toList());
+    }
+
+    private static List<Multihash> put(ContentAddressedStorage storage, List<byte[]> blocks) throws Exception {
+        List<byte[]> signatures = blocks.stream().map(b -> new byte[0]).collect(Collectors.toList());
+        TransactionId tid = storage.startTransaction(owner).get();
+        List<Multihash> res = storage.putRaw(owner, owner, signatures, blocks, tid).get();
+        storage.closeTransaction(owner, tid).get();
+        return res;
+    }
+
+    @Test
+    public void framingRoundTrip() throws Exception {
+        List<Optional<byte[]>> blocks = Arrays.asList(
+                Optional.of(new byte[]{1, 2, 3}),
+                Optional.empty(),
+                Optional.of(new byte[0]),
+                Optional.of(new byte[1000]),
+                Optional.empty());
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ContentAddressedStorage.HTTP.writeFramedBlocks(blocks, new DataOutputStream(bout));
+        List<Optional<byte[]>> parsed = ContentAddressedStorage.HTTP.parseFramedBlocks(bout.toByteArray());
+
+        Assert.assertEquals(blocks.size(), parsed.size());
+        for (int i=0; i < blocks.size(); i++) {
+            Assert.assertEquals(blocks.get(i).isPresent(), parsed.get(i).isPresent());
+            if (blocks.get(i).isPresent())
+                Assert.assertArrayEquals(blocks.get(i).get(), parsed.get(i).get());
+        }
+        Assert.assertTrue(ContentAddressedStorage.HTTP.parseFramedBlocks(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void batchesAreBoundedAndInOrder() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        Random r = new Random(7);
+        List<Multihash> hashes = new ArrayList<>(put(ram, randomBlocks(r, 1000)));
+        Multihash missing = new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(new byte[]{42}));
+        hashes.add(500, missing);
+
+        QueuedPoster poster = new QueuedPoster(ram);
+        ContentAddressedStorage.HTTP http = new ContentAddressedStorage.HTTP(poster, true);
+        CompletableFuture<List<Optional<byte[]>>> result = http.getAllRaw(hashes);
+        Runnable reply;
+        while ((reply = poster.nextReply()) != null)
+            reply.run();
+
+        List<Optional<byte[]>> blocks = result.get();
+        int maxBatches = (hashes.size() + ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET - 1) / ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET;
+        Assert.assertEquals(maxBatches, poster.requests.size());
+        Assert.assertTrue(poster.requests.stream().allMatch(req -> req.size() <= ContentAddressedStorage.HTTP.MAX_BLOCKS_PER_GET));
+        Assert.assertEquals(ContentAddressedStorage.HTTP.MAX_CONCURRENT_GETS, poster.maxInFlight);
+
+        Assert.assertEquals(hashes.size(), blocks.size());
+        for (int i=0; i < hashes.size(); i++) {
+            if (i == 500)
+                Assert.assertFalse(blocks.get(i).isPresent());
+            else
+                Assert.assertArrayEquals(ram.getRaw(hashes.get(i)).get().get(), blocks.get(i).get());
+        }
+    }
+
+    @Test
+    public void cachingStorageMergesHitsAndMisses() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        Random r = new Random(8);
+        List<byte[]> blocks = randomBlocks(r, 100);
+        List<Multihash> hashes = put(ram, blocks);
+        CachingStorage cache = new CachingStorage(ram, 1024 * 1024, 1024);
+        for (int i=0; i < hashes.size(); i += 2)
+            cache.getRaw(hashes.get(i)).get();
+
+        List<Optional<byte[]>> all = cache.getAllRaw(hashes).get();
+        for (int i=0; i < hashes.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), all.get(i).get());
+        Assert.assertEquals(50, cache.getCache().hitCount());
+    }
+}
@@ -0,0 +1,124 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class JavaPosterTests {
+
+    private HttpServer server;
+    private ExecutorService dispatch;
+    private URL base;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        dispatch = Executors.newCachedThreadPool();
+        server.setExecutor(dispatch);
+        server.start();
+        base = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+        dispatch.shutdown();
+    }
+
+    private static void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+        try {
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void boundsConcurrentRequests() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger(0);
+        AtomicInteger maxInFlight = new AtomicInteger(0);
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/slow", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                release.await();
+                Serialize.readFully(exchange.getRequestBody());
+                inFlight.decrementAndGet();
+                reply(exchange, 200, new byte[]{1});
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        });
+        JavaPoster poster = new JavaPoster(base, 2);
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (int i=0; i < 6; i++)
+            results.add(poster.post("slow", new byte[]{(byte) i}, false));
+
+        long end = System.currentTimeMillis() + 5_000;
+        while (inFlight.get() < 2 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Thread.sleep(100);
+        Assert.assertEquals(2, inFlight.get());
+        for (CompletableFuture<byte[]> res : results)
+            Assert.assertFalse("Requests complete asynchronously", res.isDone());
+
+        release.countDown();
+        for (CompletableFuture<byte[]> res : results)
+            Assert.assertArrayEquals(new byte[]{1}, res.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void postsHaveFixedLength() throws Exception {
+        Map<String, String> lengths = new ConcurrentHashMap<>();
+        server.createContext("/echo", exchange -> {
+            Headers headers = exchange.getRequestHeaders();
+            if (headers.containsKey("Transfer-encoding"))
+                lengths.put(exchange.getRequestURI().getPath(), "chunked");
+            else
+                lengths.put(exchange.getRequestURI().getPath(), headers.getFirst("Content-length"));
+            reply(exchange, 200, Serialize.readFully(exchange.getRequestBody()));
+        });
+        JavaPoster poster = new JavaPoster(base);
+
+        byte[] payload = new byte[100_000];
+        new Random(1).nextBytes(payload);
+        Assert.assertArrayEquals(payload, poster.post("echo/post", payload, false).get());
+        Assert.assertEquals(Integer.toString(payload.length), lengths.get("/echo/post"));
+
+        List<byte[]> files = Arrays.asList("hello".getBytes(), payload);
+        byte[] echoed = poster.postMultipart("echo/multipart", files).get();
+        String body = new String(echoed, StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(body.contains("hello"));
+        Assert.assertTrue(body.contains(new String(payload, StandardCharsets.ISO_8859_1).replace("\r", "").replace("\n", "")));
+        // the multipart response has its line breaks removed, so compare against the declared length
+        Assert.assertNotEquals("chunked", lengths.get("/echo/multipart"));
+        Assert.assertTrue(Long.parseLong(lengths.get("/echo/multipart")) > payload.length + 5);
+    }
+
+    @Test
+    public void errorsIncludeTrailer() throws Exception {
+        server.createContext("/fail", exchange -> {
+            Serialize.readFully(exchange.getRequestBody());
+            exchange.getResponseHeaders().set("Trailer", "Storage is full");
+            reply(exchange, 500, new byte[0]);
+        });
+        JavaPoster poster = new JavaPoster(base);
+        try {
+            poster.post("fail", new byte[10], false).get();
+            Assert.fail("Request should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+            Assert.assertEquals("Storage is full", e.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.mutable.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class LogMutablePointersTests {
+    private static final Crypto crypto = JavaCrypto.init();
+
+    private static byte[] signedCas(SigningPrivateKeyAndPublicHash writer, MaybeMultihash original, Multihash updated) {
+        return writer.secret.signMessage(new HashCasPair(original, MaybeMultihash.of(updated)).serialize());
+    }
+
+    /** Lets a test hold a log write until it has queued more updates, and fail a chosen log write
+     */
+    private static class ControlledLog extends LogMutablePointers {
+        final AtomicInteger appends = new AtomicInteger(0);
+        volatile int failAppend = -1;
+        volatile CountDownLatch entered = new CountDownLatch(0), release = new CountDownLatch(0);
+
+        ControlledLog(Path dir, RAMStorage storage, long maxLogBytes) throws IOException {
+            super(dir, storage, maxLogBytes);
+        }
+
+        @Override
+        protected void appendToLog(ByteBuffer buf) throws IOException {
+            int append = appends.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (append == failAppend) {
+                // leave a partial record behind, like a failed write could
+                buf.limit(buf.limit() / 2);
+                super.appendToLog(buf);
+                throw new IOException("Disk full");
+            }
+            super.appendToLog(buf);
+        }
+
+        /** Hold the next log write until the returned latch is released
+         */
+        CountDownLatch holdNext() {
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+            return release;
+        }
+    }
+
+    private static MaybeMultihash target(LogMutablePointers pointers, SigningPrivateKeyAndPublicHash writer,
+                                         RAMStorage storage) throws Exception {
+        return pointers.getPointerTarget(writer.publicKeyHash, writer.publicKeyHash, storage).get();
+    }
+
+    private static CompletableFuture<Boolean> set(LogMutablePointers pointers,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  MaybeMultihash original,
+                                                  Multihash updated) {
+        return pointers.setPointer(writer.publicKeyHash, writer.publicKeyHash, signedCas(writer, original, updated));
+    }
+
+    private static boolean failed(CompletableFuture<Boolean> result) {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void failedBatchIsRolledBack() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pointers");
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash writer = ChampTests.createUser(storage, crypto);
+        Random r = new Random(8);
+        ControlledLog pointers = new ControlledLog(dir, storage, 1_000_000);
+
+        Multihash first = randomHash(r), second = randomHash(r), third = randomHash(r), fourth = randomHash(r);
+        Assert.assertTrue(set(pointers, writer, MaybeMultihash.empty(), first).get());
+
+        CountDownLatch release = pointers.holdNext();
+        CompletableFuture<Boolean> toSecond = set(pointers, writer, MaybeMultihash.of(first), second);
+        pointers.entered.await();
+        // based on the update which is being logged
+        CompletableFuture<Boolean> toThird = set(pointers, writer, MaybeMultihash.of(second), third);
+        Assert.assertEquals("Readers only see logged updates", MaybeMultihash.of(first), target(pointers, writer, storage));
+
+        pointers.failAppend = pointers.appends.get();
+        release.countDown();
+        Assert.assertTrue(failed(toSecond));
+        Assert.assertTrue("Updates based on a failed update fail", failed(toThird));
+        Assert.assertEquals(MaybeMultihash.of(first), target(pointers, writer, storage));
+
+        // the rolled back value is the current one for the next compare and swap
+        Assert.assertTrue(set(pointers, writer, MaybeMultihash.of(first), fourth).get());
+        Assert.assertEquals(MaybeMultihash.of(fourth), target(pointers, writer, storage));
+
+        LogMutablePointers reloaded = new LogMutablePointers(dir, storage, 1_000_000);
+        Assert.assertEquals(MaybeMultihash.of(fourth), target(reloaded, writer, storage));
+    }
+
+    @Test
+    public void snapshotExcludesUnloggedUpdates() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pointers");
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash writer = ChampTests.createUser(storage, crypto);
+        Random r = new Random(9);
+        // snapshot after every batch
+        ControlledLog pointers = new ControlledLog(dir, storage, 1);
+
+        Multihash first = randomHash(r), second = randomHash(r);
+        CountDownLatch release = pointers.holdNext();
+        CompletableFuture<Boolean> toFirst = set(pointers, writer, MaybeMultihash.empty(), first);
+        pointers.entered.await();
+        // queued while the snapshot after the first update is taken, and then fails to be logged
+        CompletableFuture<Boolean> toSecond = set(pointers, writer, MaybeMultihash.of(first), second);
+        pointers.failAppend = pointers.appends.get() + 1;
+        release.countDown();
+
+        Assert.assertTrue(toFirst.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(failed(toSecond));
+        Assert.assertEquals(MaybeMultihash.of(first), target(pointers, writer, storage));
+
+        LogMutablePointers reloaded = new LogMutablePointers(dir, storage, 1);
+        Assert.assertEquals("A failed update doesn't come back after a restart",
+                MaybeMultihash.of(first), target(reloaded, writer, storage));
+    }
+
+    private static Multihash randomHash(Random r) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Multihash(Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void casAndRecovery() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-pointers");
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash writer = ChampTests.createUser(storage, crypto);
+        Random r = new Random(7);
+        // a small log, so we snapshot during the test
+        LogMutablePointers pointers = new LogMutablePointers(dir, storage, 1024);
+
+        Multihash first = randomHash(r);
+        Assert.assertTrue(pointers.setPointer(writer.publicKeyHash, writer.publicKeyHash,
+                signedCas(writer, MaybeMultihash.empty(), first)).get());
+        Assert.assertFalse("Stale original is rejected", pointers.setPointer(writer.publicKeyHash, writer.publicKeyHash,
+                signedCas(writer, MaybeMultihash.empty(), randomHash(r))).get());
+
+        // many concurrent updates from the same original, only one of which can succeed
+        Multihash current = first;
+        for (int i=0; i < 20; i++) {
+            MaybeMultihash original = MaybeMultihash.of(current);
+            List<Multihash> candidates = IntStream.range(0, 10)
+                    .mapToObj(x -> randomHash(r))
+                    .collect(Collectors.toList());
+            List<CompletableFuture<Boolean>> results = candidates.stream()
+                    .map(h -> CompletableFuture.supplyAsync(() -> signedCas(writer, original, h))
+                            .thenCompose(signed -> pointers.setPointer(writer.publicKeyHash, writer.publicKeyHash, signed)))
+                    .collect(Collectors.toList());
+            int successes = 0;
+            for (int j=0; j < candidates.size(); j++)
+                if (results.get(j).get()) {
+                    successes++;
+                    current = candidates.get(j);
+                }
+            Assert.assertEquals("Exactly one concurrent cas succeeds", 1, successes);
+        }
+        Assert.assertEquals(MaybeMultihash.of(current),
+                pointers.getPointerTarget(writer.publicKeyHash, writer.publicKeyHash, storage).get());
+
+        LogMutablePointers reloaded = new LogMutablePointers(dir, storage, 1024);
+        Assert.assertEquals(MaybeMultihash.of(current),
+                reloaded.getPointerTarget(writer.publicKeyHash, writer.publicKeyHash, storage).get());
+        Assert.assertEquals(1, reloaded.getAllPointers().get().size());
+    }
+}
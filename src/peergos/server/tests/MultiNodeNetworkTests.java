@@ -1,5 +1,6 @@
 package peergos.server.tests;
 
+import peergos.server.crypto.*;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -32,7 +33,7 @@ public class MultiNodeNetworkTests {
     private static Random random = new Random(0);
     private static List<NetworkAccess> nodes = new ArrayList<>();
 
-    private final Crypto crypto = Crypto.initJava();
+    private final Crypto crypto = JavaCrypto.init();
 
     private final int iNode1, iNode2;
 
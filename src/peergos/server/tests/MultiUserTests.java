@@ -1,5 +1,6 @@
 package peergos.server.tests;
 
+import peergos.server.crypto.*;
 import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
@@ -36,7 +37,7 @@ public class MultiUserTests {
     private static Args args = UserTests.buildArgs();
     private Random random = new Random();
     private final NetworkAccess network;
-    private static final Crypto crypto = Crypto.initJava();
+    private static final Crypto crypto = JavaCrypto.init();
     private final int userCount;
 
     public MultiUserTests(Args args, int userCount) throws Exception {
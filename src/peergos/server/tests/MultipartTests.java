@@ -74,6 +74,39 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void boundaryPrefixesInData() throws IOException {
+        List<byte[]> input = new ArrayList<>();
+        input.add(new byte[0]);
+        input.add("\r\n--".getBytes());
+        input.add("--\r\n\r\n".getBytes());
+        byte[] partialBoundary = randomArray(100_000);
+        System.arraycopy("\r\n--===".getBytes(), 0, partialBoundary, 50_000, 7);
+        input.add(partialBoundary);
+        test(input);
+    }
+
+    @Test
+    public void sizeHintOnlySetsInitialCapacity() throws IOException {
+        String boundary = "xyz";
+        List<byte[]> input = Arrays.asList(randomArray(3_000_000), randomArray(10));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (byte[] part : input) {
+            bout.write(("--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes());
+            bout.write(part);
+            bout.write("\r\n".getBytes());
+        }
+        bout.write(("--" + boundary + "--\r\n").getBytes());
+        byte[] body = bout.toByteArray();
+
+        for (int hint : Arrays.asList(Integer.MAX_VALUE, -1, 0, 10, body.length)) {
+            List<MultipartReceiver.Part> parts = MultipartReceiver.extractParts(new ByteArrayInputStream(body), boundary, hint);
+            Assert.assertEquals(input.size(), parts.size());
+            for (int i=0; i < input.size(); i++)
+                Assert.assertArrayEquals("Hint " + hint, input.get(i), parts.get(i).toByteArray());
+        }
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
@@ -0,0 +1,200 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.crypto.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class MutableTreeTests {
+    private static final Crypto crypto = JavaCrypto.init();
+
+    /** Counts pointer updates, and can be made to reject them
+     *
+     */
+    private static class CountingPointers implements MutablePointers {
+        private final MutablePointers target;
+        final AtomicInteger updates = new AtomicInteger(0);
+        volatile boolean reject = false;
+
+        CountingPointers(MutablePointers target) {
+            this.target = target;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signed) {
+            if (reject)
+                return CompletableFuture.completedFuture(false);
+            updates.incrementAndGet();
+            return target.setPointer(owner, writer, signed);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+            return target.getPointer(owner, writer);
+        }
+    }
+
+    private final RAMStorage storage = new RAMStorage();
+    private final SigningPrivateKeyAndPublicHash writer = ChampTests.createUser(storage, crypto);
+    private final PublicKeyHash owner = writer.publicKeyHash;
+    private final CountingPointers pointers;
+    private final MutableTree tree;
+    private final Random r = new Random(11);
+
+    public MutableTreeTests() throws Exception {
+        pointers = new CountingPointers(UserRepository.buildSqlLite(":memory:", storage, 1000));
+        tree = new MutableTreeImpl(pointers, storage);
+    }
+
+    private byte[] randomKey() {
+        byte[] key = new byte[32];
+        r.nextBytes(key);
+        return key;
+    }
+
+    private Multihash randomHash() {
+        return new Multihash(Multihash.Type.sha2_256, randomKey());
+    }
+
+    private void init(MutableTree tree) throws Exception {
+        tree.batch(owner, writer, tid -> tree.put(owner, writer, randomKey(), MaybeMultihash.empty(), randomHash(), tid)).get();
+    }
+
+    @Test
+    public void batchCommitsOnce() throws Exception {
+        init(tree);
+        int before = pointers.updates.get();
+        Map<ByteArrayWrapper, Multihash> values = new HashMap<>();
+        for (int i=0; i < 50; i++)
+            values.put(new ByteArrayWrapper(randomKey()), randomHash());
+
+        tree.batch(owner, writer, tid -> {
+            CompletableFuture<Boolean> all = CompletableFuture.completedFuture(true);
+            for (Map.Entry<ByteArrayWrapper, Multihash> e : values.entrySet())
+                all = all.thenCompose(b -> tree.put(owner, writer, e.getKey().data, MaybeMultihash.empty(), e.getValue(), tid));
+            // a nested batch given our transaction is part of this one
+            byte[] nestedKey = randomKey();
+            Multihash nestedValue = randomHash();
+            values.put(new ByteArrayWrapper(nestedKey), nestedValue);
+            return all.thenCompose(b -> tree.batch(owner, writer, tid,
+                    t -> tree.put(owner, writer, nestedKey, MaybeMultihash.empty(), nestedValue, t)));
+        }).get();
+
+        Assert.assertEquals(1, pointers.updates.get() - before);
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : values.entrySet())
+            Assert.assertEquals(MaybeMultihash.of(e.getValue()), tree.get(owner, owner, e.getKey().data).get());
+    }
+
+    @Test
+    public void writesInOtherTransactionsWaitForTheBatch() throws Exception {
+        init(tree);
+        byte[] batchKey = randomKey(), otherKey = randomKey();
+        Multihash batchValue = randomHash(), otherValue = randomHash();
+        CompletableFuture<Boolean> release = new CompletableFuture<>();
+        CompletableFuture<Boolean> batch = tree.batch(owner, writer, tid ->
+                tree.put(owner, writer, batchKey, MaybeMultihash.empty(), batchValue, tid)
+                        .thenCompose(b -> release));
+
+        TransactionId otherTid = storage.startTransaction(owner).get();
+        CompletableFuture<Boolean> other = tree.put(owner, writer, otherKey, MaybeMultihash.empty(), otherValue, otherTid);
+        Thread.sleep(100);
+        Assert.assertFalse("An unrelated write isn't part of the batch", other.isDone());
+
+        release.complete(true);
+        Assert.assertTrue(batch.get());
+        Assert.assertTrue(other.get());
+        Assert.assertEquals(MaybeMultihash.of(batchValue), tree.get(owner, owner, batchKey).get());
+        Assert.assertEquals(MaybeMultihash.of(otherValue), tree.get(owner, owner, otherKey).get());
+    }
+
+    @Test
+    public void commitFailureIsReported() throws Exception {
+        init(tree);
+        pointers.reject = true;
+        byte[] key = randomKey();
+        CompletableFuture<Boolean> batch = tree.batch(owner, writer,
+                tid -> tree.put(owner, writer, key, MaybeMultihash.empty(), randomHash(), tid));
+        try {
+            batch.get();
+            Assert.fail("Batch should fail if it can't be committed");
+        } catch (ExecutionException expected) {}
+
+        pointers.reject = false;
+        Assert.assertEquals(MaybeMultihash.empty(), tree.get(owner, owner, key).get());
+        // the writer is still usable afterwards
+        Multihash value = randomHash();
+        tree.batch(owner, writer, tid -> tree.put(owner, writer, key, MaybeMultihash.empty(), value, tid)).get();
+        Assert.assertEquals(MaybeMultihash.of(value), tree.get(owner, owner, key).get());
+    }
+
+    @Test
+    public void concurrentChangesAreMerged() throws Exception {
+        init(tree);
+        MutableTree otherClient = new MutableTreeImpl(pointers, storage);
+        byte[] ours = randomKey(), theirs = randomKey(), removed = randomKey();
+        Multihash ourValue = randomHash(), theirValue = randomHash(), removedValue = randomHash();
+        tree.batch(owner, writer, tid -> tree.put(owner, writer, removed, MaybeMultihash.empty(), removedValue, tid)).get();
+
+        tree.batch(owner, writer, tid -> tree.put(owner, writer, ours, MaybeMultihash.empty(), ourValue, tid)
+                .thenCompose(b -> tree.remove(owner, writer, removed, MaybeMultihash.of(removedValue), tid))
+                .thenCompose(b -> IpfsTransaction.call(owner, otherTid ->
+                        otherClient.put(owner, writer, theirs, MaybeMultihash.empty(), theirValue, otherTid), storage))).get();
+
+        Assert.assertEquals(MaybeMultihash.of(ourValue), tree.get(owner, owner, ours).get());
+        Assert.assertEquals(MaybeMultihash.of(theirValue), tree.get(owner, owner, theirs).get());
+        Assert.assertEquals(MaybeMultihash.empty(), tree.get(owner, owner, removed).get());
+    }
+
+    @Test
+    public void conflictingChangesFail() throws Exception {
+        init(tree);
+        MutableTree otherClient = new MutableTreeImpl(pointers, storage);
+        byte[] key = randomKey();
+        Multihash theirValue = randomHash();
+
+        CompletableFuture<Boolean> batch = tree.batch(owner, writer, tid ->
+                tree.put(owner, writer, key, MaybeMultihash.empty(), randomHash(), tid)
+                        .thenCompose(b -> IpfsTransaction.call(owner, otherTid ->
+                                otherClient.put(owner, writer, key, MaybeMultihash.empty(), theirValue, otherTid), storage)));
+        try {
+            batch.get();
+            Assert.fail("Batch should fail when another client changed the same key");
+        } catch (ExecutionException expected) {}
+        Assert.assertEquals(MaybeMultihash.of(theirValue), otherClient.get(owner, owner, key).get());
+    }
+
+    @Test
+    public void bufferedStorageOnlyWritesReachableBlocks() throws Exception {
+        BufferedStorage buffer = new BufferedStorage(storage);
+        TransactionId tid = storage.startTransaction(owner).get();
+        byte[] unreachable = new CborObject.CborString("unreachable").serialize();
+        byte[] leaf = new CborObject.CborString("leaf").serialize();
+        Multihash unreachableHash = buffer.put(owner, writer, unreachable, tid).get();
+        Multihash leafHash = buffer.put(owner, writer, leaf, tid).get();
+        Map<String, CborObject> links = new TreeMap<>();
+        links.put("leaf", new CborObject.CborMerkleLink(leafHash));
+        byte[] root = CborObject.CborMap.build(links).serialize();
+        Multihash rootHash = buffer.put(owner, writer, root, tid).get();
+
+        Assert.assertArrayEquals(leaf, buffer.getRaw(leafHash).get().get());
+        Assert.assertFalse("Nothing is written before commit", storage.getRaw(rootHash).get().isPresent());
+
+        buffer.commit(owner, owner, rootHash, tid).get();
+        Assert.assertArrayEquals(root, storage.getRaw(rootHash).get().get());
+        Assert.assertArrayEquals(leaf, storage.getRaw(leafHash).get().get());
+        Assert.assertFalse(storage.getRaw(unreachableHash).get().isPresent());
+    }
+}
@@ -1,5 +1,6 @@
 package peergos.server.tests;
 
+import peergos.server.crypto.*;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -28,7 +29,7 @@ public class P2pStreamNetworkTests {
     private static Random random = new Random(0);
     private static List<NetworkAccess> nodes = new ArrayList<>();
 
-    private final Crypto crypto = Crypto.initJava();
+    private final Crypto crypto = JavaCrypto.init();
 
     @BeforeClass
     public static void init() throws Exception {
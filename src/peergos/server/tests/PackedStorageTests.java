@@ -0,0 +1,138 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackedStorageTests {
+
+    private static byte[] randomBlock(Random r, int maxSize) {
+        byte[] block = new byte[r.nextInt(maxSize) + 1];
+        r.nextBytes(block);
+        return block;
+    }
+
+    private static List<Path> segments(Path dir) {
+        return Stream.of(dir.toFile().listFiles())
+                .map(File::toPath)
+                .filter(p -> p.getFileName().toString().startsWith("segment-"))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void putAndGetAcrossSegments() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        PackedContentAddressedStorage store = new PackedContentAddressedStorage(dir, 10_000);
+        Random r = new Random(1);
+        List<byte[]> blocks = IntStream.range(0, 100)
+                .mapToObj(i -> randomBlock(r, 1000))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = store.put(blocks, true);
+        Assert.assertTrue("Full segments are rolled", segments(dir).size() > 1);
+
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), store.getRaw(hashes.get(i)).get().get());
+        List<Optional<byte[]>> all = store.getAllRaw(hashes).get();
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), all.get(i).get());
+        Assert.assertEquals(blocks.get(0).length, (int) store.getSize(hashes.get(0)).get().get());
+
+        Assert.assertEquals("Duplicate blocks are not rewritten", hashes.subList(0, 1), store.put(blocks.subList(0, 1), true));
+        long totalSize = segments(dir).stream().mapToLong(p -> p.toFile().length()).sum();
+        store.close();
+
+        PackedContentAddressedStorage reopened = new PackedContentAddressedStorage(dir, 10_000);
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), reopened.getRaw(hashes.get(i)).get().get());
+        Assert.assertEquals(totalSize, segments(dir).stream().mapToLong(p -> p.toFile().length()).sum());
+        reopened.close();
+    }
+
+    @Test
+    public void partialRecordIsTruncatedOnLoad() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        PackedContentAddressedStorage store = new PackedContentAddressedStorage(dir);
+        Random r = new Random(2);
+        List<byte[]> blocks = Arrays.asList(randomBlock(r, 1000), randomBlock(r, 1000));
+        List<Multihash> hashes = store.put(blocks, false);
+        store.close();
+
+        Path segment = segments(dir).get(0);
+        long fullSize = segment.toFile().length();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(fullSize - 3);
+        }
+
+        PackedContentAddressedStorage reopened = new PackedContentAddressedStorage(dir);
+        Assert.assertArrayEquals(blocks.get(0), reopened.getRaw(hashes.get(0)).get().get());
+        Assert.assertFalse(reopened.contains(hashes.get(1)));
+        Assert.assertEquals(fullSize - 3 - blocks.get(1).length - hashes.get(1).toBytes().length - 9,
+                segment.toFile().length());
+
+        List<Multihash> rewritten = reopened.put(blocks.subList(1, 2), false);
+        Assert.assertEquals(hashes.get(1), rewritten.get(0));
+        Assert.assertArrayEquals(blocks.get(1), reopened.getRaw(hashes.get(1)).get().get());
+        reopened.close();
+    }
+
+    @Test
+    public void retainOnlyCompactsSegments() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packed");
+        PackedContentAddressedStorage store = new PackedContentAddressedStorage(dir, 10_000);
+        Random r = new Random(3);
+        List<byte[]> blocks = IntStream.range(0, 60)
+                .mapToObj(i -> randomBlock(r, 1000))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = store.put(blocks, true);
+
+        Set<Multihash> pins = new HashSet<>();
+        for (int i=0; i < hashes.size(); i += 3)
+            pins.add(hashes.get(i));
+        Set<Multihash> removed = store.retainOnly(pins);
+        Assert.assertEquals(hashes.size() - pins.size(), removed.size());
+
+        for (int i=0; i < hashes.size(); i++) {
+            if (i % 3 == 0)
+                Assert.assertArrayEquals(blocks.get(i), store.getRaw(hashes.get(i)).get().get());
+            else
+                Assert.assertFalse(store.getRaw(hashes.get(i)).get().isPresent());
+        }
+        store.close();
+
+        PackedContentAddressedStorage reopened = new PackedContentAddressedStorage(dir, 10_000);
+        for (int i=0; i < hashes.size(); i++)
+            Assert.assertEquals(i % 3 == 0, reopened.contains(hashes.get(i)));
+        reopened.close();
+    }
+
+    @Test
+    public void migrateFromFileStore() throws Exception {
+        Path source = Files.createTempDirectory("peergos-file");
+        FileContentAddressedStorage files = new FileContentAddressedStorage(source);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+        Random r = new Random(4);
+        List<byte[]> blocks = IntStream.range(0, 20)
+                .mapToObj(i -> randomBlock(r, 1000))
+                .collect(Collectors.toList());
+        TransactionId tid = files.startTransaction(owner).get();
+        List<byte[]> signatures = blocks.stream().map(b -> new byte[0]).collect(Collectors.toList());
+        List<Multihash> hashes = files.putRaw(owner, owner, signatures, blocks, tid).get();
+        files.closeTransaction(owner, tid).get();
+
+        PackedContentAddressedStorage packed = new PackedContentAddressedStorage(Files.createTempDirectory("peergos-packed"));
+        Assert.assertEquals(blocks.size(), packed.migrateFrom(files));
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), packed.getRaw(hashes.get(i)).get().get());
+        Assert.assertEquals(files.id().get(), packed.id().get());
+        packed.close();
+    }
+}
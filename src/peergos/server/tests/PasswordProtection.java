@@ -1,5 +1,6 @@
 package peergos.server.tests;
 
+import peergos.server.crypto.*;
 import org.junit.*;
 import peergos.shared.*;
 import peergos.shared.cbor.*;
@@ -9,7 +10,7 @@ import java.util.*;
 
 public class PasswordProtection {
 
-    private static Crypto crypto = Crypto.initJava();
+    private static Crypto crypto = JavaCrypto.init();
 
     @Test
     public void invertible() {
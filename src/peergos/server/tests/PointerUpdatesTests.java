@@ -0,0 +1,184 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class PointerUpdatesTests {
+
+    private static PublicKeyHash writer(int i) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) i;
+        bytes[1] = (byte) (i >> 8);
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, bytes));
+    }
+
+    private static void change(PointerChangeWatcher watcher, PublicKeyHash writer, int value) {
+        watcher.accept(new MutableEvent(writer, writer, new byte[]{(byte) value}));
+    }
+
+    private static long currentCursor(PointerChangeWatcher watcher) throws Exception {
+        return watcher.awaitChanges(-1, Collections.emptyList()).get().cursor;
+    }
+
+    @Test
+    public void missedChangesSinceCursor() throws Exception {
+        PointerChangeWatcher watcher = new PointerChangeWatcher(10_000, 10);
+        PublicKeyHash a = writer(1), b = writer(2), c = writer(3);
+        long cursor = currentCursor(watcher);
+        change(watcher, a, 1);
+        change(watcher, b, 2);
+        change(watcher, a, 3);
+
+        PointerChanges changes = watcher.awaitChanges(cursor, Arrays.asList(a, c)).get(1, TimeUnit.SECONDS);
+        Assert.assertFalse(changes.reset);
+        Assert.assertEquals(1, changes.changed.size());
+        Assert.assertArrayEquals(new byte[]{3}, changes.changed.get(a));
+        Assert.assertTrue(changes.cursor > cursor);
+        Assert.assertEquals(0, watcher.waiterCount());
+    }
+
+    @Test
+    public void unknownCursorResets() throws Exception {
+        PointerChangeWatcher watcher = new PointerChangeWatcher(10_000, 10, 2);
+        PublicKeyHash a = writer(1);
+        Assert.assertTrue(watcher.awaitChanges(-1, Arrays.asList(a)).get().reset);
+
+        long cursor = currentCursor(watcher);
+        Assert.assertTrue("Cursor from the future", watcher.awaitChanges(cursor + 1, Arrays.asList(a)).get().reset);
+
+        change(watcher, a, 1);
+        change(watcher, writer(2), 2);
+        change(watcher, writer(3), 3);
+        Assert.assertTrue("Changes have been forgotten", watcher.awaitChanges(cursor, Arrays.asList(a)).get().reset);
+    }
+
+    @Test
+    public void waiterWokenByChange() throws Exception {
+        PointerChangeWatcher watcher = new PointerChangeWatcher(10_000, 10);
+        PublicKeyHash a = writer(1), b = writer(2);
+        long cursor = currentCursor(watcher);
+        CompletableFuture<PointerChanges> waiting = watcher.awaitChanges(cursor, Arrays.asList(a, b));
+        Assert.assertFalse(waiting.isDone());
+        Assert.assertEquals(1, watcher.waiterCount());
+
+        change(watcher, writer(3), 3);
+        Assert.assertFalse("Unwatched writers don't wake a waiter", waiting.isDone());
+
+        change(watcher, b, 2);
+        PointerChanges changes = waiting.get(1, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(new byte[]{2}, changes.changed.get(b));
+        Assert.assertEquals(0, watcher.waiterCount());
+
+        // the next poll from the returned cursor doesn't see the same change again
+        CompletableFuture<PointerChanges> next = watcher.awaitChanges(changes.cursor, Arrays.asList(a, b));
+        Assert.assertFalse(next.isDone());
+        change(watcher, a, 1);
+        Assert.assertEquals(Collections.singleton(a), next.get(1, TimeUnit.SECONDS).changed.keySet());
+    }
+
+    @Test
+    public void timeoutReturnsEmpty() throws Exception {
+        PointerChangeWatcher watcher = new PointerChangeWatcher(100, 1);
+        PublicKeyHash a = writer(1);
+        long cursor = currentCursor(watcher);
+        CompletableFuture<PointerChanges> waiting = watcher.awaitChanges(cursor, Arrays.asList(a));
+        try {
+            watcher.awaitChanges(cursor, Arrays.asList(a)).join();
+            Assert.fail("Too many waiters");
+        } catch (CompletionException expected) {}
+
+        PointerChanges changes = waiting.get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(changes.reset);
+        Assert.assertTrue(changes.changed.isEmpty());
+        Assert.assertEquals(cursor, changes.cursor);
+        Assert.assertEquals(0, watcher.waiterCount());
+    }
+
+    @Test
+    public void tooManyWriters() {
+        PointerChangeWatcher watcher = new PointerChangeWatcher(10_000, 10);
+        List<PublicKeyHash> writers = new ArrayList<>();
+        for (int i=0; i <= PointerUpdates.MAX_WATCHED_WRITERS; i++)
+            writers.add(writer(i));
+        Assert.assertTrue(watcher.awaitChanges(0, writers).isCompletedExceptionally());
+        try {
+            PointerUpdates.parseWriters(PointerUpdates.serializeRequest(0, writers));
+            Assert.fail("Parsed too many writers");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void serialization() {
+        List<PublicKeyHash> writers = Arrays.asList(writer(1), writer(2));
+        byte[] request = PointerUpdates.serializeRequest(-1, writers);
+        Assert.assertEquals(-1, PointerUpdates.parseCursor(request));
+        Assert.assertEquals(writers, PointerUpdates.parseWriters(request));
+
+        Map<PublicKeyHash, byte[]> changed = new HashMap<>();
+        changed.put(writer(1), new byte[]{1, 2, 3});
+        PointerChanges changes = PointerChanges.fromCbor(CborObject.fromByteArray(
+                new PointerChanges(12345, true, changed).serialize()));
+        Assert.assertEquals(12345, changes.cursor);
+        Assert.assertTrue(changes.reset);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, changes.changed.get(writer(1)));
+    }
+
+    @Test
+    public void cacheAppliesPushedChanges() throws Exception {
+        Map<PublicKeyHash, byte[]> pointers = new ConcurrentHashMap<>();
+        AtomicInteger reads = new AtomicInteger(0);
+        MutablePointers target = new MutablePointers() {
+            @Override
+            public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signed) {
+                pointers.put(writer, signed);
+                return CompletableFuture.completedFuture(true);
+            }
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
+                reads.incrementAndGet();
+                return CompletableFuture.completedFuture(Optional.ofNullable(pointers.get(writer)));
+            }
+        };
+        PointerChangeWatcher watcher = new PointerChangeWatcher(10_000, 10);
+        CachingPointers cache = new CachingPointers(target, 60_000);
+        cache.watch(watcher);
+
+        PublicKeyHash a = writer(1);
+        pointers.put(a, new byte[]{1});
+        Assert.assertArrayEquals(new byte[]{1}, cache.getPointer(a, a).get().get());
+        // the first poll has no cursor so is reset, which clears the cache
+        Assert.assertArrayEquals(new byte[]{1}, cache.getPointer(a, a).get().get());
+        int readsBefore = reads.get();
+        waitFor(() -> watcher.waiterCount() == 1);
+
+        pointers.put(a, new byte[]{2});
+        change(watcher, a, 2);
+        waitFor(() -> {
+            try {
+                return Arrays.equals(new byte[]{2}, cache.getPointer(a, a).get().get());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Assert.assertEquals("Pushed change is applied without a read", readsBefore, reads.get());
+    }
+
+    private static void waitFor(Supplier<Boolean> condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5_000;
+        while (! condition.get()) {
+            if (System.currentTimeMillis() > end)
+                Assert.fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+}
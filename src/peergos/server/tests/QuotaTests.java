@@ -1,5 +1,6 @@
 package peergos.server.tests;
 
+import peergos.server.crypto.*;
 import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
@@ -24,7 +25,7 @@ public class QuotaTests {
 
     private static int RANDOM_SEED = 666;
     private final NetworkAccess network;
-    private final Crypto crypto = Crypto.initJava();
+    private final Crypto crypto = JavaCrypto.init();
 
     private static Random random = new Random(RANDOM_SEED);
 
@@ -0,0 +1,79 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.crypto.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+public class SpaceCheckingKeyFilterTests {
+    private static final Crypto crypto = JavaCrypto.init();
+
+    private final RAMStorage storage = new RAMStorage();
+    private final SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+    private final PublicKeyHash owner = user.publicKeyHash;
+
+    @Test
+    public void changeInSizeMatchesRecount() throws Exception {
+        Random r = new Random(7);
+        TransactionId tid = storage.startTransaction(owner).get();
+        Champ empty = Champ.empty();
+        Multihash emptyHash = storage.put(owner, user, empty.serialize(), tid).get();
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> mappings = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] value = new byte[r.nextInt(1000) + 1];
+            r.nextBytes(value);
+            Multihash valueHash = storage.putRaw(owner, owner, user.secret.signatureOnly(value), value, tid).get();
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            mappings.add(new Triple<>(new ByteArrayWrapper(key), MaybeMultihash.empty(), MaybeMultihash.of(valueHash)));
+        }
+        Pair<Champ, Multihash> half = empty.putAll(owner, user, mappings.subList(0, 250), 3, 4,
+                x -> x.data, tid, storage, emptyHash).get();
+        Pair<Champ, Multihash> full = half.left.putAll(owner, user, mappings.subList(250, 500), 3, 4,
+                x -> x.data, tid, storage, half.right).get();
+
+        long halfSize = storage.getRecursiveBlockSize(half.right).get();
+        long fullSize = storage.getRecursiveBlockSize(full.right).get();
+        Assert.assertEquals(fullSize - halfSize, (long) storage.getChangeInContainedSize(half.right, full.right).get());
+        Assert.assertEquals(halfSize - fullSize, (long) storage.getChangeInContainedSize(full.right, half.right).get());
+        Assert.assertEquals(0, (long) storage.getChangeInContainedSize(full.right, full.right).get());
+    }
+
+    @Test
+    public void recountWhenSnapshotRootIsMissing() throws Exception {
+        MutablePointers mutable = UserRepository.buildSqlLite(":memory:", storage, 1000);
+        TransactionId tid = storage.startTransaction(owner).get();
+        CommittedWriterData committed = WriterData.createEmpty(owner)
+                .commit(owner, user, MaybeMultihash.empty(), mutable, storage, tid).get();
+        long actualSize = storage.getRecursiveBlockSize(committed.hash.get()).get();
+
+        // a root from before a restart whose blocks have since been garbage collected
+        byte[] missingHash = new byte[32];
+        new Random(1).nextBytes(missingHash);
+        Multihash missing = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, missingHash);
+        SpaceUsageSnapshots snapshots = SpaceUsageSnapshots.ephemeral();
+        snapshots.put(owner, new SpaceUsageSnapshots.Snapshot("alice", MaybeMultihash.of(missing), 1_000_000,
+                Collections.emptySet()));
+
+        SpaceCheckingKeyFilter filter = new SpaceCheckingKeyFilter(null, mutable, storage, u -> 2_000_000L, snapshots, 1);
+        filter.processCorenodeEvent("alice", owner);
+
+        SpaceUsageSnapshots.Snapshot updated = snapshots.get(owner).get();
+        Assert.assertEquals(committed.hash, updated.root);
+        Assert.assertEquals(actualSize, updated.directRetainedStorage);
+        Assert.assertTrue(filter.allowWrite(owner, 1_000_000));
+    }
+}
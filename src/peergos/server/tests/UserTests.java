@@ -1,4 +1,5 @@
 package peergos.server.tests;
+import peergos.server.crypto.*;
 import java.util.logging.*;
 
 import peergos.server.util.Args;
@@ -9,13 +10,16 @@ import static org.junit.Assert.*;
 
 import peergos.server.util.PeergosNetworkUtils;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.asymmetric.curve25519.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
 import peergos.server.*;
+import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
 import peergos.shared.user.fs.cryptree.*;
@@ -35,7 +39,7 @@ public abstract class UserTests {
 
     public static int RANDOM_SEED = 666;
     private final NetworkAccess network;
-    private final Crypto crypto = Crypto.initJava();
+    private final Crypto crypto = JavaCrypto.init();
     private final URL peergosUrl;
 
     private static Random random = new Random(RANDOM_SEED);
@@ -110,7 +114,7 @@ public abstract class UserTests {
     public void differentLoginTypes() throws Exception {
         String username = generateUsername();
         String password = "letmein";
-        Crypto crypto = Crypto.initJava();
+        Crypto crypto = JavaCrypto.init();
         List<ScryptGenerator> params = Arrays.asList(
                 new ScryptGenerator(17, 8, 1, 96),
                 new ScryptGenerator(18, 8, 1, 96),
@@ -597,6 +601,66 @@ public abstract class UserTests {
         Assert.assertTrue("Correct used space", totalSpaceUsed > 10*1024*1024);
     }
 
+    @Test
+    public void seekInLargeFile() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        byte[] data = new byte[3*Chunk.MAX_SIZE + 4096];
+        random.nextBytes(data);
+        // a file with derived chunk locations, and one with random chunk locations
+        userRoot = userRoot.uploadOrOverwriteFile("seekable.bin", new AsyncReader.ArrayBacked(data), data.length,
+                context.network, context.crypto.random, l -> {}, context.fragmenter()).get();
+        userRoot = userRoot.uploadOrOverwriteFile("legacy.bin", new AsyncReader.ArrayBacked(data), data.length,
+                context.network, context.crypto.random, l -> {}, context.fragmenter(),
+                userRoot.generateChildLocationsFromSize(data.length, context.crypto.random)).get();
+
+        for (String filename : Arrays.asList("seekable.bin", "legacy.bin")) {
+            FileWrapper file = userRoot.getDescendentByPath(filename, context.network).get().get();
+            SymmetricKey dataKey = ((FileAccess) file.getPointer().fileAccess).getDataKey(file.getPointer().capability.rBaseKey);
+            Assert.assertTrue("Derived chunk locations", filename.equals("seekable.bin") ==
+                    ((FileAccess) file.getPointer().fileAccess).retriever().hasDerivedChunkLocations(file.getLocation().getMapKey(), dataKey));
+
+            AsyncReader in = file.getInputStream(context.network, context.crypto.random, l -> {}).get();
+            for (long offset : Arrays.asList(3L*Chunk.MAX_SIZE + 100, 2L*Chunk.MAX_SIZE - 10, 100L, Chunk.MAX_SIZE + 5L)) {
+                byte[] buf = new byte[1024];
+                in.seek((int) (offset >> 32), (int) offset).get();
+                in.readIntoArray(buf, 0, buf.length).get();
+                Assert.assertTrue("Correct data after seek to " + offset + " in " + filename,
+                        Arrays.equals(buf, Arrays.copyOfRange(data, (int) offset, (int) offset + buf.length)));
+            }
+
+            for (int readAhead : Arrays.asList(0, 1, 4)) {
+                AsyncReader sequential = file.getInputStream(context.network.withReadAheadChunks(readAhead),
+                        context.crypto.random, l -> {}).get();
+                byte[] all = new byte[data.length];
+                sequential.readIntoArray(all, 0, all.length).get();
+                Assert.assertTrue("Correct data with read ahead of " + readAhead + " in " + filename, Arrays.equals(all, data));
+            }
+        }
+    }
+
+    @Test
+    public void uploadWithBoundedParallelism() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        byte[] data = new byte[3*Chunk.MAX_SIZE + 4096];
+        random.nextBytes(data);
+        // a byte budget below one chunk still uploads one chunk at a time
+        for (NetworkAccess limited : Arrays.asList(context.network.withUploadParallelism(1, 0),
+                context.network.withUploadParallelism(8, Long.MAX_VALUE))) {
+            String filename = "bounded" + limited.getMaxUploadChunksInFlight() + ".bin";
+            userRoot = userRoot.uploadOrOverwriteFile(filename, new AsyncReader.ArrayBacked(data), data.length,
+                    limited, context.crypto.random, l -> {}, context.fragmenter()).get();
+            checkFileContents(data, userRoot.getDescendentByPath(filename, context.network).get().get(), context);
+        }
+    }
+
     @Test
     public void writeTiming() throws Exception {
         String username = generateUsername();
@@ -719,6 +783,199 @@ public abstract class UserTests {
         FileWrapper renamed = theDir.rename("subdir2", network, userRoot2).get();
     }
 
+    @Test
+    public void indexedChildLookup() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        String dirName = "indexed";
+        context.getUserRoot().get().mkdir(dirName, context.network, false, context.crypto.random).get();
+        String path = "/" + username + "/" + dirName;
+
+        int maxLinks = DirAccess.getMaxChildLinksPerBlob();
+        // spread the children over several blobs of links
+        DirAccess.setMaxChildLinkPerBlob(5);
+        try {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                String name = "child" + i;
+                names.add(name);
+                context.getByPath(path).get().get().mkdir(name, context.network, false, context.crypto.random).get();
+            }
+
+            FileWrapper dir = context.getByPath(path).get().get();
+            for (String name : names) {
+                Assert.assertTrue("Index entry", ChildNameIndex.getChild(dir.getPointer().capability, name, context.network).get().isPresent());
+                Assert.assertEquals(name, dir.getChild(name, context.network).get().get().getName());
+            }
+            Assert.assertFalse(dir.getChild("missing", context.network).get().isPresent());
+
+            Set<String> paged = new HashSet<>();
+            for (int offset = 0; offset < names.size(); offset += 4) {
+                List<FileWrapper> page = dir.getChildren(offset, 4, context.network).get();
+                Assert.assertEquals(4, page.size());
+                page.forEach(f -> paged.add(f.getName()));
+            }
+            Assert.assertEquals(new HashSet<>(names), paged);
+            Assert.assertTrue(dir.getChildren(names.size(), 4, context.network).get().isEmpty());
+
+            FileWrapper child = context.getByPath(path + "/child3").get().get();
+            child.rename("renamed", context.network, dir).get();
+            FileWrapper updatedDir = context.getByPath(path).get().get();
+            Assert.assertTrue("Index entry for new name",
+                    ChildNameIndex.getChild(updatedDir.getPointer().capability, "renamed", context.network).get().isPresent());
+            Assert.assertTrue(context.getByPath(path + "/renamed").get().isPresent());
+            Assert.assertFalse(context.getByPath(path + "/child3").get().isPresent());
+        } finally {
+            DirAccess.setMaxChildLinkPerBlob(maxLinks);
+        }
+    }
+
+    @Test
+    public void childNameIndexFollowsSubtree() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        String dirName = "moved";
+        userRoot.mkdir(dirName, context.network, false, context.crypto.random).get();
+        String path = "/" + username + "/" + dirName;
+        List<String> names = Arrays.asList("a", "b", "c");
+        for (String name : names)
+            context.getByPath(path).get().get().mkdir(name, context.network, false, context.crypto.random).get();
+
+        // move the subtree to a new writer
+        FileWrapper dir = context.getByPath(path).get().get();
+        PublicKeyHash originalWriter = dir.writer();
+        context.shareWriteAccessWithAll(dir, context.getUserRoot().get(), Collections.emptySet()).get();
+        FileWrapper moved = context.getByPath(path).get().get();
+        Assert.assertNotEquals(originalWriter, moved.writer());
+        AbsoluteCapability movedCap = moved.getPointer().capability;
+        for (String name : names) {
+            Assert.assertTrue("Index entry under new writer", ChildNameIndex.getChild(movedCap, name, context.network).get().isPresent());
+            Assert.assertFalse("Index entry removed from old writer", context.network.tree.get(movedCap.owner, originalWriter,
+                    ChildNameIndex.deriveMapKey(movedCap, name)).get().isPresent());
+        }
+
+        moved.remove(context.getUserRoot().get(), context.network).get();
+        for (String name : names)
+            Assert.assertFalse("Index entry removed with dir", context.network.tree.get(movedCap.owner, movedCap.writer,
+                    ChildNameIndex.deriveMapKey(movedCap, name)).get().isPresent());
+    }
+
+    @Test
+    public void boundedDirectoryListing() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        String dirName = "listed";
+        context.getUserRoot().get().mkdir(dirName, context.network, false, context.crypto.random).get();
+        String path = "/" + username + "/" + dirName;
+
+        int maxLinks = DirAccess.getMaxChildLinksPerBlob();
+        // spread the children over several blobs of links
+        DirAccess.setMaxChildLinkPerBlob(3);
+        try {
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < 10; i++) {
+                String name = "child" + i;
+                names.add(name);
+                context.getByPath(path).get().get().mkdir(name, context.network, false, context.crypto.random).get();
+            }
+
+            NetworkAccess limited = context.network.withMaxMetadataRequests(2);
+            FileWrapper dir = context.getByPath(path).get().get();
+            Set<String> listed = dir.getChildren(limited).get().stream()
+                    .map(FileWrapper::getName)
+                    .collect(Collectors.toSet());
+            Assert.assertEquals(names, listed);
+
+            List<RetrievedCapability> inOrder = limited.retrieveAllMetadata(dir.getChildren(limited).get().stream()
+                    .map(f -> f.getPointer().capability)
+                    .sorted(Comparator.comparing(c -> ArrayOps.bytesToHex(c.getMapKey())))
+                    .collect(Collectors.toList())).get();
+            for (int i=1; i < inOrder.size(); i++)
+                Assert.assertTrue("Metadata returned in order", ArrayOps.bytesToHex(inOrder.get(i - 1).capability.getMapKey())
+                        .compareTo(ArrayOps.bytesToHex(inOrder.get(i).capability.getMapKey())) < 0);
+        } finally {
+            DirAccess.setMaxChildLinkPerBlob(maxLinks);
+        }
+    }
+
+    @Test
+    public void retrieveAllSkipsFailedLinks() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        for (int i = 0; i < 3; i++)
+            context.getUserRoot().get().mkdir("dir" + i, context.network, false, context.crypto.random).get();
+        List<FileWrapper> children = new ArrayList<>(context.getUserRoot().get().getChildren(context.network).get());
+        AbsoluteCapability broken = children.get(0).getPointer().capability;
+        Multihash brokenHash = context.network.tree.get(broken.owner, broken.writer, broken.getMapKey()).get().get();
+
+        // a storage which fails to retrieve one of the directories' metadata
+        ContentAddressedStorage failing = new CachingStorage(context.network.dhtClient, 1, 0) {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+                if (hash.equals(brokenHash))
+                    return Futures.errored(new IllegalStateException("Unavailable"));
+                return super.get(hash);
+            }
+        };
+        NetworkAccess partial = new NetworkAccess(context.network.coreNode, context.network.social, failing,
+                context.network.mutable, context.network.tree, context.network.usernames);
+        List<EntryPoint> entries = children.stream()
+                .map(f -> new EntryPoint(f.getPointer().capability.readOnly(), username))
+                .collect(Collectors.toList());
+        Set<String> retrieved = partial.retrieveAll(entries).get().stream()
+                .map(FileWrapper::getName)
+                .collect(Collectors.toSet());
+        Set<String> expected = children.stream()
+                .skip(1)
+                .map(FileWrapper::getName)
+                .collect(Collectors.toSet());
+        Assert.assertEquals("Only the failed link is missing", expected, retrieved);
+    }
+
+    @Test
+    public void cachedPathLookup() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        context.getUserRoot().get().mkdir("a", context.network, false, context.crypto.random).get();
+        context.getByPath("/" + username + "/a").get().get().mkdir("b", context.network, false, context.crypto.random).get();
+        String dirPath = "/" + username + "/a/b";
+        String filePath = dirPath + "/file.txt";
+        FileWrapper dir = context.getByPath(dirPath).get().get();
+        byte[] data = "Hello".getBytes();
+        dir.uploadOrOverwriteFile("file.txt", new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto.random, l -> {}, context.fragmenter(), dir.generateChildLocationsFromSize(data.length, context.crypto.random)).get();
+
+        PathCache paths = context.network.paths;
+        Assert.assertEquals(data.length, context.getByPath(filePath).get().get().getSize());
+        long hits = paths.hitCount();
+        Assert.assertEquals(data.length, context.getByPath(filePath).get().get().getSize());
+        Assert.assertEquals("Cached lookup", hits + 1, paths.hitCount());
+
+        // overwriting the file changes the writer's root, which invalidates the cached path
+        byte[] data2 = "Hello again".getBytes();
+        dir = context.getByPath(dirPath).get().get();
+        dir.uploadOrOverwriteFile("file.txt", new AsyncReader.ArrayBacked(data2), data2.length, context.network,
+                context.crypto.random, l -> {}, context.fragmenter(), dir.generateChildLocationsFromSize(data2.length, context.crypto.random)).get();
+        long invalidations = paths.invalidationCount();
+        Assert.assertEquals(data2.length, context.getByPath(filePath).get().get().getSize());
+        Assert.assertTrue("Invalidated stale path", paths.invalidationCount() > invalidations);
+
+        // resolving the file cached its parents
+        hits = paths.hitCount();
+        Assert.assertTrue(context.getByPath(dirPath).get().isPresent());
+        Assert.assertEquals("Cached parent", hits + 1, paths.hitCount());
+
+        FileWrapper file = context.getByPath(filePath).get().get();
+        file.remove(context.getByPath(dirPath).get().get(), context.network).get();
+        Assert.assertFalse(context.getByPath(filePath).get().isPresent());
+    }
+
     // This one takes a while, so disable most of the time
 //    @Test
     public void hugeFolder() throws Exception {
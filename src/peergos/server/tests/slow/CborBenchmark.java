@@ -0,0 +1,146 @@
+package peergos.server.tests.slow;
+import java.util.logging.*;
+
+import peergos.server.util.Logging;
+
+import peergos.server.*;
+import peergos.server.crypto.*;
+import peergos.server.tests.*;
+import peergos.server.util.Args;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.function.*;
+
+/** Compare decoding real Champ nodes, cryptree nodes and WriterData blocks with the stream based CborDecoder and
+ *  the array based CborReader, and listing their links with and without building the object tree.
+ *
+ */
+public class CborBenchmark {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final int WARMUP = 3, ITERATIONS = 10;
+    private static final int REPEATS = 100;
+
+    public static void main(String[] args) throws Exception {
+        Args serverArgs = UserTests.buildArgs().with("useIPFS", "false");
+        Main.PKI.main(serverArgs);
+        NetworkAccess network = NetworkAccess.buildJava(new URL("http://localhost:" + serverArgs.getInt("port"))).get();
+        Crypto crypto = JavaCrypto.init();
+        UserContext context = UserContext.signUp("bench", "password", network, crypto).get();
+        for (int i=0; i < 20; i++) {
+            FileWrapper root = context.getUserRoot().get();
+            root.mkdir("dir" + i, network, false, crypto.random).get();
+            byte[] data = ("file contents " + i).getBytes();
+            context.getUserRoot().get().uploadOrOverwriteFile("file" + i, new AsyncReader.ArrayBacked(data), data.length,
+                    network, crypto.random, l -> {}, context.fragmenter(),
+                    root.generateChildLocationsFromSize(data.length, crypto.random)).get();
+        }
+        List<byte[]> blocks = new ArrayList<>();
+        PublicKeyHash owner = context.signer.publicKeyHash;
+        collectBlocks(owner, owner, network, blocks);
+
+        Map<String, List<byte[]>> byType = new TreeMap<>();
+        for (byte[] block : new ArrayList<>(blocks)) {
+            CborObject cbor = CborObject.fromByteArray(block);
+            String type = typeOf(cbor);
+            if (type != null)
+                byType.computeIfAbsent(type, t -> new ArrayList<>()).add(block);
+        }
+
+        for (Map.Entry<String, List<byte[]>> e : byType.entrySet()) {
+            List<byte[]> typed = e.getValue();
+            for (byte[] block : typed) {
+                CborObject streamed = streamDecode(block);
+                if (! streamed.equals(CborReader.decode(block)))
+                    throw new IllegalStateException("Incompatible decode!");
+                if (! streamed.links().equals(CborReader.links(block)))
+                    throw new IllegalStateException("Incompatible links!");
+            }
+            long bytes = typed.stream().mapToLong(b -> b.length).sum();
+            long streamTime = time(() -> forEach(typed, CborBenchmark::streamDecode));
+            long readerTime = time(() -> forEach(typed, CborReader::decode));
+            long treeLinksTime = time(() -> forEach(typed, b -> CborReader.decode(b).links()));
+            long scanLinksTime = time(() -> forEach(typed, CborReader::links));
+            LOG.info(String.format("%d %s blocks, %d bytes each on average", typed.size(), e.getKey(), bytes / typed.size()));
+            LOG.info(String.format("Decoding: stream %d ns/block, array %d ns/block",
+                    perBlock(streamTime, typed), perBlock(readerTime, typed)));
+            LOG.info(String.format("Links: via object tree %d ns/block, scanned %d ns/block",
+                    perBlock(treeLinksTime, typed), perBlock(scanLinksTime, typed)));
+            if (e.getKey().equals("WriterData")) {
+                long treeField = time(() -> forEach(typed, b -> ((CborObject.CborMap) CborReader.decode(b)).get("tree")));
+                long lazyField = time(() -> forEach(typed, b -> CborReader.lazyMap(b).get("tree")));
+                LOG.info(String.format("Reading the tree field: decoded map %d ns/block, lazy map %d ns/block",
+                        perBlock(treeField, typed), perBlock(lazyField, typed)));
+            }
+        }
+    }
+
+    private static void collectBlocks(PublicKeyHash owner,
+                                      PublicKeyHash writer,
+                                      NetworkAccess network,
+                                      List<byte[]> res) throws Exception {
+        CommittedWriterData wd = WriterData.getWriterData(owner, writer, network.mutable, network.dhtClient).get();
+        List<Multihash> level = Collections.singletonList(wd.hash.get());
+        while (! level.isEmpty()) {
+            List<Multihash> nextLevel = new ArrayList<>();
+            for (Multihash h : level) {
+                if (h.type == Multihash.Type.id || (h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw))
+                    continue;
+                Optional<byte[]> raw = network.dhtClient.getRaw(h).get();
+                if (! raw.isPresent())
+                    continue;
+                res.add(raw.get());
+                nextLevel.addAll(CborReader.links(raw.get()));
+            }
+            level = nextLevel;
+        }
+        for (PublicKeyHash owned : wd.props.ownedKeys)
+            collectBlocks(owner, owned, network, res);
+    }
+
+    private static String typeOf(CborObject cbor) {
+        if (cbor instanceof CborObject.CborMap && ((CborObject.CborMap) cbor).get("controller") != null)
+            return "WriterData";
+        if (! (cbor instanceof CborObject.CborList) || ((CborObject.CborList) cbor).value.isEmpty())
+            return null;
+        Cborable first = ((CborObject.CborList) cbor).value.get(0);
+        if (first instanceof CborObject.CborByteArray)
+            return "Champ";
+        if (first instanceof CborObject.CborLong)
+            return "CryptreeNode";
+        return null;
+    }
+
+    private static CborObject streamDecode(byte[] block) {
+        return CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(block)), block.length);
+    }
+
+    private static void forEach(List<byte[]> blocks, Consumer<byte[]> task) {
+        for (int i=0; i < REPEATS; i++)
+            for (byte[] block : blocks)
+                task.accept(block);
+    }
+
+    private static long perBlock(long nanos, List<byte[]> blocks) {
+        return nanos / REPEATS / blocks.size();
+    }
+
+    private static long time(Runnable task) {
+        for (int i=0; i < WARMUP; i++)
+            task.run();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            task.run();
+        long t1 = System.nanoTime();
+        return Math.max(1, (t1 - t0) / ITERATIONS);
+    }
+}
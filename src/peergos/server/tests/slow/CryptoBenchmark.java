@@ -0,0 +1,95 @@
+package peergos.server.tests.slow;
+import java.util.logging.*;
+
+import peergos.server.util.Logging;
+
+import peergos.server.crypto.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** Compare the fast secretbox and Ed25519 providers with TweetNaCl.
+ *
+ */
+public class CryptoBenchmark {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final int WARMUP = 3, ITERATIONS = 10;
+    private static final int SMALL_MESSAGES = 200;
+
+    public static void main(String[] args) {
+        Random r = new Random(1);
+        byte[] chunk = new byte[Chunk.MAX_SIZE];
+        r.nextBytes(chunk);
+        byte[] nonce = new byte[TweetNaCl.SECRETBOX_NONCE_BYTES];
+        byte[] key = new byte[TweetNaCl.SECRETBOX_KEY_BYTES];
+        r.nextBytes(nonce);
+        r.nextBytes(key);
+        double mb = chunk.length / 1024.0 / 1024.0;
+
+        Salsa20Poly1305 tweet = new Salsa20Poly1305.Java();
+        Salsa20Poly1305 fast = new FastSalsa20Poly1305();
+        byte[] cipher = tweet.secretbox(chunk, nonce, key);
+        if (! Arrays.equals(cipher, fast.secretbox(chunk, nonce, key)))
+            throw new IllegalStateException("Incompatible secretbox!");
+        long tweetBox = time(() -> tweet.secretbox(chunk, nonce, key));
+        long fastBox = time(() -> fast.secretbox(chunk, nonce, key));
+        long tweetOpen = time(() -> tweet.secretbox_open(cipher, nonce, key));
+        long fastOpen = time(() -> fast.secretbox_open(cipher, nonce, key));
+        LOG.info(String.format("secretbox %.0f MiB: TweetNaCl %.0f MB/s, fast %.0f MB/s",
+                mb, mb * 1000 / tweetBox, mb * 1000 / fastBox));
+        LOG.info(String.format("secretbox_open %.0f MiB: TweetNaCl %.0f MB/s, fast %.0f MB/s",
+                mb, mb * 1000 / tweetOpen, mb * 1000 / fastOpen));
+
+        Ed25519 tweetSigner = new Ed25519.Java();
+        Ed25519 fastSigner = new FastEd25519();
+        byte[] pk = new byte[32], sk = new byte[64];
+        r.nextBytes(sk);
+        tweetSigner.crypto_sign_keypair(pk, sk);
+        byte[] signature = Arrays.copyOfRange(tweetSigner.crypto_sign(chunk, sk), 0, TweetNaCl.SIGNATURE_SIZE_BYTES);
+        long tweetVerify = time(() -> check(tweetSigner.crypto_sign_verify(signature, chunk, 0, chunk.length, pk)));
+        long fastVerify = time(() -> check(fastSigner.crypto_sign_verify(signature, chunk, 0, chunk.length, pk)));
+        LOG.info(String.format("Verifying %.0f MiB: TweetNaCl %.0f MB/s, fast %.0f MB/s",
+                mb, mb * 1000 / tweetVerify, mb * 1000 / fastVerify));
+
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> signatures = new ArrayList<>();
+        for (int i=0; i < SMALL_MESSAGES; i++) {
+            byte[] message = new byte[100];
+            r.nextBytes(message);
+            messages.add(message);
+            signatures.add(Arrays.copyOfRange(tweetSigner.crypto_sign(message, sk), 0, TweetNaCl.SIGNATURE_SIZE_BYTES));
+        }
+        long tweetSmall = time(() -> verifyAll(tweetSigner, signatures, messages, pk, false));
+        long fastSmall = time(() -> verifyAll(fastSigner, signatures, messages, pk, false));
+        long fastBatch = time(() -> verifyAll(fastSigner, signatures, messages, pk, true));
+        LOG.info(String.format("Verifying %d small signatures: TweetNaCl %d/s, fast %d/s, fast in parallel %d/s",
+                SMALL_MESSAGES, SMALL_MESSAGES * 1000 / tweetSmall, SMALL_MESSAGES * 1000 / fastSmall,
+                SMALL_MESSAGES * 1000 / fastBatch));
+    }
+
+    private static void verifyAll(Ed25519 signer, List<byte[]> signatures, List<byte[]> messages, byte[] pk, boolean parallel) {
+        IntStream indices = IntStream.range(0, messages.size());
+        check((parallel ? indices.parallel() : indices)
+                .allMatch(i -> signer.crypto_sign_verify(signatures.get(i), messages.get(i), 0, messages.get(i).length, pk)));
+    }
+
+    private static void check(boolean valid) {
+        if (! valid)
+            throw new IllegalStateException("Invalid signature!");
+    }
+
+    private static long time(Runnable task) {
+        for (int i=0; i < WARMUP; i++)
+            task.run();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            task.run();
+        long t1 = System.nanoTime();
+        return Math.max(1, (t1 - t0) / ITERATIONS / 1_000_000);
+    }
+}
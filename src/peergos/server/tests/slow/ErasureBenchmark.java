@@ -0,0 +1,54 @@
+package peergos.server.tests.slow;
+import java.util.logging.*;
+
+import peergos.server.util.Logging;
+
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+/** Compare the table driven ReedSolomon codec with encoding via GaloisPolynomial on full size chunks.
+ *
+ */
+public class ErasureBenchmark {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final int WARMUP = 3, ITERATIONS = 10;
+
+    public static void main(String[] args) {
+        int original = ErasureFragmenter.ERASURE_ORIGINAL;
+        int failures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+        Random r = new Random(1);
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        r.nextBytes(input);
+        ReedSolomon codec = ReedSolomon.get(original, failures);
+        GaloisField f = new GaloisField256();
+
+        long polynomialEncode = time(() -> Erasure.split(input, f, original, failures));
+        long tableEncode = time(() -> codec.encode(input));
+        LOG.info(String.format("Encoding 5 MiB: polynomial %d mS, table %d mS, speedup %.1fx",
+                polynomialEncode, tableEncode, (double) polynomialEncode / tableEncode));
+
+        byte[][] fragments = codec.encode(input);
+        long tableDecode = time(() -> codec.decode(fragments, input.length));
+        byte[][] damaged = fragments.clone();
+        for (int i=0; i < 2 * failures; i++)
+            damaged[i * 3 % original] = null;
+        long tableRecover = time(() -> codec.decode(damaged, input.length));
+        if (! Arrays.equals(input, codec.decode(damaged, input.length)))
+            throw new IllegalStateException("Incorrect recovery!");
+        LOG.info(String.format("Decoding 5 MiB: no missing fragments %d mS, %d missing data fragments %d mS",
+                tableDecode, 2 * failures, tableRecover));
+    }
+
+    private static long time(Runnable task) {
+        for (int i=0; i < WARMUP; i++)
+            task.run();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            task.run();
+        long t1 = System.nanoTime();
+        return Math.max(1, (t1 - t0) / ITERATIONS / 1_000_000);
+    }
+}
@@ -1,4 +1,5 @@
 package peergos.server.tests.slow;
+import peergos.server.crypto.*;
 import java.util.logging.*;
 
 import peergos.server.util.Args;
@@ -23,7 +24,7 @@ public class IpfsStressTest {
 	private static final Logger LOG = Logging.LOG();
 
     private final NetworkAccess network;
-    private final Crypto crypto = Crypto.initJava();
+    private final Crypto crypto = JavaCrypto.init();
 
     private final Random random;
 
@@ -0,0 +1,98 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.crypto.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class JDBCCoreNodeLoadTest {
+    private static final Crypto crypto = JavaCrypto.init();
+    private static final int THREADS = 16;
+    private static final int USERS = 50;
+    private static final int WRITERS = 1000;
+    private static final long DURATION_MILLIS = 5_000;
+
+    private interface Op {
+        void run(Random r) throws Exception;
+    }
+
+    private static PublicKeyHash writer(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) (i >> 8);
+        hash[1] = (byte) i;
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash));
+    }
+
+    private static double opsPerSecond(String name, Op op) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        AtomicLong count = new AtomicLong();
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        List<Future<?>> done = new ArrayList<>();
+        for (int t=0; t < THREADS; t++) {
+            Random r = new Random(t);
+            done.add(pool.submit(() -> {
+                while (System.currentTimeMillis() < end) {
+                    op.run(r);
+                    count.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        pool.shutdown();
+        double rate = count.get() * 1000.0 / DURATION_MILLIS;
+        System.out.printf("%s: %.0f ops/s with %d threads\n", name, rate, THREADS);
+        return rate;
+    }
+
+    @Test
+    public void concurrentThroughput() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-corenode");
+        JDBCCoreNode core = new JDBCCoreNode(SqliteConnectionPool.build(dir.resolve("core.sql").toString(), THREADS));
+        RAMStorage storage = new RAMStorage();
+
+        List<String> usernames = new ArrayList<>();
+        for (int i=0; i < USERS; i++) {
+            String username = "user" + i;
+            SigningPrivateKeyAndPublicHash signer = ChampTests.createUser(storage, crypto);
+            List<UserPublicKeyLink> chain = UserPublicKeyLink.createInitial(signer, username,
+                    LocalDate.now().plusMonths(2), Collections.emptyList());
+            Assert.assertTrue(core.updateChain(username, Collections.emptyList(), chain, chain));
+            usernames.add(username);
+        }
+        for (int i=0; i < WRITERS; i++)
+            Assert.assertTrue(core.setPointer(writer(i), writer(i), Optional.empty(), new byte[100]).get());
+
+        double getChain = opsPerSecond("getChain", r -> {
+            if (core.getChain(usernames.get(r.nextInt(USERS))).get().size() != 1)
+                throw new IllegalStateException("Incorrect chain");
+        });
+        double getPointer = opsPerSecond("getPointer", r -> {
+            if (! core.getPointer(writer(r.nextInt(WRITERS))).get().isPresent())
+                throw new IllegalStateException("Missing pointer");
+        });
+        double setPointer = opsPerSecond("setPointer", r -> {
+            PublicKeyHash writer = writer(r.nextInt(WRITERS));
+            Optional<byte[]> current = core.getPointer(writer).get();
+            byte[] updated = new byte[100];
+            r.nextBytes(updated);
+            // concurrent updates to the same writer may correctly lose the compare and swap
+            core.setPointer(writer, writer, current, updated).get();
+        });
+        core.close();
+        Assert.assertTrue(getChain > 0 && getPointer > 0 && setPointer > 0);
+    }
+}
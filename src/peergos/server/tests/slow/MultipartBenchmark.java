@@ -0,0 +1,145 @@
+package peergos.server.tests.slow;
+import java.util.logging.*;
+
+import peergos.server.util.Logging;
+
+import peergos.server.net.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.asymmetric.*;
+import peergos.shared.crypto.asymmetric.curve25519.*;
+import peergos.shared.crypto.random.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/** Compare the throughput of receiving a block upload, parsing the multipart body and verifying the signatures,
+ *  with the byte at a time parser and concatenating signed copies of each block.
+ *
+ */
+public class MultipartBenchmark {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final int WARMUP = 3, ITERATIONS = 10;
+    private static final int BLOCKS = 4;
+
+    public static void main(String[] args) throws IOException {
+        Random r = new Random(1);
+        String boundary = "===" + System.currentTimeMillis() + "===";
+        List<byte[]> blocks = new ArrayList<>();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int i=0; i < BLOCKS; i++) {
+            byte[] block = new byte[Chunk.MAX_SIZE];
+            r.nextBytes(block);
+            blocks.add(block);
+            bout.write(("--" + boundary + "\r\n" +
+                    "Content-Disposition: file; name=\"file\";\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Transfer-Encoding: binary\r\n\r\n").getBytes());
+            bout.write(block);
+            bout.write("\r\n".getBytes());
+        }
+        bout.write(("--" + boundary + "--\r\n").getBytes());
+        byte[] body = bout.toByteArray();
+        double mb = body.length / 1024.0 / 1024.0;
+
+        long byteAtATime = time(() -> ByteAtATimeParser.extractFiles(new ByteArrayInputStream(body), boundary));
+        long sliced = time(() -> MultipartReceiver.extractParts(new ByteArrayInputStream(body), boundary, body.length));
+        List<MultipartReceiver.Part> parts = MultipartReceiver.extractParts(new ByteArrayInputStream(body), boundary, body.length);
+        for (int i=0; i < BLOCKS; i++)
+            if (! Arrays.equals(blocks.get(i), parts.get(i).toByteArray()))
+                throw new IllegalStateException("Incorrect parse!");
+        LOG.info(String.format("Parsing %.1f MiB: byte at a time %.0f MB/s, sliced %.0f MB/s",
+                mb, mb * 1000 / byteAtATime, mb * 1000 / sliced));
+
+        SigningKeyPair signer = SigningKeyPair.random(new SafeRandom.Java(), new Ed25519.Java());
+        PublicSigningKey pub = signer.publicSigningKey;
+        List<byte[]> signatures = new ArrayList<>();
+        for (byte[] block : blocks)
+            signatures.add(Arrays.copyOfRange(signer.signMessage(block), 0, TweetNaCl.SIGNATURE_SIZE_BYTES));
+
+        long concatenated = time(() -> {
+            for (int i=0; i < BLOCKS; i++) {
+                byte[] unsigned = pub.unsignMessage(ArrayOps.concat(signatures.get(i), parts.get(i).toByteArray()));
+                if (! Arrays.equals(unsigned, blocks.get(i)))
+                    throw new IllegalStateException("Invalid signature!");
+            }
+        });
+        long inPlace = time(() -> {
+            for (int i=0; i < BLOCKS; i++) {
+                MultipartReceiver.Part part = parts.get(i);
+                if (! pub.isValidSignature(signatures.get(i), part.buffer, part.offset, part.length))
+                    throw new IllegalStateException("Invalid signature!");
+            }
+        });
+        MultipartReceiver.Part first = parts.get(0);
+        first.buffer[first.offset + 7] ^= 1;
+        if (pub.isValidSignature(signatures.get(0), first.buffer, first.offset, first.length))
+            throw new IllegalStateException("Accepted invalid signature!");
+        LOG.info(String.format("Verifying %.1f MiB: concatenated %.0f MB/s, in place %.0f MB/s",
+                mb, mb * 1000 / concatenated, mb * 1000 / inPlace));
+    }
+
+    private static long time(Runnable task) {
+        for (int i=0; i < WARMUP; i++)
+            task.run();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            task.run();
+        long t1 = System.nanoTime();
+        return Math.max(1, (t1 - t0) / ITERATIONS / 1_000_000);
+    }
+
+    /** The original parser, which reads the body a byte at a time
+     *
+     */
+    private static class ByteAtATimeParser {
+        private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+
+        static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+            try {
+                InputStream in = new BufferedInputStream(rawIn);
+                readUntil("\r\n".getBytes(), in);
+                readUntil(DOUBLE_NEW_LINE, in);
+
+                byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+                List<byte[]> files = new ArrayList<>();
+
+                while (true) {
+                    byte[] file = readUntil(boundaryBytes, in);
+                    files.add(file);
+                    byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
+                    if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
+                        return files;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
+            ByteArrayOutputStream prior = new ByteArrayOutputStream();
+            int r;
+            int indexInPattern = 0;
+            while ((r = in.read()) != -1) {
+                if ((byte) r == pattern[indexInPattern]) {
+                    indexInPattern++;
+                    if (indexInPattern == pattern.length)
+                        return prior.toByteArray();
+                } else {
+                    if (indexInPattern > 0)
+                        prior.write(pattern, 0, indexInPattern);
+                    indexInPattern = 0;
+                    if ((byte) r == pattern[0]) {
+                        indexInPattern = 1;
+                        if (pattern.length == 1)
+                            return prior.toByteArray();
+                    } else
+                        prior.write(r);
+                }
+            }
+            return prior.toByteArray();
+        }
+    }
+}
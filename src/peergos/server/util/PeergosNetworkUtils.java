@@ -1,5 +1,6 @@
 package peergos.server.util;
 
+import peergos.server.crypto.*;
 import org.junit.Assert;
 import peergos.server.storage.ResetableFileInputStream;
 import peergos.shared.Crypto;
@@ -28,7 +29,7 @@ public class PeergosNetworkUtils {
         return "username_" + Math.abs(random.nextInt() % 1_000_000);
     }
 
-    public static final Crypto crypto = Crypto.initJava();
+    public static final Crypto crypto = JavaCrypto.init();
 
     public static String randomString() {
         return UUID.randomUUID().toString();
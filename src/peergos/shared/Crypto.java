@@ -55,9 +55,14 @@ public class Crypto {
     }
 
     public static Crypto initJava() {
+        return initJava(new Salsa20Poly1305.Java(), new Ed25519.Java());
+    }
+
+    /** Initialise with the given symmetric and signing providers, which may be faster than TweetNaCl
+     *
+     */
+    public static Crypto initJava(Salsa20Poly1305 symmetricProvider, Ed25519 signer) {
         SafeRandom.Java random = new SafeRandom.Java();
-        Salsa20Poly1305.Java symmetricProvider = new Salsa20Poly1305.Java();
-        Ed25519.Java signer = new Ed25519.Java();
         Curve25519 boxer = new Curve25519.Java();
         return init(() -> new Crypto(random, new ScryptJava(), symmetricProvider, signer, boxer), true);
     }
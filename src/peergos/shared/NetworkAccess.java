@@ -28,30 +28,65 @@ import java.util.stream.*;
  */
 public class NetworkAccess {
     private static final Logger LOG = Logger.getGlobal();
+    private static final int PATH_CACHE_SIZE = 10_000;
+    public static final int DEFAULT_MAX_METADATA_REQUESTS = 16;
+    public static final int DEFAULT_READ_AHEAD_CHUNKS = 2;
+    public static final int DEFAULT_MAX_UPLOAD_CHUNKS_IN_FLIGHT = 4;
+    public static final long DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
 
     public final CoreNode coreNode;
     public final SocialNetwork social;
     public final ContentAddressedStorage dhtClient;
     public final MutablePointers mutable;
     public final MutableTree tree;
+    public final PathCache paths;
     @JsProperty
     public final List<String> usernames;
     private final LocalDateTime creationTime;
     private final boolean isJavascript;
+    // Bounds the metadata lookups in flight, across all concurrent directory listings
+    private final AsyncLimiter metadataRequests;
+    // The number of chunks after the current one which file readers fetch in the background
+    private final int readAheadChunks;
+    // Bound the chunks of each file upload which are being encrypted, fragmented or uploaded at once
+    private final int maxUploadChunksInFlight;
+    private final long maxUploadBytesInFlight;
 
     public NetworkAccess(CoreNode coreNode, SocialNetwork social, ContentAddressedStorage dhtClient, MutablePointers mutable, MutableTree tree, List<String> usernames) {
         this(coreNode, social, dhtClient, mutable, tree, usernames, false);
     }
 
     public NetworkAccess(CoreNode coreNode, SocialNetwork social, ContentAddressedStorage dhtClient, MutablePointers mutable, MutableTree tree, List<String> usernames, boolean isJavascript) {
+        this(coreNode, social, new HashVerifyingStorage(dhtClient), mutable, tree, new PathCache(tree, PATH_CACHE_SIZE),
+                usernames, isJavascript, new AsyncLimiter(DEFAULT_MAX_METADATA_REQUESTS), DEFAULT_READ_AHEAD_CHUNKS,
+                DEFAULT_MAX_UPLOAD_CHUNKS_IN_FLIGHT, DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT);
+    }
+
+    private NetworkAccess(CoreNode coreNode,
+                          SocialNetwork social,
+                          ContentAddressedStorage dhtClient,
+                          MutablePointers mutable,
+                          MutableTree tree,
+                          PathCache paths,
+                          List<String> usernames,
+                          boolean isJavascript,
+                          AsyncLimiter metadataRequests,
+                          int readAheadChunks,
+                          int maxUploadChunksInFlight,
+                          long maxUploadBytesInFlight) {
         this.coreNode = coreNode;
         this.social = social;
-        this.dhtClient = new HashVerifyingStorage(dhtClient);
+        this.dhtClient = dhtClient;
         this.mutable = mutable;
         this.tree = tree;
+        this.paths = paths;
         this.usernames = usernames;
         this.creationTime = LocalDateTime.now();
         this.isJavascript = isJavascript;
+        this.metadataRequests = metadataRequests;
+        this.readAheadChunks = readAheadChunks;
+        this.maxUploadChunksInFlight = maxUploadChunksInFlight;
+        this.maxUploadBytesInFlight = maxUploadBytesInFlight;
     }
 
     public boolean isJavascript() {
@@ -59,7 +94,54 @@ public class NetworkAccess {
     }
 
     public NetworkAccess withCorenode(CoreNode newCore) {
-        return new NetworkAccess(newCore, social, dhtClient, mutable, tree, usernames, isJavascript);
+        return new NetworkAccess(newCore, social, dhtClient, mutable, tree, paths, usernames, isJavascript, metadataRequests, readAheadChunks,
+                maxUploadChunksInFlight, maxUploadBytesInFlight);
+    }
+
+    /**
+     *
+     * @param maxInFlight The maximum number of metadata lookups to have in flight at once
+     * @return
+     */
+    public NetworkAccess withMaxMetadataRequests(int maxInFlight) {
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, paths, usernames, isJavascript,
+                new AsyncLimiter(maxInFlight), readAheadChunks, maxUploadChunksInFlight, maxUploadBytesInFlight);
+    }
+
+    /**
+     *
+     * @param chunks The number of chunks beyond the current one to download and decrypt in the background once a
+     *               file reader has moved past its first chunk
+     * @return
+     */
+    public NetworkAccess withReadAheadChunks(int chunks) {
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, paths, usernames, isJavascript,
+                metadataRequests, chunks, maxUploadChunksInFlight, maxUploadBytesInFlight);
+    }
+
+    public int getReadAheadChunks() {
+        return readAheadChunks;
+    }
+
+    /**
+     *
+     * @param maxChunks The maximum number of chunks of a file upload that are being encrypted, fragmented or uploaded
+     *                  at once
+     * @param maxBytes The memory budget for the chunks of a file upload in flight, including their ciphertext and
+     *                 fragments
+     * @return
+     */
+    public NetworkAccess withUploadParallelism(int maxChunks, long maxBytes) {
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, paths, usernames, isJavascript,
+                metadataRequests, readAheadChunks, maxChunks, maxBytes);
+    }
+
+    public int getMaxUploadChunksInFlight() {
+        return maxUploadChunksInFlight;
+    }
+
+    public long getMaxUploadBytesInFlight() {
+        return maxUploadBytesInFlight;
     }
 
     @JsMethod
@@ -70,12 +152,20 @@ public class NetworkAccess {
     }
 
     public NetworkAccess clear() {
-        return new NetworkAccess(coreNode, social, dhtClient, mutable, new MutableTreeImpl(mutable, dhtClient), usernames, isJavascript);
+        MutableTree tree = new MutableTreeImpl(mutable, dhtClient);
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, new PathCache(tree, PATH_CACHE_SIZE),
+                usernames, isJavascript, metadataRequests, readAheadChunks,
+                maxUploadChunksInFlight, maxUploadBytesInFlight);
     }
 
     public NetworkAccess withMutablePointerCache(int ttl) {
         CachingPointers mutable = new CachingPointers(this.mutable, ttl);
-        return new NetworkAccess(coreNode, social, dhtClient, mutable, new MutableTreeImpl(mutable, dhtClient), usernames, isJavascript);
+        if (this.mutable instanceof PointerUpdates)
+            mutable.watch((PointerUpdates) this.mutable);
+        MutableTree tree = new MutableTreeImpl(mutable, dhtClient);
+        return new NetworkAccess(coreNode, social, dhtClient, mutable, tree, new PathCache(tree, PATH_CACHE_SIZE),
+                usernames, isJavascript, metadataRequests, readAheadChunks,
+                maxUploadChunksInFlight, maxUploadBytesInFlight);
     }
 
     public static CoreNode buildProxyingCorenode(HttpPoster poster, Multihash pkiServerNodeId) {
@@ -87,7 +177,7 @@ public class NetworkAccess {
     }
 
     public static ContentAddressedStorage buildLocalDht(HttpPoster apiPoster, boolean isPeergosServer) {
-        return new CachingStorage(new ContentAddressedStorage.HTTP(apiPoster, isPeergosServer), 10_000, 50 * 1024);
+        return new CachingStorage(new ContentAddressedStorage.HTTP(apiPoster, isPeergosServer), 100 * 1024 * 1024, 50 * 1024);
     }
 
     @JsMethod
@@ -113,6 +203,7 @@ public class NetworkAccess {
         return res;
     }
 
+    @GwtIncompatible("Uses JavaPoster")
     public static CompletableFuture<NetworkAccess> buildJava(URL apiAddress, URL proxyAddress, String pkiNodeId) {
         Multihash pkiServerNodeId = Cid.decode(pkiNodeId);
         JavaPoster p2pPoster = new JavaPoster(proxyAddress);
@@ -190,6 +281,7 @@ public class NetworkAccess {
         return new NetworkAccess(coreNode, social, dht, mutable, btree, usernames, isJavascript);
     }
 
+    @GwtIncompatible("Uses JavaPoster")
     public static CompletableFuture<NetworkAccess> buildJava(URL target) {
         JavaPoster poster = new JavaPoster(target);
         CoreNode direct = buildDirectCorenode(poster);
@@ -203,6 +295,7 @@ public class NetworkAccess {
         }
     }
 
+    @GwtIncompatible("Uses JavaPoster")
     public static CompletableFuture<NetworkAccess> buildJava(int targetPort) {
         try {
             return buildJava(new URL("http://localhost:" + targetPort + "/"));
@@ -212,48 +305,99 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links) {
-        List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
-                .map(link -> {
-                    PublicKeyHash owner = link.owner;
-                    PublicKeyHash writer = link.writer;
-                    byte[] mapKey = link.getMapKey();
-                    return tree.get(owner, writer, mapKey)
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedCapability(
-                                                            link,
-                                                            CryptreeNode.fromCbor(cbor, key.get()))));
-                                LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
-                                Optional<RetrievedCapability> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
-                            });
-                }).collect(Collectors.toList());
-
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
+        return retrieveAllMetadata(links, false).thenApply(all -> all.stream()
                 .filter(Optional::isPresent)
                 .map(Optional::get)
                 .collect(Collectors.toList()));
     }
 
+    /** Retrieve the metadata of many links concurrently, up to the limit on metadata requests in flight. The links of
+     * each writer are looked up in a single snapshot of its champ, so its root is only resolved once.
+     *
+     * @param links
+     * @param skipFailures Whether a failure to retrieve a link, or to look up the links of a writer, should leave them
+     *                     empty rather than failing the whole retrieval
+     * @return The metadata of each link, in order, or empty if it is not present
+     */
+    private CompletableFuture<List<Optional<RetrievedCapability>>> retrieveAllMetadata(List<AbsoluteCapability> links,
+                                                                                       boolean skipFailures) {
+        Map<Pair<PublicKeyHash, PublicKeyHash>, List<Integer>> byWriter = new LinkedHashMap<>();
+        for (int i=0; i < links.size(); i++) {
+            AbsoluteCapability link = links.get(i);
+            byWriter.computeIfAbsent(new Pair<>(link.owner, link.writer), w -> new ArrayList<>()).add(i);
+        }
+        List<Optional<RetrievedCapability>> results = new ArrayList<>(Collections.nCopies(links.size(), Optional.empty()));
+        List<CompletableFuture<Boolean>> groups = byWriter.entrySet().stream()
+                .map(group -> {
+                    PublicKeyHash owner = group.getKey().left;
+                    PublicKeyHash writer = group.getKey().right;
+                    List<Integer> indices = group.getValue();
+                    List<byte[]> mapKeys = indices.stream()
+                            .map(i -> links.get(i).getMapKey())
+                            .collect(Collectors.toList());
+                    CompletableFuture<Boolean> retrieved = tree.getAll(owner, writer, mapKeys, metadataRequests)
+                            .thenCompose(hashes -> metadataRequests.submitAll(IntStream.range(0, indices.size())
+                                            .boxed()
+                                            .collect(Collectors.toList()),
+                                    j -> {
+                                        AbsoluteCapability link = links.get(indices.get(j));
+                                        MaybeMultihash hash = hashes.get(j);
+                                        if (! hash.isPresent()) {
+                                            LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKeys.get(j)));
+                                            return CompletableFuture.completedFuture(Optional.<RetrievedCapability>empty());
+                                        }
+                                        CompletableFuture<Optional<RetrievedCapability>> retrievedLink = dhtClient.get(hash.get())
+                                                .thenApply(dataOpt -> dataOpt.map(cbor -> new RetrievedCapability(
+                                                        link,
+                                                        CryptreeNode.fromCbor(cbor, hash.get()))));
+                                        return skipFailures ? retrievedLink.exceptionally(t -> {
+                                            LOG.log(Level.WARNING, "Couldn't retrieve link at: " +
+                                                    new Location(owner, writer, mapKeys.get(j)), t);
+                                            return Optional.empty();
+                                        }) : retrievedLink;
+                                    }))
+                            .thenApply(retrievedGroup -> {
+                                synchronized (results) {
+                                    for (int j=0; j < indices.size(); j++)
+                                        results.set(indices.get(j), retrievedGroup.get(j));
+                                }
+                                return true;
+                            });
+                    return skipFailures ? retrieved.exceptionally(t -> {
+                        LOG.log(Level.WARNING, "Couldn't retrieve links of writer " + writer, t);
+                        return false;
+                    }) : retrieved;
+                }).collect(Collectors.toList());
+
+        return Futures.combineAllInOrder(groups).thenApply(done -> {
+            synchronized (results) {
+                return new ArrayList<>(results);
+            }
+        });
+    }
+
     public CompletableFuture<Set<FileWrapper>> retrieveAll(List<EntryPoint> entries) {
-        return Futures.reduceAll(entries, Collections.emptySet(),
-                (set, entry) -> retrieveEntryPoint(entry)
-                        .thenApply(opt ->
-                                opt.map(f -> Stream.concat(set.stream(), Stream.of(f)).collect(Collectors.toSet()))
-                                        .orElse(set)),
-                (a, b) -> Stream.concat(a.stream(), b.stream()).collect(Collectors.toSet()));
+        return retrieveAllMetadata(entries.stream()
+                .map(e -> e.pointer)
+                .collect(Collectors.toList()), true)
+                .thenApply(retrieved -> IntStream.range(0, entries.size())
+                        .filter(i -> retrieved.get(i).isPresent())
+                        .mapToObj(i -> toFileWrapper(entries.get(i), retrieved.get(i).get().fileAccess))
+                        .collect(Collectors.toSet()));
     }
 
     public CompletableFuture<Optional<FileWrapper>> retrieveEntryPoint(EntryPoint e) {
         return downloadEntryPoint(e)
-                .thenApply(faOpt ->faOpt.map(fa -> new FileWrapper(Optional.empty(),
-                        new RetrievedCapability(e.pointer, fa),
-                        e.pointer.wBaseKey.map(wBase -> fa.getSigner(wBase, Optional.empty())), e.ownerName)))
+                .thenApply(faOpt -> faOpt.map(fa -> toFileWrapper(e, fa)))
                 .exceptionally(t -> Optional.empty());
     }
 
+    private static FileWrapper toFileWrapper(EntryPoint e, CryptreeNode fa) {
+        return new FileWrapper(Optional.empty(),
+                new RetrievedCapability(e.pointer, fa),
+                e.pointer.wBaseKey.map(wBase -> fa.getSigner(wBase, Optional.empty())), e.ownerName);
+    }
+
     private CompletableFuture<Optional<CryptreeNode>> downloadEntryPoint(EntryPoint entry) {
         // download the metadata blob for this entry point
         return tree.get(entry.pointer.owner, entry.pointer.writer, entry.pointer.getMapKey()).thenCompose(btreeValue -> {
@@ -289,8 +433,9 @@ public class NetworkAccess {
                                                               ProgressConsumer<Long> progressCounter,
                                                               double spaceIncreaseFactor,
                                                               TransactionId tid) {
-        // upload one per query because IPFS doesn't support more than one
-        int FRAGMENTs_PER_QUERY = 1;
+        // ContentAddressedStorage.HTTP splits these up again if it is talking directly to IPFS, which only accepts one
+        // block per put
+        int FRAGMENTs_PER_QUERY = 8;
         List<List<Fragment>> grouped = IntStream.range(0, (fragments.size() + FRAGMENTs_PER_QUERY - 1) / FRAGMENTs_PER_QUERY)
                 .mapToObj(i -> fragments.stream().skip(FRAGMENTs_PER_QUERY * i).limit(FRAGMENTs_PER_QUERY).collect(Collectors.toList()))
                 .collect(Collectors.toList());
@@ -361,20 +506,20 @@ public class NetworkAccess {
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
                                                                        ProgressConsumer<Long> monitor,
                                                                        double spaceIncreaseFactor) {
-        List<CompletableFuture<Optional<FragmentWithHash>>> futures = hashes.stream().parallel()
-                .map(h -> ((h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
-                        dhtClient.getRaw(h) :
-                        dhtClient.get(h)
-                                .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
-                        .thenApply(dataOpt -> {
-                            Optional<byte[]> bytes = dataOpt;
+        return dhtClient.getAllRaw(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> {
+                            Multihash h = hashes.get(i);
+                            Optional<byte[]> bytes = (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
+                                    blocks.get(i) :
+                                    blocks.get(i) // for backwards compatibility
+                                            .map(raw -> ((CborObject.CborByteArray) CborObject.fromByteArray(raw)).value);
                             bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
                             return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
-                        }))
-                .collect(Collectors.toList());
-
-        return Futures.combineAllInOrder(futures)
-                .thenApply(optList -> optList.stream().filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList()));
+                        })
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toList()));
     }
 
     /**
@@ -32,7 +32,7 @@ public interface CborObject extends Cborable {
     int LINK_TAG = 42;
 
     static CborObject fromByteArray(byte[] cbor) {
-        return deserialize(new CborDecoder(new ByteArrayInputStream(cbor)), cbor.length);
+        return CborReader.decode(cbor);
     }
 
     static CborObject deserialize(CborDecoder decoder, int maxGroupSize) {
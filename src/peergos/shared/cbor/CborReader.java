@@ -0,0 +1,391 @@
+package peergos.shared.cbor;
+
+import peergos.shared.cbor.CborObject.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** A CBOR reader which works directly on a byte[] with an offset, rather than through a stream.
+ *
+ *  Besides decoding the full object tree, it can list the merkle links in a block, or give field access to a map,
+ *  without building the tree. Strings, byte strings and values that are not needed are skipped over without copying.
+ */
+public final class CborReader {
+    private final byte[] data;
+    private final int end;
+    private int offset;
+
+    public CborReader(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IllegalArgumentException("Invalid range in cbor buffer!");
+        this.data = data;
+        this.offset = offset;
+        this.end = offset + length;
+    }
+
+    public CborReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     *
+     * @param cbor a cbor encoded object
+     * @return the decoded object, equal to what the stream based CborDecoder would produce
+     */
+    public static CborObject decode(byte[] cbor) {
+        return new CborReader(cbor).readObject();
+    }
+
+    /**
+     *
+     * @param cbor a cbor encoded object
+     * @return the merkle links in the object, in the order that CborObject.links() would return them
+     */
+    public static List<Multihash> links(byte[] cbor) {
+        List<Multihash> res = new ArrayList<>();
+        new CborReader(cbor).scanLinks(res);
+        return res;
+    }
+
+    /**
+     *
+     * @param cbor a cbor encoded map
+     * @return a view of the map whose values are only decoded when they are read
+     */
+    public static LazyMap lazyMap(byte[] cbor) {
+        return new CborReader(cbor).readLazyMap();
+    }
+
+    public CborObject readObject() {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+                return new CborLong(readArgument(info));
+            case TYPE_NEGATIVE_INTEGER:
+                return new CborLong(-1 - readArgument(info));
+            case TYPE_BYTE_STRING: {
+                int len = readLength(info);
+                byte[] value = Arrays.copyOfRange(data, offset, offset + len);
+                offset += len;
+                return new CborByteArray(value);
+            }
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info);
+                String value = readUtf8(len);
+                return new CborString(value);
+            }
+            case TYPE_ARRAY: {
+                int nItems = readLength(info);
+                List<CborObject> res = new ArrayList<>(nItems);
+                for (int i=0; i < nItems; i++)
+                    res.add(readObject());
+                return new CborList(res);
+            }
+            case TYPE_MAP: {
+                int nValues = readLength(info);
+                SortedMap<CborObject, Cborable> result = new TreeMap<>();
+                for (int i=0; i < nValues; i++) {
+                    CborObject key = readObject();
+                    CborObject value = readObject();
+                    result.put(key, value);
+                }
+                return new CborMap(result);
+            }
+            case TYPE_TAG: {
+                long tag = readArgument(info);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + tag);
+                return new CborMerkleLink(readLinkTarget());
+            }
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL)
+                    return new CborNull();
+                if (info == TRUE)
+                    return new CborBoolean(true);
+                if (info == FALSE)
+                    return new CborBoolean(false);
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType);
+        }
+    }
+
+    /** Skip over the next object, appending any merkle links in it to res
+     *
+     */
+    public void scanLinks(List<Multihash> res) {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+                readArgument(info);
+                return;
+            case TYPE_BYTE_STRING:
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info);
+                offset += len;
+                return;
+            }
+            case TYPE_ARRAY: {
+                int nItems = readLength(info);
+                for (int i=0; i < nItems; i++)
+                    scanLinks(res);
+                return;
+            }
+            case TYPE_MAP: {
+                int nValues = readLength(info);
+                for (int i=0; i < nValues; i++) {
+                    skip();
+                    scanLinks(res);
+                }
+                return;
+            }
+            case TYPE_TAG: {
+                long tag = readArgument(info);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + tag);
+                res.add(readLinkTarget());
+                return;
+            }
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL || info == TRUE || info == FALSE)
+                    return;
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType);
+        }
+    }
+
+    /** Skip over the next object without decoding it
+     *
+     */
+    public void skip() {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+                readArgument(info);
+                return;
+            case TYPE_BYTE_STRING:
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info);
+                offset += len;
+                return;
+            }
+            case TYPE_ARRAY: {
+                int nItems = readLength(info);
+                for (int i=0; i < nItems; i++)
+                    skip();
+                return;
+            }
+            case TYPE_MAP: {
+                int nValues = readLength(info);
+                for (int i=0; i < 2 * nValues; i++)
+                    skip();
+                return;
+            }
+            case TYPE_TAG:
+                readArgument(info);
+                skip();
+                return;
+            case TYPE_FLOAT_SIMPLE:
+                if (info == ONE_BYTE)
+                    offset += 1;
+                else if (info == TWO_BYTES)
+                    offset += 2;
+                else if (info == FOUR_BYTES)
+                    offset += 4;
+                else if (info == EIGHT_BYTES)
+                    offset += 8;
+                else if (info > EIGHT_BYTES)
+                    throw new IllegalStateException("Unimplemented simple type! " + info);
+                if (offset > end)
+                    throw new IllegalStateException("Invalid cbor: value extends past the end of the data!");
+                return;
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType);
+        }
+    }
+
+    public LazyMap readLazyMap() {
+        int initial = readByte();
+        if (initial >>> 5 != TYPE_MAP)
+            throw new IllegalStateException("Expected a cbor map, but got major type " + (initial >>> 5));
+        int nValues = readLength(initial & 0x1f);
+        int[] keyOffsets = new int[nValues];
+        int[] keyLengths = new int[nValues];
+        int[] valueOffsets = new int[nValues];
+        for (int i=0; i < nValues; i++) {
+            int keyStart = offset;
+            int keyInitial = readByte();
+            if (keyInitial >>> 5 == TYPE_TEXT_STRING) {
+                keyLengths[i] = readLength(keyInitial & 0x1f);
+                keyOffsets[i] = offset;
+                offset += keyLengths[i];
+            } else {
+                // Only text keys can be looked up by name
+                offset = keyStart;
+                skip();
+                keyOffsets[i] = -1;
+            }
+            valueOffsets[i] = offset;
+            skip();
+        }
+        return new LazyMap(data, end, keyOffsets, keyLengths, valueOffsets);
+    }
+
+    private Multihash readLinkTarget() {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int len = readLength(initial & 0x1f);
+        if (majorType == TYPE_TEXT_STRING)
+            return Cid.decode(readUtf8(len));
+        if (majorType != TYPE_BYTE_STRING)
+            throw new IllegalStateException("Invalid type for merkle link: " + majorType);
+        if (len == 0 || data[offset] != 0)
+            throw new IllegalStateException("Unknown Multibase decoding Merkle link: " + (len == 0 ? "empty" : data[offset]));
+        Cid target = Cid.cast(data, offset + 1, len - 1);
+        offset += len;
+        return target;
+    }
+
+    private String readUtf8(int len) {
+        try {
+            String value = new String(data, offset, len, "UTF-8");
+            offset += len;
+            return value;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private int readByte() {
+        if (offset >= end)
+            throw new IllegalStateException("Invalid cbor: unexpected end of data!");
+        return data[offset++] & 0xff;
+    }
+
+    private long readArgument(int info) {
+        if (info < ONE_BYTE)
+            return info;
+        int nBytes;
+        if (info == ONE_BYTE)
+            nBytes = 1;
+        else if (info == TWO_BYTES)
+            nBytes = 2;
+        else if (info == FOUR_BYTES)
+            nBytes = 4;
+        else if (info == EIGHT_BYTES)
+            nBytes = 8;
+        else
+            throw new IllegalStateException("Indefinite length or invalid cbor argument: " + info);
+        if (offset + nBytes > end)
+            throw new IllegalStateException("Invalid cbor: unexpected end of data!");
+        long res = 0;
+        for (int i=0; i < nBytes; i++)
+            res = (res << 8) | (data[offset++] & 0xff);
+        return res;
+    }
+
+    /** Read the length of a string, array or map, which must fit in the remaining bytes
+     *
+     */
+    private int readLength(int info) {
+        long len = readArgument(info);
+        if (len < 0 || len > end - offset)
+            throw new IllegalStateException("Invalid cbor: length " + len + " is longer than the remaining data!");
+        return (int) len;
+    }
+
+    /** A cbor map whose keys have been located, but whose values are only decoded on access.
+     *
+     */
+    public static final class LazyMap {
+        private final byte[] data;
+        private final int end;
+        private final int[] keyOffsets, keyLengths, valueOffsets;
+
+        private LazyMap(byte[] data, int end, int[] keyOffsets, int[] keyLengths, int[] valueOffsets) {
+            this.data = data;
+            this.end = end;
+            this.keyOffsets = keyOffsets;
+            this.keyLengths = keyLengths;
+            this.valueOffsets = valueOffsets;
+        }
+
+        public int size() {
+            return valueOffsets.length;
+        }
+
+        public boolean containsKey(String key) {
+            return indexOf(key) >= 0;
+        }
+
+        public Optional<CborObject> get(String key) {
+            int index = indexOf(key);
+            if (index < 0)
+                return Optional.empty();
+            return Optional.of(reader(index).readObject());
+        }
+
+        public long getLong(String key) {
+            return ((CborLong) get(key).orElseThrow(() -> new IllegalStateException("Missing cbor field: " + key))).value;
+        }
+
+        public String getString(String key) {
+            return ((CborString) get(key).orElseThrow(() -> new IllegalStateException("Missing cbor field: " + key))).value;
+        }
+
+        /**
+         *
+         * @param key
+         * @return the merkle links in the value for key, without decoding it
+         */
+        public List<Multihash> links(String key) {
+            int index = indexOf(key);
+            if (index < 0)
+                return Collections.emptyList();
+            List<Multihash> res = new ArrayList<>();
+            reader(index).scanLinks(res);
+            return res;
+        }
+
+        private CborReader reader(int index) {
+            int start = valueOffsets[index];
+            return new CborReader(data, start, end - start);
+        }
+
+        private int indexOf(String key) {
+            byte[] keyBytes;
+            try {
+                keyBytes = key.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            for (int i=0; i < keyOffsets.length; i++) {
+                if (keyOffsets[i] < 0 || keyLengths[i] != keyBytes.length)
+                    continue;
+                if (equalRange(data, keyOffsets[i], keyBytes))
+                    return i;
+            }
+            return -1;
+        }
+
+        private static boolean equalRange(byte[] data, int offset, byte[] key) {
+            for (int i=0; i < key.length; i++)
+                if (data[offset + i] != key[i])
+                    return false;
+            return true;
+        }
+    }
+}
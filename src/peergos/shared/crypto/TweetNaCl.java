@@ -32,7 +32,7 @@ public class TweetNaCl {
     public static class InvalidSignatureException extends RuntimeException {}
     public static class InvalidCipherTextException extends IllegalStateException {
         InvalidCipherTextException() {}
-        InvalidCipherTextException(String msg) {
+        public InvalidCipherTextException(String msg) {
             super(msg);
         }
     }
@@ -82,6 +82,28 @@ public class TweetNaCl {
         return Arrays.copyOfRange(message, 64, message.length);
     }
 
+    /** Verify a signature over a slice of a larger array, without copying the message
+     *
+     * @return whether signature is a valid signature of message[offset, offset + length) by publicSigningKey
+     */
+    public static boolean crypto_sign_verify_detached(byte[] signature, byte[] message, int offset, int length, byte[] publicSigningKey) {
+        if (signature.length != SIGNATURE_SIZE_BYTES)
+            return false;
+        byte[] t = new byte[32], h = new byte[64];
+        long[][] /*gf*/ p = new long[4][GF_LEN], q = new long[4][GF_LEN];
+        if (unpackneg(q, publicSigningKey) != 0)
+            return false;
+
+        crypto_hash_signed(h, signature, publicSigningKey, message, offset, length);
+        reduce(h);
+        scalarmult(p, q, h, 0);
+
+        scalarbase(q, signature, 32);
+        add(p, q);
+        pack(t, p);
+        return crypto_verify_32(signature, t) == 0;
+    }
+
     public static byte[] crypto_box(byte[] message, byte[] nonce, byte[] theirPublicBoxingKey, byte[] ourSecretBoxingKey) {
         if (nonce.length != BOX_NONCE_BYTES)
             throw new IllegalStateException("Illegal nonce length: "+nonce.length);
@@ -605,6 +627,39 @@ public class TweetNaCl {
         byte[] x = new byte[256];
         int i, b = n;
 
+        crypto_hash_init(hh, hl);
+        crypto_hashblocks_hl(hh, hl, m, 0, n);
+        n %= 128;
+
+        for (i = 0; i < n; i++) x[i] = m[b-n+i];
+        crypto_hash_final(out, hh, hl, x, n, b);
+        return 0;
+    }
+
+    /** Hash R || A || M, where R is the first half of the signature and A the public key, as needed to verify an
+     *  Ed25519 signature, with M read in place from a slice of m
+     */
+    private static void crypto_hash_signed(byte[] out, byte[] signature, byte[] pk, byte[] m, int mOff, int mLen) {
+        int[] hh = new int[8], hl = new int[8];
+        byte[] x = new byte[256];
+        int b = 64 + mLen, n;
+
+        crypto_hash_init(hh, hl);
+        System.arraycopy(signature, 0, x, 0, 32);
+        System.arraycopy(pk, 0, x, 32, 32);
+        System.arraycopy(m, mOff, x, 64, Math.min(64, mLen));
+        if (b < 128) {
+            n = b;
+        } else {
+            crypto_hashblocks_hl(hh, hl, x, 0, 128);
+            n = crypto_hashblocks_hl(hh, hl, m, mOff + 64, mLen - 64);
+            Arrays.fill(x, (byte) 0);
+            System.arraycopy(m, mOff + mLen - n, x, 0, n);
+        }
+        crypto_hash_final(out, hh, hl, x, n, b);
+    }
+
+    private static void crypto_hash_init(int[] hh, int[] hl) {
         hh[0] = 0x6a09e667;
         hh[1] = 0xbb67ae85;
         hh[2] = 0x3c6ef372;
@@ -622,21 +677,21 @@ public class TweetNaCl {
         hl[5] = 0x2b3e6c1f;
         hl[6] = 0xfb41bd6b;
         hl[7] = 0x137e2179;
+    }
 
-        crypto_hashblocks_hl(hh, hl, m, n);
-        n %= 128;
-
-        for (i = 0; i < n; i++) x[i] = m[b-n+i];
+    /**
+     * @param x a zeroed 256 byte buffer starting with the final n bytes of the input
+     * @param b the total length of the input
+     */
+    private static void crypto_hash_final(byte[] out, int[] hh, int[] hl, byte[] x, int n, int b) {
         x[n] = (byte)128;
 
         n = 256-128*(n<112?1:0);
         x[n-9] = 0;
         jsts64(x, n - 8, (b / 0x20000000), b << 3);
-        crypto_hashblocks_hl(hh, hl, x, n);
-
-        for (i = 0; i < 8; i++) jsts64(out, 8 * i, hh[i], hl[i]);
+        crypto_hashblocks_hl(hh, hl, x, 0, n);
 
-        return 0;
+        for (int i = 0; i < 8; i++) jsts64(out, 8 * i, hh[i], hl[i]);
     }
 
     private static void jsts64(byte[] x, int i, int h, int l) {
@@ -693,7 +748,7 @@ public class TweetNaCl {
             0x5fcb6fab, 0x3ad6faec, 0x6c44198c, 0x4a475817
     };
 
-    private static int crypto_hashblocks_hl(int[] hh, int[] hl, byte[] m, int n) {
+    private static int crypto_hashblocks_hl(int[] hh, int[] hl, byte[] m, int mOff, int n) {
         int[] wh = new int[16], wl = new int[16];
         int bh0, bh1, bh2, bh3, bh4, bh5, bh6, bh7,
                 bl0, bl1, bl2, bl3, bl4, bl5, bl6, bl7,
@@ -717,7 +772,7 @@ public class TweetNaCl {
                 al6 = hl[6],
                 al7 = hl[7];
 
-        int pos = 0;
+        int pos = mOff;
         while (n >= 128) {
             for (i = 0; i < 16; i++) {
                 j = 8 * i + pos;
@@ -39,6 +39,12 @@ public interface PublicSigningKey extends Cborable {
     @JsMethod
     byte[] unsignMessage(byte[] signed);
 
+    /**
+     *
+     * @return whether signature is valid for message[offset, offset + length)
+     */
+    boolean isValidSignature(byte[] signature, byte[] message, int offset, int length);
+
     static PublicSigningKey fromString(String b64) {
         return fromByteArray(Base64.getDecoder().decode(b64));
     }
@@ -49,6 +49,10 @@ public class Ed25519PublicKey implements PublicSigningKey {
         return implementation.crypto_sign_open(signed, publicKey);
     }
 
+    public boolean isValidSignature(byte[] signature, byte[] message, int offset, int length) {
+        return implementation.crypto_sign_verify(signature, message, offset, length, publicKey);
+    }
+
     public static Ed25519PublicKey fromCbor(Cborable cbor, Ed25519 provider) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Invalid cbor for Ed25519 public key! " + cbor);
@@ -117,33 +117,49 @@ public class Champ implements Cborable {
     }
 
     CompletableFuture<Pair<Multihash, Optional<Champ>>> getChild(byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
+        return getChild(hash, depth, bitWidth, storage, Optional.empty());
+    }
+
+    private CompletableFuture<Pair<Multihash, Optional<Champ>>> getChild(byte[] hash,
+                                                                          int depth,
+                                                                          int bitWidth,
+                                                                          ContentAddressedStorage storage,
+                                                                          Optional<DecodedCache<Champ>> cache) {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
+        if (cache.isPresent())
+            return cache.get().get(childHash, storage)
+                    .thenApply(x -> new Pair<>(childHash, x));
         return storage.get(childHash)
                 .thenApply(x -> new Pair<>(childHash, x.map(Champ::fromCbor)));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
-        long keys = keyCount();
-        if (nodeCount() == 0)
-            return CompletableFuture.completedFuture(keys);
+        return size(Collections.singletonList(this), storage);
+    }
 
-        List<CompletableFuture<Long>> childCounts = new ArrayList<>();
-        for (int i = contents.length - 1; i >= 0; i--) {
-            HashPrefixPayload pointer = contents[i];
-            if (! pointer.isShard())
-                break; // we reach the key section
-            childCounts.add(storage.get(pointer.link.get())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(Champ::fromCbor)))
-                    .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
-                            .orElse(CompletableFuture.completedFuture(0L)))
-            );
+    /** Count the keys in the given nodes and everything below them, retrieving each level of the tree in one call
+     *
+     */
+    private static CompletableFuture<Long> size(List<Champ> level, ContentAddressedStorage storage) {
+        long keys = level.stream().mapToLong(Champ::keyCount).sum();
+        List<Multihash> children = new ArrayList<>();
+        for (Champ node : level) {
+            for (int i = node.contents.length - 1; i >= 0; i--) {
+                HashPrefixPayload pointer = node.contents[i];
+                if (! pointer.isShard())
+                    break; // we reach the key section
+                children.add(pointer.link.get());
+            }
         }
-        List<Integer> indices = IntStream.range(0, childCounts.size())
-                .mapToObj(x -> x)
-                .collect(Collectors.toList());
-        return Futures.reduceAll(indices, keys, (t, index) -> childCounts.get(index).thenApply(c -> c + t), (a, b) -> a + b);
+        if (children.isEmpty())
+            return CompletableFuture.completedFuture(keys);
+        return storage.getAll(children)
+                .thenCompose(nodes -> size(nodes.stream()
+                        .flatMap(opt -> opt.map(Champ::fromCbor).map(Stream::of).orElse(Stream.empty()))
+                        .collect(Collectors.toList()), storage))
+                .thenApply(c -> c + keys);
     }
 
     /**
@@ -156,6 +172,25 @@ public class Champ implements Cborable {
      * @return The value, if any, that this key maps to
      */
     public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
+        return get(key, hash, depth, bitWidth, storage, Optional.empty());
+    }
+
+    /**
+     *
+     * @param key The key to get the value for
+     * @param hash The hash of the key
+     * @param depth The current depth in the champ (top = 0)
+     * @param bitWidth The champ bitwidth
+     * @param storage The storage
+     * @param cache A cache of decoded champ nodes to look up child nodes in before storage
+     * @return The value, if any, that this key maps to
+     */
+    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key,
+                                                 byte[] hash,
+                                                 int depth,
+                                                 int bitWidth,
+                                                 ContentAddressedStorage storage,
+                                                 Optional<DecodedCache<Champ>> cache) {
         final int bitpos = mask(hash, depth, bitWidth);
 
         if (dataMap.get(bitpos)) { // local value
@@ -171,8 +206,8 @@ public class Champ implements Cborable {
         }
 
         if (nodeMap.get(bitpos)) { // child node
-            return getChild(hash, depth, bitWidth, storage)
-                    .thenCompose(child -> child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage))
+            return getChild(hash, depth, bitWidth, storage, cache)
+                    .thenCompose(child -> child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage, cache))
                             .orElse(CompletableFuture.completedFuture(MaybeMultihash.empty())));
         }
 
@@ -469,6 +504,83 @@ public class Champ implements Cborable {
         return CompletableFuture.completedFuture(new Pair<>(this, ourHash));
     }
 
+    /** Apply many changes to this champ, writing only the nodes of the final tree which are new, in as few puts as
+     *  possible. The intermediate nodes are kept in memory and never signed or written.
+     *
+     * @param writer The writer key with permission to write
+     * @param changes The keys to set, with the value, if any, expected to currently be stored, and the new value
+     * @param bitWidth The champ bitwidth
+     * @param maxCollisions The maximum number of hash collision per layer in this champ
+     * @param hasher The function to calculate the hash of keys
+     * @param tid The transaction id for this write operation
+     * @param storage The storage
+     * @param ourHash The hash of the current champ node
+     * @return A new champ and its hash after all the puts
+     */
+    public CompletableFuture<Pair<Champ, Multihash>> putAll(PublicKeyHash owner,
+                                                            SigningPrivateKeyAndPublicHash writer,
+                                                            List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> changes,
+                                                            int bitWidth,
+                                                            int maxCollisions,
+                                                            Function<ByteArrayWrapper, byte[]> hasher,
+                                                            TransactionId tid,
+                                                            ContentAddressedStorage storage,
+                                                            Multihash ourHash) {
+        BufferedStorage buffer = new BufferedStorage(storage);
+        return Futures.reduceAll(sortByHash(changes, c -> c.left, hasher),
+                new Pair<>(this, ourHash),
+                (p, c) -> p.left.put(owner, writer, c.left, hasher.apply(c.left), 0, c.middle, c.right,
+                        bitWidth, maxCollisions, hasher, tid, buffer, p.right),
+                (a, b) -> b)
+                .thenCompose(res -> buffer.commit(owner, writer.publicKeyHash, res.right, tid).thenApply(b -> res));
+    }
+
+    /** Remove many keys from this champ, writing only the nodes of the final tree which are new, in as few puts as
+     *  possible.
+     *
+     * @param writer The writer key with permission to write
+     * @param keys The keys to remove, with the value, if any, expected to currently be stored
+     * @param bitWidth The champ bitwidth
+     * @param maxCollisions The maximum number of hash collision per layer in this champ
+     * @param hasher The function to calculate the hash of keys
+     * @param tid The transaction id for this write operation
+     * @param storage The storage
+     * @param ourHash The hash of the current champ node
+     * @return A new champ and its hash after all the removes
+     */
+    public CompletableFuture<Pair<Champ, Multihash>> removeAll(PublicKeyHash owner,
+                                                               SigningPrivateKeyAndPublicHash writer,
+                                                               List<Pair<ByteArrayWrapper, MaybeMultihash>> keys,
+                                                               int bitWidth,
+                                                               int maxCollisions,
+                                                               Function<ByteArrayWrapper, byte[]> hasher,
+                                                               TransactionId tid,
+                                                               ContentAddressedStorage storage,
+                                                               Multihash ourHash) {
+        BufferedStorage buffer = new BufferedStorage(storage);
+        return Futures.reduceAll(sortByHash(keys, k -> k.left, hasher),
+                new Pair<>(this, ourHash),
+                (p, k) -> p.left.remove(owner, writer, k.left, hasher.apply(k.left), 0, k.right,
+                        bitWidth, maxCollisions, tid, buffer, p.right),
+                (a, b) -> b)
+                .thenCompose(res -> buffer.commit(owner, writer.publicKeyHash, res.right, tid).thenApply(b -> res));
+    }
+
+    /** Order changes by the hash of their key, so that changes under the same child are applied consecutively
+     *
+     */
+    private static <T> List<T> sortByHash(List<T> changes,
+                                          Function<T, ByteArrayWrapper> key,
+                                          Function<ByteArrayWrapper, byte[]> hasher) {
+        List<Pair<ByteArrayWrapper, T>> hashed = changes.stream()
+                .map(c -> new Pair<>(new ByteArrayWrapper(hasher.apply(key.apply(c))), c))
+                .collect(Collectors.toList());
+        hashed.sort(Comparator.comparing(p -> p.left));
+        return hashed.stream()
+                .map(p -> p.right)
+                .collect(Collectors.toList());
+    }
+
     private Champ copyAndMigrateFromNodeToInline(final int bitpos, final Champ node) {
 
         final int oldIndex = this.contents.length - 1 - getIndex(nodeMap, bitpos);
@@ -9,8 +9,10 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper implements ImmutableTree
 {
@@ -20,13 +22,24 @@ public class ChampWrapper implements ImmutableTree
     public final ContentAddressedStorage storage;
     public final int bitWidth;
     private final Function<ByteArrayWrapper, byte[]> hasher;
+    private final Optional<DecodedCache<Champ>> cache;
     private Pair<Champ, Multihash> root;
 
-    public ChampWrapper(Champ root, Multihash rootHash, Function<ByteArrayWrapper, byte[]> hasher, ContentAddressedStorage storage, int bitWidth) {
+    public ChampWrapper(Champ root,
+                        Multihash rootHash,
+                        Function<ByteArrayWrapper, byte[]> hasher,
+                        ContentAddressedStorage storage,
+                        int bitWidth,
+                        Optional<DecodedCache<Champ>> cache) {
         this.storage = storage;
         this.hasher = hasher;
         this.root = new Pair<>(root, rootHash);
         this.bitWidth = bitWidth;
+        this.cache = cache;
+    }
+
+    public ChampWrapper(Champ root, Multihash rootHash, Function<ByteArrayWrapper, byte[]> hasher, ContentAddressedStorage storage, int bitWidth) {
+        this(root, rootHash, hasher, storage, bitWidth, Optional.empty());
     }
 
     public static CompletableFuture<ChampWrapper> create(Multihash rootHash,
@@ -39,6 +52,21 @@ public class ChampWrapper implements ImmutableTree
         });
     }
 
+    /**
+     *
+     * @param cache decoded champ nodes, which are used for reads from the tree
+     */
+    public static CompletableFuture<ChampWrapper> create(Multihash rootHash,
+                                                         Function<ByteArrayWrapper, byte[]> hasher,
+                                                         ContentAddressedStorage dht,
+                                                         DecodedCache<Champ> cache) {
+        return cache.get(rootHash, dht).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
+                throw new IllegalStateException("Null byte[] returned by DHT for hash: " + rootHash);
+            return new ChampWrapper(rootOpt.get(), rootHash, hasher, dht, BIT_WIDTH, Optional.of(cache));
+        });
+    }
+
     public static CompletableFuture<ChampWrapper> create(PublicKeyHash owner,
                                                          SigningPrivateKeyAndPublicHash writer,
                                                          Function<ByteArrayWrapper, byte[]> hasher,
@@ -50,6 +78,10 @@ public class ChampWrapper implements ImmutableTree
                 .thenApply(put -> new ChampWrapper(newRoot, put, hasher, dht, BIT_WIDTH));
     }
 
+    public Multihash getRoot() {
+        return root.right;
+    }
+
     /**
      *
      * @param rawKey
@@ -59,7 +91,7 @@ public class ChampWrapper implements ImmutableTree
     @Override
     public CompletableFuture<MaybeMultihash> get(byte[] rawKey) {
         ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
-        return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage);
+        return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage, cache);
     }
 
     /**
@@ -100,6 +132,40 @@ public class ChampWrapper implements ImmutableTree
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /**
+     *
+     * @param changes the keys to set, with the value, if any, expected to currently be stored and the new value
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> putAll(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash writer,
+                                               List<Triple<byte[], MaybeMultihash, Multihash>> changes,
+                                               TransactionId tid) {
+        List<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> wrapped = changes.stream()
+                .map(c -> new Triple<>(new ByteArrayWrapper(c.left), c.middle, MaybeMultihash.of(c.right)))
+                .collect(Collectors.toList());
+        return root.left.putAll(owner, writer, wrapped, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid,
+                storage, root.right)
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
+    /**
+     *
+     * @param keys the keys to remove, with the value, if any, expected to currently be stored
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> removeAll(PublicKeyHash owner,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  List<Pair<byte[], MaybeMultihash>> keys,
+                                                  TransactionId tid) {
+        List<Pair<ByteArrayWrapper, MaybeMultihash>> wrapped = keys.stream()
+                .map(k -> new Pair<>(new ByteArrayWrapper(k.left), k.right))
+                .collect(Collectors.toList());
+        return root.left.removeAll(owner, writer, wrapped, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, tid,
+                storage, root.right)
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ, Multihash> newRoot) {
         root = newRoot;
         return CompletableFuture.completedFuture(newRoot.right);
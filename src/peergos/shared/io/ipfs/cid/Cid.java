@@ -145,6 +145,19 @@ public class Cid extends Multihash {
         return cast(data);
     }
 
+    /** Decode a cid from a range of a larger array, avoiding any intermediate copies for the common case of a v1 cid
+     *  with a single byte codec and multihash type.
+     */
+    public static Cid cast(byte[] data, int offset, int length) {
+        if (length > 4 && data[offset] == 1 && data[offset + 1] >= 0 && data[offset + 2] >= 0 && data[offset + 3] >= 0
+                && data[offset + 3] == length - 4) {
+            Codec codec = Codec.lookup(data[offset + 1]);
+            Multihash.Type type = Multihash.Type.lookup(data[offset + 2]);
+            return new Cid(1, codec, type, Arrays.copyOfRange(data, offset + 4, offset + length));
+        }
+        return cast(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
     public static Cid cast(byte[] data) {
         if (data.length == 34 && data[0] == 18 && data[1] == 32)
             return buildCidV0(Multihash.decode(data));
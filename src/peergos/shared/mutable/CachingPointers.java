@@ -1,45 +1,213 @@
 package peergos.shared.mutable;
 
 import peergos.shared.crypto.hash.*;
-import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 /*
- * A CoreNode that caches previous metadata blob reads for a certain time
+ * A MutablePointers that caches previous pointer reads for a certain time
+ *
+ * Concurrent reads of the same pointer share a single request to the target. Once an entry is older than the ttl it
+ * is still returned for up to a further maxStaleness millis while it is refreshed in the background. The cache can
+ * also be given a source of pushed updates, in which case changes to any cached pointer are applied as soon as the
+ * server sees them.
  */
 public class CachingPointers implements MutablePointers {
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
 
     private final MutablePointers target;
     private final int cacheTTL;
-    private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    private final int maxStaleness;
+    private final int maxEntries;
+    private final Map<PublicKeyHash, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, CompletableFuture<Optional<byte[]>>> inFlight = new ConcurrentHashMap<>();
+    // Orders writes to the cache, so a slow refresh can't overwrite a newer value
+    private final AtomicLong sequence = new AtomicLong(0);
+    private boolean polling = false;
+    // The cursor of the last result from updates
+    private long cursor = -1;
+    private volatile Optional<PointerUpdates> updates = Optional.empty();
+    private volatile long lastPollFailure = 0;
 
-    public CachingPointers(MutablePointers target, int cacheTTL) {
+    /**
+     *
+     * @param target
+     * @param cacheTTL The time in millis after which an entry is refreshed
+     * @param maxStaleness The time in millis after the ttl during which a stale entry is returned while refreshing it
+     * @param maxEntries The maximum number of pointers to cache
+     */
+    public CachingPointers(MutablePointers target, int cacheTTL, int maxStaleness, int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
         this.target = target;
         this.cacheTTL = cacheTTL;
+        this.maxStaleness = maxStaleness;
+        this.maxEntries = maxEntries;
+    }
+
+    public CachingPointers(MutablePointers target, int cacheTTL) {
+        this(target, cacheTTL, cacheTTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /** Apply updates pushed from the server to cached pointers as they happen
+     *
+     * @param updates
+     */
+    public void watch(PointerUpdates updates) {
+        this.updates = Optional.of(updates);
+        pollForUpdates();
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
-        synchronized (cache) {
-            Pair<Optional<byte[]>, Long> cached = cache.get(writer);
-            if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
-                return CompletableFuture.completedFuture(cached.left);
+        Entry cached = cache.get(writer);
+        if (cached != null) {
+            long age = System.currentTimeMillis() - cached.time;
+            if (age < cacheTTL)
+                return CompletableFuture.completedFuture(cached.value);
+            if (age < cacheTTL + maxStaleness) {
+                refresh(owner, writer);
+                return CompletableFuture.completedFuture(cached.value);
+            }
         }
-        return target.getPointer(owner, writer).thenApply(m -> {
-            synchronized (cache) {
-                cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+        return refresh(owner, writer);
+    }
+
+    private CompletableFuture<Optional<byte[]>> refresh(PublicKeyHash owner, PublicKeyHash writer) {
+        CompletableFuture<Optional<byte[]>> existing = inFlight.get(writer);
+        if (existing != null)
+            return existing;
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(writer, res);
+        if (existing != null)
+            return existing;
+
+        long startSequence = sequence.incrementAndGet();
+        target.getPointer(owner, writer).thenAccept(m -> {
+            cache.compute(writer, (k, current) -> current != null && current.sequence > startSequence ?
+                    current :
+                    new Entry(m, System.currentTimeMillis(), startSequence));
+            inFlight.remove(writer);
+            res.complete(m);
+            ensureBounded();
+            pollForUpdates();
+        }).exceptionally(t -> {
+            inFlight.remove(writer);
+            res.completeExceptionally(t);
+            return null;
+        });
+        return res;
+    }
+
+    /** Set the cached value of a pointer, as the result of a push from the server
+     *
+     * @param writer
+     * @param signedPointer
+     */
+    public void update(PublicKeyHash writer, Optional<byte[]> signedPointer) {
+        cache.put(writer, new Entry(signedPointer, System.currentTimeMillis(), sequence.incrementAndGet()));
+        ensureBounded();
+    }
+
+    public void invalidate(PublicKeyHash writer) {
+        cache.remove(writer);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    private synchronized void ensureBounded() {
+        if (cache.size() <= maxEntries)
+            return;
+        long now = System.currentTimeMillis();
+        // first drop anything too stale to be returned, then arbitrary entries, leaving some free space so we don't
+        // have to scan on every insertion
+        cache.entrySet().removeIf(e -> now - e.getValue().time >= cacheTTL + maxStaleness);
+        int target = maxEntries - maxEntries / 4;
+        Iterator<PublicKeyHash> keys = cache.keySet().iterator();
+        while (cache.size() > target && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private synchronized boolean startPolling() {
+        if (polling)
+            return false;
+        polling = true;
+        return true;
+    }
+
+    private synchronized void stopPolling() {
+        polling = false;
+    }
+
+    /**
+     *
+     * @return The most recently updated cached writers, up to the most that can be watched
+     */
+    private List<PublicKeyHash> watchedWriters() {
+        return cache.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sequence, a.getValue().sequence))
+                .limit(PointerUpdates.MAX_WATCHED_WRITERS)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private void pollForUpdates() {
+        if (! updates.isPresent())
+            return;
+        if (System.currentTimeMillis() - lastPollFailure < cacheTTL)
+            return;
+        if (! startPolling())
+            return;
+        List<PublicKeyHash> watched = watchedWriters();
+        if (watched.isEmpty()) {
+            // restarted by the next read which adds an entry
+            stopPolling();
+            return;
+        }
+        updates.get().awaitChanges(cursor, watched).thenAccept(changes -> {
+            if (changes.reset) {
+                // we may have missed changes to anything we have cached
+                cache.clear();
             }
-            return m;
+            for (Map.Entry<PublicKeyHash, byte[]> e : changes.changed.entrySet())
+                if (cache.containsKey(e.getKey()))
+                    update(e.getKey(), Optional.of(e.getValue()));
+            cursor = changes.cursor;
+            stopPolling();
+            pollForUpdates();
+        }).exceptionally(t -> {
+            lastPollFailure = System.currentTimeMillis();
+            stopPolling();
+            return null;
         });
     }
 
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
-        synchronized (cache) {
-            cache.remove(writer);
+        cache.remove(writer);
+        return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash).thenApply(res -> {
+            if (res)
+                update(writer, Optional.of(writerSignedBtreeRootHash));
+            return res;
+        });
+    }
+
+    private static final class Entry {
+        final Optional<byte[]> value;
+        final long time;
+        final long sequence;
+
+        Entry(Optional<byte[]> value, long time, long sequence) {
+            this.value = value;
+            this.time = time;
+            this.sequence = sequence;
         }
-        return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash);
     }
 }
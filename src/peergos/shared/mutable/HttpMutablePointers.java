@@ -2,6 +2,7 @@
 package peergos.shared.mutable;
 import java.util.logging.*;
 
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
@@ -12,7 +13,7 @@ import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 
-public class HttpMutablePointers implements MutablePointersProxy {
+public class HttpMutablePointers implements MutablePointersProxy, PointerUpdates {
 	private static final Logger LOG = Logger.getGlobal();
 	private static final String P2P_PROXY_PROTOCOL = "/http";
 
@@ -107,4 +108,10 @@ public class HttpMutablePointers implements MutablePointersProxy {
                 LOG.info("HttpMutablePointers.get took " + (t2 -t1) + "mS");
         }
     }
+
+    @Override
+    public CompletableFuture<PointerChanges> awaitChanges(long cursor, List<PublicKeyHash> writers) {
+        return direct.postUnzip(directUrlPrefix + "mutable/awaitChanges", PointerUpdates.serializeRequest(cursor, writers))
+                .thenApply(raw -> PointerChanges.fromCbor(CborObject.fromByteArray(raw)));
+    }
 }
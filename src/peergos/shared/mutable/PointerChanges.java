@@ -0,0 +1,50 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** The result of waiting for pointer changes
+ *
+ */
+public class PointerChanges implements Cborable {
+
+    public final long cursor;
+    // true if changes since the requested cursor are no longer known, so any cached pointer may be out of date
+    public final boolean reset;
+    public final Map<PublicKeyHash, byte[]> changed;
+
+    public PointerChanges(long cursor, boolean reset, Map<PublicKeyHash, byte[]> changed) {
+        this.cursor = cursor;
+        this.reset = reset;
+        this.changed = changed;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        return new CborObject.CborList(Arrays.asList(
+                new CborObject.CborLong(cursor),
+                new CborObject.CborBoolean(reset),
+                new CborObject.CborList(changed.entrySet().stream()
+                        .map(e -> new CborObject.CborList(Arrays.asList(e.getKey().toCbor(), new CborObject.CborByteArray(e.getValue()))))
+                        .collect(Collectors.toList()))
+        ));
+    }
+
+    public static PointerChanges fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborList))
+            throw new IllegalStateException("Incorrect cbor for PointerChanges: " + cbor);
+
+        List<? extends Cborable> value = ((CborObject.CborList) cbor).value;
+        long cursor = ((CborObject.CborLong) value.get(0)).value;
+        boolean reset = ((CborObject.CborBoolean) value.get(1)).value;
+        Map<PublicKeyHash, byte[]> changed = new HashMap<>();
+        for (Cborable pair : ((CborObject.CborList) value.get(2)).value) {
+            List<? extends Cborable> parts = ((CborObject.CborList) pair).value;
+            changed.put(PublicKeyHash.fromCbor(parts.get(0)), ((CborObject.CborByteArray) parts.get(1)).value);
+        }
+        return new PointerChanges(cursor, reset, changed);
+    }
+}
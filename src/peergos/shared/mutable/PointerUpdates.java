@@ -0,0 +1,57 @@
+package peergos.shared.mutable;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** A source of pushed mutable pointer updates
+ *
+ */
+public interface PointerUpdates {
+
+    /** The most writers a single call can watch
+     */
+    int MAX_WATCHED_WRITERS = 1_000;
+
+    /** Wait until at least one of the given writers' pointers has changed since the cursor, or a server defined
+     * timeout passes
+     *
+     * @param cursor The cursor from the previous result, or a negative number if there isn't one
+     * @param writers The writers to watch, at most MAX_WATCHED_WRITERS
+     * @return The current signed pointer values of the watched writers which have changed since the cursor, which is
+     * empty on a timeout, and the cursor to use for the next call
+     */
+    CompletableFuture<PointerChanges> awaitChanges(long cursor, List<PublicKeyHash> writers);
+
+    static byte[] serializeRequest(long cursor, List<PublicKeyHash> writers) {
+        return new CborObject.CborList(Arrays.asList(
+                new CborObject.CborLong(cursor),
+                new CborObject.CborList(writers.stream()
+                        .map(PublicKeyHash::toCbor)
+                        .collect(Collectors.toList()))))
+                .serialize();
+    }
+
+    static long parseCursor(byte[] request) {
+        return ((CborObject.CborLong) parseRequest(request).get(0)).value;
+    }
+
+    static List<PublicKeyHash> parseWriters(byte[] request) {
+        List<? extends Cborable> writers = ((CborObject.CborList) parseRequest(request).get(1)).value;
+        if (writers.size() > MAX_WATCHED_WRITERS)
+            throw new IllegalStateException("Too many writers to watch: " + writers.size());
+        return writers.stream()
+                .map(PublicKeyHash::fromCbor)
+                .collect(Collectors.toList());
+    }
+
+    static List<? extends Cborable> parseRequest(byte[] request) {
+        CborObject cbor = CborObject.fromByteArray(request);
+        if (! (cbor instanceof CborObject.CborList))
+            throw new IllegalStateException("Invalid cbor for pointer updates request: " + cbor);
+        return ((CborObject.CborList) cbor).value;
+    }
+}
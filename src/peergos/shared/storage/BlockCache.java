@@ -0,0 +1,182 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** A concurrent cache of raw blocks which is bounded by the total size in bytes of the values it holds.
+ *
+ * The key space is split into a fixed number of shards. Reads are lock free, and each shard has its own lock which is
+ * only taken to insert or evict. Eviction within a shard uses the CLOCK algorithm, which approximates LRU without
+ * needing to reorder anything on a read.
+ */
+public class BlockCache {
+    private static final int DEFAULT_SHARDS = 16;
+
+    private final Shard[] shards;
+    private final int shardMask;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     *
+     * @param maxBytes The maximum total size of all the cached values
+     * @param shardCount The number of independently locked shards, rounded up to a power of 2
+     */
+    public BlockCache(long maxBytes, int shardCount) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        int nShards = 1;
+        while (nShards < shardCount)
+            nShards <<= 1;
+        this.shards = new Shard[nShards];
+        for (int i=0; i < nShards; i++)
+            shards[i] = new Shard(Math.max(1, maxBytes / nShards));
+        this.shardMask = nShards - 1;
+    }
+
+    public BlockCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SHARDS);
+    }
+
+    private Shard shard(Multihash key) {
+        int h = key.hashCode();
+        return shards[(h ^ (h >>> 16)) & shardMask];
+    }
+
+    public Optional<byte[]> get(Multihash key) {
+        Entry entry = shard(key).entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        entry.referenced = true;
+        hits.incrementAndGet();
+        return Optional.of(entry.value);
+    }
+
+    public boolean containsKey(Multihash key) {
+        return shard(key).entries.containsKey(key);
+    }
+
+    public void put(Multihash key, byte[] value) {
+        shard(key).put(key, value);
+    }
+
+    public void remove(Multihash key) {
+        shard(key).remove(key);
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public long sizeInBytes() {
+        long total = 0;
+        for (Shard shard : shards)
+            total += shard.getUsedBytes();
+        return total;
+    }
+
+    public int size() {
+        int total = 0;
+        for (Shard shard : shards)
+            total += shard.entries.size();
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCache{entries=" + size() + ", bytes=" + sizeInBytes() + ", hits=" + hitCount() +
+                ", misses=" + missCount() + ", evictions=" + evictionCount() + "}";
+    }
+
+    private static final class Entry {
+        final Multihash key;
+        final byte[] value;
+        volatile boolean referenced;
+
+        Entry(Multihash key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final class Shard {
+        private final long maxBytes;
+        private final Map<Multihash, Entry> entries = new ConcurrentHashMap<>();
+        // The CLOCK hand is the head of this queue, guarded by the shard lock
+        private final Deque<Entry> clock = new ArrayDeque<>();
+        // Removed entries are left in the clock, and skipped when the hand reaches them
+        private int staleInClock;
+        private long usedBytes;
+
+        Shard(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized long getUsedBytes() {
+            return usedBytes;
+        }
+
+        synchronized void put(Multihash key, byte[] value) {
+            if (value.length > maxBytes || entries.containsKey(key))
+                return;
+            while (usedBytes + value.length > maxBytes)
+                evictOne();
+            Entry entry = new Entry(key, value);
+            entries.put(key, entry);
+            clock.addLast(entry);
+            usedBytes += value.length;
+        }
+
+        synchronized void remove(Multihash key) {
+            Entry removed = entries.remove(key);
+            if (removed == null)
+                return;
+            usedBytes -= removed.value.length;
+            staleInClock++;
+            if (staleInClock > entries.size())
+                compactClock();
+        }
+
+        private boolean isLive(Entry entry) {
+            return entries.get(entry.key) == entry;
+        }
+
+        private void compactClock() {
+            clock.removeIf(e -> ! isLive(e));
+            staleInClock = 0;
+        }
+
+        private void evictOne() {
+            while (true) {
+                Entry candidate = clock.pollFirst();
+                if (! isLive(candidate)) {
+                    staleInClock--;
+                    continue;
+                }
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    clock.addLast(candidate);
+                    continue;
+                }
+                entries.remove(candidate.key);
+                usedBytes -= candidate.value.length;
+                evictions.incrementAndGet();
+                return;
+            }
+        }
+    }
+}
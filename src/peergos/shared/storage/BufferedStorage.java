@@ -0,0 +1,189 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** A ContentAddressedStorage which keeps cbor blocks written to it in memory, hashing them locally, until commit is
+ * called with a root. Only the buffered blocks reachable from the root are then written to the target, in as few puts
+ * as possible, so intermediate versions of a structure that is modified many times are never written. Blocks put with
+ * a signing key are only signed if they are written. Raw blocks are written straight through.
+ */
+public class BufferedStorage implements ContentAddressedStorage {
+    private static final int MAX_BLOCKS_PER_PUT = 32;
+
+    private final ContentAddressedStorage target;
+    private final Map<Multihash, byte[]> blocks = new HashMap<>();
+    private final Map<Multihash, byte[]> signatures = new HashMap<>();
+    private final Map<Multihash, SigningPrivateKeyAndPublicHash> signers = new HashMap<>();
+
+    public BufferedStorage(ContentAddressedStorage target) {
+        this.target = target;
+    }
+
+    /** Write all the buffered blocks reachable from root to the target
+     *
+     * @param owner
+     * @param writer
+     * @param root
+     * @param tid
+     * @return true when the blocks have been written
+     */
+    public CompletableFuture<Boolean> commit(PublicKeyHash owner, PublicKeyHash writer, Multihash root, TransactionId tid) {
+        List<Multihash> toWrite = new ArrayList<>();
+        List<byte[]> toWriteBlocks = new ArrayList<>();
+        List<byte[]> toWriteSignatures = new ArrayList<>();
+        synchronized (this) {
+            Set<Multihash> seen = new HashSet<>();
+            LinkedList<Multihash> queue = new LinkedList<>();
+            queue.add(root);
+            while (! queue.isEmpty()) {
+                Multihash next = queue.poll();
+                byte[] block = blocks.get(next);
+                if (block == null || ! seen.add(next))
+                    continue;
+                toWrite.add(next);
+                toWriteBlocks.add(block);
+                byte[] signature = signatures.get(next);
+                toWriteSignatures.add(signature != null ? signature : signers.get(next).secret.signatureOnly(block));
+                queue.addAll(CborReader.links(block));
+            }
+        }
+        // the signatures are sent in the url, so limit how many go in each request
+        List<CompletableFuture<List<Multihash>>> puts = new ArrayList<>();
+        for (int i = 0; i < toWrite.size(); i += MAX_BLOCKS_PER_PUT) {
+            int end = Math.min(toWrite.size(), i + MAX_BLOCKS_PER_PUT);
+            puts.add(target.put(owner, writer, toWriteSignatures.subList(i, end), toWriteBlocks.subList(i, end), tid));
+        }
+        return Futures.combineAllInOrder(puts)
+                .thenApply(groups -> {
+                    List<Multihash> written = groups.stream()
+                            .flatMap(g -> g.stream())
+                            .collect(Collectors.toList());
+                    if (! written.equals(toWrite))
+                        throw new IllegalStateException("Target storage returned different hashes for buffered blocks!");
+                    return true;
+                });
+    }
+
+    private static Cid hashOf(byte[] block) {
+        return new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(block));
+    }
+
+    private synchronized Optional<byte[]> getBuffered(Multihash hash) {
+        return Optional.ofNullable(blocks.get(hash));
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return target.startTransaction(owner);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return target.closeTransaction(owner, tid);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> put(PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash writer,
+                                            byte[] block,
+                                            TransactionId tid) {
+        Cid cid = hashOf(block);
+        synchronized (this) {
+            blocks.put(cid, block);
+            if (! signatures.containsKey(cid))
+                signers.put(cid, writer);
+        }
+        return CompletableFuture.completedFuture(cid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signatures,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        List<Multihash> res = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < blocks.size(); i++) {
+                byte[] block = blocks.get(i);
+                Cid cid = hashOf(block);
+                this.blocks.put(cid, block);
+                this.signatures.put(cid, signatures.get(i));
+                this.signers.remove(cid);
+                res.add(cid);
+            }
+        }
+        return CompletableFuture.completedFuture(res);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid) {
+        return target.putRaw(owner, writer, signatures, blocks, tid);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        Optional<byte[]> buffered = getBuffered(hash);
+        if (buffered.isPresent())
+            return CompletableFuture.completedFuture(buffered.map(CborObject::fromByteArray));
+        return target.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        Optional<byte[]> buffered = getBuffered(hash);
+        if (buffered.isPresent())
+            return CompletableFuture.completedFuture(buffered);
+        return target.getRaw(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        Optional<byte[]> buffered = getBuffered(root);
+        if (buffered.isPresent())
+            return CompletableFuture.completedFuture(CborReader.links(buffered.get()));
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        Optional<byte[]> buffered = getBuffered(block);
+        if (buffered.isPresent())
+            return CompletableFuture.completedFuture(Optional.of(buffered.get().length));
+        return target.getSize(block);
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return target.recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return target.recursiveUnpin(owner, h);
+    }
+}
@@ -9,19 +9,30 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 
+/** A ContentAddressedStorage that caches small blocks in a size bounded BlockCache, and coalesces concurrent reads of
+ * the same block into a single request to the target.
+ */
 public class CachingStorage implements ContentAddressedStorage {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final BlockCache cache;
+    private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new ConcurrentHashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new ConcurrentHashMap<>();
     private final int maxValueSize;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    /**
+     *
+     * @param target The storage to read through to
+     * @param cacheSizeBytes The maximum total size of the cached blocks
+     * @param maxValueSize Blocks this size or bigger are not cached
+     */
+    public CachingStorage(ContentAddressedStorage target, long cacheSizeBytes, int maxValueSize) {
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = new BlockCache(cacheSizeBytes);
         this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+    }
+
+    public BlockCache getCache() {
+        return cache;
     }
 
     @Override
@@ -50,32 +61,31 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cached.get())));
 
         CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+        CompletableFuture<Optional<CborObject>> existing = pending.putIfAbsent(key, pipe);
+        if (existing != null)
+            return existing;
 
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
         target.get(key).thenAccept(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
+            if (cborOpt.isPresent())
+                cacheValue(key, cborOpt.get().toByteArray());
             pending.remove(key);
             pipe.complete(cborOpt);
-            result.complete(cborOpt);
         }).exceptionally(t -> {
             pending.remove(key);
             pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
             return null;
         });
-        return result;
+        return pipe;
+    }
+
+    private void cacheValue(Multihash key, byte[] value) {
+        if (value.length > 0 && value.length < maxValueSize)
+            cache.put(key, value);
     }
 
     @Override
@@ -89,28 +99,53 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
 
         CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
-            if (rawOpt.isPresent()) {
-                byte[] value = rawOpt.get();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
+        CompletableFuture<Optional<byte[]>> existing = pendingRaw.putIfAbsent(key, pipe);
+        if (existing != null)
+            return existing;
+
+        target.getRaw(key).thenAccept(rawOpt -> {
+            if (rawOpt.isPresent())
+                cacheValue(key, rawOpt.get());
             pendingRaw.remove(key);
             pipe.complete(rawOpt);
-            return rawOpt;
         }).exceptionally(t -> {
-            pending.remove(key);
+            pendingRaw.remove(key);
             pipe.completeExceptionally(t);
             return null;
         });
+        return pipe;
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        List<Optional<byte[]>> results = new ArrayList<>(Collections.nCopies(hashes.size(), Optional.empty()));
+        List<Multihash> misses = new ArrayList<>();
+        List<Integer> missIndices = new ArrayList<>();
+        for (int i=0; i < hashes.size(); i++) {
+            Optional<byte[]> cached = cache.get(hashes.get(i));
+            if (cached.isPresent())
+                results.set(i, cached);
+            else {
+                misses.add(hashes.get(i));
+                missIndices.add(i);
+            }
+        }
+        if (misses.isEmpty())
+            return CompletableFuture.completedFuture(results);
+        return target.getAllRaw(misses).thenApply(fetched -> {
+            for (int i=0; i < misses.size(); i++) {
+                Optional<byte[]> rawOpt = fetched.get(i);
+                if (rawOpt.isPresent())
+                    cacheValue(misses.get(i), rawOpt.get());
+                results.set(missIndices.get(i), rawOpt);
+            }
+            return results;
+        });
     }
 
     @Override
@@ -108,6 +108,28 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<byte[]>> getRaw(Multihash hash);
 
+    /**
+     * Get many blocks of raw bytes in one call
+     * @param hashes
+     * @return The data for each hash in the same order, with Optional.empty() for any that can't be found
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(this::getRaw)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Get many ipld cbor blocks in one call
+     * @param hashes
+     * @return The objects for each hash in the same order, with Optional.empty() for any that can't be found
+     */
+    default CompletableFuture<List<Optional<CborObject>>> getAll(List<Multihash> hashes) {
+        return getAllRaw(hashes).thenApply(blocks -> blocks.stream()
+                .map(opt -> opt.map(CborObject::fromByteArray))
+                .collect(Collectors.toList()));
+    }
+
     /**
      * Update an existing pin with a new root. This is useful when modifying a tree of ipld objects where only a small
      * number of components are changed
@@ -189,14 +211,23 @@ public interface ContentAddressedStorage {
     }
 
     default CompletableFuture<Long> getRecursiveBlockSize(Multihash block) {
-        return getLinks(block).thenCompose(links -> {
-            List<CompletableFuture<Long>> subtrees = links.stream().map(this::getRecursiveBlockSize).collect(Collectors.toList());
-            return getSize(block)
-                    .thenCompose(sizeOpt -> {
-                        CompletableFuture<Long> reduced = Futures.reduceAll(subtrees,
-                                0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b);
-                        return reduced.thenApply(sum -> sum + sizeOpt.orElse(0));
-                    });
+        return getRecursiveBlockSize(Collections.singletonList(block));
+    }
+
+    /**
+     * Sum the sizes of the merkle trees under the given roots, retrieving each level of the trees in one call
+     * @param level The roots
+     * @return The total size in bytes
+     */
+    default CompletableFuture<Long> getRecursiveBlockSize(List<Multihash> level) {
+        if (level.isEmpty())
+            return CompletableFuture.completedFuture(0L);
+        return getAllLinksAndSize(level).thenCompose(linksAndSizes -> {
+            long levelSize = linksAndSizes.stream().mapToLong(p -> p.left).sum();
+            List<Multihash> nextLevel = linksAndSizes.stream()
+                    .flatMap(p -> p.right.stream())
+                    .collect(Collectors.toList());
+            return getRecursiveBlockSize(nextLevel).thenApply(rest -> rest + levelSize);
         });
     }
 
@@ -207,37 +238,48 @@ public interface ContentAddressedStorage {
     }
 
     default CompletableFuture<Long> getChangeInContainedSize(Multihash original, Multihash updated) {
-        return getLinksAndSize(original)
-                .thenCompose(before -> getLinksAndSize(updated).thenCompose(after -> {
-                    int objectDelta = after.left - before.left;
-                    List<Multihash> onlyBefore = new ArrayList<>(before.right);
-                    onlyBefore.removeAll(after.right);
-                    List<Multihash> onlyAfter = new ArrayList<>(after.right);
-                    onlyAfter.removeAll(before.right);
-
-                    int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
-                    List<Pair<Multihash, Multihash>> pairs = IntStream.range(0, nPairs)
-                            .mapToObj(i -> new Pair<>(onlyBefore.get(i), onlyAfter.get(i)))
-                            .collect(Collectors.toList());
-
-                    List<Multihash> extraBefore = onlyBefore.subList(nPairs, onlyBefore.size());
-                    List<Multihash> extraAfter = onlyAfter.subList(nPairs, onlyAfter.size());
-                    Function<List<Multihash>, CompletableFuture<Long>> getAllRecursiveSizes =
-                            extra -> Futures.reduceAll(extra,
-                                    0L,
-                                    (s, h) -> getRecursiveBlockSize(h).thenApply(size -> size + s),
-                                    (a, b) -> a + b);
-
-                    Function<List<Pair<Multihash, Multihash>>, CompletableFuture<Long>> getSizeDiff =
-                            ps -> Futures.reduceAll(ps,
-                                    0L,
-                                    (s, p) -> getChangeInContainedSize(p.left, p.right).thenApply(size -> size + s),
-                                    (a, b) -> a + b);
-                    return getAllRecursiveSizes.apply(extraBefore)
-                            .thenCompose(priorSize -> getAllRecursiveSizes.apply(extraAfter)
-                                    .thenApply(postSize -> postSize - priorSize + objectDelta))
-                            .thenCompose(total -> getSizeDiff.apply(pairs).thenApply(res -> res + total));
-                }));
+        return getChangeInContainedSize(Collections.singletonList(new Pair<>(original, updated)));
+    }
+
+    /** Diff the changed subtrees a level at a time, so the number of concurrent requests doesn't depend on the shape
+     * of the trees
+     *
+     * @param level Pairs of the original and updated roots of changed subtrees at the same depth
+     * @return The total change in size of all the subtrees
+     */
+    default CompletableFuture<Long> getChangeInContainedSize(List<Pair<Multihash, Multihash>> level) {
+        if (level.isEmpty())
+            return CompletableFuture.completedFuture(0L);
+        List<Multihash> blocks = level.stream()
+                .flatMap(p -> Stream.of(p.left, p.right))
+                .collect(Collectors.toList());
+        return getAllLinksAndSize(blocks)
+                .thenCompose(linksAndSizes -> {
+                    long objectDelta = 0;
+                    List<Pair<Multihash, Multihash>> nextLevel = new ArrayList<>();
+                    List<Multihash> extraBefore = new ArrayList<>();
+                    List<Multihash> extraAfter = new ArrayList<>();
+                    for (int i=0; i < level.size(); i++) {
+                        Pair<Integer, List<Multihash>> before = linksAndSizes.get(2 * i);
+                        Pair<Integer, List<Multihash>> after = linksAndSizes.get(2 * i + 1);
+                        objectDelta += after.left - before.left;
+                        List<Multihash> onlyBefore = new ArrayList<>(before.right);
+                        onlyBefore.removeAll(after.right);
+                        List<Multihash> onlyAfter = new ArrayList<>(after.right);
+                        onlyAfter.removeAll(before.right);
+
+                        int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
+                        for (int j=0; j < nPairs; j++)
+                            nextLevel.add(new Pair<>(onlyBefore.get(j), onlyAfter.get(j)));
+                        extraBefore.addAll(onlyBefore.subList(nPairs, onlyBefore.size()));
+                        extraAfter.addAll(onlyAfter.subList(nPairs, onlyAfter.size()));
+                    }
+                    long levelDelta = objectDelta;
+                    return getRecursiveBlockSize(extraBefore)
+                            .thenCompose(prior -> getRecursiveBlockSize(extraAfter)
+                                    .thenCompose(post -> getChangeInContainedSize(nextLevel)
+                                            .thenApply(rest -> rest + post - prior + levelDelta)));
+                });
     }
 
     default CompletableFuture<Pair<Integer, List<Multihash>>> getLinksAndSize(Multihash block) {
@@ -245,6 +287,31 @@ public interface ContentAddressedStorage {
                 .thenCompose(links -> getSize(block).thenApply(size -> new Pair<>(size.orElse(0), links)));
     }
 
+    /**
+     * Get the size and links of many blocks. The cbor blocks are retrieved in a single call, and raw blocks, which
+     * have no links, are only asked for their size.
+     * @param blocks
+     * @return The size and links of each block in the same order
+     */
+    default CompletableFuture<List<Pair<Integer, List<Multihash>>>> getAllLinksAndSize(List<Multihash> blocks) {
+        List<Multihash> cbor = blocks.stream()
+                .filter(h -> ! (h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw))
+                .collect(Collectors.toList());
+        return getAllRaw(cbor).thenCompose(cborBlocks -> {
+            Map<Multihash, Pair<Integer, List<Multihash>>> results = new HashMap<>();
+            for (int i=0; i < cbor.size(); i++)
+                results.put(cbor.get(i), cborBlocks.get(i)
+                        .map(raw -> new Pair<>(raw.length, CborReader.links(raw)))
+                        .orElse(new Pair<>(0, Collections.emptyList())));
+            List<CompletableFuture<Pair<Integer, List<Multihash>>>> all = blocks.stream()
+                    .map(h -> results.containsKey(h) ?
+                            CompletableFuture.completedFuture(results.get(h)) :
+                            getSize(h).thenApply(size -> new Pair<>(size.orElse(0), Collections.<Multihash>emptyList())))
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(all);
+        });
+    }
+
     class HTTP implements ContentAddressedStorage {
 
         private final HttpPoster poster;
@@ -254,6 +321,11 @@ public interface ContentAddressedStorage {
         public static final String TRANSACTION_CLOSE = "transaction/close";
         public static final String BLOCK_PUT = "block/put";
         public static final String BLOCK_GET = "block/get";
+        public static final String BLOCK_GET_MANY = "block/get-many";
+        // the maximum number of blocks to request in a single call to block/get-many
+        public static final int MAX_BLOCKS_PER_GET = 64;
+        // the maximum number of concurrent calls to block/get-many
+        public static final int MAX_CONCURRENT_GETS = 4;
         public static final String BLOCK_STAT = "block/stat";
         public static final String PIN_ADD = "pin/add";
         public static final String PIN_RM = "pin/rm";
@@ -262,6 +334,7 @@ public interface ContentAddressedStorage {
 
         private final boolean isPeergosServer;
         private final Random r = new Random();
+        private final AsyncLimiter bulkGets = new AsyncLimiter(MAX_CONCURRENT_GETS);
 
         public HTTP(HttpPoster poster, boolean isPeergosServer) {
             this.poster = poster;
@@ -329,6 +402,16 @@ public interface ContentAddressedStorage {
                                                        List<byte[]> signatures,
                                                        List<byte[]> blocks, String format,
                                                        TransactionId tid) {
+            if (! isPeergosServer && blocks.size() > 1) {
+                // IPFS only accepts one block per put
+                List<CompletableFuture<List<Multihash>>> singles = new ArrayList<>();
+                for (int i=0; i < blocks.size(); i++)
+                    singles.add(put(owner, writer, signatures.subList(i, i + 1), blocks.subList(i, i + 1), format, tid));
+                return Futures.combineAllInOrder(singles)
+                        .thenApply(res -> res.stream()
+                                .flatMap(List::stream)
+                                .collect(Collectors.toList()));
+            }
             return poster.postMultipart(apiPrefix + BLOCK_PUT + "?format=" + format
                     + "&owner=" + encode(owner.toString())
                     + "&transaction=" + encode(tid.toString())
@@ -352,6 +435,68 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+            if (! isPeergosServer) // IPFS doesn't have a bulk block get
+                return ContentAddressedStorage.super.getAllRaw(hashes);
+            if (hashes.isEmpty())
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            List<List<Multihash>> batches = new ArrayList<>();
+            for (int i=0; i < hashes.size(); i += MAX_BLOCKS_PER_GET)
+                batches.add(hashes.subList(i, Math.min(hashes.size(), i + MAX_BLOCKS_PER_GET)));
+            return bulkGets.submitAll(batches, batch -> {
+                String args = batch.stream()
+                        .map(h -> "&arg=" + h.toString())
+                        .reduce("", (a, b) -> a + b);
+                return poster.get(apiPrefix + BLOCK_GET_MANY + "?stream-channels=true" + args)
+                        .thenApply(raw -> {
+                            List<Optional<byte[]>> blocks = parseFramedBlocks(raw);
+                            if (blocks.size() != batch.size())
+                                throw new IllegalStateException("Expected " + batch.size() + " blocks, but received " + blocks.size());
+                            return blocks;
+                        });
+            }).thenApply(lists -> lists.stream()
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList()));
+        }
+
+        /** Write each block framed by a 4 byte big endian length, with a length of -1 for a missing block
+         *
+         */
+        public static void writeFramedBlocks(List<Optional<byte[]>> blocks, DataOutputStream dout) throws IOException {
+            for (Optional<byte[]> block : blocks) {
+                if (! block.isPresent()) {
+                    dout.writeInt(-1);
+                    continue;
+                }
+                dout.writeInt(block.get().length);
+                dout.write(block.get());
+            }
+        }
+
+        /** Each block is framed by a 4 byte big endian length, with a length of -1 for a missing block
+         *
+         */
+        public static List<Optional<byte[]>> parseFramedBlocks(byte[] raw) {
+            try {
+                DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+                List<Optional<byte[]>> res = new ArrayList<>();
+                while (din.available() > 0) {
+                    int length = din.readInt();
+                    if (length < 0) {
+                        res.add(Optional.empty());
+                        continue;
+                    }
+                    byte[] block = new byte[length];
+                    din.readFully(block);
+                    res.add(Optional.of(block));
+                }
+                return res;
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
             return poster.get(apiPrefix + PIN_ADD + "?stream-channels=true&arg=" + hash.toString()
@@ -442,6 +587,11 @@ public interface ContentAddressedStorage {
             return local.getRaw(object);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+            return local.getAllRaw(hashes);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
             return local.getLinks(root);
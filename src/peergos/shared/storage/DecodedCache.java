@@ -0,0 +1,120 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** A concurrent cache of objects decoded from immutable blocks, keyed by the hash of the block.
+ *
+ * The cache is bounded by the number of entries. Reads are lock free, and eviction uses the CLOCK algorithm, as in
+ * BlockCache, so a read never needs to reorder anything. The cached objects must be immutable.
+ *
+ * @param <V> The type of the decoded objects
+ */
+public class DecodedCache<V> {
+
+    private final int maxEntries;
+    private final Function<CborObject, V> decoder;
+    private final Map<Multihash, Entry<V>> entries = new ConcurrentHashMap<>();
+    // The CLOCK hand is the head of this queue, guarded by this
+    private final Deque<Entry<V>> clock = new ArrayDeque<>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     *
+     * @param maxEntries The maximum number of decoded objects to hold
+     * @param decoder The function to decode a block
+     */
+    public DecodedCache(int maxEntries, Function<CborObject, V> decoder) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        this.maxEntries = maxEntries;
+        this.decoder = decoder;
+    }
+
+    public Optional<V> getIfPresent(Multihash hash) {
+        Entry<V> entry = entries.get(hash);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        entry.referenced = true;
+        hits.incrementAndGet();
+        return Optional.of(entry.value);
+    }
+
+    /**
+     *
+     * @param hash
+     * @param storage The storage to retrieve the block from if it isn't cached
+     * @return The decoded block, or empty if it isn't in storage
+     */
+    public CompletableFuture<Optional<V>> get(Multihash hash, ContentAddressedStorage storage) {
+        Optional<V> cached = getIfPresent(hash);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
+        return storage.get(hash).thenApply(cborOpt -> {
+            if (! cborOpt.isPresent())
+                return Optional.empty();
+            V value = decoder.apply(cborOpt.get());
+            put(hash, value);
+            return Optional.of(value);
+        });
+    }
+
+    public synchronized void put(Multihash hash, V value) {
+        if (entries.containsKey(hash))
+            return;
+        while (entries.size() >= maxEntries)
+            evictOne();
+        Entry<V> entry = new Entry<>(hash, value);
+        entries.put(hash, entry);
+        clock.addLast(entry);
+    }
+
+    private void evictOne() {
+        while (true) {
+            Entry<V> candidate = clock.pollFirst();
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                clock.addLast(candidate);
+                continue;
+            }
+            entries.remove(candidate.key);
+            return;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DecodedCache{entries=" + size() + ", hits=" + hitCount() + ", misses=" + missCount() + "}";
+    }
+
+    private static final class Entry<V> {
+        final Multihash key;
+        final V value;
+        volatile boolean referenced;
+
+        Entry(Multihash key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
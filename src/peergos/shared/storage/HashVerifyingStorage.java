@@ -85,6 +85,14 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
                 .thenApply(arrOpt -> arrOpt.map(bytes -> verify(bytes, hash, () -> bytes)));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return source.getAllRaw(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> blocks.get(i).map(bytes -> verify(bytes, hashes.get(i), () -> bytes)))
+                        .collect(Collectors.toList()));
+    }
+
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return source.pinUpdate(owner, existing, updated);
@@ -44,6 +44,11 @@ public class WriteFilter implements ContentAddressedStorage {
         return dht.getRaw(object);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAllRaw(List<Multihash> hashes) {
+        return dht.getAllRaw(hashes);
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         return dht.getLinks(root);
@@ -5,16 +5,63 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.zip.*;
 
+/** An HttpPoster which reuses keep-alive connections to its target, and runs requests asynchronously on a bounded
+ * number of threads.
+ *
+ * Connections are only returned to the JVM's keep-alive cache if the response (or error) stream is fully read and
+ * closed, rather than disconnected, so every request below does that.
+ */
+@GwtIncompatible("Uses threads")
 public class JavaPoster implements HttpPoster {
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 16;
+    private static final String LINE_FEED = "\r\n";
+
+    // Allow callbacks to block on other responses without running out of completion threads
+    private static final int COMPLETION_THREADS_PER_REQUEST_THREAD = 4;
 
     private final URL dht;
+    private final ExecutorService requests;
+    // Futures are completed on these threads, so callbacks which block can't starve the request threads
+    private final ExecutorService completions;
 
-    public JavaPoster(URL dht) {
+    /**
+     *
+     * @param dht The base url of the target
+     * @param maxConcurrentRequests The maximum number of requests in flight to the target at any time
+     */
+    public JavaPoster(URL dht, int maxConcurrentRequests) {
         this.dht = dht;
+        this.requests = boundedPool(maxConcurrentRequests, "JavaPoster-" + dht.getHost());
+        this.completions = boundedPool(maxConcurrentRequests * COMPLETION_THREADS_PER_REQUEST_THREAD,
+                "JavaPoster-completion-" + dht.getHost());
+    }
+
+    public JavaPoster(URL dht) {
+        this(dht, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /** A pool of at most maxThreads daemon threads, which exit when idle
+     */
+    private static ExecutorService boundedPool(int maxThreads, String prefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads(prefix));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger(0);
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
     }
 
     public URL buildURL(String method) throws IOException {
@@ -25,6 +72,27 @@ public class JavaPoster implements HttpPoster {
         }
     }
 
+    private interface Request {
+        byte[] call() throws IOException;
+    }
+
+    private CompletableFuture<byte[]> async(Request request) {
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        try {
+            requests.execute(() -> {
+                try {
+                    byte[] result = request.call();
+                    completions.execute(() -> res.complete(result));
+                } catch (Throwable t) {
+                    completions.execute(() -> res.completeExceptionally(t));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
     @Override
     public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
         return post(url, payload, true);
@@ -32,72 +100,123 @@ public class JavaPoster implements HttpPoster {
 
     @Override
     public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
-        HttpURLConnection conn = null;
-        CompletableFuture<byte[]> res = new CompletableFuture<>();
-        try
-        {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-            DataOutputStream dout = new DataOutputStream(conn.getOutputStream());
-
-            dout.write(payload);
-            dout.flush();
-
-            String contentEncoding = conn.getContentEncoding();
-            boolean isGzipped = "gzip".equals(contentEncoding);
-            DataInputStream din = new DataInputStream(isGzipped && unzip ? new GZIPInputStream(conn.getInputStream()) : conn.getInputStream());
-            byte[] resp = Serialize.readFully(din);
-            din.close();
-            res.complete(resp);
-        } catch (IOException e) {
-            if (conn != null){
-                String trailer = conn.getHeaderField("Trailer");
-                System.err.println("Trailer:" + trailer);
-                res.completeExceptionally(trailer == null ? e : new RuntimeException(trailer));
-            } else
-                res.completeExceptionally(e);
-        } finally {
-            if (conn != null)
-                conn.disconnect();
-        }
-        return res;
+        return async(() -> {
+            HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
+            try {
+                conn.setDoInput(true);
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(payload.length);
+                OutputStream out = conn.getOutputStream();
+                out.write(payload);
+                out.close();
+                return readResponse(conn, unzip);
+            } catch (IOException e) {
+                throw withTrailer(conn, e);
+            }
+        });
     }
 
     @Override
     public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
-        try {
-            Multipart mPost = new Multipart(buildURL(url).toString(), "UTF-8");
+        return async(() -> {
+            String boundary = Multipart.createBoundary();
+            byte[] partHeader = ("--" + boundary + LINE_FEED +
+                    "Content-Disposition: file; name=\"file\";" + LINE_FEED +
+                    "Content-Type: application/octet-stream" + LINE_FEED +
+                    "Content-Transfer-Encoding: binary" + LINE_FEED +
+                    LINE_FEED).getBytes(StandardCharsets.UTF_8);
+            byte[] lineFeed = LINE_FEED.getBytes(StandardCharsets.UTF_8);
+            byte[] end = ("--" + boundary + "--" + LINE_FEED).getBytes(StandardCharsets.UTF_8);
+            long length = end.length;
             for (byte[] file : files)
-                mPost.addFilePart("file", new NamedStreamable.ByteArrayWrapper(file));
-            return CompletableFuture.completedFuture(mPost.finish().getBytes());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+                length += partHeader.length + file.length + lineFeed.length;
+
+            HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
+            try {
+                conn.setUseCaches(false);
+                conn.setDoOutput(true);
+                conn.setDoInput(true);
+                conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+                conn.setRequestProperty("User-Agent", "Java IPFS Client");
+                // stream the parts rather than buffering the whole body in the connection
+                conn.setFixedLengthStreamingMode(length);
+                OutputStream out = new BufferedOutputStream(conn.getOutputStream(), 64 * 1024);
+                for (byte[] file : files) {
+                    out.write(partHeader);
+                    out.write(file);
+                    out.write(lineFeed);
+                }
+                out.write(end);
+                out.close();
+
+                int status = conn.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    byte[] body = drain(conn.getErrorStream());
+                    throw new IOException("Server returned status: " + status + " with body: " + new String(body) +
+                            " and Trailer header: " + conn.getHeaderFields().get("Trailer"));
+                }
+                // Match the line by line reading of the response in Multipart
+                return removeLineBreaks(Serialize.readFully(conn.getInputStream()));
+            } catch (IOException e) {
+                throw withTrailer(conn, e);
+            }
+        });
     }
 
     @Override
     public CompletableFuture<byte[]> get(String url) {
-        HttpURLConnection conn = null;
-        try
-        {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
-            conn.setDoInput(true);
-
-            String contentEncoding = conn.getContentEncoding();
-            boolean isGzipped = "gzip".equals(contentEncoding);
-            DataInputStream din = new DataInputStream(isGzipped ? new GZIPInputStream(conn.getInputStream()) : conn.getInputStream());
-            return CompletableFuture.completedFuture(Serialize.readFully(din));
+        return async(() -> {
+            HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
+            try {
+                conn.setDoInput(true);
+                return readResponse(conn, true);
+            } catch (IOException e) {
+                drain(conn.getErrorStream());
+                throw e;
+            }
+        });
+    }
+
+    private static byte[] readResponse(HttpURLConnection conn, boolean unzip) throws IOException {
+        String contentEncoding = conn.getContentEncoding();
+        boolean isGzipped = "gzip".equals(contentEncoding);
+        InputStream in = conn.getInputStream();
+        if (isGzipped && unzip) {
+            // read the raw stream to the end, so the connection can be reused even if the gzip trailer isn't consumed
+            byte[] zipped = Serialize.readFully(in);
+            return Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(zipped)));
+        }
+        return Serialize.readFully(in);
+    }
+
+    /** Read and close an error stream, which lets its connection be reused
+     */
+    private static byte[] drain(InputStream errors) {
+        if (errors == null)
+            return new byte[0];
+        try {
+            return Serialize.readFully(errors);
         } catch (IOException e) {
-            CompletableFuture<byte[]> res = new CompletableFuture<>();
-            res.completeExceptionally(e);
-            return res;
-        } finally {
-            if (conn != null)
-                conn.disconnect();
+            return new byte[0];
         }
     }
 
+    private static IOException withTrailer(HttpURLConnection conn, IOException e) {
+        drain(conn.getErrorStream());
+        String trailer = conn.getHeaderField("Trailer");
+        if (trailer == null)
+            return e;
+        return new IOException(trailer, e);
+    }
+
+    private static byte[] removeLineBreaks(byte[] in) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(in.length);
+        for (byte b : in)
+            if (b != '\n' && b != '\r')
+                bout.write(b);
+        return bout.toByteArray();
+    }
+
     @Override
     public String toString() {
         return dht.toString();
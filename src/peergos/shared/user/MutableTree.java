@@ -5,9 +5,12 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 public interface MutableTree {
 
@@ -38,6 +41,28 @@ public interface MutableTree {
      */
     CompletableFuture<MaybeMultihash> get(PublicKeyHash owner, PublicKeyHash sharingKey, byte[] mapKey);
 
+    /** Look up several keys of a writer, resolving its current champ root only once
+     *
+     * @param owner
+     * @param writer
+     * @param mapKeys
+     * @param limiter bounds the number of lookups in flight
+     * @return the values stored under each of the mapKeys, in order
+     */
+    CompletableFuture<List<MaybeMultihash>> getAll(PublicKeyHash owner,
+                                                   PublicKeyHash writer,
+                                                   List<byte[]> mapKeys,
+                                                   AsyncLimiter limiter);
+
+    /**
+     *
+     * @param owner
+     * @param writer
+     * @return the hash of the writer's current WriterData, after any of our own pending writes to it, or empty if the
+     * writer has uncommitted updates in an open batch
+     */
+    CompletableFuture<Optional<MaybeMultihash>> getCommittedRoot(PublicKeyHash owner, PublicKeyHash writer);
+
     /**
      *
      * @param owner
@@ -52,6 +77,36 @@ public interface MutableTree {
                                       MaybeMultihash existing,
                                       TransactionId tid);
 
+    /** Apply a series of puts and removes for a writer as a single update.
+     *
+     *  While the batch is open, puts and removes for the writer in the batch's transaction, and all gets for the
+     *  writer, operate on an in memory copy of its champ. Other updates to the writer wait until the batch has been
+     *  committed. When updates completes, the modified champ nodes, a single new WriterData and a single pointer update
+     *  are committed. If updates fails, the updates which succeeded are still committed.
+     *
+     * @param owner
+     * @param writer
+     * @param updates given the transaction of the batch, which must be used for any updates in the batch and any blocks
+     *                referenced from the tree
+     * @return the result of updates, after it has been committed
+     */
+    <V> CompletableFuture<V> batch(PublicKeyHash owner,
+                                   SigningPrivateKeyAndPublicHash writer,
+                                   Function<TransactionId, CompletableFuture<V>> updates);
+
+    /** Apply updates as part of the open batch for the writer in transaction tid, or as a new batch in tid if there
+     *  isn't one.
+     *
+     * @param owner
+     * @param writer
+     * @param tid
+     * @param updates
+     * @return the result of updates, after it has been committed
+     */
+    <V> CompletableFuture<V> batch(PublicKeyHash owner,
+                                   SigningPrivateKeyAndPublicHash writer,
+                                   TransactionId tid,
+                                   Function<TransactionId, CompletableFuture<V>> updates);
 
     class CasException extends RuntimeException {
         public CasException(MaybeMultihash actualExisting, MaybeMultihash claimedExisting) {
@@ -20,8 +20,16 @@ public class MutableTreeImpl implements MutableTree {
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private static final boolean LOGGING = false;
+    private static final int CHAMP_CACHE_SIZE = 10_000;
+    private static final int WRITER_DATA_CACHE_SIZE = 1_000;
     private final Function<ByteArrayWrapper, byte[]> hasher = x -> x.data;
     private final Map<PublicKeyHash, AsyncLock<CommittedWriterData>> pending = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, WriteSession> sessions = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, Integer> writesInProgress = new HashMap<>();
+    // The last signed pointer value we verified for each writer, and its target
+    private final Map<PublicKeyHash, Pair<byte[], MaybeMultihash>> verifiedPointers = new ConcurrentHashMap<>();
+    private final DecodedCache<Champ> champCache = new DecodedCache<>(CHAMP_CACHE_SIZE, Champ::fromCbor);
+    private final DecodedCache<WriterData> writerDataCache = new DecodedCache<>(WRITER_DATA_CACHE_SIZE, WriterData::fromCbor);
 
     public MutableTreeImpl(MutablePointers mutable, ContentAddressedStorage dht) {
         this.mutable = mutable;
@@ -37,21 +45,35 @@ public class MutableTreeImpl implements MutableTree {
     private CompletableFuture<CommittedWriterData> getWriterData(PublicKeyHash controller, MaybeMultihash hash) {
         if (!hash.isPresent())
             return CompletableFuture.completedFuture(new CommittedWriterData(MaybeMultihash.empty(), WriterData.createEmpty(controller)));
-        return dht.get(hash.get())
-                .thenApply(cborOpt -> {
-                    if (! cborOpt.isPresent())
+        return writerDataCache.get(hash.get(), dht)
+                .thenApply(wdOpt -> {
+                    if (! wdOpt.isPresent())
                         throw new IllegalStateException("Couldn't retrieve WriterData from dht! " + hash);
-                    return new CommittedWriterData(hash, WriterData.fromCbor(cborOpt.get()));
+                    return new CommittedWriterData(hash, wdOpt.get());
                 });
     }
 
     private CompletableFuture<CommittedWriterData> getWriterData(PublicKeyHash owner, PublicKeyHash hash) {
         return mutable.getPointer(owner, hash)
-                .thenCompose(dataOpt -> dht.getSigningKey(hash)
-                        .thenApply(signer -> dataOpt.isPresent() ?
-                                HashCasPair.fromCbor(CborObject.fromByteArray(signer.get().unsignMessage(dataOpt.get()))).updated :
-                                MaybeMultihash.empty())
-                        .thenCompose(x -> getWriterData(hash, x)));
+                .thenCompose(dataOpt -> getPointerTarget(hash, dataOpt))
+                .thenCompose(x -> getWriterData(hash, x));
+    }
+
+    /** Verify a signed pointer value, unless it is the same as the last one we verified for this writer
+     *
+     */
+    private CompletableFuture<MaybeMultihash> getPointerTarget(PublicKeyHash writer, Optional<byte[]> signedPointer) {
+        if (! signedPointer.isPresent())
+            return CompletableFuture.completedFuture(MaybeMultihash.empty());
+        byte[] signed = signedPointer.get();
+        Pair<byte[], MaybeMultihash> verified = verifiedPointers.get(writer);
+        if (verified != null && Arrays.equals(verified.left, signed))
+            return CompletableFuture.completedFuture(verified.right);
+        return dht.getSigningKey(writer).thenApply(signer -> {
+            MaybeMultihash target = HashCasPair.fromCbor(CborObject.fromByteArray(signer.get().unsignMessage(signed))).updated;
+            verifiedPointers.put(writer, new Pair<>(signed, target));
+            return target;
+        });
     }
 
     private CompletableFuture<CommittedWriterData> getCurrentWriterData(PublicKeyHash owner,
@@ -61,8 +83,32 @@ public class MutableTreeImpl implements MutableTree {
         // otherwise when the future completes, then the two or more waiters will both proceed with the existing hash,
         // and whoever commits first will win. We also need to retrieve the writer data again from the network after
         // a previous transaction has completed (another node/user may have updated the mapping)
-        return pending.computeIfAbsent(writer, w -> new AsyncLock<>(getWriterData(owner, w)))
+        startWrite(writer);
+        CompletableFuture<CommittedWriterData> result = pending.computeIfAbsent(writer, w -> new AsyncLock<>(getWriterData(owner, w)))
                 .runWithLock(current -> updater.apply(current), () -> getWriterData(owner, writer));
+        result.thenAccept(x -> endWrite(writer))
+                .exceptionally(t -> {
+                    endWrite(writer);
+                    return null;
+                });
+        return result;
+    }
+
+    private synchronized void startWrite(PublicKeyHash writer) {
+        Integer current = writesInProgress.get(writer);
+        writesInProgress.put(writer, current == null ? 1 : current + 1);
+    }
+
+    private synchronized void endWrite(PublicKeyHash writer) {
+        int remaining = writesInProgress.get(writer) - 1;
+        if (remaining == 0)
+            writesInProgress.remove(writer);
+        else
+            writesInProgress.put(writer, remaining);
+    }
+
+    private synchronized boolean isWriting(PublicKeyHash writer) {
+        return writesInProgress.containsKey(writer);
     }
 
     @Override
@@ -73,6 +119,10 @@ public class MutableTreeImpl implements MutableTree {
                                           Multihash value,
                                           TransactionId tid) {
         PublicKeyHash publicWriterKey = writer.publicKeyHash;
+        Optional<CompletableFuture<Multihash>> batched = inSessionUpdate(owner, publicWriterKey, tid, mapKey,
+                tree -> tree.put(owner, writer, mapKey, existing, value, tid));
+        if (batched.isPresent())
+            return batched.get().thenApply(x -> true);
         return getCurrentWriterData(owner, publicWriterKey, committed -> {
             WriterData holder = committed.props;
             return (holder.tree.isPresent() ?
@@ -88,18 +138,59 @@ public class MutableTreeImpl implements MutableTree {
 
     @Override
     public CompletableFuture<MaybeMultihash> get(PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
-        return getCurrentWriterData(owner, writer, x -> CompletableFuture.completedFuture(x))
-                .thenCompose(old -> getWriterData(owner, writer).thenCompose(committed -> {
+        Optional<CompletableFuture<MaybeMultihash>> batched = inSession(writer, tree -> tree.get(mapKey));
+        if (batched.isPresent())
+            return batched.get();
+        return getCommittedTree(owner, writer).thenCompose(tree -> tree.get(mapKey)
+                .thenApply(maybe -> LOGGING ?
+                        log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
+                                + ", root=" + tree.getRoot() + " => " + maybe) : maybe));
+    }
+
+    @Override
+    public CompletableFuture<List<MaybeMultihash>> getAll(PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          List<byte[]> mapKeys,
+                                                          AsyncLimiter limiter) {
+        if (sessions.containsKey(writer))
+            return limiter.submitAll(mapKeys, mapKey -> get(owner, writer, mapKey));
+        return getCommittedTree(owner, writer)
+                .thenCompose(tree -> limiter.submitAll(mapKeys, tree::get));
+    }
+
+    /**
+     *
+     * @param owner
+     * @param writer
+     * @return The champ of the writer's current WriterData, after any of our own pending writes to it
+     */
+    private CompletableFuture<ChampWrapper> getCommittedTree(PublicKeyHash owner, PublicKeyHash writer) {
+        // Only wait for our own pending writes to this writer to complete if there are any
+        AsyncLock<CommittedWriterData> lock = pending.get(writer);
+        CompletableFuture<CommittedWriterData> afterWrites = lock != null && isWriting(writer) ?
+                lock.getValue() :
+                CompletableFuture.completedFuture(null);
+        return afterWrites.thenCompose(old -> getWriterData(owner, writer).thenCompose(committed -> {
                     WriterData holder = committed.props;
                     if (! holder.tree.isPresent())
                         throw new IllegalStateException("Tree root not present for " + writer);
-                    return ChampWrapper.create(holder.tree.get(), hasher, dht).thenCompose(tree -> tree.get(mapKey))
-                            .thenApply(maybe -> LOGGING ?
-                                    log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
-                                            + ", root="+holder.tree.get()+" => " + maybe) : maybe);
+                    return ChampWrapper.create(holder.tree.get(), hasher, dht, champCache);
                 }));
     }
 
+    @Override
+    public CompletableFuture<Optional<MaybeMultihash>> getCommittedRoot(PublicKeyHash owner, PublicKeyHash writer) {
+        if (sessions.containsKey(writer))
+            return CompletableFuture.completedFuture(Optional.empty());
+        AsyncLock<CommittedWriterData> lock = pending.get(writer);
+        CompletableFuture<CommittedWriterData> afterWrites = lock != null && isWriting(writer) ?
+                lock.getValue() :
+                CompletableFuture.completedFuture(null);
+        return afterWrites.thenCompose(old -> mutable.getPointer(owner, writer))
+                .thenCompose(signed -> getPointerTarget(writer, signed))
+                .thenApply(root -> sessions.containsKey(writer) ? Optional.<MaybeMultihash>empty() : Optional.of(root));
+    }
+
     @Override
     public CompletableFuture<Boolean> remove(PublicKeyHash owner,
                                              SigningPrivateKeyAndPublicHash writer,
@@ -107,6 +198,10 @@ public class MutableTreeImpl implements MutableTree {
                                              MaybeMultihash existing,
                                              TransactionId tid) {
         PublicKeyHash publicWriter = writer.publicKeyHash;
+        Optional<CompletableFuture<Multihash>> batched = inSessionUpdate(owner, publicWriter, tid, mapKey,
+                tree -> tree.remove(owner, writer, mapKey, existing, tid));
+        if (batched.isPresent())
+            return batched.get().thenApply(x -> true);
 
         return getCurrentWriterData(owner, publicWriter, committed -> {
             WriterData holder = committed.props;
@@ -121,4 +216,243 @@ public class MutableTreeImpl implements MutableTree {
 
         }).thenApply(x -> true);
     }
+
+    @Override
+    public <V> CompletableFuture<V> batch(PublicKeyHash owner,
+                                          SigningPrivateKeyAndPublicHash writer,
+                                          Function<TransactionId, CompletableFuture<V>> updates) {
+        return IpfsTransaction.call(owner, tid -> startBatch(owner, writer, tid, updates), dht);
+    }
+
+    @Override
+    public <V> CompletableFuture<V> batch(PublicKeyHash owner,
+                                          SigningPrivateKeyAndPublicHash writer,
+                                          TransactionId tid,
+                                          Function<TransactionId, CompletableFuture<V>> updates) {
+        WriteSession open = sessions.get(writer.publicKeyHash);
+        if (open != null && open.isPartOf(owner, tid)) {
+            try {
+                return updates.apply(tid);
+            } catch (Throwable t) {
+                return Futures.errored(t);
+            }
+        }
+        return startBatch(owner, writer, tid, updates);
+    }
+
+    private <V> CompletableFuture<V> startBatch(PublicKeyHash owner,
+                                                SigningPrivateKeyAndPublicHash writer,
+                                                TransactionId tid,
+                                                Function<TransactionId, CompletableFuture<V>> updates) {
+        PublicKeyHash publicWriter = writer.publicKeyHash;
+        CompletableFuture<V> result = new CompletableFuture<>();
+        // The base of a batch must be the current version, not just the last one we committed, otherwise a rebase
+        // would compare against stale values
+        getCurrentWriterData(owner, publicWriter, previous -> getWriterData(owner, publicWriter).thenCompose(committed -> {
+            WriteSession session = new WriteSession(owner, writer, committed, tid);
+            sessions.put(publicWriter, session);
+            CompletableFuture<V> applied;
+            try {
+                applied = updates.apply(tid);
+            } catch (Throwable t) {
+                applied = Futures.errored(t);
+            }
+            // Failures are reported through result, rather than failing the lock, which would re-run the updates.
+            // The updates which succeeded before a failure are still committed, as they would be without a batch,
+            // so that partial uploads can be cleaned up or resumed.
+            return applied.thenApply(v -> new Pair<V, Throwable>(v, null))
+                    .exceptionally(t -> new Pair<>(null, t))
+                    .thenCompose(outcome -> session.commit()
+                            .thenApply(newCommitted -> {
+                                if (outcome.right != null)
+                                    result.completeExceptionally(outcome.right);
+                                else
+                                    result.complete(outcome.left);
+                                return newCommitted;
+                            }).exceptionally(t -> {
+                                result.completeExceptionally(outcome.right != null ? outcome.right : t);
+                                return null;
+                            }).thenCompose(newCommitted -> newCommitted != null ?
+                                    CompletableFuture.completedFuture(newCommitted) :
+                                    // the pointer may have been changed by someone else, so start the next update
+                                    // from the current version
+                                    getWriterData(owner, publicWriter).exceptionally(e -> committed)));
+        })).exceptionally(t -> {
+            result.completeExceptionally(t);
+            return null;
+        });
+        return result;
+    }
+
+    private <T> Optional<CompletableFuture<T>> inSession(PublicKeyHash writer,
+                                                         Function<ChampWrapper, CompletableFuture<T>> op) {
+        WriteSession session = sessions.get(writer);
+        if (session == null)
+            return Optional.empty();
+        return session.apply(op, Optional.empty());
+    }
+
+    /** Apply an update as part of the open batch for the writer, if it is in the batch's transaction
+     *
+     */
+    private Optional<CompletableFuture<Multihash>> inSessionUpdate(PublicKeyHash owner,
+                                                                   PublicKeyHash writer,
+                                                                   TransactionId tid,
+                                                                   byte[] mapKey,
+                                                                   Function<ChampWrapper, CompletableFuture<Multihash>> op) {
+        WriteSession session = sessions.get(writer);
+        if (session == null || ! session.isPartOf(owner, tid))
+            return Optional.empty();
+        return session.apply(op, Optional.of(new ByteArrayWrapper(mapKey)));
+    }
+
+    /** The state of an open batch for a writer. Updates are applied in order to a champ whose new nodes are buffered
+     *  in memory until the batch is committed.
+     */
+    private class WriteSession {
+        private final PublicKeyHash owner;
+        private final SigningPrivateKeyAndPublicHash writer;
+        private final CommittedWriterData base;
+        private final TransactionId tid;
+        private final BufferedStorage buffer;
+        private final Set<ByteArrayWrapper> modifiedKeys = new HashSet<>();
+        private CompletableFuture<ChampWrapper> tree;
+        private boolean closed = false;
+
+        WriteSession(PublicKeyHash owner, SigningPrivateKeyAndPublicHash writer, CommittedWriterData base, TransactionId tid) {
+            this.owner = owner;
+            this.writer = writer;
+            this.base = base;
+            this.tid = tid;
+            this.buffer = new BufferedStorage(dht);
+            this.tree = createTree(base.props);
+        }
+
+        boolean isPartOf(PublicKeyHash owner, TransactionId tid) {
+            return this.owner.equals(owner) && this.tid.equals(tid);
+        }
+
+        private CompletableFuture<ChampWrapper> createTree(WriterData props) {
+            return props.tree.isPresent() ?
+                    ChampWrapper.create(props.tree.get(), hasher, buffer) :
+                    ChampWrapper.create(owner, writer, hasher, tid, buffer);
+        }
+
+        /**
+         *
+         * @param op
+         * @param modifiedKey the key op modifies, if any, which is recorded in case the batch needs to be rebased
+         * @return the result of op, applied after all previous operations in this session, or empty if the session has
+         * already been committed
+         */
+        synchronized <T> Optional<CompletableFuture<T>> apply(Function<ChampWrapper, CompletableFuture<T>> op,
+                                                              Optional<ByteArrayWrapper> modifiedKey) {
+            if (closed)
+                return Optional.empty();
+            CompletableFuture<ChampWrapper> previous = tree;
+            CompletableFuture<ChampWrapper> next = new CompletableFuture<>();
+            CompletableFuture<T> result = new CompletableFuture<>();
+            tree = next;
+            previous.thenAccept(champ -> {
+                CompletableFuture<T> applied;
+                try {
+                    applied = op.apply(champ);
+                } catch (Throwable t) {
+                    applied = Futures.errored(t);
+                }
+                applied.thenAccept(r -> {
+                    modifiedKey.ifPresent(this::recordUpdate);
+                    next.complete(champ);
+                    result.complete(r);
+                }).exceptionally(t -> {
+                    next.complete(champ);
+                    result.completeExceptionally(t);
+                    return null;
+                });
+            }).exceptionally(t -> {
+                next.completeExceptionally(t);
+                result.completeExceptionally(t);
+                return null;
+            });
+            return Optional.of(result);
+        }
+
+        private synchronized void recordUpdate(ByteArrayWrapper mapKey) {
+            modifiedKeys.add(mapKey);
+        }
+
+        synchronized CompletableFuture<ChampWrapper> close() {
+            closed = true;
+            sessions.remove(writer.publicKeyHash, this);
+            return tree;
+        }
+
+        /** Write the modified champ nodes, then a new WriterData and pointer. If the WriterData has been changed by
+         *  someone else in the meantime, our changes are merged into the latest version, unless any of the keys we
+         *  modified have also been changed.
+         */
+        CompletableFuture<CommittedWriterData> commit() {
+            return close().thenCompose(champ -> {
+                CompletableFuture<CommittedWriterData> res = new CompletableFuture<>();
+                commit(base, champ.getRoot())
+                        .thenAccept(res::complete)
+                        .exceptionally(t -> {
+                            getWriterData(owner, writer.publicKeyHash)
+                                    .thenCompose(latest -> latest.hash.equals(base.hash) ?
+                                            Futures.<CommittedWriterData>errored(t) :
+                                            rebase(latest, champ))
+                                    .thenAccept(committed -> res.complete(committed))
+                                    .exceptionally(e -> {
+                                        res.completeExceptionally(e);
+                                        return null;
+                                    });
+                            return null;
+                        });
+                return res;
+            });
+        }
+
+        private CompletableFuture<CommittedWriterData> commit(CommittedWriterData current, Multihash newTreeRoot) {
+            if (current.props.tree.equals(Optional.of(newTreeRoot)))
+                return CompletableFuture.completedFuture(current);
+            return buffer.commit(owner, writer.publicKeyHash, newTreeRoot, tid)
+                    .thenCompose(b -> current.props.withChamp(newTreeRoot)
+                            .commit(owner, writer, current.hash, mutable, dht, tid));
+        }
+
+        private synchronized List<ByteArrayWrapper> getModifiedKeys() {
+            return new ArrayList<>(modifiedKeys);
+        }
+
+        /** Apply the final value of each key we modified to the latest champ, as long as the key still has the value
+         *  it had when the batch started.
+         */
+        private CompletableFuture<CommittedWriterData> rebase(CommittedWriterData latest, ChampWrapper champ) {
+            if (latest.props.tree.equals(base.props.tree))
+                return commit(latest, champ.getRoot());
+            List<Triple<byte[], MaybeMultihash, Multihash>> puts = new ArrayList<>();
+            List<Pair<byte[], MaybeMultihash>> removes = new ArrayList<>();
+            return createTree(base.props).thenCompose(original -> createTree(latest.props).thenCompose(rebased ->
+                    Futures.reduceAll(getModifiedKeys(), true, (b, key) -> original.get(key.data)
+                            .thenCompose(originalValue -> rebased.get(key.data)
+                                    .thenCompose(latestValue -> champ.get(key.data).thenApply(ourValue -> {
+                                        if (ourValue.equals(latestValue))
+                                            return true;
+                                        if (! latestValue.equals(originalValue))
+                                            throw new CasException(latestValue, originalValue);
+                                        if (ourValue.isPresent())
+                                            puts.add(new Triple<>(key.data, latestValue, ourValue.get()));
+                                        else
+                                            removes.add(new Pair<>(key.data, latestValue));
+                                        return true;
+                                    }))), (a, c) -> a && c)
+                            .thenCompose(x -> puts.isEmpty() ?
+                                    CompletableFuture.completedFuture(rebased.getRoot()) :
+                                    rebased.putAll(owner, writer, puts, tid))
+                            .thenCompose(x -> removes.isEmpty() ?
+                                    CompletableFuture.completedFuture(rebased.getRoot()) :
+                                    rebased.removeAll(owner, writer, removes, tid))
+                            .thenCompose(root -> commit(latest, root))));
+        }
+    }
 }
@@ -37,13 +37,12 @@ public class TrieNodeImpl implements TrieNode {
                                 .retrieveParent(network)
                                 .thenApply(opt -> opt.map(f -> f.withTrieNode(this))));
             }
-            return network.retrieveEntryPoint(value.get());
+            return network.paths.getByPath(value.get(), finalPath, network);
         }
         String[] elements = finalPath.split("/");
         // There may be an entry point further down the tree, but it will have <= permission than this one
         if (value.isPresent())
-            return network.retrieveEntryPoint(value.get())
-                    .thenCompose(dir -> dir.get().getDescendentByPath(finalPath, network));
+            return network.paths.getByPath(value.get(), finalPath, network);
         if (!children.containsKey(elements[0]))
             return CompletableFuture.completedFuture(Optional.empty());
         return children.get(elements[0]).getByPath(finalPath.substring(elements[0].length()), network);
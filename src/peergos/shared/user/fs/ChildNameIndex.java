@@ -0,0 +1,212 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.cryptree.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** An index from the names of the children of a directory to their capabilities, so a child can be found by name
+ * without retrieving the metadata of every other child.
+ *
+ * Each entry is stored in the champ of the directory's writer, under a map key derived from the directory's read key,
+ * its map key and the child's name, so only readers of the directory can find or link its entries. The value is the
+ * child's capability encrypted with the directory's read key.
+ *
+ * A child can be renamed or removed by someone who can't update its parent's index, so an entry is only a hint. A
+ * match is only used if the child it points to still has that name and still links back to the directory, and
+ * otherwise the caller must fall back to listing the directory.
+ */
+public class ChildNameIndex {
+
+    /**
+     *
+     * @param dir The first blob of a directory
+     * @param name The name of a child
+     * @return The map key of the index entry for the name
+     */
+    public static byte[] deriveMapKey(AbsoluteCapability dir, String name) {
+        byte[] rawName;
+        try {
+            rawName = name.getBytes("UTF-8");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return Hash.sha256(ArrayOps.concat(ArrayOps.concat(dir.rBaseKey.getKey(), dir.getMapKey()), rawName));
+    }
+
+    /**
+     *
+     * @param child
+     * @return The name of a retrieved child
+     */
+    public static String getName(RetrievedCapability child) {
+        CryptreeNode fileAccess = child.fileAccess;
+        return fileAccess.getProperties(fileAccess.getParentKey(child.capability.rBaseKey)).name;
+    }
+
+    private static boolean isChildOf(AbsoluteCapability dir, RetrievedCapability child) {
+        CryptreeNode fileAccess = child.fileAccess;
+        EncryptedCapability parentLink = fileAccess.getParentLink();
+        if (parentLink == null)
+            return false;
+        SymmetricKey parentKey = fileAccess.getParentKey(child.capability.rBaseKey);
+        return Arrays.equals(parentLink.toCapability(parentKey).getMapKey(), dir.getMapKey());
+    }
+
+    /**
+     *
+     * @param dir The first blob of a directory
+     * @param name
+     * @param network
+     * @return The child with this name, if the index has a valid entry for it
+     */
+    public static CompletableFuture<Optional<RetrievedCapability>> getChild(AbsoluteCapability dir,
+                                                                            String name,
+                                                                            NetworkAccess network) {
+        return network.tree.get(dir.owner, dir.writer, deriveMapKey(dir, name)).thenCompose(entryHash -> {
+            if (! entryHash.isPresent())
+                return CompletableFuture.completedFuture(Optional.empty());
+            return network.dhtClient.get(entryHash.get()).thenCompose(cborOpt -> {
+                if (! cborOpt.isPresent())
+                    return CompletableFuture.completedFuture(Optional.empty());
+                RelativeCapability childCap = EncryptedCapability.fromCbor(cborOpt.get()).toCapability(dir.rBaseKey);
+                return network.retrieveAllMetadata(Collections.singletonList(childCap.toAbsolute(dir)))
+                        .thenApply(retrieved -> retrieved.stream()
+                                .filter(child -> getName(child).equals(name) && isChildOf(dir, child))
+                                .findFirst());
+            });
+        });
+    }
+
+    /** Add or replace the index entries for some children, in a single update of the directory's writer
+     *
+     * @param dir The first blob of a directory
+     * @param signer The directory's writer
+     * @param children The names and capabilities of the children
+     * @param network
+     * @return true when complete
+     */
+    public static CompletableFuture<Boolean> putAll(WritableAbsoluteCapability dir,
+                                                    SigningPrivateKeyAndPublicHash signer,
+                                                    List<Pair<String, RelativeCapability>> children,
+                                                    NetworkAccess network) {
+        if (children.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        return network.tree.batch(dir.owner, signer, tid -> putAll(dir, signer, children, network, tid));
+    }
+
+    /** Add or replace the index entries for some children, as part of a batch of updates to the directory's writer
+     *
+     * @param tid The transaction of the batch
+     */
+    public static CompletableFuture<Boolean> putAll(WritableAbsoluteCapability dir,
+                                                    SigningPrivateKeyAndPublicHash signer,
+                                                    List<Pair<String, RelativeCapability>> children,
+                                                    NetworkAccess network,
+                                                    TransactionId tid) {
+        if (children.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        return network.tree.batch(dir.owner, signer, tid, t -> Futures.reduceAll(children, true,
+                (b, child) -> {
+                    byte[] mapKey = deriveMapKey(dir, child.left);
+                    byte[] entry = EncryptedCapability.create(dir.rBaseKey, child.right).serialize();
+                    return network.tree.get(dir.owner, dir.writer, mapKey)
+                            .thenCompose(existing -> network.dhtClient.put(dir.owner, signer, entry, tid)
+                                    .thenCompose(entryHash -> network.tree.put(dir.owner, signer, mapKey, existing,
+                                            entryHash, tid)));
+                },
+                (a, b) -> a && b));
+    }
+
+    /**
+     *
+     * @param children Some of the children of a directory
+     * @param network
+     * @return The names of the children which could be retrieved
+     */
+    public static CompletableFuture<List<String>> getNames(Collection<AbsoluteCapability> children,
+                                                           NetworkAccess network) {
+        if (children.isEmpty())
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return network.retrieveAllMetadata(new ArrayList<>(children))
+                .thenApply(retrieved -> retrieved.stream()
+                        .map(ChildNameIndex::getName)
+                        .collect(Collectors.toList()));
+    }
+
+    /** Copy the index entries for some names to another writer, as part of moving the directory to that writer. The
+     * entries are unchanged, as the links in the directory are copied unchanged.
+     *
+     * @param dir The first blob of a directory, under its current writer
+     * @param names
+     * @param targetSigner The writer the directory is being moved to
+     * @param network
+     * @param tid The transaction of the batch
+     * @return true when complete
+     */
+    public static CompletableFuture<Boolean> copyAll(AbsoluteCapability dir,
+                                                     Collection<String> names,
+                                                     SigningPrivateKeyAndPublicHash targetSigner,
+                                                     NetworkAccess network,
+                                                     TransactionId tid) {
+        if (names.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        return network.tree.batch(dir.owner, targetSigner, tid, t -> Futures.reduceAll(names, true,
+                (b, name) -> {
+                    byte[] mapKey = deriveMapKey(dir, name);
+                    return network.tree.get(dir.owner, dir.writer, mapKey)
+                            .thenCompose(entryHash -> ! entryHash.isPresent() ?
+                                    CompletableFuture.completedFuture(true) :
+                                    network.tree.get(dir.owner, targetSigner.publicKeyHash, mapKey)
+                                            .thenCompose(existing -> network.tree.put(dir.owner, targetSigner, mapKey,
+                                                    existing, entryHash.get(), tid)));
+                },
+                (a, b) -> a && b));
+    }
+
+    /** Remove the index entries for some names, in a single update of the directory's writer
+     *
+     * @param dir The first blob of a directory
+     * @param signer The directory's writer
+     * @param names
+     * @param network
+     * @return true when complete
+     */
+    public static CompletableFuture<Boolean> removeAll(WritableAbsoluteCapability dir,
+                                                       SigningPrivateKeyAndPublicHash signer,
+                                                       Collection<String> names,
+                                                       NetworkAccess network) {
+        if (names.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        return network.tree.batch(dir.owner, signer, tid -> removeAll(dir, signer, names, network, tid));
+    }
+
+    /** Remove the index entries for some names, as part of a batch of updates to the directory's writer
+     *
+     * @param tid The transaction of the batch
+     */
+    public static CompletableFuture<Boolean> removeAll(WritableAbsoluteCapability dir,
+                                                       SigningPrivateKeyAndPublicHash signer,
+                                                       Collection<String> names,
+                                                       NetworkAccess network,
+                                                       TransactionId tid) {
+        if (names.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        return network.tree.batch(dir.owner, signer, tid, t -> Futures.reduceAll(names, true,
+                (b, name) -> {
+                    byte[] mapKey = deriveMapKey(dir, name);
+                    return network.tree.get(dir.owner, dir.writer, mapKey)
+                            .thenCompose(existing -> existing.isPresent() ?
+                                    network.tree.remove(dir.owner, signer, mapKey, existing, tid) :
+                                    CompletableFuture.completedFuture(true));
+                },
+                (a, b) -> a && b));
+    }
+}
@@ -1,6 +1,8 @@
 package peergos.shared.user.fs;
 
+import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.SymmetricKey;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
@@ -20,6 +22,23 @@ public class Chunk {
         this.nonce = nonce;
     }
 
+    /** Derive the map key of a later chunk of a file from the map key of its first chunk. Only holders of the data key
+     * can link the chunks of a file together, but they can locate any chunk without walking the chain of next pointers.
+     *
+     * @param dataKey The key the file's chunks are encrypted with
+     * @param firstChunkMapKey The map key of the first chunk of the file
+     * @param chunkIndex The index of the chunk within the file, which must be positive
+     * @return
+     */
+    public static byte[] deriveMapKey(SymmetricKey dataKey, byte[] firstChunkMapKey, long chunkIndex) {
+        if (chunkIndex <= 0)
+            throw new IllegalArgumentException("Only later chunks have derived map keys: " + chunkIndex);
+        byte[] index = new byte[8];
+        for (int i=0; i < 8; i++)
+            index[i] = (byte) (chunkIndex >> (56 - 8*i));
+        return Hash.sha256(ArrayOps.concat(ArrayOps.concat(dataKey.getKey(), firstChunkMapKey), index));
+    }
+
     public CompletableFuture<EncryptedChunk> encrypt() {
         return dataKey.encryptAsync(data, nonce).thenApply(EncryptedChunk::new);
     }
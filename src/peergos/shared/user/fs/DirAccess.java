@@ -13,6 +13,7 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 /** A DirAccess cryptree node controls read access to a directory.
@@ -232,25 +233,104 @@ public class DirAccess implements CryptreeNode {
         return addChildrenAndCommit(Arrays.asList(targetCAP), us, entryWriter, network, random);
     }
 
+    public CompletableFuture<DirAccess> addChildAndCommit(String name,
+                                                          RelativeCapability targetCAP,
+                                                          WritableAbsoluteCapability us,
+                                                          Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                          NetworkAccess network,
+                                                          SafeRandom random) {
+        return addNamedChildrenAndCommit(Arrays.asList(new Pair<>(name, targetCAP)), us, entryWriter, network, random);
+    }
+
+    /** Add a child as part of a batch of updates to this directory's writer
+     *
+     * @param tid The transaction of the batch
+     */
+    public CompletableFuture<DirAccess> addChildAndCommit(String name,
+                                                          RelativeCapability targetCAP,
+                                                          WritableAbsoluteCapability us,
+                                                          Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                          NetworkAccess network,
+                                                          SafeRandom random,
+                                                          TransactionId tid) {
+        return addNamedChildrenAndCommit(Arrays.asList(new Pair<>(name, targetCAP)), us, entryWriter, network, random, tid);
+    }
+
+    /** Add children to this directory, and add them to the directory's name index, in a single update of the
+     * directory's writer
+     *
+     * @param targetCAPs The names and capabilities of the children
+     * @param us The first blob of this directory
+     * @return The updated first blob of this directory
+     */
+    public CompletableFuture<DirAccess> addNamedChildrenAndCommit(List<Pair<String, RelativeCapability>> targetCAPs,
+                                                                  WritableAbsoluteCapability us,
+                                                                  Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                                  NetworkAccess network,
+                                                                  SafeRandom random) {
+        return network.tree.batch(us.owner, getSigner(us.wBaseKey.get(), entryWriter),
+                tid -> addNamedChildrenAndCommit(targetCAPs, us, entryWriter, network, random, tid));
+    }
+
+    /** Add children to this directory, and add them to the directory's name index, as part of a batch of updates to
+     * the directory's writer
+     *
+     * @param tid The transaction of the batch
+     */
+    public CompletableFuture<DirAccess> addNamedChildrenAndCommit(List<Pair<String, RelativeCapability>> targetCAPs,
+                                                                  WritableAbsoluteCapability us,
+                                                                  Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                                  NetworkAccess network,
+                                                                  SafeRandom random,
+                                                                  TransactionId tid) {
+        List<RelativeCapability> caps = targetCAPs.stream()
+                .map(p -> p.right)
+                .collect(Collectors.toList());
+        // index after the children are added, so an index entry never refers to a child that failed to be added
+        return addChildrenAndCommit(caps, us, entryWriter, network, random, Optional.of(tid))
+                .thenCompose(updated -> ChildNameIndex.putAll(us, getSigner(us.wBaseKey.get(), entryWriter), targetCAPs,
+                        network, tid)
+                        .thenApply(b -> updated));
+    }
+
     public CompletableFuture<DirAccess> addChildrenAndCommit(List<RelativeCapability> targetCAPs,
                                                              WritableAbsoluteCapability us,
                                                              Optional<SigningPrivateKeyAndPublicHash> entryWriter,
                                                              NetworkAccess network,
                                                              SafeRandom random) {
-        // Make sure subsequent blobs use a different transaction to obscure linkage of different parts of this dir
+        return addChildrenAndCommit(targetCAPs, us, entryWriter, network, random, Optional.empty());
+    }
+
+    /**
+     *
+     * @param batchTid The transaction of the batch this is part of, if any
+     */
+    private CompletableFuture<DirAccess> addChildrenAndCommit(List<RelativeCapability> targetCAPs,
+                                                              WritableAbsoluteCapability us,
+                                                              Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                              NetworkAccess network,
+                                                              SafeRandom random,
+                                                              Optional<TransactionId> batchTid) {
+        // Make sure subsequent blobs use a different transaction to obscure linkage of different parts of this dir,
+        // unless they are all committed together in a batch anyway
+        Function<Function<TransactionId, CompletableFuture<DirAccess>>, CompletableFuture<DirAccess>> inTransaction =
+                commit -> batchTid.isPresent() ?
+                        commit.apply(batchTid.get()) :
+                        IpfsTransaction.call(us.owner, commit, network.dhtClient);
         List<RelativeCapability> children = getDirectChildren(us.rBaseKey);
         if (children.size() + targetCAPs.size() > getMaxChildLinksPerBlob()) {
             return getNextMetablob(us, network).thenCompose(nextMetablob -> {
                 if (nextMetablob.size() >= 1) {
                     AbsoluteCapability nextPointer = nextMetablob.get(0).capability;
                     DirAccess nextBlob = (DirAccess) nextMetablob.get(0).fileAccess;
-                    return nextBlob.addChildrenAndCommit(targetCAPs, nextPointer.toWritable(us.wBaseKey.get()), entryWriter, network, random);
+                    return nextBlob.addChildrenAndCommit(targetCAPs, nextPointer.toWritable(us.wBaseKey.get()), entryWriter,
+                            network, random, batchTid);
                 } else {
                     // first fill this directory, then overflow into a new one
                     int freeSlots = getMaxChildLinksPerBlob() - children.size();
                     List<RelativeCapability> addToUs = targetCAPs.subList(0, freeSlots);
                     List<RelativeCapability> addToNext = targetCAPs.subList(freeSlots, targetCAPs.size());
-                    return addChildrenAndCommit(addToUs, us, entryWriter, network, random)
+                    return addChildrenAndCommit(addToUs, us, entryWriter, network, random, batchTid)
                             .thenCompose(newUs -> {
                                 // create and upload new metadata blob
                                 SymmetricKey nextSubfoldersKey = us.rBaseKey;
@@ -261,14 +341,12 @@ public class DirAccess implements CryptreeNode {
                                 byte[] nextMapKey = random.randomBytes(32);
                                 WritableAbsoluteCapability nextPointer = new WritableAbsoluteCapability(us.owner,
                                         us.writer, nextMapKey, nextSubfoldersKey, us.wBaseKey.get());
-                                return next.addChildrenAndCommit(addToNext, nextPointer, entryWriter, network, random)
+                                return next.addChildrenAndCommit(addToNext, nextPointer, entryWriter, network, random, batchTid)
                                         .thenCompose(nextBlob -> {
                                             // re-upload us with the link to the next DirAccess
                                             DirAccess withNext = newUs.withNextBlob(Optional.of(
                                                     EncryptedCapability.create(us.rBaseKey, us.relativise(nextPointer))));
-                                            return IpfsTransaction.call(us.owner,
-                                                    tid -> withNext.commit(us, entryWriter, network, tid),
-                                                    network.dhtClient);
+                                            return inTransaction.apply(tid -> withNext.commit(us, entryWriter, network, tid));
                                         });
                             });
                 }
@@ -277,10 +355,8 @@ public class DirAccess implements CryptreeNode {
             ArrayList<RelativeCapability> newFiles = new ArrayList<>(children);
             newFiles.addAll(targetCAPs);
 
-            return IpfsTransaction.call(us.owner,
-                    tid -> withChildren(encryptChildren(us.rBaseKey, newFiles))
-                            .commit(us, entryWriter, network, tid),
-                    network.dhtClient);
+            return inTransaction.apply(tid -> withChildren(encryptChildren(us.rBaseKey, newFiles))
+                    .commit(us, entryWriter, network, tid));
         }
     }
 
@@ -303,10 +379,7 @@ public class DirAccess implements CryptreeNode {
                                                         RetrievedCapability modified,
                                                         NetworkAccess network,
                                                         SafeRandom random) {
-        return removeChildren(Arrays.asList(original), ourPointer, entryWriter, network)
-                .thenCompose(res ->
-                        res.addChildAndCommit(ourPointer.relativise(modified.capability), ourPointer, entryWriter,
-                                network, random));
+        return updateChildLinks(ourPointer, entryWriter, Arrays.asList(new Pair<>(original, modified)), network, random);
     }
 
     public CompletableFuture<DirAccess> updateChildLinks(WritableAbsoluteCapability ourPointer,
@@ -314,18 +387,42 @@ public class DirAccess implements CryptreeNode {
                                                         Collection<Pair<RetrievedCapability, RetrievedCapability>> childCasPairs,
                                                         NetworkAccess network,
                                                         SafeRandom random) {
-        return removeChildren(childCasPairs.stream()
+        List<Pair<String, RelativeCapability>> updated = childCasPairs.stream()
+                .map(p -> new Pair<>(ChildNameIndex.getName(p.right), ourPointer.relativise(p.right.capability)))
+                .collect(Collectors.toList());
+        Set<String> updatedNames = updated.stream()
+                .map(p -> p.left)
+                .collect(Collectors.toSet());
+        Set<String> removedNames = childCasPairs.stream()
+                .map(p -> ChildNameIndex.getName(p.left))
+                .filter(name -> ! updatedNames.contains(name))
+                .collect(Collectors.toSet());
+        return removeChildLinks(childCasPairs.stream()
                 .map(p -> p.left)
                 .collect(Collectors.toList()), ourPointer, entryWriter, network)
-                .thenCompose(res -> res.addChildrenAndCommit(childCasPairs.stream()
-                .map(p -> ourPointer.relativise(p.right.capability))
-                .collect(Collectors.toList()), ourPointer, entryWriter, network, random));
+                .thenCompose(res -> res.addNamedChildrenAndCommit(updated, ourPointer, entryWriter, network, random))
+                .thenCompose(res -> ChildNameIndex.removeAll(ourPointer, getSigner(ourPointer.wBaseKey.get(), entryWriter),
+                        removedNames, network)
+                        .thenApply(b -> res));
     }
 
     public CompletableFuture<DirAccess> removeChildren(List<RetrievedCapability> childrenToRemove,
                                                        WritableAbsoluteCapability ourPointer,
                                                        Optional<SigningPrivateKeyAndPublicHash> entryWriter,
                                                        NetworkAccess network) {
+        Set<String> names = childrenToRemove.stream()
+                .map(ChildNameIndex::getName)
+                .collect(Collectors.toSet());
+        return removeChildLinks(childrenToRemove, ourPointer, entryWriter, network)
+                .thenCompose(updated -> ChildNameIndex.removeAll(ourPointer, getSigner(ourPointer.wBaseKey.get(), entryWriter),
+                        names, network)
+                        .thenApply(b -> updated));
+    }
+
+    private CompletableFuture<DirAccess> removeChildLinks(List<RetrievedCapability> childrenToRemove,
+                                                          WritableAbsoluteCapability ourPointer,
+                                                          Optional<SigningPrivateKeyAndPublicHash> entryWriter,
+                                                          NetworkAccess network) {
         Set<Location> locsToRemove = childrenToRemove.stream()
                 .map(r -> r.capability.getLocation())
                 .collect(Collectors.toSet());
@@ -349,35 +446,68 @@ public class DirAccess implements CryptreeNode {
     // returns [RetrievedCapability]
     public CompletableFuture<Set<RetrievedCapability>> getChildren(NetworkAccess network,
                                                                          AbsoluteCapability us) {
+        // follow the chain of blobs concurrently with retrieving the children of each one, requesting the next blob
+        // before our children so the chain isn't queued behind them
+        CompletableFuture<Set<RetrievedCapability>> moreChildrenFuture = getNextMetablob(us, network)
+                .thenCompose(moreChildrenSource -> {
+                    // this only has one or zero elements
+                    Optional<RetrievedCapability> any = moreChildrenSource.stream().findAny();
+                    return any
+                            .map(d -> ((DirAccess)d.fileAccess).getChildren(network, d.capability))
+                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
+                });
+
         CompletableFuture<List<RetrievedCapability>> childrenFuture =
                 network.retrieveAllMetadata(getDirectChildren(us.rBaseKey).stream()
                         .map(c -> c.toAbsolute(us))
                         .collect(Collectors.toList()));
 
-        CompletableFuture<List<RetrievedCapability>> moreChildrenFuture = moreFolderContents
-                .map(moreCap -> {
-                    RelativeCapability cap = moreCap.toCapability(us.rBaseKey);
-                    return network.retrieveAllMetadata(Arrays.asList(cap.toAbsolute(us)));
-                })
-                .orElse(CompletableFuture.completedFuture(Collections.emptyList()));
-
-        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                    // this only has one or zero elements
-                    Optional<RetrievedCapability> any = moreChildrenSource.stream().findAny();
-                    CompletableFuture<Set<RetrievedCapability>> moreChildren = any
-                            .map(d -> ((DirAccess)d.fileAccess).getChildren(network, d.capability))
-                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                    return moreChildren.thenApply(moreRetrievedChildren -> {
-                        Set<RetrievedCapability> results = Stream.concat(
-                                children.stream(),
-                                moreRetrievedChildren.stream())
-                                .collect(Collectors.toSet());
-                        return results;
-                    });
+        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenApply(moreRetrievedChildren -> {
+                    Set<RetrievedCapability> results = Stream.concat(
+                            children.stream(),
+                            moreRetrievedChildren.stream())
+                            .collect(Collectors.toSet());
+                    return results;
                 })
         );
     }
 
+    /** Retrieve a page of the children of this directory, in the order their links are stored. Only the metadata of
+     * the children in the page is retrieved, along with the blobs of links that precede it.
+     *
+     * @param network
+     * @param us The first blob of this directory
+     * @param offset The index of the first child to return
+     * @param limit The maximum number of children to return
+     * @return
+     */
+    public CompletableFuture<List<RetrievedCapability>> getChildren(NetworkAccess network,
+                                                                    AbsoluteCapability us,
+                                                                    int offset,
+                                                                    int limit) {
+        if (limit <= 0)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        List<RelativeCapability> direct = getDirectChildren(us.rBaseKey);
+        int end = Math.min(direct.size(), offset + limit);
+        CompletableFuture<List<RetrievedCapability>> page = offset >= end ?
+                CompletableFuture.completedFuture(Collections.emptyList()) :
+                network.retrieveAllMetadata(direct.subList(offset, end).stream()
+                        .map(c -> c.toAbsolute(us))
+                        .collect(Collectors.toList()));
+        if (offset + limit <= direct.size())
+            return page;
+
+        // the page continues into the next blob, which we retrieve concurrently with this page
+        int nextOffset = Math.max(0, offset - direct.size());
+        int nextLimit = limit - (end - Math.min(offset, end));
+        CompletableFuture<List<RetrievedCapability>> rest = getNextMetablob(us, network)
+                .thenCompose(next -> next.isEmpty() ?
+                        CompletableFuture.completedFuture(Collections.emptyList()) :
+                        ((DirAccess) next.get(0).fileAccess).getChildren(network, next.get(0).capability, nextOffset, nextLimit));
+        return page.thenCompose(ours -> rest.thenApply(theirs -> Stream.concat(ours.stream(), theirs.stream())
+                .collect(Collectors.toList())));
+    }
+
     public Set<Location> getChildrenLocations(AbsoluteCapability us) {
         return getDirectChildren(us.rBaseKey).stream()
                 .map(cap -> cap.getLocation(us.owner, us.writer))
@@ -418,7 +548,7 @@ public class DirAccess implements CryptreeNode {
                 tid -> network.uploadChunk(child, us.owner, dirMapKey, getSigner(us.wBaseKey.get(), entryWriter), tid), network.dhtClient)
                 .thenCompose(resultHash -> {
                     RelativeCapability subdirPointer = new RelativeCapability(dirMapKey, dirReadKey, toChildWriteKey);
-                    return addChildAndCommit(subdirPointer, us, entryWriter, network, random)
+                    return addChildAndCommit(name, subdirPointer, us, entryWriter, network, random)
                             .thenApply(modified -> new RelativeCapability(dirMapKey, dirReadKey, toChildWriteKey));
                 });
     }
@@ -461,7 +591,8 @@ public class DirAccess implements CryptreeNode {
                         ourNewCap, newEntryWriter, ourNewParentKey, newChildMapKey, network, random)
                         .thenCompose(newChildFileAccess -> {
                             return dirFuture.thenCompose(dirAccess ->
-                                    dirAccess.addChildAndCommit(ourNewCap.relativise(newChildCap), ourNewCap, newEntryWriter, network, random));
+                                    dirAccess.addChildAndCommit(ChildNameIndex.getName(rfp), ourNewCap.relativise(newChildCap),
+                                            ourNewCap, newEntryWriter, network, random));
                         });
             }, (a, b) -> a.thenCompose(x -> b)); // TODO Think about this combiner function
             return reduce;
@@ -49,6 +49,7 @@ public class EncryptedChunkRetriever implements FileRetriever {
                     return new LazyInputStreamCombiner(0,
                             chunk.get().chunk.data(), nextChunkPointer,
                             chunk.get().chunk.data(), nextChunkPointer,
+                            ourLocation, hasDerivedChunkLocations(ourLocation.getMapKey(), dataKey),
                             network, random, dataKey, fileSize, monitor);
                 });
     }
@@ -73,6 +74,29 @@ public class EncryptedChunkRetriever implements FileRetriever {
                 return CompletableFuture.completedFuture(Optional.of(result));
             });
         }
+        long chunkOffset = bytesRemainingUntilStart / Chunk.MAX_SIZE;
+        if (chunkOffset > 1 && hasDerivedChunkLocations(ourLocation.getMapKey(), dataKey)) {
+            Location target = ourLocation.withMapKey(Chunk.deriveMapKey(dataKey, ourLocation.getMapKey(), chunkOffset));
+            return network.getMetadata(target).thenCompose(meta -> {
+                if (! meta.isPresent())
+                    return getNextEncryptedChunk(bytesRemainingUntilStart, truncateTo, dataKey, ourLocation, network, monitor);
+
+                FileAccess access = (FileAccess) meta.get();
+                FileRetriever retriever = access.retriever();
+                return retriever.getEncryptedChunk(bytesRemainingUntilStart - chunkOffset * Chunk.MAX_SIZE,
+                        truncateTo - chunkOffset * Chunk.MAX_SIZE, retriever.getNonce(), dataKey,
+                        target, access.committedHash(), network, monitor);
+            });
+        }
+        return getNextEncryptedChunk(bytesRemainingUntilStart, truncateTo, dataKey, ourLocation, network, monitor);
+    }
+
+    private CompletableFuture<Optional<LocatedEncryptedChunk>> getNextEncryptedChunk(long bytesRemainingUntilStart,
+                                                                                     long truncateTo,
+                                                                                     SymmetricKey dataKey,
+                                                                                     Location ourLocation,
+                                                                                     NetworkAccess network,
+                                                                                     ProgressConsumer<Long> monitor) {
         Optional<byte[]> next = getNext(dataKey);
         if (! next.isPresent())
             return CompletableFuture.completedFuture(Optional.empty());
@@ -97,9 +121,25 @@ public class EncryptedChunkRetriever implements FileRetriever {
             return CompletableFuture.completedFuture(Optional.empty());
         if (offset < 2*Chunk.MAX_SIZE)
             return CompletableFuture.completedFuture(next); // chunk at this location hasn't been written yet, only referenced by previous chunk
-        return network.getMetadata(startLocation.withMapKey(next.get()))
+        long chunkOffset = offset / Chunk.MAX_SIZE;
+        if (hasDerivedChunkLocations(startLocation.getMapKey(), dataKey)) {
+            // the chunk before the target holds the link to it, which may not have been written yet
+            Location previous = startLocation.withMapKey(Chunk.deriveMapKey(dataKey, startLocation.getMapKey(), chunkOffset - 1));
+            return network.getMetadata(previous).thenCompose(meta -> meta.isPresent() ?
+                    CompletableFuture.completedFuture(((FileAccess)meta.get()).retriever().getNext(dataKey)) :
+                    getNextLocationAt(startLocation, next.get(), offset, dataKey, network));
+        }
+        return getNextLocationAt(startLocation, next.get(), offset, dataKey, network);
+    }
+
+    private CompletableFuture<Optional<byte[]>> getNextLocationAt(Location startLocation,
+                                                                  byte[] next,
+                                                                  long offset,
+                                                                  SymmetricKey dataKey,
+                                                                  NetworkAccess network) {
+        return network.getMetadata(startLocation.withMapKey(next))
                 .thenCompose(meta -> meta.isPresent() ?
-                        ((FileAccess)meta.get()).retriever().getLocationAt(startLocation.withMapKey(next.get()), offset - Chunk.MAX_SIZE, dataKey, network) :
+                        ((FileAccess)meta.get()).retriever().getLocationAt(startLocation.withMapKey(next), offset - Chunk.MAX_SIZE, dataKey, network) :
                         CompletableFuture.completedFuture(Optional.empty())
                 );
     }
@@ -108,6 +148,12 @@ public class EncryptedChunkRetriever implements FileRetriever {
         return this.nextChunk.map(c -> c.decrypt(dataKey, cbor -> ((CborObject.CborByteArray)cbor).value));
     }
 
+    @Override
+    public boolean hasDerivedChunkLocations(byte[] ourMapKey, SymmetricKey dataKey) {
+        Optional<byte[]> next = getNext(dataKey);
+        return next.isPresent() && Arrays.equals(next.get(), Chunk.deriveMapKey(dataKey, ourMapKey, 1));
+    }
+
     public byte[] getNonce() {
         return chunkNonce;
     }
@@ -18,6 +18,14 @@ public interface FileRetriever extends Cborable {
      */
     Optional<byte[]> getNext(SymmetricKey dataKey);
 
+    /**
+     *
+     * @param ourMapKey The map key of this chunk, which must be the first chunk of a file
+     * @param dataKey
+     * @return true if the later chunks of this file are at map keys derived using Chunk.deriveMapKey
+     */
+    boolean hasDerivedChunkLocations(byte[] ourMapKey, SymmetricKey dataKey);
+
     byte[] getNonce();
 
     CompletableFuture<AsyncReader> getFile(NetworkAccess network,
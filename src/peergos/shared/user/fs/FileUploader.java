@@ -20,6 +20,12 @@ import java.util.stream.*;
 public class FileUploader implements AutoCloseable {
 	private static final Logger LOG = Logger.getGlobal();
 
+    private static int getMaxChunksInFlight(NetworkAccess network, Fragmenter fragmenter) {
+        long bytesPerChunk = (long) (Chunk.MAX_SIZE * (2 + fragmenter.storageIncreaseFactor()));
+        return (int) Math.max(1, Math.min(network.getMaxUploadChunksInFlight(),
+                network.getMaxUploadBytesInFlight() / bytesPerChunk));
+    }
+
     private final String name;
     private final long offset, length;
     private final FileProperties props;
@@ -71,42 +77,159 @@ public class FileUploader implements AutoCloseable {
                 baseKey, parentLocation, parentparentKey, monitor, fileProperties, fragmenter, locations);
     }
 
-    public CompletableFuture<Boolean> uploadChunk(NetworkAccess network,
-                                                  PublicKeyHash owner,
-                                                  SigningPrivateKeyAndPublicHash writer,
-                                                  long chunkIndex,
-                                                  MaybeMultihash ourExistingHash,
-                                                  ProgressConsumer<Long> monitor) {
-        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+    private CompletableFuture<byte[]> readChunk(long chunkIndex) {
         long position = chunkIndex * Chunk.MAX_SIZE;
 
         long fileLength = length;
         boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
         int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
         byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
-            byte[] nonce = baseKey.createNonce();
-            byte[] mapKey = locations.get((int) chunkIndex).getMapKey();
-            Chunk chunk = new Chunk(data, baseKey, mapKey, nonce);
-            LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
-            Location nextLocation = new Location(owner, writer.publicKeyHash, locations.get((int) chunkIndex + 1).getMapKey());
-            return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
-                    fragmenter, nextLocation, Optional.empty(), network, monitor).thenApply(c -> true);
-        });
+        return reader.readIntoArray(data, 0, data.length).thenApply(b -> data);
+    }
+
+    private CompletableFuture<Boolean> uploadChunk(NetworkAccess network,
+                                                   PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   long chunkIndex,
+                                                   byte[] data,
+                                                   MaybeMultihash ourExistingHash,
+                                                   ProgressConsumer<Long> monitor,
+                                                   TransactionId tid) {
+        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        byte[] nonce = baseKey.createNonce();
+        byte[] mapKey = locations.get((int) chunkIndex).getMapKey();
+        Chunk chunk = new Chunk(data, baseKey, mapKey, nonce);
+        LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
+        Location nextLocation = new Location(owner, writer.publicKeyHash, locations.get((int) chunkIndex + 1).getMapKey());
+        return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                fragmenter, nextLocation, Optional.empty(), network, monitor, tid).thenApply(c -> true);
     }
 
+    public CompletableFuture<Boolean> uploadChunk(NetworkAccess network,
+                                                  PublicKeyHash owner,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  long chunkIndex,
+                                                  MaybeMultihash ourExistingHash,
+                                                  ProgressConsumer<Long> monitor) {
+        return IpfsTransaction.call(owner, tid -> readChunk(chunkIndex)
+                .thenCompose(data -> uploadChunk(network, owner, writer, chunkIndex, data, ourExistingHash, monitor, tid)),
+                network.dhtClient);
+    }
+
+    /** Upload all the chunks of the file. The chunks are read from the reader in order, but the encryption,
+     * fragmentation and upload of up to a bounded number of chunks proceed concurrently.
+     *
+     * All the chunks are added to the writer's tree in a single batch, so the tree nodes and WriterData are only
+     * written once per upload, rather than once per chunk.
+     */
     public CompletableFuture<Boolean> upload(NetworkAccess network,
                                              PublicKeyHash owner,
                                              SigningPrivateKeyAndPublicHash writer) {
+        return IpfsTransaction.call(owner, tid -> upload(network, owner, writer, tid), network.dhtClient);
+    }
+
+    /** Upload all the chunks of the file, as part of a batch of updates to the writer
+     *
+     * @param tid The transaction of the batch
+     */
+    public CompletableFuture<Boolean> upload(NetworkAccess network,
+                                             PublicKeyHash owner,
+                                             SigningPrivateKeyAndPublicHash writer,
+                                             TransactionId tid) {
         long t1 = System.currentTimeMillis();
+        return network.tree.batch(owner, writer, tid, t -> {
+            UploadPipeline pipeline = new UploadPipeline(network, owner, writer, tid, getMaxChunksInFlight(network, fragmenter));
+            pipeline.pump();
+            return pipeline.result;
+        }).thenApply(x -> {
+            LOG.info("File encryption, erasure coding and upload took: " +(System.currentTimeMillis()-t1) + " mS");
+            return x;
+        });
+    }
+
+    private class UploadPipeline {
+        private final NetworkAccess network;
+        private final PublicKeyHash owner;
+        private final SigningPrivateKeyAndPublicHash writer;
+        private final TransactionId tid;
+        private final int maxInFlight;
+        public final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private long nextToRead = 0, completed = 0;
+        private int inFlight = 0;
+        private boolean reading = false, failed = false, pumping = false, pumpRequested = false;
 
-        List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, true, (loc, i) -> uploadChunk(network, owner, writer, i,
-                MaybeMultihash.empty(), monitor), (a, b) -> a && b)
-                .thenApply(x -> {
-                    LOG.info("File encryption, erasure coding and upload took: " +(System.currentTimeMillis()-t1) + " mS");
-                    return x;
-                });
+        public UploadPipeline(NetworkAccess network,
+                              PublicKeyHash owner,
+                              SigningPrivateKeyAndPublicHash writer,
+                              TransactionId tid,
+                              int maxInFlight) {
+            this.network = network;
+            this.owner = owner;
+            this.writer = writer;
+            this.tid = tid;
+            this.maxInFlight = maxInFlight;
+        }
+
+        /** Start reading chunks while the reader is idle and there is room for another chunk in flight.
+         *
+         *  Calls made while another call is already pumping just flag it to check again, so that stages which complete
+         *  synchronously don't recurse once per chunk.
+         */
+        public void pump() {
+            synchronized (this) {
+                if (pumping) {
+                    pumpRequested = true;
+                    return;
+                }
+                pumping = true;
+            }
+            while (true) {
+                long chunkIndex;
+                synchronized (this) {
+                    if (failed || reading || inFlight >= maxInFlight || nextToRead >= nchunks) {
+                        if (! pumpRequested) {
+                            pumping = false;
+                            return;
+                        }
+                        pumpRequested = false;
+                        continue;
+                    }
+                    chunkIndex = nextToRead++;
+                    reading = true;
+                    inFlight++;
+                }
+                readChunk(chunkIndex).thenAccept(data -> {
+                    synchronized (this) {
+                        reading = false;
+                    }
+                    uploadChunk(network, owner, writer, chunkIndex, data, MaybeMultihash.empty(), monitor, tid)
+                            .thenAccept(done -> chunkDone())
+                            .exceptionally(this::fail);
+                    pump();
+                }).exceptionally(this::fail);
+            }
+        }
+
+        private void chunkDone() {
+            boolean finished;
+            synchronized (this) {
+                inFlight--;
+                completed++;
+                finished = completed == nchunks;
+            }
+            if (finished)
+                result.complete(true);
+            else
+                pump();
+        }
+
+        private Void fail(Throwable t) {
+            synchronized (this) {
+                failed = true;
+            }
+            result.completeExceptionally(t);
+            return null;
+        }
     }
 
     public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer,
@@ -120,6 +243,23 @@ public class FileUploader implements AutoCloseable {
                                                            Optional<SymmetricLinkToSigner> writerLink,
                                                            NetworkAccess network,
                                                            ProgressConsumer<Long> monitor) {
+        return IpfsTransaction.call(chunk.location.owner, tid -> uploadChunk(writer, props, parentLocation,
+                parentparentKey, baseKey, chunk, fragmenter, nextChunkLocation, writerLink, network, monitor, tid),
+                network.dhtClient);
+    }
+
+    public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer,
+                                                           FileProperties props,
+                                                           Location parentLocation,
+                                                           SymmetricKey parentparentKey,
+                                                           SymmetricKey baseKey,
+                                                           LocatedChunk chunk,
+                                                           Fragmenter fragmenter,
+                                                           Location nextChunkLocation,
+                                                           Optional<SymmetricLinkToSigner> writerLink,
+                                                           NetworkAccess network,
+                                                           ProgressConsumer<Long> monitor,
+                                                           TransactionId tid) {
         if (! writer.publicKeyHash.equals(chunk.location.writer))
             throw new IllegalStateException("Trying to write a chunk to the wrong signing key space!");
         return chunk.chunk.encrypt().thenCompose(encryptedChunk -> {
@@ -127,18 +267,16 @@ public class FileUploader implements AutoCloseable {
             LOG.info(StringUtils.format("Uploading chunk with %d fragments\n", fragments.size()));
             SymmetricKey chunkKey = chunk.chunk.key();
             CipherText encryptedNextChunkLocation = CipherText.build(chunkKey, new CborObject.CborByteArray(nextChunkLocation.getMapKey()));
-            return IpfsTransaction.call(chunk.location.owner, tid -> network
-                            .uploadFragments(fragments, chunk.location.owner, writer, monitor, fragmenter.storageIncreaseFactor(), tid)
-                            .thenCompose(hashes -> {
-                                FileRetriever retriever =
-                                        new EncryptedChunkRetriever(chunk.chunk.nonce(), encryptedChunk.getAuth(),
-                                                hashes, Optional.of(encryptedNextChunkLocation), fragmenter);
-                                FileAccess metaBlob = FileAccess.create(chunk.existingHash, baseKey,
-                                        chunkKey, props, retriever, parentLocation, parentparentKey).withWriterLink(writerLink);
-                                return network.uploadChunk(metaBlob, chunk.location.owner,
-                                        chunk.chunk.mapKey(), writer, tid);
-                            }),
-                    network.dhtClient);
+            return network.uploadFragments(fragments, chunk.location.owner, writer, monitor, fragmenter.storageIncreaseFactor(), tid)
+                    .thenCompose(hashes -> {
+                        FileRetriever retriever =
+                                new EncryptedChunkRetriever(chunk.chunk.nonce(), encryptedChunk.getAuth(),
+                                        hashes, Optional.of(encryptedNextChunkLocation), fragmenter);
+                        FileAccess metaBlob = FileAccess.create(chunk.existingHash, baseKey,
+                                chunkKey, props, retriever, parentLocation, parentparentKey).withWriterLink(writerLink);
+                        return network.uploadChunk(metaBlob, chunk.location.owner,
+                                chunk.chunk.mapKey(), writer, tid);
+                    });
         });
     }
 
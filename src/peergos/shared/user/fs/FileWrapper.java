@@ -78,10 +78,18 @@ public class FileWrapper {
         return new FileWrapper(Optional.of(trie), pointer, entryWriter, ownername);
     }
 
-    private FileWrapper withCryptreeNode(CryptreeNode access) {
+    FileWrapper withCryptreeNode(CryptreeNode access) {
         return new FileWrapper(globalRoot, new RetrievedCapability(getPointer().capability, access), entryWriter, ownername);
     }
 
+    /**
+     *
+     * @return An unmodified copy of this FileWrapper
+     */
+    FileWrapper copy() {
+        return new FileWrapper(globalRoot, pointer, entryWriter, ownername);
+    }
+
     @JsMethod
     public boolean equals(Object other) {
         if (other == null)
@@ -131,13 +139,9 @@ public class FileWrapper {
         int slash = path.indexOf("/");
         String prefix = slash > 0 ? path.substring(0, slash) : path;
         String suffix = slash > 0 ? path.substring(slash + 1) : "";
-        return getChildren(network).thenCompose(children -> {
-            for (FileWrapper child : children)
-                if (child.getFileProperties().name.equals(prefix)) {
-                    return child.getDescendentByPath(suffix, network);
-                }
-            return CompletableFuture.completedFuture(Optional.empty());
-        });
+        return getChild(prefix, network).thenCompose(child -> child.isPresent() ?
+                child.get().getDescendentByPath(suffix, network) :
+                CompletableFuture.completedFuture(Optional.empty()));
     }
 
     private void ensureUnmodified() {
@@ -173,8 +177,9 @@ public class FileWrapper {
                                                         NetworkAccess network,
                                                         SafeRandom random) {
         return ((DirAccess) pointer.fileAccess)
-                .addChildrenAndCommit(children.stream()
-                                .map(p -> ((WritableAbsoluteCapability)pointer.capability).relativise(p.capability))
+                .addNamedChildrenAndCommit(children.stream()
+                                .map(p -> new Pair<>(ChildNameIndex.getName(p),
+                                        ((WritableAbsoluteCapability)pointer.capability).relativise(p.capability)))
                                 .collect(Collectors.toList()), (WritableAbsoluteCapability) pointer.capability, entryWriter,
                         network, random)
                 .thenApply(committedCryptree ->
@@ -382,8 +387,8 @@ public class FileWrapper {
 
     public CompletableFuture<Boolean> hasChildWithName(String name, NetworkAccess network) {
         ensureUnmodified();
-        return getChildren(network)
-                .thenApply(children -> children.stream().anyMatch(c -> c.props.name.equals(name)));
+        return getChild(name, network)
+                .thenApply(Optional::isPresent);
     }
 
     /**
@@ -414,7 +419,7 @@ public class FileWrapper {
                 return error;
             }
             DirAccess toUpdate = (DirAccess) pointer.fileAccess;
-            return toUpdate.addChildAndCommit(writableFilePointer().relativise(file.writableFilePointer()),
+            return toUpdate.addChildAndCommit(name, writableFilePointer().relativise(file.writableFilePointer()),
                     writableFilePointer(), entryWriter, network, random)
                     .thenApply(dirAccess -> new FileWrapper(this.pointer.withCryptree(dirAccess), entryWriter, ownername));
         });
@@ -519,9 +524,53 @@ public class FileWrapper {
         throw new IllegalStateException("Unreadable FileWrapper!");
     }
 
+    /** Retrieve the children at positions [offset, offset + limit) of this directory, in the order they were added,
+     * only retrieving the metadata of those children.
+     *
+     * @param offset
+     * @param limit
+     * @param network
+     * @return
+     */
+    public CompletableFuture<List<FileWrapper>> getChildren(int offset, int limit, NetworkAccess network) {
+        ensureUnmodified();
+        if (globalRoot.isPresent())
+            return globalRoot.get().getChildren("/", network)
+                    .thenApply(children -> children.stream()
+                            .skip(offset)
+                            .limit(limit)
+                            .collect(Collectors.toList()));
+        if (isReadable()) {
+            Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = pointer.capability.wBaseKey
+                    .map(wBase -> pointer.fileAccess.getSigner(wBase, entryWriter));
+            return ((DirAccess) pointer.fileAccess).getChildren(network, pointer.capability, offset, limit)
+                    .thenApply(childrenRFPs -> childrenRFPs.stream()
+                            .map(x -> new FileWrapper(x, childsEntryWriter, ownername))
+                            .collect(Collectors.toList()));
+        }
+        throw new IllegalStateException("Unreadable FileWrapper!");
+    }
+
+    /** Look up a child by name using the directory's name index, and only list the whole directory if the index
+     * doesn't have a valid entry for the name.
+     *
+     * @param name
+     * @param network
+     * @return
+     */
     public CompletableFuture<Optional<FileWrapper>> getChild(String name, NetworkAccess network) {
-        return getChildren(network)
-                .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        ensureUnmodified();
+        if (globalRoot.isPresent() || ! isReadable() || ! isDirectory())
+            return getChildren(network)
+                    .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = pointer.capability.wBaseKey
+                .map(wBase -> pointer.fileAccess.getSigner(wBase, entryWriter));
+        return ChildNameIndex.getChild(pointer.capability, name, network).thenCompose(indexed -> {
+            if (indexed.isPresent())
+                return CompletableFuture.completedFuture(Optional.of(new FileWrapper(indexed.get(), childsEntryWriter, ownername)));
+            return getChildren(network)
+                    .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        });
     }
 
     private CompletableFuture<Set<RetrievedCapability>> retrieveChildren(NetworkAccess network) {
@@ -599,6 +648,27 @@ public class FileWrapper {
                 .collect(Collectors.toList());
     }
 
+    public List<Location> generateChildLocationsFromSize(long fileSize, SymmetricKey dataKey, SafeRandom random) {
+        return generateChildLocations(getNumberOfChunks(fileSize), dataKey, random);
+    }
+
+    /** Generate the locations for a new file whose chunks can be located directly from the first chunk's, without
+     * walking the chain of next chunk links. The file must be uploaded with dataKey as its base key.
+     *
+     * @param numberOfChunks
+     * @param dataKey
+     * @param random
+     * @return
+     */
+    public List<Location> generateChildLocations(int numberOfChunks,
+                                                 SymmetricKey dataKey,
+                                                 SafeRandom random) {
+        byte[] firstMapKey = random.randomBytes(32);
+        return IntStream.range(0, numberOfChunks + 1) //have to have one extra location
+                .mapToObj(i -> new Location(owner(), writer(), i == 0 ? firstMapKey : Chunk.deriveMapKey(dataKey, firstMapKey, i)))
+                .collect(Collectors.toList());
+    }
+
     @JsMethod
     public CompletableFuture<FileWrapper> uploadFileJS(String filename,
                                                        AsyncReader fileData,
@@ -611,13 +681,14 @@ public class FileWrapper {
                                                        Fragmenter fragmenter,
                                                        TransactionService transactions) {
         long fileSize = lengthLow + ((lengthHi & 0xFFFFFFFFL) << 32);
+        SymmetricKey fileKey = SymmetricKey.random();
         return getPath(network).thenCompose(path ->
                 Transaction.buildFileUploadTransaction(Paths.get(path).resolve(filename).toString(), fileSize, fileData, signingPair(),
-                        generateChildLocationsFromSize(fileSize, random)))
+                        generateChildLocationsFromSize(fileSize, fileKey, random)))
                 .thenCompose(txn -> transactions.open(txn)
                         .thenCompose(x -> fileData.reset())
                         .thenCompose(reset -> uploadFileSection(filename, reset, false, 0, fileSize,
-                                Optional.empty(), overwriteExisting, network, random, monitor, fragmenter, txn.getLocations()))
+                                Optional.of(fileKey), overwriteExisting, network, random, monitor, fragmenter, txn.getLocations()))
                         .thenCompose(res -> transactions.close(txn).thenApply(x -> res)));
     }
 
@@ -633,6 +704,18 @@ public class FileWrapper {
                 true, network, random, monitor, fragmenter, locations);
     }
 
+    public CompletableFuture<FileWrapper> uploadOrOverwriteFile(String filename,
+                                                                AsyncReader fileData,
+                                                                long length,
+                                                                NetworkAccess network,
+                                                                SafeRandom random,
+                                                                ProgressConsumer<Long> monitor,
+                                                                Fragmenter fragmenter) {
+        SymmetricKey fileKey = SymmetricKey.random();
+        return uploadFileSection(filename, fileData, false, 0, length, Optional.of(fileKey),
+                true, network, random, monitor, fragmenter, generateChildLocationsFromSize(length, fileKey, random));
+    }
+
     /**
      *
      * @param filename
@@ -697,13 +780,15 @@ public class FileWrapper {
                                                 startIndex, endIndex, fileKey, parentLocation, dirParentKey, monitor, fileProps,
                                                 fragmenter, locations);
                                         SigningPrivateKeyAndPublicHash signer = signingPair();
-                                        return chunks.upload(network, parentLocation.owner, signer)
-                                                .thenCompose(fileLocation -> {
-                                                    WritableAbsoluteCapability fileWriteCap =
-                                                            new WritableAbsoluteCapability(owner(), signer.publicKeyHash,
-                                                                    locations.get(0).getMapKey(), fileKey, fileWriteKey);
-                                                    return addChildPointer(filename, fileWriteCap, network, random, 2);
-                                                });
+                                        // add the file to the directory in the same batch as its chunks
+                                        return network.tree.batch(parentLocation.owner, signer, tid ->
+                                                chunks.upload(network, parentLocation.owner, signer, tid)
+                                                        .thenCompose(fileLocation -> {
+                                                            WritableAbsoluteCapability fileWriteCap =
+                                                                    new WritableAbsoluteCapability(owner(), signer.publicKeyHash,
+                                                                            locations.get(0).getMapKey(), fileKey, fileWriteKey);
+                                                            return addChildPointer(filename, fileWriteCap, network, random, 2, tid);
+                                                        }));
                                     }))
                             )
                     );
@@ -714,10 +799,11 @@ public class FileWrapper {
                                                            WritableAbsoluteCapability childPointer,
                                                            NetworkAccess network,
                                                            SafeRandom random,
-                                                           int retries) {
+                                                           int retries,
+                                                           TransactionId tid) {
         CompletableFuture<FileWrapper> result = new CompletableFuture<>();
-        ((DirAccess) pointer.fileAccess).addChildAndCommit(writableFilePointer().relativise(childPointer),
-                writableFilePointer(), entryWriter, network, random)
+        ((DirAccess) pointer.fileAccess).addChildAndCommit(filename, writableFilePointer().relativise(childPointer),
+                writableFilePointer(), entryWriter, network, random, tid)
                 .thenAccept(uploadResult -> {
                     setModified();
                     result.complete(this.withCryptreeNode(uploadResult));
@@ -731,12 +817,9 @@ public class FileWrapper {
 
                     RetrievedCapability updatedPointer = new RetrievedCapability(pointer.capability, updatedUs);
                     FileWrapper us = new FileWrapper(globalRoot, updatedPointer, entryWriter, ownername);
-                    return us.getChildren(network).thenCompose(children -> {
-                        Set<String> childNames = children.stream()
-                                .map(f -> f.getName())
-                                .collect(Collectors.toSet());
-                        if (! childNames.contains(filename)) {
-                            return us.addChildPointer(filename, childPointer, network, random, retries)
+                    return us.hasChildWithName(filename, network).thenCompose(hasChild -> {
+                        if (! hasChild) {
+                            return us.addChildPointer(filename, childPointer, network, random, retries, tid)
                                     .thenAccept(res -> {
                                         result.complete(res);
                                     });
@@ -746,7 +829,7 @@ public class FileWrapper {
                 }).exceptionally(ex -> {
                     if ((e instanceof MutableTree.CasException ||
                             e.getCause() instanceof MutableTree.CasException) && retries > 0)
-                        addChildPointer(filename, childPointer, network, random, retries - 1)
+                        addChildPointer(filename, childPointer, network, random, retries - 1, tid)
                                 .thenApply(f -> result.complete(f))
                                 .exceptionally(e2 -> {
                                     result.completeExceptionally(e2);
@@ -780,7 +863,7 @@ public class FileWrapper {
         String filename = existingChild.getFileProperties().name;
         LOG.info("Overwriting section [" + Long.toHexString(inputStartIndex) + ", " + Long.toHexString(endIndex) + "] of child with name: " + filename);
 
-        Supplier<Location> locationSupplier = () -> new Location(getLocation().owner, getLocation().writer, random.randomBytes(32));
+        Function<Long, Location> locationSupplier = chunkIndex -> new Location(getLocation().owner, getLocation().writer, random.randomBytes(32));
 
         return (existingChild.isDirty() ?
                 existingChild.clean(network, random, this, fragmenter)
@@ -796,6 +879,10 @@ public class FileWrapper {
             SymmetricKey baseKey = child.pointer.capability.rBaseKey;
             FileAccess fileAccess = (FileAccess) child.pointer.fileAccess;
             SymmetricKey dataKey = fileAccess.getDataKey(baseKey);
+            // keep extending a file with derived chunk locations so it stays directly seekable
+            Function<Long, Location> nextLocationSupplier = retriever.hasDerivedChunkLocations(child.getLocation().getMapKey(), dataKey) ?
+                    chunkIndex -> child.getLocation().withMapKey(Chunk.deriveMapKey(dataKey, child.getLocation().getMapKey(), chunkIndex)) :
+                    locationSupplier;
 
             List<Long> startIndexes = new ArrayList<>();
 
@@ -825,7 +912,7 @@ public class FileWrapper {
 
                             LocatedChunk currentOriginal = pair.left.get();
                             Optional<Location> nextChunkLocationOpt = pair.right;
-                            Location nextChunkLocation = nextChunkLocationOpt.orElseGet(locationSupplier);
+                            Location nextChunkLocation = nextChunkLocationOpt.orElseGet(() -> nextLocationSupplier.apply(startIndex / Chunk.MAX_SIZE + 1));
                             LOG.info("********** Writing to chunk at mapkey: " + ArrayOps.bytesToHex(currentOriginal.location.getMapKey()) + " next: " + nextChunkLocation);
 
                             // modify chunk, re-encrypt and upload
@@ -863,12 +950,8 @@ public class FileWrapper {
 
                                         if (updatedLength > Chunk.MAX_SIZE) {
                                             // update file size in FileProperties of first chunk
-                                            return getChildren(network).thenCompose(children -> {
-                                                Optional<FileWrapper> updatedChild = children.stream()
-                                                        .filter(f -> f.getFileProperties().name.equals(filename))
-                                                        .findAny();
-                                                return updatedChild.get().setProperties(child.getFileProperties().withSize(endIndex), network, this);
-                                            });
+                                            return getChild(filename, network).thenCompose(updatedChild ->
+                                                    updatedChild.get().setProperties(child.getFileProperties().withSize(endIndex), network, this));
                                         }
                                     }
                                     return CompletableFuture.completedFuture(true);
@@ -964,7 +1047,8 @@ public class FileWrapper {
                                 currentProps.modified, currentProps.isHidden, currentProps.thumbnail);
 
                         return fileAccess.updateProperties(writableFilePointer(), entryWriter, newProps, network)
-                                .thenApply(fa -> res);
+                                .thenCompose(fa -> renameInParentIndex(currentProps.name, newFilename, res, network))
+                                .thenApply(b -> res);
                     });
                 });
     }
@@ -991,10 +1075,27 @@ public class FileWrapper {
                     CryptreeNode fileAccess = pointer.fileAccess;
 
                     return fileAccess.updateProperties(writableFilePointer(), entryWriter, updatedProperties, network)
-                            .thenApply(fa -> true);
+                            .thenCompose(fa -> renameInParentIndex(props.name, newName, parent, network));
                 });
     }
 
+    /** Move the entry for this file in its parent's name index to a new name
+     *
+     * @return true when complete
+     */
+    private CompletableFuture<Boolean> renameInParentIndex(String oldName,
+                                                           String newName,
+                                                           FileWrapper parent,
+                                                           NetworkAccess network) {
+        if (parent == null || ! parent.isWritable() || oldName.equals(newName))
+            return CompletableFuture.completedFuture(true);
+        WritableAbsoluteCapability parentCap = parent.writableFilePointer();
+        SigningPrivateKeyAndPublicHash parentSigner = parent.signingPair();
+        return ChildNameIndex.putAll(parentCap, parentSigner,
+                Arrays.asList(new Pair<>(newName, parentCap.relativise(writableFilePointer()))), network)
+                .thenCompose(b -> ChildNameIndex.removeAll(parentCap, parentSigner, Arrays.asList(oldName), network));
+    }
+
     /**
      *
      * @return A capability based on the parent key
@@ -1053,9 +1154,11 @@ public class FileWrapper {
                             return target.addLinkTo(newFileWrapper, network, random);
                         });
             } else {
+                SymmetricKey newFileKey = SymmetricKey.random();
                 return getInputStream(network, random, x -> {})
                         .thenCompose(stream -> target.uploadFileSection(getName(), stream, false, 0, getSize(),
-                                Optional.empty(), false, network, random, x -> {}, fragmenter, target.generateChildLocations(props.getNumberOfChunks(), random))
+                                Optional.of(newFileKey), false, network, random, x -> {}, fragmenter,
+                                target.generateChildLocations(props.getNumberOfChunks(), newFileKey, random))
                         .thenApply(b -> target));
             }
         });
@@ -1112,6 +1215,19 @@ public class FileWrapper {
                                                             SigningPrivateKeyAndPublicHash targetSigner,
                                                             TransactionId tid,
                                                             NetworkAccess network) {
+        return copyAllChunks(includeFirst, currentCap, currentCap, targetSigner, tid, network);
+    }
+
+    /**
+     *
+     * @param firstBlob The first blob of the file or dir which currentCap is a chunk of
+     */
+    private static CompletableFuture<Boolean> copyAllChunks(boolean includeFirst,
+                                                            AbsoluteCapability currentCap,
+                                                            AbsoluteCapability firstBlob,
+                                                            SigningPrivateKeyAndPublicHash targetSigner,
+                                                            TransactionId tid,
+                                                            NetworkAccess network) {
 
         return network.getMetadata(currentCap.getLocation())
                 .thenCompose(mOpt -> {
@@ -1126,16 +1242,20 @@ public class FileWrapper {
                                 Optional<byte[]> nextChunkMapKey = chunk.getNextChunkLocation(currentCap.rBaseKey);
                                 if (! nextChunkMapKey.isPresent())
                                     return CompletableFuture.completedFuture(true);
-                                return copyAllChunks(true, currentCap.withMapKey(nextChunkMapKey.get()), targetSigner, tid, network);
+                                return copyAllChunks(true, currentCap.withMapKey(nextChunkMapKey.get()), firstBlob,
+                                        targetSigner, tid, network);
                             })
                             .thenCompose(b -> {
                                 if (! (mOpt.get() instanceof DirAccess))
                                     return CompletableFuture.completedFuture(true);
                                 Set<AbsoluteCapability> childCaps = ((DirAccess) mOpt.get()).getChildrenCapabilities(currentCap);
-                                return Futures.reduceAll(childCaps,
-                                        true,
-                                        (x, cap) -> copyAllChunks(true, cap, targetSigner, tid, network),
-                                        (x, y) -> x && y);
+                                // the index entries for these children move to the new writer with the directory
+                                return ChildNameIndex.getNames(childCaps, network)
+                                        .thenCompose(names -> ChildNameIndex.copyAll(firstBlob, names, targetSigner, network, tid))
+                                        .thenCompose(c -> Futures.reduceAll(childCaps,
+                                                true,
+                                                (x, cap) -> copyAllChunks(true, cap, targetSigner, tid, network),
+                                                (x, y) -> x && y));
                             });
                 });
     }
@@ -1144,6 +1264,18 @@ public class FileWrapper {
                                                              SigningPrivateKeyAndPublicHash signer,
                                                              TransactionId tid,
                                                              NetworkAccess network) {
+        return deleteAllChunks(currentCap, currentCap, signer, tid, network);
+    }
+
+    /**
+     *
+     * @param firstBlob The first blob of the file or dir which currentCap is a chunk of
+     */
+    private static CompletableFuture<Boolean> deleteAllChunks(WritableAbsoluteCapability currentCap,
+                                                              WritableAbsoluteCapability firstBlob,
+                                                              SigningPrivateKeyAndPublicHash signer,
+                                                              TransactionId tid,
+                                                              NetworkAccess network) {
         return network.getMetadata(currentCap.getLocation())
                 .thenCompose(mOpt -> {
                     if (! mOpt.isPresent()) {
@@ -1156,16 +1288,21 @@ public class FileWrapper {
                                 Optional<byte[]> nextChunkMapKey = chunk.getNextChunkLocation(currentCap.rBaseKey);
                                 if (! nextChunkMapKey.isPresent())
                                     return CompletableFuture.completedFuture(true);
-                                return deleteAllChunks(currentCap.withMapKey(nextChunkMapKey.get()), signer, tid, network);
+                                return deleteAllChunks(currentCap.withMapKey(nextChunkMapKey.get()), firstBlob, signer,
+                                        tid, network);
                             })
                             .thenCompose(b -> {
                                 if (! (mOpt.get() instanceof DirAccess))
                                     return CompletableFuture.completedFuture(true);
                                 Set<AbsoluteCapability> childCaps = ((DirAccess) mOpt.get()).getChildrenCapabilities(currentCap);
-                                return Futures.reduceAll(childCaps,
-                                        true,
-                                        (x, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap, signer, tid, network),
-                                        (x, y) -> x && y);
+                                // remove the index entries for these children in the same transaction as the children
+                                return ChildNameIndex.getNames(childCaps, network)
+                                        .thenCompose(names -> ChildNameIndex.removeAll(firstBlob, ourSigner, names, network, tid))
+                                        .thenCompose(r -> Futures.reduceAll(childCaps,
+                                                true,
+                                                // children without their own writer inherit ours
+                                                (x, cap) -> deleteAllChunks((WritableAbsoluteCapability) cap, ourSigner, tid, network),
+                                                (x, y) -> x && y));
                             })
                             .thenCompose(b -> removeSigningKey(currentCap.writer, signer, currentCap.owner, network));
                 });
@@ -1183,10 +1320,11 @@ public class FileWrapper {
             return Futures.errored(new IllegalStateException("Cannot delete file without write access to it"));
 
         boolean writableParent = parent.isWritable();
+        SigningPrivateKeyAndPublicHash signer = writableParent ? parent.signingPair() : signingPair();
+        // remove all the chunks in this writer's tree with a single commit
         return (writableParent ? parent.removeChild(this, network) : CompletableFuture.completedFuture(parent))
-                .thenCompose(updatedParent -> IpfsTransaction.call(owner(),
-                        tid -> FileWrapper.deleteAllChunks(writableFilePointer(),
-                                writableParent ? parent.signingPair() : signingPair(), tid, network), network.dhtClient)
+                .thenCompose(updatedParent -> network.tree.batch(owner(), signer,
+                        tid -> FileWrapper.deleteAllChunks(writableFilePointer(), signer, tid, network))
                         .thenApply(b -> updatedParent));
     }
 
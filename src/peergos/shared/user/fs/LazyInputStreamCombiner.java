@@ -8,6 +8,7 @@ import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public class LazyInputStreamCombiner implements AsyncReader {
@@ -19,6 +20,9 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
     private final byte[] originalChunk;
     private final Location originalNextPointer;
+    private final Location firstChunkLocation;
+    // whether later chunks are at map keys derived from the first chunk's, so they can be located directly
+    private final boolean derivedChunkLocations;
 
     private byte[] currentChunk;
     private Location nextChunkPointer;
@@ -26,11 +30,18 @@ public class LazyInputStreamCombiner implements AsyncReader {
     private long globalIndex; // index of beginning of current chunk in file
     private int index; // index within current chunk
 
+    // chunks after the current one which are being fetched in the background, in file order
+    private final Deque<PrefetchedChunk> readAhead = new ArrayDeque<>();
+    // incremented to abandon any read ahead in progress
+    private int generation = 0;
+
     public LazyInputStreamCombiner(long globalIndex,
                                    byte[] chunk,
                                    Location nextChunkPointer,
                                    byte[] originalChunk,
                                    Location originalNextChunkPointer,
+                                   Location firstChunkLocation,
+                                   boolean derivedChunkLocations,
                                    NetworkAccess network,
                                    SafeRandom random,
                                    SymmetricKey dataKey,
@@ -45,74 +56,212 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.totalLength = totalLength;
         this.originalChunk = originalChunk;
         this.originalNextPointer = originalNextChunkPointer;
+        this.firstChunkLocation = firstChunkLocation;
+        this.derivedChunkLocations = derivedChunkLocations;
         this.currentChunk = chunk;
         this.nextChunkPointer = nextChunkPointer;
         this.globalIndex = globalIndex;
         this.index = 0;
     }
 
-    public CompletableFuture<Boolean> getNextStream(int len) {
-        if (this.nextChunkPointer != null) {
-            Location nextLocation = this.nextChunkPointer;
+    private static final class PrefetchedChunk {
+        public final long globalIndex;
+        public final int generation;
+        public final CompletableFuture<Optional<Location>> nextPointer = new CompletableFuture<>();
+        public final CompletableFuture<byte[]> data = new CompletableFuture<>();
+
+        public PrefetchedChunk(long globalIndex, int generation) {
+            this.globalIndex = globalIndex;
+            this.generation = generation;
+        }
+    }
+
+    private static <T> CompletableFuture<T> eof() {
+        CompletableFuture<T> err = new CompletableFuture<>();
+        err.completeExceptionally(new EOFException());
+        return err;
+    }
+
+    private synchronized PrefetchedChunk newChunk(long chunkGlobalIndex) {
+        return new PrefetchedChunk(chunkGlobalIndex, generation);
+    }
+
+    /** Retrieve and decrypt a chunk. Its location is only known once the previous chunk's metadata has been
+     * retrieved.
+     */
+    private void fetch(PrefetchedChunk chunk, CompletableFuture<Optional<Location>> location) {
+        int len = (int) Math.max(0, Math.min(Chunk.MAX_SIZE, totalLength - chunk.globalIndex));
+        CompletableFuture<Optional<Location>> next = chunk.nextPointer;
+        location.thenCompose(locOpt -> {
+            if (! locOpt.isPresent() || isAbandoned(chunk.generation)) {
+                next.complete(Optional.empty());
+                return eof();
+            }
+            Location nextLocation = locOpt.get();
             return network.getMetadata(nextLocation).thenCompose(meta -> {
-                if (!meta.isPresent()) {
-                    CompletableFuture<Boolean> err = new CompletableFuture<>();
-                    err.completeExceptionally(new EOFException());
-                    return err;
+                if (!meta.isPresent() || isAbandoned(chunk.generation)) {
+                    next.complete(Optional.empty());
+                    return eof();
                 }
                 CryptreeNode access = meta.get();
-                if (! (access instanceof FileAccess))
+                if (! (access instanceof FileAccess)) {
+                    next.complete(Optional.empty());
                     throw new IllegalStateException("File linked to a directory for its next chunk!");
+                }
                 FileRetriever nextRet = ((FileAccess) access).retriever();
-                Location newNextChunkPointer = nextRet.getNext(dataKey).map(nextLocation::withMapKey).orElse(null);
+                next.complete(nextRet.getNext(dataKey).map(nextLocation::withMapKey));
                 return nextRet.getChunkInputStream(network, random, dataKey, 0, len, nextLocation, access.committedHash(), monitor)
-                        .thenApply(x -> {
-                            byte[] nextData = x.get().chunk.data();
-                            updateState(0,globalIndex + Chunk.MAX_SIZE, nextData, newNextChunkPointer);
-                            return true;
-                        });
+                        .thenApply(x -> x.get().chunk.data());
             });
+        }).thenApply(chunk.data::complete)
+                .exceptionally(t -> {
+                    next.complete(Optional.empty());
+                    chunk.data.completeExceptionally(t);
+                    return false;
+                });
+    }
+
+    private synchronized boolean isAbandoned(int fetchGeneration) {
+        return fetchGeneration != generation;
+    }
+
+    /** Queue fetches for the chunks following the current one, up to the read ahead window and the end of the file.
+     * The fetches are started in the background, outside the lock, as they may complete synchronously.
+     */
+    private void fillReadAhead() {
+        List<Runnable> toStart = new ArrayList<>();
+        synchronized (this) {
+            int window = network.getReadAheadChunks();
+            while (readAhead.size() < window) {
+                PrefetchedChunk last = readAhead.peekLast();
+                long start = (last == null ? globalIndex : last.globalIndex) + Chunk.MAX_SIZE;
+                if (start >= totalLength)
+                    break;
+                if (last == null && nextChunkPointer == null)
+                    break;
+                CompletableFuture<Optional<Location>> location = last == null ?
+                        CompletableFuture.completedFuture(Optional.of(nextChunkPointer)) :
+                        last.nextPointer;
+                PrefetchedChunk chunk = newChunk(start);
+                readAhead.addLast(chunk);
+                toStart.add(() -> fetch(chunk, location));
+            }
         }
-        CompletableFuture<Boolean> err = new CompletableFuture<>();
-        err.completeExceptionally(new EOFException());
-        return err;
+        if (! toStart.isEmpty())
+            CompletableFuture.runAsync(() -> toStart.forEach(Runnable::run));
     }
 
-    private CompletableFuture<AsyncReader> skip(long skip) {
-        long available = (long) bytesReady();
+    private synchronized void cancelReadAhead() {
+        generation++;
+        readAhead.clear();
+    }
 
-        if (skip <= available) {
-            index += (int) skip;
-            return CompletableFuture.completedFuture(this);
+    public CompletableFuture<Boolean> getNextStream() {
+        PrefetchedChunk next;
+        Location location = null;
+        synchronized (this) {
+            next = readAhead.pollFirst();
+            if (next == null) {
+                if (this.nextChunkPointer == null)
+                    return eof();
+                location = nextChunkPointer;
+                next = newChunk(globalIndex + Chunk.MAX_SIZE);
+            }
+        }
+        PrefetchedChunk chunk = next;
+        if (location != null)
+            fetch(chunk, CompletableFuture.completedFuture(Optional.of(location)));
+        return chunk.data.thenCompose(nextData -> chunk.nextPointer.thenApply(newNextChunkPointer -> {
+            updateState(0, chunk.globalIndex, nextData, newNextChunkPointer.orElse(null));
+            fillReadAhead();
+            return true;
+        }));
+    }
+
+    private CompletableFuture<AsyncReader> skip(long skip) {
+        long available;
+        synchronized (this) {
+            available = (long) bytesReady();
+            if (skip <= available) {
+                index += (int) skip;
+                return CompletableFuture.completedFuture(this);
+            }
         }
 
         long toRead = Math.min(available, skip);
 
-        int remainingToRead = totalLength - globalIndex > Chunk.MAX_SIZE ? Chunk.MAX_SIZE : (int) (totalLength - globalIndex);
-        return getNextStream(remainingToRead)
+        return getNextStream()
                 .thenCompose(done -> this.skip(skip - toRead));
     }
 
     @Override
     public CompletableFuture<AsyncReader> seek(int hi32, int low32) {
-        long seek = ((long) (hi32) << 32) | low32;
+        long seek = ((long) (hi32) << 32) | (low32 & 0xFFFFFFFFL);
 
         if (totalLength < seek)
             throw new IllegalStateException("Cannot seek to position "+ seek);
-        return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
+        synchronized (this) {
+            if (seek >= globalIndex && seek - globalIndex <= currentChunk.length) {
+                index = (int) (seek - globalIndex);
+                return CompletableFuture.completedFuture(this);
+            }
+        }
+        long chunkIndex = seek / Chunk.MAX_SIZE;
+        Optional<Location> direct = getChunkLocation(chunkIndex);
+        if (! direct.isPresent())
+            return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
+
+        cancelReadAhead();
+        long chunkStart = chunkIndex * Chunk.MAX_SIZE;
+        PrefetchedChunk target = newChunk(chunkStart);
+        fetch(target, CompletableFuture.completedFuture(direct));
+        CompletableFuture<AsyncReader> res = new CompletableFuture<>();
+        target.data.thenCompose(data -> target.nextPointer.thenApply(next -> {
+            updateState((int) (seek - chunkStart), chunkStart, data, next.orElse(null));
+            fillReadAhead();
+            return res.complete(this);
+        })).exceptionally(t -> {
+            if (t instanceof EOFException || t.getCause() instanceof EOFException) {
+                // the chunk isn't where we expected, so fall back to following the links from the start
+                reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek))
+                        .thenApply(res::complete)
+                        .exceptionally(e -> res.completeExceptionally(e));
+            } else
+                res.completeExceptionally(t);
+            return false;
+        });
+        return res;
+    }
+
+    /**
+     *
+     * @param chunkIndex
+     * @return The location of the chunk with the given index if it can be calculated without retrieving the chunks
+     * before it
+     */
+    private Optional<Location> getChunkLocation(long chunkIndex) {
+        if (chunkIndex == 0)
+            return Optional.empty();
+        if (chunkIndex == 1)
+            return Optional.ofNullable(originalNextPointer);
+        if (! derivedChunkLocations)
+            return Optional.empty();
+        return Optional.of(firstChunkLocation.withMapKey(Chunk.deriveMapKey(dataKey, firstChunkLocation.getMapKey(), chunkIndex)));
     }
 
     private int bytesReady() {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        cancelReadAhead();
+    }
 
     public CompletableFuture<AsyncReader> reset() {
-        this.globalIndex = 0;
-        this.currentChunk = originalChunk;
-        this.nextChunkPointer = originalNextPointer;
-        this.index = 0;
+        synchronized (this) {
+            cancelReadAhead();
+            updateState(0, 0, originalChunk, originalNextPointer);
+        }
         return CompletableFuture.completedFuture(this);
     }
 
@@ -124,11 +273,15 @@ public class LazyInputStreamCombiner implements AsyncReader {
      * @return number of bytes read
      */
     public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
-        int available = bytesReady();
-        int toRead = Math.min(available, length);
-        System.arraycopy(currentChunk, index, res, offset, toRead);
-        index += toRead;
-        long globalOffset = globalIndex + index;
+        int available, toRead;
+        long globalOffset;
+        synchronized (this) {
+            available = bytesReady();
+            toRead = Math.min(available, length);
+            System.arraycopy(currentChunk, index, res, offset, toRead);
+            index += toRead;
+            globalOffset = globalIndex + index;
+        }
 
         if (available >= length) // we are done
             return CompletableFuture.completedFuture(length);
@@ -137,15 +290,12 @@ public class LazyInputStreamCombiner implements AsyncReader {
             err.completeExceptionally(new EOFException());
             return err;
         }
-        int nextChunkSize = totalLength - globalOffset > Chunk.MAX_SIZE ?
-                Chunk.MAX_SIZE :
-                (int) (totalLength - globalOffset);
-        return getNextStream(nextChunkSize).thenCompose(done ->
+        return getNextStream().thenCompose(done ->
             this.readIntoArray(res, offset + toRead, length - toRead).thenApply(bytesRead -> bytesRead + toRead)
         );
     }
 
-    private void updateState(int index,
+    private synchronized void updateState(int index,
                              long globalIndex,
                              byte[] chunk,
                              Location nextChunkPointer) {
@@ -0,0 +1,300 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** A client side cache of the files found by resolving paths from an entry point.
+ *
+ * Each cached file records the root hash of every writer whose champ was read to find it, i.e. the writers of the
+ * entry point and of every directory on the path and of the file itself. An entry is only used while all of those
+ * writers still have the same root, so any commit which changes one of them invalidates exactly the paths which
+ * depend on it. If the mutable pointers are cached, as in the web client, a hit doesn't need any network calls.
+ *
+ * A lookup which misses continues from the longest valid cached prefix of the path, caching each directory it
+ * resolves on the way.
+ */
+public class PathCache {
+
+    private final MutableTree tree;
+    private final Map<Key, Cached> cache;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+
+    /**
+     *
+     * @param tree The source of the current roots of writers
+     * @param maxEntries The maximum number of paths to cache
+     */
+    public PathCache(MutableTree tree, int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        this.tree = tree;
+        this.cache = new LRUCache<>(maxEntries);
+    }
+
+    /**
+     *
+     * @param entry The entry point to resolve the path from
+     * @param path The path relative to the entry point
+     * @param network
+     * @return The file at the path, if any
+     */
+    public CompletableFuture<Optional<FileWrapper>> getByPath(EntryPoint entry, String path, NetworkAccess network) {
+        List<String> names = Arrays.stream(path.split("/"))
+                .filter(n -> ! n.isEmpty())
+                .collect(Collectors.toList());
+        return findDeepest(entry, names, names.size()).thenCompose(found -> {
+            if (found.isPresent() && found.get().left == names.size()) {
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture(Optional.of(found.get().right.file.copy()));
+            }
+            misses.incrementAndGet();
+            if (found.isPresent())
+                return resolve(entry, names, found.get().left, found.get().right, network);
+            return resolveEntryPoint(entry, network).thenCompose(root -> {
+                if (! root.isPresent())
+                    return CompletableFuture.completedFuture(Optional.empty());
+                return resolve(entry, names, 0, root.get(), network);
+            });
+        });
+    }
+
+    /**
+     *
+     * @param entry
+     * @param names
+     * @param depth
+     * @return The deepest cached file at or above depth on the path, which is still valid, and its depth
+     */
+    private CompletableFuture<Optional<Pair<Integer, Cached>>> findDeepest(EntryPoint entry, List<String> names, int depth) {
+        if (depth < 0)
+            return CompletableFuture.completedFuture(Optional.empty());
+        Key key = new Key(entry, names.subList(0, depth));
+        Cached cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached == null)
+            return findDeepest(entry, names, depth - 1);
+        return currentRoots(entry.pointer.owner, cached.roots.keySet()).thenCompose(current -> {
+            if (current.isPresent() && current.get().equals(cached.roots))
+                return CompletableFuture.completedFuture(Optional.of(new Pair<>(depth, cached)));
+            invalidations.incrementAndGet();
+            synchronized (cache) {
+                if (cache.get(key) == cached)
+                    cache.remove(key);
+            }
+            return findDeepest(entry, names, depth - 1);
+        });
+    }
+
+    private CompletableFuture<Optional<Cached>> resolveEntryPoint(EntryPoint entry, NetworkAccess network) {
+        return withStableRoots(entry.pointer.owner, Collections.singletonList(entry.pointer.writer),
+                () -> network.retrieveEntryPoint(entry))
+                .thenApply(res -> res.left.map(file -> {
+                    Cached root = new Cached(file, res.right.orElse(null));
+                    if (root.isCacheable())
+                        put(new Key(entry, Collections.emptyList()), root);
+                    return root;
+                }));
+    }
+
+    private CompletableFuture<Optional<FileWrapper>> resolve(EntryPoint entry,
+                                                             List<String> names,
+                                                             int depth,
+                                                             Cached parent,
+                                                             NetworkAccess network) {
+        if (depth == names.size())
+            return CompletableFuture.completedFuture(Optional.of(parent.file.copy()));
+        String name = names.get(depth);
+        List<String> remaining = names.subList(depth + 1, names.size());
+        return resolveChild(parent.file.copy(), name, network).thenCompose(res -> {
+            if (! res.isPresent())
+                return CompletableFuture.completedFuture(Optional.empty());
+            FileWrapper child = res.get().left;
+            Optional<Map<PublicKeyHash, MaybeMultihash>> roots = res.get().right;
+            if (! parent.isCacheable() || ! roots.isPresent() || ! consistent(parent.roots, roots.get()))
+                return child.getDescendentByPath(String.join("/", remaining), network);
+            Map<PublicKeyHash, MaybeMultihash> merged = new HashMap<>(parent.roots);
+            merged.putAll(roots.get());
+            Cached resolved = new Cached(child, merged);
+            put(new Key(entry, names.subList(0, depth + 1)), resolved);
+            return resolve(entry, names, depth + 1, resolved, network);
+        });
+    }
+
+    /**
+     *
+     * @param dir
+     * @param name
+     * @param network
+     * @return The named child of dir, and the roots of the writers it was read from, if they didn't change while
+     * reading it
+     */
+    private CompletableFuture<Optional<Pair<FileWrapper, Optional<Map<PublicKeyHash, MaybeMultihash>>>>> resolveChild(
+            FileWrapper dir,
+            String name,
+            NetworkAccess network) {
+        PublicKeyHash owner = dir.owner();
+        return withStableRoots(owner, Collections.singletonList(dir.writer()), () -> dir.getChild(name, network))
+                .thenCompose(res -> {
+                    if (! res.left.isPresent())
+                        return CompletableFuture.completedFuture(Optional.empty());
+                    FileWrapper child = res.left.get();
+                    if (child.writer().equals(dir.writer()) || ! res.right.isPresent())
+                        return CompletableFuture.completedFuture(Optional.of(new Pair<>(child, res.right)));
+                    // The link to the child depends on the directory's writer, but the child's metadata on its own
+                    // writer, so read the metadata again while that writer is stable
+                    return withStableRoots(owner, Collections.singletonList(child.writer()),
+                            () -> network.retrieveAllMetadata(Collections.singletonList(child.getPointer().capability)))
+                            .thenApply(refreshed -> {
+                                if (refreshed.left.isEmpty() || ! refreshed.right.isPresent())
+                                    return Optional.of(new Pair<>(child, Optional.empty()));
+                                FileWrapper updated = child.withCryptreeNode(refreshed.left.get(0).fileAccess);
+                                if (! updated.getName().equals(name))
+                                    return Optional.of(new Pair<>(child, Optional.empty()));
+                                Map<PublicKeyHash, MaybeMultihash> roots = new HashMap<>(res.right.get());
+                                roots.putAll(refreshed.right.get());
+                                return Optional.of(new Pair<>(updated, Optional.of(roots)));
+                            });
+                });
+    }
+
+    /** Run an operation, and also return the roots of some writers if they were the same before and after it
+     *
+     */
+    private <T> CompletableFuture<Pair<T, Optional<Map<PublicKeyHash, MaybeMultihash>>>> withStableRoots(PublicKeyHash owner,
+                                                                                                         Collection<PublicKeyHash> writers,
+                                                                                                         Supplier<CompletableFuture<T>> op) {
+        return currentRoots(owner, writers).thenCompose(before -> op.get()
+                .thenCompose(result -> currentRoots(owner, writers)
+                        .thenApply(after -> new Pair<>(result, before.isPresent() && before.equals(after) ?
+                                before :
+                                Optional.<Map<PublicKeyHash, MaybeMultihash>>empty()))));
+    }
+
+    /**
+     *
+     * @param owner
+     * @param writers
+     * @return The current roots of the writers, or empty if any of them has uncommitted changes
+     */
+    private CompletableFuture<Optional<Map<PublicKeyHash, MaybeMultihash>>> currentRoots(PublicKeyHash owner,
+                                                                                         Collection<PublicKeyHash> writers) {
+        List<PublicKeyHash> ordered = new ArrayList<>(writers);
+        return Futures.combineAllInOrder(ordered.stream()
+                .map(writer -> tree.getCommittedRoot(owner, writer))
+                .collect(Collectors.toList()))
+                .thenApply(roots -> {
+                    Map<PublicKeyHash, MaybeMultihash> res = new HashMap<>();
+                    for (int i=0; i < ordered.size(); i++) {
+                        if (! roots.get(i).isPresent())
+                            return Optional.empty();
+                        res.put(ordered.get(i), roots.get(i).get());
+                    }
+                    return Optional.of(res);
+                });
+    }
+
+    private static boolean consistent(Map<PublicKeyHash, MaybeMultihash> a, Map<PublicKeyHash, MaybeMultihash> b) {
+        for (Map.Entry<PublicKeyHash, MaybeMultihash> e : b.entrySet()) {
+            MaybeMultihash existing = a.get(e.getKey());
+            if (existing != null && ! existing.equals(e.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    private void put(Key key, Cached value) {
+        synchronized (cache) {
+            cache.put(key, value);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     *
+     * @return The number of cached paths which were found to be out of date
+     */
+    public long invalidationCount() {
+        return invalidations.get();
+    }
+
+    public double hitRate() {
+        long hits = hitCount();
+        long total = hits + missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "PathCache{entries=" + size() + ", hits=" + hitCount() + ", misses=" + missCount() +
+                ", invalidations=" + invalidationCount() + "}";
+    }
+
+    private static final class Key {
+        final EntryPoint entry;
+        // capabilities are equal regardless of write access, but the files we find through them are not
+        final boolean writable;
+        final List<String> path;
+
+        Key(EntryPoint entry, List<String> path) {
+            this.entry = entry;
+            this.writable = entry.pointer.wBaseKey.isPresent();
+            this.path = new ArrayList<>(path);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return writable == key.writable &&
+                    Objects.equals(entry, key.entry) &&
+                    Objects.equals(path, key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entry, writable, path);
+        }
+    }
+
+    private static final class Cached {
+        // never returned directly, as FileWrappers are invalidated by modifying them
+        final FileWrapper file;
+        // null if the file can't be cached
+        final Map<PublicKeyHash, MaybeMultihash> roots;
+
+        Cached(FileWrapper file, Map<PublicKeyHash, MaybeMultihash> roots) {
+            this.file = file;
+            this.roots = roots;
+        }
+
+        boolean isCacheable() {
+            return roots != null;
+        }
+    }
+}
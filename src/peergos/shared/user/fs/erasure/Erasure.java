@@ -11,7 +11,11 @@ public class Erasure {
 
     public static byte[][] split(byte[] input, int originalBlobs, int allowedFailures)
     {
-        return split(input, new GaloisField256(), originalBlobs, allowedFailures);
+        long t1 = System.currentTimeMillis();
+        byte[][] res = ReedSolomon.get(originalBlobs, allowedFailures).encode(input);
+        long t2 = System.currentTimeMillis();
+        LOG.info("Erasure encoding took "+(t2-t1)+ " mS");
+        return res;
     }
 
     public static byte[][] split(byte[] input, GaloisField f, int originalBlobs, int allowedFailures)
@@ -50,12 +54,20 @@ public class Erasure {
 
     public static byte[] recombine(byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
-        return recombine(new GaloisField256(), encoded, truncateTo, originalBlobs, allowedFailures);
+        if (truncateTo == 0)
+            return new byte[0];
+        long t1 = System.currentTimeMillis();
+        try {
+            return ReedSolomon.get(originalBlobs, allowedFailures).decode(encoded, truncateTo);
+        } finally {
+            long t2 = System.currentTimeMillis();
+            LOG.info("Erasure decoding took " + (t2 - t1) + " mS");
+        }
     }
 
     public static byte[] recombine(List<byte[]> encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
-        return recombine(new GaloisField256(), encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
+        return recombine(encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
     }
 
     public static byte[] recombine(GaloisField f, byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
@@ -0,0 +1,279 @@
+package peergos.shared.user.fs.erasure;
+
+import peergos.shared.util.StringUtils;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A systematic Reed-Solomon code over GF(256) which produces exactly the same fragments as encoding with
+ * GaloisPolynomial, but works directly on byte arrays using precomputed multiplication tables.
+ *
+ * Each codeword is inputSize data bytes followed by nEC parity bytes, and is spread across the fragments symbolSize
+ * bytes at a time. The parity bytes are a linear function of the data bytes, so they are calculated from a generator
+ * matrix which is derived once from the generator polynomial. Missing fragments are treated as erasures and are
+ * recovered by inverting a Vandermonde submatrix of the parity check matrix.
+ */
+public class ReedSolomon {
+    private static final GaloisField FIELD = new GaloisField256();
+    private static final int FIELD_SIZE = 256;
+    // codewords are processed in independent ranges of this size, which can run in parallel
+    private static final int CODEWORDS_PER_TASK = 1024;
+
+    private static final Map<Integer, ReedSolomon> memoized = new HashMap<>();
+
+    public final int originalBlobs, allowedFailures, nFragments;
+    private final int encodeSize, inputSize, nEC, symbolSize;
+    private final int parityWords;
+    // For data index i and each nibble value n, the parity bytes contributed by a data byte of n (low nibble) or
+    // n << 4 (high nibble) at i, packed 4 to an int. Encoding xors two rows per data byte. Ints rather than longs keep
+    // this fast when compiled to JS.
+    private final int[] parityTable;
+
+    private ReedSolomon(int originalBlobs, int allowedFailures) {
+        this.originalBlobs = originalBlobs;
+        this.allowedFailures = allowedFailures;
+        this.nFragments = originalBlobs + allowedFailures * 2;
+        this.encodeSize = (FIELD_SIZE / nFragments) * nFragments;
+        this.inputSize = encodeSize * originalBlobs / nFragments;
+        this.nEC = encodeSize - inputSize;
+        this.symbolSize = inputSize / originalBlobs;
+        if (symbolSize * originalBlobs != inputSize)
+            throw new IllegalStateException(StringUtils.format("Bad alignment of bytes in chunking. %d != %d * %d", inputSize, symbolSize, originalBlobs));
+
+        // The parity is linear in the data, so derive the generator matrix by encoding each unit vector
+        this.parityWords = (nEC + 3) / 4;
+        this.parityTable = new int[inputSize * 32 * parityWords];
+        for (int i=0; i < inputSize; i++) {
+            int[] unit = new int[inputSize];
+            unit[i] = 1;
+            int[] encoded = GaloisPolynomial.encode(unit, nEC, FIELD);
+            for (int n=0; n < 16; n++) {
+                int lowRow = (i * 32 + n) * parityWords;
+                int highRow = (i * 32 + 16 + n) * parityWords;
+                for (int k=0; k < nEC; k++) {
+                    int shift = 8 * (k & 3);
+                    parityTable[lowRow + k / 4] |= (FIELD.mul(n, encoded[inputSize + k]) & 0xFF) << shift;
+                    parityTable[highRow + k / 4] |= (FIELD.mul(n << 4, encoded[inputSize + k]) & 0xFF) << shift;
+                }
+            }
+        }
+    }
+
+    public static synchronized ReedSolomon get(int originalBlobs, int allowedFailures) {
+        int key = (originalBlobs << 16) | allowedFailures;
+        ReedSolomon existing = memoized.get(key);
+        if (existing != null)
+            return existing;
+        ReedSolomon codec = new ReedSolomon(originalBlobs, allowedFailures);
+        memoized.put(key, codec);
+        return codec;
+    }
+
+    /**
+     *
+     * @param input
+     * @return nFragments fragments of equal size, the first originalBlobs of which contain the input interleaved
+     */
+    public byte[][] encode(byte[] input) {
+        int nCodewords = (input.length + inputSize - 1) / inputSize;
+        byte[][] res = new byte[nFragments][nCodewords * symbolSize];
+        int nTasks = (nCodewords + CODEWORDS_PER_TASK - 1) / CODEWORDS_PER_TASK;
+        IntStream.range(0, nTasks).parallel().forEach(t ->
+                encode(input, res, t * CODEWORDS_PER_TASK, Math.min(nCodewords, (t + 1) * CODEWORDS_PER_TASK)));
+        return res;
+    }
+
+    private void encode(byte[] input, byte[][] fragments, int startCodeword, int endCodeword) {
+        int[] parity = new int[parityWords];
+        for (int c = startCodeword; c < endCodeword; c++) {
+            Arrays.fill(parity, 0);
+            int inputOffset = c * inputSize;
+            int fragmentOffset = c * symbolSize;
+            for (int f=0; f < originalBlobs; f++) {
+                byte[] fragment = fragments[f];
+                for (int s=0; s < symbolSize; s++) {
+                    int i = f * symbolSize + s;
+                    int index = inputOffset + i;
+                    if (index >= input.length)
+                        break;
+                    int d = input[index] & 0xFF;
+                    fragment[fragmentOffset + s] = (byte) d;
+                    if (d == 0)
+                        continue;
+                    int low = (i * 32 + (d & 0xF)) * parityWords;
+                    int high = (i * 32 + 16 + (d >> 4)) * parityWords;
+                    for (int w=0; w < parityWords; w++)
+                        parity[w] ^= parityTable[low + w] ^ parityTable[high + w];
+                }
+            }
+            for (int k=0; k < nEC; k++) {
+                int pos = inputSize + k;
+                fragments[pos / symbolSize][fragmentOffset + pos % symbolSize] = (byte) (parity[k / 4] >>> (8 * (k & 3)));
+            }
+        }
+    }
+
+    /**
+     *
+     * @param fragments The fragments in order, where a missing fragment is null or empty
+     * @param truncateTo The length of the original input
+     * @return the original input
+     */
+    public byte[] decode(byte[][] fragments, int truncateTo) {
+        byte[] res = new byte[truncateTo];
+        if (fragments.length == 0)
+            return res;
+        boolean[] missing = new boolean[nFragments];
+        int fragmentSize = 0;
+        boolean missingData = false;
+        for (int f=0; f < nFragments; f++) {
+            missing[f] = f >= fragments.length || fragments[f] == null || fragments[f].length == 0;
+            if (! missing[f])
+                fragmentSize = fragments[f].length;
+            else if (f < originalBlobs)
+                missingData = true;
+        }
+        int nCodewords = fragmentSize / symbolSize;
+        int nTasks = (nCodewords + CODEWORDS_PER_TASK - 1) / CODEWORDS_PER_TASK;
+        if (! missingData) {
+            IntStream.range(0, nTasks).parallel().forEach(t ->
+                    interleave(fragments, res, t * CODEWORDS_PER_TASK, Math.min(nCodewords, (t + 1) * CODEWORDS_PER_TASK)));
+            return res;
+        }
+
+        Recovery recovery = new Recovery(missing);
+        IntStream.range(0, nTasks).parallel().forEach(t ->
+                recover(fragments, res, recovery, t * CODEWORDS_PER_TASK, Math.min(nCodewords, (t + 1) * CODEWORDS_PER_TASK)));
+        return res;
+    }
+
+    private void interleave(byte[][] fragments, byte[] res, int startCodeword, int endCodeword) {
+        for (int c = startCodeword; c < endCodeword; c++) {
+            int outputOffset = c * inputSize;
+            for (int f=0; f < originalBlobs; f++) {
+                int start = outputOffset + f * symbolSize;
+                if (start >= res.length)
+                    return;
+                System.arraycopy(fragments[f], c * symbolSize, res, start, Math.min(symbolSize, res.length - start));
+            }
+        }
+    }
+
+    private void recover(byte[][] fragments, byte[] res, Recovery recovery, int startCodeword, int endCodeword) {
+        int nKnown = recovery.knownPositions.length;
+        int words = recovery.words;
+        int[] recovered = new int[words];
+        for (int c = startCodeword; c < endCodeword; c++) {
+            Arrays.fill(recovered, 0);
+            int fragmentOffset = c * symbolSize;
+            for (int m=0; m < nKnown; m++) {
+                int pos = recovery.knownPositions[m];
+                int k = fragments[pos / symbolSize][fragmentOffset + pos % symbolSize] & 0xFF;
+                if (k == 0)
+                    continue;
+                int low = (m * 32 + (k & 0xF)) * words;
+                int high = (m * 32 + 16 + (k >> 4)) * words;
+                for (int w=0; w < words; w++)
+                    recovered[w] ^= recovery.table[low + w] ^ recovery.table[high + w];
+            }
+            int outputOffset = c * inputSize;
+            for (int i=0; i < inputSize && outputOffset + i < res.length; i++) {
+                int row = recovery.recoveryRow[i];
+                res[outputOffset + i] = row < 0 ?
+                        fragments[i / symbolSize][fragmentOffset + i % symbolSize] :
+                        (byte) (recovered[row / 4] >>> (8 * (row & 3)));
+            }
+        }
+    }
+
+    /** The linear map from the surviving bytes of a codeword to its missing data bytes, for a given set of missing
+     * fragments.
+     */
+    private final class Recovery {
+        public final int[] knownPositions;
+        // the index of each data position among the recovered bytes, or -1 if it is present
+        public final int[] recoveryRow;
+        public final int words;
+        // For known byte m and each nibble value, the contribution to every recovered byte, packed 4 to an int
+        public final int[] table;
+
+        public Recovery(boolean[] missingFragments) {
+            List<Integer> erased = new ArrayList<>();
+            List<Integer> known = new ArrayList<>();
+            for (int pos=0; pos < encodeSize; pos++)
+                (missingFragments[pos / symbolSize] ? erased : known).add(pos);
+            int nErased = erased.size();
+            if (nErased > nEC)
+                throw new IllegalStateException("Too many missing fragments to recover! (" + nErased / symbolSize + ")");
+            this.knownPositions = known.stream().mapToInt(x -> x).toArray();
+
+            // Every codeword c satisfies sum_pos c_pos X_pos^k = 0 for k < nEC, where X_pos = a^(encodeSize - 1 - pos),
+            // so the erased bytes u solve V u = A c_known with V[k][j] = X_erased(j)^k and A[k][m] = X_known(m)^k
+            int[][] v = new int[nErased][nErased];
+            for (int k=0; k < nErased; k++)
+                for (int j=0; j < nErased; j++)
+                    v[k][j] = power(erased.get(j), k);
+            int[][] vInverse = invert(v);
+
+            this.recoveryRow = new int[inputSize];
+            Arrays.fill(recoveryRow, -1);
+            List<Integer> erasedData = erased.stream().filter(pos -> pos < inputSize).collect(Collectors.toList());
+            int nKnown = knownPositions.length;
+            this.words = (erasedData.size() + 3) / 4;
+            this.table = new int[nKnown * 32 * words];
+            for (int r=0; r < erasedData.size(); r++) {
+                int j = erased.indexOf(erasedData.get(r));
+                recoveryRow[erasedData.get(r)] = r;
+                int shift = 8 * (r & 3);
+                for (int m=0; m < nKnown; m++) {
+                    int coefficient = 0;
+                    for (int k=0; k < nErased; k++)
+                        coefficient ^= FIELD.mul(vInverse[j][k], power(knownPositions[m], k));
+                    for (int n=0; n < 16; n++) {
+                        table[(m * 32 + n) * words + r / 4] |= FIELD.mul(n, coefficient) << shift;
+                        table[(m * 32 + 16 + n) * words + r / 4] |= FIELD.mul(n << 4, coefficient) << shift;
+                    }
+                }
+            }
+        }
+
+        private int power(int pos, int k) {
+            return FIELD.exp((k * (encodeSize - 1 - pos)) % (FIELD_SIZE - 1));
+        }
+    }
+
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] a = new int[n][];
+        int[][] res = new int[n][n];
+        for (int i=0; i < n; i++) {
+            a[i] = Arrays.copyOf(matrix[i], n);
+            res[i][i] = 1;
+        }
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular erasure matrix!");
+            int[] tmp = a[col]; a[col] = a[pivot]; a[pivot] = tmp;
+            tmp = res[col]; res[col] = res[pivot]; res[pivot] = tmp;
+
+            int scale = FIELD.div(1, a[col][col]);
+            for (int j=0; j < n; j++) {
+                a[col][j] = FIELD.mul(a[col][j], scale);
+                res[col][j] = FIELD.mul(res[col][j], scale);
+            }
+            for (int row=0; row < n; row++) {
+                int factor = a[row][col];
+                if (row == col || factor == 0)
+                    continue;
+                for (int j=0; j < n; j++) {
+                    a[row][j] ^= FIELD.mul(factor, a[col][j]);
+                    res[row][j] ^= FIELD.mul(factor, res[col][j]);
+                }
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,130 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A bound on the number of asynchronous tasks in flight at once. Tasks submitted beyond the bound are queued, and
+ * started in submission order as earlier tasks complete. No threads are used or blocked.
+ *
+ * Tasks must not wait on other tasks submitted to the same limiter, or they could deadlock.
+ */
+public class AsyncLimiter {
+
+    private final int maxInFlight;
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private int inFlight = 0;
+    private boolean pumping = false, pumpRequested = false;
+
+    public AsyncLimiter(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("Max in flight must be positive: " + maxInFlight);
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     *
+     * @param task
+     * @param <T>
+     * @return The result of the task, once it has been started and completed
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> {
+            CompletableFuture<T> started;
+            try {
+                started = task.get();
+            } catch (Throwable t) {
+                started = Futures.errored(t);
+            }
+            started.thenAccept(res -> {
+                release();
+                result.complete(res);
+            }).exceptionally(t -> {
+                release();
+                result.completeExceptionally(t);
+                return null;
+            });
+        };
+        synchronized (this) {
+            queued.add(start);
+        }
+        pump();
+        return result;
+    }
+
+    /**
+     *
+     * @param inputs
+     * @param task
+     * @param <I>
+     * @param <T>
+     * @return The results of applying the task to each input, in order
+     */
+    public <I, T> CompletableFuture<List<T>> submitAll(List<I> inputs, Function<I, CompletableFuture<T>> task) {
+        if (inputs.isEmpty())
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
+        List<T> results = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+        int[] remaining = {inputs.size()};
+        for (int i=0; i < inputs.size(); i++) {
+            int index = i;
+            I input = inputs.get(i);
+            submit(() -> task.apply(input)).thenAccept(res -> {
+                boolean done;
+                synchronized (results) {
+                    results.set(index, res);
+                    done = --remaining[0] == 0;
+                }
+                if (done)
+                    result.complete(results);
+            }).exceptionally(t -> {
+                result.completeExceptionally(t);
+                return null;
+            });
+        }
+        return result;
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        pump();
+    }
+
+    /** Start queued tasks while there is room for them.
+     *
+     *  Calls made while another call is already pumping just flag it to check again, so that tasks which complete
+     *  synchronously don't recurse once per task.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (pumping) {
+                pumpRequested = true;
+                return;
+            }
+            pumping = true;
+        }
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (inFlight >= maxInFlight || queued.isEmpty()) {
+                    if (! pumpRequested) {
+                        pumping = false;
+                        return;
+                    }
+                    pumpRequested = false;
+                    continue;
+                }
+                next = queued.poll();
+                inFlight++;
+            }
+            next.run();
+        }
+    }
+}
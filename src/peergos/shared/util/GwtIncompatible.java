@@ -0,0 +1,14 @@
+package peergos.shared.util;
+
+import java.lang.annotation.*;
+
+/** The GWT compiler skips any class, method or field with an annotation of this name, so it can mark shared code
+ * which only runs on the JVM
+ *
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.CONSTRUCTOR, ElementType.FIELD})
+@Documented
+public @interface GwtIncompatible {
+    String value() default "";
+}